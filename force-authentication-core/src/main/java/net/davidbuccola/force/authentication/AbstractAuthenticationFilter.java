@@ -0,0 +1,294 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import net.davidbuccola.force.authentication.AuthenticationAuditEvent.Mechanism;
+import net.davidbuccola.force.authentication.AuthenticationAuditEvent.Outcome;
+import net.davidbuccola.force.authentication.AuthenticationTrace.Phase;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.web.filter.GenericFilterBean;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Collection;
+
+/**
+ * Common support for the library's authentication filters.
+ * <p/>
+ * This holds the optional collaborators that apply to every filter so that each filter only has to deal with its own
+ * flavor of authentication.
+ */
+public abstract class AbstractAuthenticationFilter extends GenericFilterBean {
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    @Autowired(required = false)
+    private AuthenticationRateLimiter rateLimiter;
+
+    @Autowired(required = false)
+    private AuthenticationAuditLog auditLog;
+
+    @Autowired(required = false)
+    private AuthorityResolver authorityResolver;
+
+    @Autowired(required = false)
+    private SharedTokenCache sharedTokenCache;
+
+    @Autowired(required = false)
+    private AuthenticationTracer tracer;
+
+    @Autowired(required = false)
+    private ReplayGuard replayGuard;
+
+    @Autowired(required = false)
+    private PathExclusionMatcher exclusionMatcher;
+
+    /**
+     * Sets the resolver of additional authorities. The default is to grant only the fixed authorities of each filter.
+     *
+     * @param authorityResolver the authority resolver
+     */
+    public void setAuthorityResolver(AuthorityResolver authorityResolver) {
+        this.authorityResolver = authorityResolver;
+    }
+
+    /**
+     * Sets the cache that shares authentications with other processes. The default is not to share them.
+     *
+     * @param sharedTokenCache the shared token cache
+     */
+    public void setSharedTokenCache(SharedTokenCache sharedTokenCache) {
+        this.sharedTokenCache = sharedTokenCache;
+    }
+
+    /**
+     * Sets the rate limiter. The default is no rate limiting.
+     *
+     * @param rateLimiter the rate limiter
+     */
+    public void setRateLimiter(AuthenticationRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Sets the audit log. The default is no auditing.
+     *
+     * @param auditLog the audit log
+     */
+    public void setAuditLog(AuthenticationAuditLog auditLog) {
+        this.auditLog = auditLog;
+    }
+
+    /**
+     * Sets the phase tracer. The default is no tracing.
+     *
+     * @param tracer the tracer
+     */
+    public void setTracer(AuthenticationTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Sets the replay protection for signed payloads. The default is no replay protection.
+     *
+     * @param replayGuard the replay guard
+     */
+    public void setReplayGuard(ReplayGuard replayGuard) {
+        this.replayGuard = replayGuard;
+    }
+
+    /**
+     * Sets the matcher of requests that are passed through without looking for authentication. The default is to look
+     * at every request.
+     *
+     * @param exclusionMatcher the exclusion matcher
+     */
+    public void setExclusionMatcher(PathExclusionMatcher exclusionMatcher) {
+        this.exclusionMatcher = exclusionMatcher;
+    }
+
+    /**
+     * Checks whether a request is excluded from authentication, such as a static asset or a health check. This should
+     * be called before anything else, in particular before reading any parameter, which may parse a form body.
+     *
+     * @return <code>true</code> if the request should be passed straight to the rest of the chain
+     */
+    protected final boolean isExcluded(HttpServletRequest request) {
+        return exclusionMatcher != null && exclusionMatcher.matches(request);
+    }
+
+    /**
+     * Starts tracing an authentication attempt, if there is a tracer. The trace is finished by {@link #audit}, which
+     * every attempt ends with.
+     *
+     * @param startNanos the {@link System#nanoTime()} at which the attempt started
+     */
+    protected final void beginTrace(Mechanism mechanism, long startNanos) {
+        if (tracer != null) {
+            tracer.begin(mechanism, startNanos);
+        }
+    }
+
+    /**
+     * Checks the per-client rate limit. This should be called before doing any expensive authentication work.
+     *
+     * @return <code>true</code> if the request may proceed, <code>false</code> if it was rejected (in which case a
+     *         response has already been sent)
+     */
+    protected final boolean acquireForClient(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (rateLimiter != null) {
+            String clientAddress = rateLimiter.getClientAddress(request);
+            long wait = rateLimiter.tryAcquireForClient(clientAddress);
+            if (wait > 0) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Rate limit exceeded for client " + clientAddress);
+                }
+                finishTrace(Outcome.FAILURE, null, null, "Rate limit exceeded for client");
+                AuthenticationRateLimiter.sendTooManyRequests(response, wait);
+                return false;
+            }
+            AuthenticationTrace.mark(Phase.RATE_LIMIT);
+        }
+        return true;
+    }
+
+    /**
+     * Checks the per-user and per-org rate limits. This should be called once the identity is known but before the
+     * authentication is established.
+     *
+     * @return <code>true</code> if the request may proceed, <code>false</code> if it was rejected (in which case a
+     *         response has already been sent)
+     */
+    protected final boolean acquireForUser(String userId, String instanceUrl, HttpServletResponse response) throws IOException {
+        if (rateLimiter != null) {
+            long wait = rateLimiter.tryAcquireForUser(userId, instanceUrl);
+            if (wait > 0) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug(String.format("Rate limit exceeded for userId=%s, instanceUrl=%s", userId, instanceUrl));
+                }
+                finishTrace(Outcome.FAILURE, userId, instanceUrl, "Rate limit exceeded for user or org");
+                AuthenticationRateLimiter.sendTooManyRequests(response, wait);
+                return false;
+            }
+            AuthenticationTrace.mark(Phase.RATE_LIMIT);
+        }
+        return true;
+    }
+
+    /**
+     * Checks a verified signed payload against the replay guard, if there is one. This should be called after the
+     * signature has been verified, so that only authentic payloads are remembered.
+     *
+     * @param issuedAtSeconds the issue time of the payload or <code>null</code> if it has none
+     * @param startNanos      the {@link System#nanoTime()} at which the attempt started
+     * @return <code>true</code> if the request may proceed, <code>false</code> if the payload was rejected (in which
+     *         case a response has already been sent)
+     */
+    protected final boolean checkReplay(Mechanism mechanism, String signedPayload, Integer issuedAtSeconds,
+                                        HttpServletRequest request, HttpServletResponse response, long startNanos) throws IOException {
+        if (replayGuard != null) {
+            ReplayGuard.Verdict verdict = replayGuard.check(signedPayload, issuedAtSeconds, request.getRemoteAddr());
+            if (!verdict.isAccepted()) {
+                String message = verdict.getMessage();
+                if (logger.isDebugEnabled()) {
+                    logger.debug(String.format("%s: client=%s, issuedAt=%s", message, request.getRemoteAddr(), issuedAtSeconds));
+                }
+                audit(mechanism, Outcome.FAILURE, null, null, startNanos, message);
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, message);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the authorities from the authority resolver, if there is one, to a newly authenticated token. If the
+     * authorities can't be resolved the token keeps just the fixed authorities of the filter; that is the least
+     * privileged choice and keeps the user logged in while Salesforce is having trouble.
+     *
+     * <p/>
+     * This must only be used for tokens whose user was established by Salesforce (an OAuth exchange or a signed
+     * payload), otherwise a client could claim another user's authorities.
+     *
+     * @param token the authentication token with the fixed authorities of the filter
+     * @return the token to put in the security context
+     */
+    protected final ForceAuthenticationToken resolveAuthorities(ForceAuthenticationToken token) {
+        if (authorityResolver == null) {
+            return token;
+        }
+        try {
+            Collection<? extends GrantedAuthority> authorities = authorityResolver.resolveAuthorities(token);
+            AuthenticationTrace.mark(Phase.AUTHORITIES);
+            if (authorities.isEmpty()) {
+                return token;
+            }
+            return token.withAuthorities(AuthoritySets.union(token.getAuthorities(), authorities));
+
+        } catch (RuntimeException e) {
+            logger.warn(String.format("Failed to resolve authorities for userId=%s", token.getUserId()), e);
+            return token;
+        }
+    }
+
+    /**
+     * Puts a newly established authentication in the shared token cache, if there is one, and sends the session key to
+     * the browser. This must be called before the response is committed.
+     * <p/>
+     * A new key is generated every time and the entry of the key the browser sent, if any, is removed, so a key planted
+     * in a victim's browser before they log in never gets to hold their authentication.
+     * <p/>
+     * Like {@link #resolveAuthorities}, this must only be used for tokens whose user was established by Salesforce.
+     */
+    protected final void shareAuthentication(ForceAuthenticationToken token, HttpServletRequest request, HttpServletResponse response) {
+        if (sharedTokenCache != null) {
+            String oldSessionKey = SharedTokenCacheFilter.getSessionKey(request);
+            if (oldSessionKey != null) {
+                sharedTokenCache.remove(oldSessionKey);
+            }
+
+            byte[] random = new byte[32];
+            secureRandom.nextBytes(random);
+            String sessionKey = Base64.encodeBase64URLSafeString(random);
+
+            Cookie cookie = new Cookie(SharedTokenCacheFilter.COOKIE_NAME, sessionKey);
+            cookie.setPath(StringUtils.defaultIfEmpty(request.getContextPath(), "/"));
+            cookie.setHttpOnly(true);
+            cookie.setSecure(request.isSecure());
+            response.addCookie(cookie);
+            sharedTokenCache.put(sessionKey, token);
+            AuthenticationTrace.mark(Phase.SHARED_CACHE);
+        }
+    }
+
+    /**
+     * Records the outcome of an authentication attempt in the audit log, if there is one, and finishes its trace.
+     *
+     * @param startNanos the {@link System#nanoTime()} at which the attempt started
+     */
+    protected final void audit(Mechanism mechanism, Outcome outcome, String userId, String instanceUrl, long startNanos, String detail) {
+        if (auditLog != null) {
+            auditLog.record(new AuthenticationAuditEvent(
+                System.currentTimeMillis(), mechanism, outcome, userId, AuthenticationUtils.getInstanceHost(instanceUrl),
+                (System.nanoTime() - startNanos) / 1000, detail));
+        }
+        finishTrace(outcome, userId, instanceUrl, detail);
+    }
+
+    /**
+     * Finishes the trace of an authentication attempt that doesn't end with {@link #audit}.
+     */
+    protected final void finishTrace(Outcome outcome, String userId, String instanceUrl, String detail) {
+        if (tracer != null) {
+            tracer.finish(outcome, userId, instanceUrl, detail);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+/**
+ * A base class for {@link OAuthConnector}s that support the optional parts of the exchange: PKCE, login hosts other
+ * than the configured server URL (such as the My Domain of the user's org) and token revocation.
+ * <p/>
+ * {@link OAuthConnector} itself stays as small as it always was so that existing implementations keep working. The
+ * library checks whether the connector extends this class and only uses those features if it does; with a plain
+ * {@link OAuthConnector} the exchange goes to the configured server URL without PKCE, and a {@link
+ * TokenRevocationQueue} can't be used. The two-argument methods of {@link OAuthConnector} are implemented here in
+ * terms of the full ones.
+ */
+public abstract class AbstractOAuthConnector implements OAuthConnector {
+
+    @Override
+    public String buildAuthorizeUri(String callbackUri, String state) {
+        return buildAuthorizeUri(null, callbackUri, state, null);
+    }
+
+    @Override
+    public ForceAuthenticationToken getToken(String code, String callbackUri) {
+        return getToken(null, code, callbackUri, null);
+    }
+
+    /**
+     * Builds the "authorize" URL on a specific login host, optionally for a PKCE-protected sequence.
+     *
+     * @param loginUrl      the base URL of the login host or <code>null</code> to use the configured server URL
+     * @param callbackUri   the OAuth callback URI (see {@link #buildAuthorizeUri(String, String)})
+     * @param state         state information that will be returned with the callback
+     * @param codeChallenge the PKCE S256 code challenge or <code>null</code> to not use PKCE
+     * @return the "authorize" URL
+     */
+    public abstract String buildAuthorizeUri(String loginUrl, String callbackUri, String state, String codeChallenge);
+
+    /**
+     * Obtain the OAuth access token from a specific login host, optionally for a PKCE-protected sequence. This should
+     * be the host that the "authorize" request was sent to.
+     *
+     * @param loginUrl     the base URL of the login host or <code>null</code> to use the configured server URL
+     * @param code         the "code" that was received in the OAuth callback from the earlier phase of the exchange.
+     * @param callbackUri  the OAuth callback URI (see {@link #getToken(String, String)})
+     * @param codeVerifier the PKCE code verifier that matches the challenge sent with the "authorize" request or
+     *                     <code>null</code> if PKCE isn't being used
+     * @return the access token
+     */
+    public abstract ForceAuthenticationToken getToken(String loginUrl, String code, String callbackUri, String codeVerifier);
+
+    /**
+     * Revokes an access token so that it can't be used anymore. Revoking a token that is already invalid is not an
+     * error.
+     *
+     * @param loginUrl    the base URL of the login host or <code>null</code> to use the configured server URL
+     * @param accessToken the access token
+     * @throws OAuthException if the token could not be revoked, in which case it may be retried
+     */
+    public abstract void revokeToken(String loginUrl, String accessToken);
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A destination for authentication audit events.
+ * <p/>
+ * Sinks are only ever called from the single background writer of {@link AuthenticationAuditLog} so implementations
+ * don't need to be thread-safe.
+ */
+public interface AuditSink {
+    /**
+     * Writes a batch of events.
+     *
+     * @param events the events, oldest first
+     * @throws IOException if the events could not be written
+     */
+    void write(List<AuthenticationAuditEvent> events) throws IOException;
+
+    /**
+     * Releases any resources held by the sink. Called once after the last batch has been written.
+     *
+     * @throws IOException if there was a problem releasing resources
+     */
+    void close() throws IOException;
+}
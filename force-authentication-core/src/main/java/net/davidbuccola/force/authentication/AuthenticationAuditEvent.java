@@ -0,0 +1,111 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.lang.builder.ReflectionToStringBuilder;
+
+/**
+ * A record of a single authentication attempt.
+ * <p/>
+ * Events never carry access tokens or signed payloads. The org is identified by the host of the Salesforce instance
+ * URL.
+ */
+public final class AuthenticationAuditEvent {
+
+    /**
+     * The way in which authentication was attempted.
+     */
+    public enum Mechanism {
+        OAUTH,
+        HEADER,
+        SIGNED_REQUEST,
+        SIGNED_PARAMETERS
+    }
+
+    /**
+     * The result of the authentication attempt.
+     */
+    public enum Outcome {
+        SUCCESS,
+        FAILURE
+    }
+
+    private final long timestamp;
+    private final Mechanism mechanism;
+    private final Outcome outcome;
+    private final String userId;
+    private final String org;
+    private final long latencyMicros;
+    private final String detail;
+
+    public AuthenticationAuditEvent(long timestamp, Mechanism mechanism, Outcome outcome, String userId, String org, long latencyMicros, String detail) {
+        this.timestamp = timestamp;
+        this.mechanism = mechanism;
+        this.outcome = outcome;
+        this.userId = userId;
+        this.org = org;
+        this.latencyMicros = latencyMicros;
+        this.detail = detail;
+    }
+
+    /**
+     * Gets the time of the event.
+     *
+     * @return milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Mechanism getMechanism() {
+        return mechanism;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * Gets the Salesforce user ID.
+     *
+     * @return the user ID or <code>null</code> if it isn't known (typically because authentication failed)
+     */
+    public String getUserId() {
+        return userId;
+    }
+
+    /**
+     * Gets the org, identified by the host of the Salesforce instance URL.
+     *
+     * @return the org or <code>null</code> if it isn't known
+     */
+    public String getOrg() {
+        return org;
+    }
+
+    /**
+     * Gets the time spent by the library on the authentication.
+     *
+     * @return latency in microseconds
+     */
+    public long getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    /**
+     * Gets additional detail, typically the reason for a failure.
+     *
+     * @return the detail or <code>null</code>
+     */
+    public String getDetail() {
+        return detail;
+    }
+
+    @Override
+    public String toString() {
+        return ReflectionToStringBuilder.reflectionToString(this);
+    }
+}
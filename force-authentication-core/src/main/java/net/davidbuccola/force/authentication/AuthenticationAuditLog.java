@@ -0,0 +1,183 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous audit trail of authentication attempts.
+ * <p/>
+ * Request threads hand events to a lock-free bounded ring buffer and return immediately. A single background writer
+ * drains the buffer in batches to a pluggable {@link AuditSink}. If the writer falls behind and the buffer fills up,
+ * new events are dropped (and counted) rather than slowing down requests.
+ * <p/>
+ * The audit log is only used by the filters if a bean of this type is present in the application context.
+ */
+@ManagedResource(description = "Salesforce authentication audit log")
+public class AuthenticationAuditLog implements InitializingBean, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(AuthenticationAuditLog.class);
+
+    private AuditSink sink;
+    private int capacity = 8192;
+    private int batchSize = 256;
+    private long idleMillis = 100;
+    private long shutdownTimeoutMillis = 5000;
+
+    private BoundedRingBuffer<AuthenticationAuditEvent> buffer;
+    private Thread writer;
+    private volatile boolean running;
+
+    private final AtomicLong recordedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * Sets the destination for events. This is required.
+     *
+     * @param sink the sink
+     */
+    public void setSink(AuditSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Sets the maximum number of events that can be waiting to be written. The default is 8192.
+     *
+     * @param capacity the capacity, rounded up to a power of two
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Sets the maximum number of events handed to the sink at once. The default is 256.
+     *
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets how long the writer sleeps when there is nothing to write. The default is 100 milliseconds.
+     *
+     * @param idleMillis the idle time in milliseconds
+     */
+    public void setIdleMillis(long idleMillis) {
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * Sets how long shutdown waits for pending events to be written. The default is 5 seconds.
+     *
+     * @param shutdownTimeoutMillis the timeout in milliseconds
+     */
+    public void setShutdownTimeoutMillis(long shutdownTimeoutMillis) {
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (sink == null) {
+            throw new BeanInitializationException("sink is not set");
+        }
+
+        buffer = new BoundedRingBuffer<AuthenticationAuditEvent>(capacity);
+        running = true;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeEvents();
+            }
+        }, "force-authentication-audit");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join(shutdownTimeoutMillis);
+        if (writer.isAlive()) {
+            log.warn(String.format("Audit writer did not finish within %d ms, %d events lost", shutdownTimeoutMillis, buffer.size()));
+        }
+        sink.close();
+    }
+
+    /**
+     * Records an event. This never blocks.
+     *
+     * @param event the event
+     * @return <code>true</code> if the event was accepted, <code>false</code> if it was dropped because the buffer is
+     *         full
+     */
+    public boolean record(AuthenticationAuditEvent event) {
+        if (buffer.offer(event)) {
+            recordedCount.incrementAndGet();
+            return true;
+        } else {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    @ManagedAttribute(description = "Number of events accepted into the buffer")
+    public long getRecordedCount() {
+        return recordedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of events dropped because the buffer was full")
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of events written to the sink")
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of events lost because the sink failed")
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of events waiting to be written")
+    public int getPendingCount() {
+        return buffer.size();
+    }
+
+    private void writeEvents() {
+        List<AuthenticationAuditEvent> batch = new ArrayList<AuthenticationAuditEvent>(batchSize);
+        while (running || !buffer.isEmpty()) {
+            if (buffer.drainTo(batch, batchSize) == 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(idleMillis));
+                continue;
+            }
+            try {
+                sink.write(batch);
+                writtenCount.addAndGet(batch.size());
+            } catch (Exception e) {
+                failedCount.addAndGet(batch.size());
+                log.error(String.format("Failed to write %d audit events", batch.size()), e);
+            }
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An optional in-process rate limiter for the expensive authentication paths: the OAuth callback (which calls the
+ * Salesforce token endpoint) and canvas payload verification.
+ * <p/>
+ * Requests are limited per client address before any expensive work is done and per user and per org (the instance
+ * URL host) once the identity is known. Each dimension is a fixed array of striped token buckets so memory is bounded
+ * no matter how many distinct keys are seen. The org bucket is only charged once the user bucket has accepted, so a
+ * single user who is over the limit can't drain the allowance of the rest of the org.
+ * <p/>
+ * Behind a load balancer or reverse proxy every request comes from the proxy's address. In that case the addresses of
+ * the proxies must be listed as <code>trustedProxies</code>; the client address is then taken from the
+ * <code>X-Forwarded-For</code> header, as the right-most address that isn't a trusted proxy. The header is ignored
+ * for requests that don't come from a trusted proxy, since anyone can send it.
+ * <p/>
+ * The limiter is only used if a bean of this type is present in the application context. The counters are exposed as
+ * JMX attributes when a Spring MBean exporter is configured.
+ */
+@ManagedResource(description = "Salesforce authentication rate limiter")
+public class AuthenticationRateLimiter implements InitializingBean {
+    static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private int stripes = 4096;
+    private int clientPermitsPerSecond = 10;
+    private int clientBurst = 20;
+    private int userPermitsPerSecond = 5;
+    private int userBurst = 10;
+    private int orgPermitsPerSecond = 50;
+    private int orgBurst = 100;
+    private Set<String> trustedProxies = Collections.emptySet();
+    private String forwardedForHeader = "X-Forwarded-For";
+
+    private TokenBucketStripes clientBuckets;
+    private TokenBucketStripes userBuckets;
+    private TokenBucketStripes orgBuckets;
+
+    private final AtomicLong allowedCount = new AtomicLong();
+    private final AtomicLong clientRejectedCount = new AtomicLong();
+    private final AtomicLong userRejectedCount = new AtomicLong();
+    private final AtomicLong orgRejectedCount = new AtomicLong();
+
+    /**
+     * Sets the number of buckets per dimension. The default is 4096.
+     *
+     * @param stripes the number of buckets, rounded up to a power of two
+     */
+    public void setStripes(int stripes) {
+        this.stripes = stripes;
+    }
+
+    /**
+     * Sets the sustained rate allowed per client address. The default is 10.
+     *
+     * @param permitsPerSecond the sustained rate
+     */
+    public void setClientPermitsPerSecond(int permitsPerSecond) {
+        this.clientPermitsPerSecond = permitsPerSecond;
+    }
+
+    /**
+     * Sets the burst allowed per client address. The default is 20.
+     *
+     * @param burst the burst size
+     */
+    public void setClientBurst(int burst) {
+        this.clientBurst = burst;
+    }
+
+    /**
+     * Sets the sustained rate allowed per user. The default is 5.
+     *
+     * @param permitsPerSecond the sustained rate
+     */
+    public void setUserPermitsPerSecond(int permitsPerSecond) {
+        this.userPermitsPerSecond = permitsPerSecond;
+    }
+
+    /**
+     * Sets the burst allowed per user. The default is 10.
+     *
+     * @param burst the burst size
+     */
+    public void setUserBurst(int burst) {
+        this.userBurst = burst;
+    }
+
+    /**
+     * Sets the sustained rate allowed per org. The default is 50.
+     *
+     * @param permitsPerSecond the sustained rate
+     */
+    public void setOrgPermitsPerSecond(int permitsPerSecond) {
+        this.orgPermitsPerSecond = permitsPerSecond;
+    }
+
+    /**
+     * Sets the burst allowed per org. The default is 100.
+     *
+     * @param burst the burst size
+     */
+    public void setOrgBurst(int burst) {
+        this.orgBurst = burst;
+    }
+
+    /**
+     * Sets the addresses of the proxies in front of the application whose <code>X-Forwarded-For</code> header is
+     * trusted. The default is none, so the remote address of the connection is always used.
+     *
+     * @param trustedProxies the IP addresses of the proxies, exactly as they appear as remote addresses
+     */
+    public void setTrustedProxies(Collection<String> trustedProxies) {
+        this.trustedProxies = new HashSet<String>(trustedProxies);
+    }
+
+    /**
+     * Sets the name of the header in which trusted proxies pass the client address. The default is
+     * <code>X-Forwarded-For</code>.
+     *
+     * @param forwardedForHeader the header name
+     */
+    public void setForwardedForHeader(String forwardedForHeader) {
+        this.forwardedForHeader = forwardedForHeader;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        clientBuckets = new TokenBucketStripes(stripes, clientPermitsPerSecond, clientBurst);
+        userBuckets = new TokenBucketStripes(stripes, userPermitsPerSecond, userBurst);
+        orgBuckets = new TokenBucketStripes(stripes, orgPermitsPerSecond, orgBurst);
+    }
+
+    /**
+     * Gets the address of the client that sent a request, looking through trusted proxies.
+     *
+     * @param request the request
+     * @return the client address
+     */
+    public String getClientAddress(HttpServletRequest request) {
+        String address = request.getRemoteAddr();
+        if (!trustedProxies.contains(address)) {
+            return address;
+        }
+        String forwardedFor = request.getHeader(forwardedForHeader);
+        if (forwardedFor == null) {
+            return address;
+        }
+        int end = forwardedFor.length();
+        while (end > 0) {
+            int start = forwardedFor.lastIndexOf(',', end - 1);
+            String hop = forwardedFor.substring(start + 1, end).trim();
+            if (!StringUtils.isEmpty(hop)) {
+                address = hop;
+                if (!trustedProxies.contains(hop)) {
+                    break;
+                }
+            }
+            end = start;
+        }
+        return address;
+    }
+
+    /**
+     * Tries to acquire a permit for a client address.
+     *
+     * @param clientAddress the remote address of the request
+     * @return zero if the request may proceed, otherwise the number of milliseconds the client should wait
+     */
+    public long tryAcquireForClient(String clientAddress) {
+        if (clientAddress == null) {
+            return 0;
+        }
+        long wait = clientBuckets.tryAcquire(clientAddress);
+        if (wait > 0) {
+            clientRejectedCount.incrementAndGet(); // Allowed requests are counted once, by tryAcquireForUser
+        }
+        return wait;
+    }
+
+    /**
+     * Tries to acquire a permit for a user and the user's org. The org is only charged if the user is within limits.
+     *
+     * @param userId      the Salesforce user ID
+     * @param instanceUrl the Salesforce instance URL, which identifies the org
+     * @return zero if the request may proceed, otherwise the number of milliseconds the client should wait
+     */
+    public long tryAcquireForUser(String userId, String instanceUrl) {
+        if (userId != null) {
+            SalesforceId canonicalUserId = SalesforceId.parse(userId);
+            long wait = userBuckets.tryAcquire((canonicalUserId != null) ? canonicalUserId : userId);
+            if (wait > 0) {
+                count(wait, userRejectedCount);
+                return wait;
+            }
+        }
+        String org = AuthenticationUtils.getInstanceHost(instanceUrl);
+        if (org != null) {
+            long wait = orgBuckets.tryAcquire(org);
+            count(wait, orgRejectedCount);
+            return wait;
+        }
+        count(0, null);
+        return 0;
+    }
+
+    @ManagedAttribute(description = "Number of requests allowed by the per-user and per-org limits")
+    public long getAllowedCount() {
+        return allowedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of requests rejected by the per-client limit")
+    public long getClientRejectedCount() {
+        return clientRejectedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of requests rejected by the per-user limit")
+    public long getUserRejectedCount() {
+        return userRejectedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of requests rejected by the per-org limit")
+    public long getOrgRejectedCount() {
+        return orgRejectedCount.get();
+    }
+
+    /**
+     * Rejects a request with a 429 (Too Many Requests) and a <code>Retry-After</code> header.
+     */
+    static void sendTooManyRequests(HttpServletResponse response, long waitMillis) throws IOException {
+        response.setHeader("Retry-After", Long.toString(Math.max(1, (waitMillis + 999) / 1000)));
+        response.sendError(SC_TOO_MANY_REQUESTS, "Too many authentication requests");
+    }
+
+    private void count(long wait, AtomicLong rejectedCount) {
+        if (wait > 0) {
+            rejectedCount.incrementAndGet();
+        } else {
+            allowedCount.incrementAndGet();
+        }
+    }
+}
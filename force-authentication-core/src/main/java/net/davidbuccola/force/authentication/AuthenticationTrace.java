@@ -0,0 +1,125 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import net.davidbuccola.force.authentication.AuthenticationAuditEvent.Mechanism;
+
+/**
+ * Records how long the phases of one authentication attempt take.
+ * <p/>
+ * Code on the authentication path calls {@link #mark} at the end of each phase; the time since the previous mark (or
+ * since the trace started) is charged to that phase. When no trace is active on the current thread a mark is a single
+ * thread local lookup, so marks can be left in code that also runs outside of a traced request. A thread only gets a
+ * recorder once one of its requests is traced, and the recorder is reused for every later request on that thread.
+ */
+final class AuthenticationTrace {
+    private static final ThreadLocal<AuthenticationTrace> CURRENT = new ThreadLocal<AuthenticationTrace>();
+
+    /**
+     * The phases of an authentication attempt. A phase that is skipped gets no time.
+     */
+    enum Phase {
+        REQUEST_PARSING,
+        RATE_LIMIT,
+        STATE_LOOKUP,
+        SIGNATURE,
+        DECODE,
+        JSON_MAPPING,
+        TOKEN_REQUEST,
+        TOKEN_RESPONSE,
+        AUTHORITIES,
+        SECURITY_CONTEXT,
+        SHARED_CACHE
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final long[] phaseNanos = new long[PHASES.length];
+    private Mechanism mechanism;
+    private long startNanos;
+    private long lastNanos;
+    private boolean active;
+
+    private AuthenticationTrace() {
+    }
+
+    /**
+     * Ends a phase of the trace active on the current thread, if there is one.
+     *
+     * @param phase the phase that just ended
+     */
+    static void mark(Phase phase) {
+        AuthenticationTrace trace = CURRENT.get();
+        if (trace != null && trace.active) {
+            long now = System.nanoTime();
+            trace.phaseNanos[phase.ordinal()] += now - trace.lastNanos;
+            trace.lastNanos = now;
+        }
+    }
+
+    /**
+     * Starts a trace on the current thread, replacing any trace that was left active.
+     *
+     * @param startNanos the {@link System#nanoTime()} at which the attempt started
+     */
+    static void start(Mechanism mechanism, long startNanos) {
+        AuthenticationTrace trace = CURRENT.get();
+        if (trace == null) {
+            trace = new AuthenticationTrace();
+            CURRENT.set(trace);
+        }
+        for (int i = 0; i < trace.phaseNanos.length; i++) {
+            trace.phaseNanos[i] = 0;
+        }
+        trace.mechanism = mechanism;
+        trace.startNanos = startNanos;
+        trace.lastNanos = startNanos;
+        trace.active = true;
+    }
+
+    /**
+     * Abandons any trace left active on the current thread without allocating a recorder for threads that don't have
+     * one.
+     */
+    static void cancel() {
+        AuthenticationTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.active = false;
+        }
+    }
+
+    /**
+     * Stops the trace active on the current thread.
+     *
+     * @return the stopped trace, which stays valid until the next trace is started on this thread, or
+     *         <code>null</code> if no trace was active
+     */
+    static AuthenticationTrace stop() {
+        AuthenticationTrace trace = CURRENT.get();
+        if (trace == null || !trace.active) {
+            return null;
+        }
+        trace.active = false;
+        trace.lastNanos = System.nanoTime();
+        return trace;
+    }
+
+    static Phase[] getPhases() {
+        return PHASES;
+    }
+
+    Mechanism getMechanism() {
+        return mechanism;
+    }
+
+    long getTotalNanos() {
+        return lastNanos - startNanos;
+    }
+
+    long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import net.davidbuccola.force.authentication.AuthenticationAuditEvent.Mechanism;
+import net.davidbuccola.force.authentication.AuthenticationAuditEvent.Outcome;
+import net.davidbuccola.force.authentication.AuthenticationTrace.Phase;
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per-phase timing of authentication attempts, with capture of slow ones.
+ * <p/>
+ * A sample of the attempts made by the filters is traced: the time spent reading the request, rate limiting, looking
+ * up OAuth state, checking the signature, decoding, JSON mapping, the token request and response, resolving
+ * authorities, setting the security context and sharing the authentication is recorded separately. The totals per
+ * phase are available as averages, and every traced attempt slower than a threshold is kept with its full breakdown
+ * in a bounded ring of exemplars (the most recent ones win). Exemplars hold the user ID and org host but never a token.
+ * <p/>
+ * Tracing is only done by the filters if a bean of this type is present in the application context.
+ */
+@ManagedResource(description = "Salesforce authentication phase tracing")
+public class AuthenticationTracer implements InitializingBean {
+    private double sampleRate = 1.0;
+    private long slowThresholdMillis = 1000;
+    private int exemplarCapacity = 64;
+
+    private long slowThresholdNanos;
+    private AtomicReferenceArray<Exemplar> exemplars;
+    private int exemplarMask;
+    private final AtomicLong exemplarCount = new AtomicLong();
+
+    private final AtomicLong tracedCount = new AtomicLong();
+    private final AtomicLongArray phaseTotalNanos = new AtomicLongArray(AuthenticationTrace.getPhases().length);
+
+    /**
+     * Sets the fraction of attempts that are traced, from 0 to 1. The default is 1 (every attempt). Tracing costs a
+     * clock read per phase, so lowering this is only worthwhile at very high request rates.
+     *
+     * @param sampleRate the fraction of attempts to trace
+     */
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Sets how long a traced attempt has to take to be kept as an exemplar. The default is 1 second.
+     *
+     * @param slowThresholdMillis the threshold in milliseconds
+     */
+    public void setSlowThresholdMillis(long slowThresholdMillis) {
+        this.slowThresholdMillis = slowThresholdMillis;
+    }
+
+    /**
+     * Sets the number of slow attempts kept. The default is 64.
+     *
+     * @param exemplarCapacity the capacity, rounded up to a power of two
+     */
+    public void setExemplarCapacity(int exemplarCapacity) {
+        this.exemplarCapacity = exemplarCapacity;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new BeanInitializationException("sampleRate must be between 0 and 1");
+        }
+        if (exemplarCapacity <= 0) {
+            throw new BeanInitializationException("exemplarCapacity must be positive");
+        }
+
+        int size = Integer.highestOneBit(exemplarCapacity);
+        if (size < exemplarCapacity) {
+            size <<= 1;
+        }
+        exemplars = new AtomicReferenceArray<Exemplar>(size);
+        exemplarMask = size - 1;
+        slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThresholdMillis);
+    }
+
+    /**
+     * Starts tracing an attempt on the current thread if it is picked by the sample.
+     *
+     * @param startNanos the {@link System#nanoTime()} at which the attempt started
+     */
+    void begin(Mechanism mechanism, long startNanos) {
+        if (sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            AuthenticationTrace.start(mechanism, startNanos);
+        } else {
+            AuthenticationTrace.cancel();
+        }
+    }
+
+    /**
+     * Finishes the attempt traced on the current thread, if there is one.
+     */
+    void finish(Outcome outcome, String userId, String instanceUrl, String detail) {
+        AuthenticationTrace trace = AuthenticationTrace.stop();
+        if (trace == null) {
+            return;
+        }
+
+        tracedCount.incrementAndGet();
+        Phase[] phases = AuthenticationTrace.getPhases();
+        for (int i = 0; i < phases.length; i++) {
+            long nanos = trace.getPhaseNanos(phases[i]);
+            if (nanos != 0) {
+                phaseTotalNanos.addAndGet(i, nanos);
+            }
+        }
+
+        if (trace.getTotalNanos() >= slowThresholdNanos) {
+            Exemplar exemplar = new Exemplar(
+                trace, outcome, userId, AuthenticationUtils.getInstanceHost(instanceUrl), detail);
+            exemplars.set((int) exemplarCount.getAndIncrement() & exemplarMask, exemplar);
+        }
+    }
+
+    @ManagedAttribute(description = "Number of attempts traced")
+    public long getTracedCount() {
+        return tracedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of traced attempts slower than the threshold")
+    public long getSlowCount() {
+        return exemplarCount.get();
+    }
+
+    @ManagedAttribute(description = "Average milliseconds per traced attempt spent in each phase")
+    public String[] getPhaseAverages() {
+        long count = tracedCount.get();
+        Phase[] phases = AuthenticationTrace.getPhases();
+        String[] averages = new String[phases.length];
+        for (int i = 0; i < phases.length; i++) {
+            double average = (count > 0) ? phaseTotalNanos.get(i) / (count * 1e6) : 0;
+            averages[i] = String.format("%s=%.3fms", phases[i], average);
+        }
+        return averages;
+    }
+
+    @ManagedAttribute(description = "Recent attempts slower than the threshold, newest first")
+    public String[] getSlowExemplars() {
+        List<String> result = new ArrayList<String>(exemplars.length());
+        long count = exemplarCount.get();
+        for (int i = 0; i < exemplars.length(); i++) {
+            Exemplar exemplar = exemplars.get((int) (count - 1 - i) & exemplarMask);
+            if (exemplar != null) {
+                result.add(exemplar.toString());
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @ManagedOperation(description = "Discard the captured slow attempts")
+    public void clearSlowExemplars() {
+        for (int i = 0; i < exemplars.length(); i++) {
+            exemplars.set(i, null);
+        }
+    }
+
+    /**
+     * An immutable copy of a slow trace.
+     */
+    private static final class Exemplar {
+        private final long timestamp;
+        private final Mechanism mechanism;
+        private final Outcome outcome;
+        private final String userId;
+        private final String org;
+        private final String detail;
+        private final long totalNanos;
+        private final long[] phaseNanos;
+
+        Exemplar(AuthenticationTrace trace, Outcome outcome, String userId, String org, String detail) {
+            Phase[] phases = AuthenticationTrace.getPhases();
+            this.timestamp = System.currentTimeMillis();
+            this.mechanism = trace.getMechanism();
+            this.outcome = outcome;
+            this.userId = userId;
+            this.org = org;
+            this.detail = detail;
+            this.totalNanos = trace.getTotalNanos();
+            this.phaseNanos = new long[phases.length];
+            for (int i = 0; i < phases.length; i++) {
+                phaseNanos[i] = trace.getPhaseNanos(phases[i]);
+            }
+        }
+
+        @Override
+        public String toString() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+            StringBuilder builder = new StringBuilder(256);
+            builder.append(format.format(new Date(timestamp)))
+                .append(' ').append(mechanism)
+                .append(' ').append(outcome)
+                .append(String.format(" total=%.3fms", totalNanos / 1e6));
+            if (userId != null) {
+                builder.append(" userId=").append(userId);
+            }
+            if (org != null) {
+                builder.append(" org=").append(org);
+            }
+            Phase[] phases = AuthenticationTrace.getPhases();
+            for (int i = 0; i < phases.length; i++) {
+                if (phaseNanos[i] != 0) {
+                    builder.append(String.format(" %s=%.3fms", phases[i], phaseNanos[i] / 1e6));
+                }
+            }
+            if (detail != null) {
+                builder.append(" detail=\"").append(detail).append('"');
+            }
+            return builder.toString();
+        }
+    }
+}
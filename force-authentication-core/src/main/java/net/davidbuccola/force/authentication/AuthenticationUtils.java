@@ -7,12 +7,18 @@ package net.davidbuccola.force.authentication;
 
 import org.springframework.security.authentication.InsufficientAuthenticationException;
 import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextHolder;
 
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
 /**
  * Utilities for working the authentication context.
  */
 public final class AuthenticationUtils {
+    private static volatile IdentityProfileLoader identityProfileLoader;
+
     private AuthenticationUtils() {
         throw new UnsupportedOperationException("Can not be instantiated");
     }
@@ -32,6 +38,108 @@ public final class AuthenticationUtils {
         return authentication;
     }
 
+    /**
+     * Gets the identity profile (username, org, locale, time zone and so on) of the current user. The profile is cached
+     * so this normally doesn't involve a call to Salesforce.
+     *
+     * @return the identity profile of the current user
+     * @throws InsufficientAuthenticationException
+     *                               if no Salesforce authentication information exists in the current security context.
+     * @throws IllegalStateException if there is no {@link IdentityProfileLoader} bean
+     * @throws OAuthException        if the profile could not be loaded
+     */
+    public static IdentityProfile getIdentityProfile() {
+        IdentityProfileLoader loader = identityProfileLoader;
+        if (loader == null) {
+            throw new IllegalStateException("There is no IdentityProfileLoader");
+        }
+        return loader.getProfile(getAuthenticationToken());
+    }
+
+    static void setIdentityProfileLoader(IdentityProfileLoader loader) {
+        identityProfileLoader = loader;
+    }
+
+    static void clearIdentityProfileLoader(IdentityProfileLoader loader) {
+        if (identityProfileLoader == loader) {
+            identityProfileLoader = null;
+        }
+    }
+
+    /**
+     * Runs a piece of work with a token as the current authentication. This is for code that runs outside of an HTTP
+     * request (batch jobs, background workers) with a token from, for example, a {@link JwtBearerOAuthConnector}. The
+     * previous security context of the thread is restored afterwards.
+     *
+     * @param token    the authentication token
+     * @param runnable the work
+     */
+    public static void runAs(ForceAuthenticationToken token, Runnable runnable) {
+        SecurityContext previousContext = SecurityContextHolder.getContext();
+        SecurityContext context = SecurityContextHolder.createEmptyContext();
+        context.setAuthentication(token);
+        SecurityContextHolder.setContext(context);
+        try {
+            runnable.run();
+        } finally {
+            SecurityContextHolder.setContext(previousContext);
+        }
+    }
+
+    /**
+     * Calls a piece of work with a token as the current authentication. See {@link #runAs}.
+     *
+     * @param token    the authentication token
+     * @param callable the work
+     * @return the result of the work
+     * @throws Exception if the work throws an exception
+     */
+    public static <T> T callAs(ForceAuthenticationToken token, Callable<T> callable) throws Exception {
+        SecurityContext previousContext = SecurityContextHolder.getContext();
+        SecurityContext context = SecurityContextHolder.createEmptyContext();
+        context.setAuthentication(token);
+        SecurityContextHolder.setContext(context);
+        try {
+            return callable.call();
+        } finally {
+            SecurityContextHolder.setContext(previousContext);
+        }
+    }
+
+    /**
+     * Gets the host portion of a Salesforce instance URL. The host identifies the org (or at least the instance the org
+     * lives on) without the cost of a full URI parse.
+     *
+     * @param instanceUrl the instance URL, for example <code>https://na1.salesforce.com</code>
+     * @return the lower-cased host or <code>null</code> if the URL is <code>null</code>
+     */
+    public static String getInstanceHost(String instanceUrl) {
+        if (instanceUrl == null) {
+            return null;
+        }
+        int start = instanceUrl.indexOf("://");
+        start = (start < 0) ? 0 : start + 3;
+        int end = start;
+        while (end < instanceUrl.length() && "/:?#".indexOf(instanceUrl.charAt(end)) < 0) {
+            end++;
+        }
+        return instanceUrl.substring(start, end).toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Masks an access token (or any other secret) so that it can be logged. Only the first few characters, which for a
+     * Salesforce access token are part of the org ID, are kept.
+     *
+     * @param token the token
+     * @return the masked token or <code>null</code> if the token is <code>null</code>
+     */
+    public static String maskToken(String token) {
+        if (token == null) {
+            return null;
+        }
+        return (token.length() <= 8) ? "****" : token.substring(0, 4) + "****";
+    }
+
     /**
      * Gets the current Salesforce authentication information.
      *
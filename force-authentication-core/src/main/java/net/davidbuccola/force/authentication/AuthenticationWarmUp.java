@@ -0,0 +1,116 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+
+/**
+ * An optional bean that exercises the expensive one-time paths of the library when the application context is
+ * refreshed rather than on the first requests a new node serves.
+ * <p/>
+ * The warm-up primes the HMAC provider, the JSON readers used for signed requests, signed parameters and OAuth token
+ * responses, and the HTTP client of the {@link JerseyOAuthConnector}. It is opt-in: it runs only if this bean is
+ * declared in the application context. All payloads are generated and signed locally with a throwaway key. The only
+ * thing that leaves the process is a single HEAD request to the token endpoint, which opens the connection to the
+ * login host (DNS, TCP and TLS) so that the first OAuth callback doesn't have to; if it fails the warm-up carries on.
+ */
+public class AuthenticationWarmUp implements ApplicationListener<ContextRefreshedEvent> {
+    private static final Logger log = LoggerFactory.getLogger(AuthenticationWarmUp.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String WARM_UP_SECRET = "warm-up";
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final String SIGNED_PARAMETERS_JSON =
+        "{\"algorithm\":\"HMACSHA256\",\"userId\":\"005000000000000AAA\"}";
+    private static final String SIGNED_REQUEST_JSON =
+        "{\"algorithm\":\"HMACSHA256\",\"issuedAt\":0,\"userId\":\"005000000000000AAA\","
+            + "\"client\":{\"oauthToken\":\"warm-up\",\"instanceUrl\":\"https://localhost\"}}";
+
+    @Autowired(required = false)
+    private OAuthConnector connector;
+
+    private int iterations = 100;
+    private volatile boolean warmedUp;
+
+    /**
+     * Sets the connector to warm up.
+     * <p/>
+     * This is only needed when the bean is wired explicitly instead of by autowiring.
+     *
+     * @param connector the connector used for the OAuth exchange
+     */
+    public void setConnector(OAuthConnector connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * Sets the number of times each path is exercised. The default is 100 which is enough to get past class loading and
+     * provider lookup and to give the JIT something to work with.
+     *
+     * @param iterations the number of iterations
+     */
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        if (warmedUp) {
+            return; // Child contexts also publish refresh events
+        }
+        warmedUp = true;
+
+        long start = System.nanoTime();
+        try {
+            String signedParameters = sign(SIGNED_PARAMETERS_JSON);
+            String signedRequest = sign(SIGNED_REQUEST_JSON);
+            for (int i = 0; i < iterations; i++) {
+                SignedParametersUtil.verifyAndDecode(signedParameters, WARM_UP_SECRET);
+                SignedParametersUtil.verifyAndDecodeCanvasRequest(signedRequest, WARM_UP_SECRET, Integer.MAX_VALUE);
+            }
+            if (connector instanceof JerseyOAuthConnector) {
+                JerseyOAuthConnector jerseyConnector = (JerseyOAuthConnector) connector;
+                for (int i = 0; i < iterations; i++) {
+                    jerseyConnector.warmUp();
+                }
+                primeConnection(jerseyConnector);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("Authentication warm-up completed in %d ms", (System.nanoTime() - start) / 1000000));
+            }
+        } catch (Exception e) {
+            log.warn("Authentication warm-up failed, first requests may be slower", e);
+        }
+    }
+
+    private static void primeConnection(JerseyOAuthConnector connector) {
+        try {
+            connector.primeConnection();
+        } catch (OAuthException e) {
+            log.warn(String.format("Authentication warm-up could not reach the login host: %s", e.getMessage()));
+        }
+    }
+
+    private static String sign(String json) throws GeneralSecurityException {
+        String encodedEnvelope = Base64.encodeBase64URLSafeString(json.getBytes(UTF8));
+
+        Mac mac = Mac.getInstance(ALGORITHM);
+        mac.init(new SecretKeySpec(WARM_UP_SECRET.getBytes(UTF8), ALGORITHM));
+        String encodedSignature = Base64.encodeBase64URLSafeString(mac.doFinal(encodedEnvelope.getBytes(UTF8)));
+
+        return encodedSignature + "." + encodedEnvelope;
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.springframework.security.core.GrantedAuthority;
+
+import java.util.Collection;
+
+/**
+ * Resolves the authorities of an authenticated Salesforce user beyond the fixed ones granted by the filters (such as
+ * <code>ROLE_USER</code>), for example from the user's profile and permission sets.
+ * <p/>
+ * Resolvers are called on every authenticated request so they are expected to cache. The filters only use a resolver
+ * if a bean of this type is present in the application context.
+ */
+public interface AuthorityResolver {
+
+    /**
+     * Resolves the additional authorities of a user.
+     *
+     * @param token the authentication token of the user, with the authorities granted by the filter
+     * @return the additional authorities, or an empty collection if there are none
+     * @throws OAuthException if the authorities could not be resolved
+     */
+    Collection<? extends GrantedAuthority> resolveAuthorities(ForceAuthenticationToken token);
+}
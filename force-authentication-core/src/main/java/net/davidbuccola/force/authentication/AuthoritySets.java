@@ -0,0 +1,57 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.springframework.security.core.GrantedAuthority;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interning of immutable authority sets.
+ * <p/>
+ * Most users of an app share one of a handful of permission combinations, so the sets are interned: every user with
+ * the same combination holds the same immutable set instance. The table is bounded; if an unusual number of distinct
+ * combinations shows up it is simply cleared, which costs some duplication but never correctness.
+ */
+final class AuthoritySets {
+    private static final int MAX_INTERNED = 4096;
+    private static final ConcurrentMap<Set<GrantedAuthority>, Set<GrantedAuthority>> interned =
+        new ConcurrentHashMap<Set<GrantedAuthority>, Set<GrantedAuthority>>();
+
+    private AuthoritySets() {
+        throw new UnsupportedOperationException("Can not be instantiated");
+    }
+
+    /**
+     * Gets the shared immutable set with the same authorities as a collection.
+     */
+    static Set<GrantedAuthority> intern(Collection<? extends GrantedAuthority> authorities) {
+        Set<GrantedAuthority> set = Collections.unmodifiableSet(new LinkedHashSet<GrantedAuthority>(authorities));
+        Set<GrantedAuthority> existing = interned.get(set);
+        if (existing != null) {
+            return existing;
+        }
+        if (interned.size() >= MAX_INTERNED) {
+            interned.clear();
+        }
+        existing = interned.putIfAbsent(set, set);
+        return (existing != null) ? existing : set;
+    }
+
+    /**
+     * Gets the shared immutable set with the authorities of two collections.
+     */
+    static Set<GrantedAuthority> union(Collection<? extends GrantedAuthority> authorities1, Collection<? extends GrantedAuthority> authorities2) {
+        Set<GrantedAuthority> union = new LinkedHashSet<GrantedAuthority>(authorities1);
+        union.addAll(authorities2);
+        return intern(union);
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import net.davidbuccola.force.authentication.AuthenticationAuditEvent.Mechanism;
+
+import javax.crypto.SecretKey;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+
+/**
+ * The anonymized shape of one request as seen by the authentication filters, as written by {@link
+ * TrafficCaptureFilter} and read by <code>TrafficReplayer</code>.
+ * <p/>
+ * Only what drives the work of the filters is kept: the mechanism, which headers, parameters and cookies were present
+ * and how long they were, pseudonyms of the values that key caches and rate limits, and the decoded JSON of verified
+ * canvas payloads with every string pseudonymized. Access tokens, codes and signatures are reduced to their lengths.
+ * <p/>
+ * A capture file starts with {@link #MAGIC}, {@link #VERSION} and the capture start time, followed by the records.
+ * Lengths and offsets are written as variable-length integers to keep the file compact.
+ */
+final class CapturedRequest {
+    static final int MAGIC = 0x46415452; // "FATR"
+    static final int VERSION = 1;
+
+    static final int AUTHORIZATION_HEADER = 1;
+    static final int INSTANCE_URL_HEADER = 1 << 1;
+    static final int USER_ID_HEADER = 1 << 2;
+    static final int SHARED_SESSION_COOKIE = 1 << 3;
+    static final int CONTEXT_SESSION_COOKIE = 1 << 4;
+    static final int ORG_COOKIE = 1 << 5;
+    static final int SECURE = 1 << 6;
+    static final int OAUTH_CODE = 1 << 7;
+    static final int OAUTH_STATE = 1 << 8;
+    static final int OAUTH_ERROR = 1 << 9;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int NO_MECHANISM = 0;
+
+    private int offsetMillis;
+    private Mechanism mechanism;
+    private int flags;
+    private String clientAddress;
+    private String userId;
+    private String instanceUrl;
+    private int authorizationLength;
+    private int codeLength;
+    private int stateLength;
+    private int payloadLength;
+    private byte[] payload;
+
+    private CapturedRequest() {
+    }
+
+    /**
+     * Captures the shape of a request. Canvas payloads are only kept if their signature is authentic; others are
+     * reduced to their length and replay as forgeries.
+     *
+     * @param offsetMillis     the time of the request relative to the start of the capture
+     * @param signingKey       the key that canvas payloads are signed with
+     * @param maxPayloadLength the maximum length of canvas payloads that are decoded
+     * @param pseudonymizer    the pseudonymizer of the capture
+     */
+    static CapturedRequest capture(HttpServletRequest request, int offsetMillis, SecretKey signingKey, int maxPayloadLength,
+                                   TrafficPseudonymizer pseudonymizer) {
+        CapturedRequest captured = new CapturedRequest();
+        captured.offsetMillis = offsetMillis;
+        captured.clientAddress = pseudonymizer.pseudonymizeAddress(request.getRemoteAddr());
+
+        String authorization = request.getHeader("Authorization");
+        String instanceUrl = request.getHeader("Force-Instance-Url");
+        String userId = request.getHeader("Force-User-Id");
+        captured.flag(AUTHORIZATION_HEADER, authorization != null);
+        captured.flag(INSTANCE_URL_HEADER, instanceUrl != null);
+        captured.flag(USER_ID_HEADER, userId != null);
+        captured.flag(SECURE, request.isSecure());
+        captured.authorizationLength = (authorization != null) ? authorization.length() : 0;
+        captured.instanceUrl = pseudonymizer.pseudonymize(instanceUrl);
+        captured.userId = pseudonymizer.pseudonymize(userId);
+
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                captured.flag(SHARED_SESSION_COOKIE, SharedTokenCacheFilter.COOKIE_NAME.equals(cookie.getName()));
+                captured.flag(CONTEXT_SESSION_COOKIE, WriteBehindSecurityContextRepository.COOKIE_NAME.equals(cookie.getName()));
+                captured.flag(ORG_COOKIE, MyDomainRouter.COOKIE_NAME.equals(cookie.getName()));
+            }
+        }
+
+        // Same precedence as the filters in their usual order
+        String signedRequest = request.getParameter(SignedRequestFilter.SIGNED_REQUEST);
+        String signedParameters = request.getParameter(SignedRequestFilter.SIGNED_PARAMETERS);
+        if (signedRequest != null) {
+            captured.mechanism = Mechanism.SIGNED_REQUEST;
+            captured.capturePayload(signedRequest, signingKey, maxPayloadLength, pseudonymizer);
+
+        } else if (OAuthFilter.CALLBACK_PATH.equals(request.getServletPath())) {
+            captured.mechanism = Mechanism.OAUTH;
+            String code = request.getParameter("code");
+            String state = request.getParameter("state");
+            captured.flag(OAUTH_CODE, code != null);
+            captured.flag(OAUTH_STATE, state != null);
+            captured.flag(OAUTH_ERROR, request.getParameter("error") != null);
+            captured.codeLength = (code != null) ? code.length() : 0;
+            captured.stateLength = (state != null) ? state.length() : 0;
+
+        } else if (authorization != null && authorization.regionMatches(true, 0, "OAuth ", 0, 6)) {
+            captured.mechanism = Mechanism.HEADER;
+
+        } else if (signedParameters != null) {
+            captured.mechanism = Mechanism.SIGNED_PARAMETERS;
+            captured.capturePayload(signedParameters, signingKey, maxPayloadLength, pseudonymizer);
+        }
+        return captured;
+    }
+
+    /**
+     * Reads a record.
+     */
+    static CapturedRequest readFrom(DataInput input) throws IOException {
+        CapturedRequest captured = new CapturedRequest();
+        captured.offsetMillis = readVarInt(input);
+        int mechanism = readVarInt(input);
+        captured.mechanism = (mechanism != NO_MECHANISM) ? Mechanism.values()[mechanism - 1] : null;
+        captured.flags = readVarInt(input);
+        captured.clientAddress = readString(input);
+        captured.userId = readString(input);
+        captured.instanceUrl = readString(input);
+        captured.authorizationLength = readVarInt(input);
+        captured.codeLength = readVarInt(input);
+        captured.stateLength = readVarInt(input);
+        captured.payloadLength = readVarInt(input);
+        captured.payload = readBytes(input);
+        return captured;
+    }
+
+    /**
+     * Writes the record.
+     */
+    void writeTo(DataOutput output) throws IOException {
+        writeVarInt(output, offsetMillis);
+        writeVarInt(output, (mechanism != null) ? mechanism.ordinal() + 1 : NO_MECHANISM);
+        writeVarInt(output, flags);
+        writeString(output, clientAddress);
+        writeString(output, userId);
+        writeString(output, instanceUrl);
+        writeVarInt(output, authorizationLength);
+        writeVarInt(output, codeLength);
+        writeVarInt(output, stateLength);
+        writeVarInt(output, payloadLength);
+        writeBytes(output, payload);
+    }
+
+    int getOffsetMillis() {
+        return offsetMillis;
+    }
+
+    /**
+     * @return the mechanism or <code>null</code> if the request carried no authentication
+     */
+    Mechanism getMechanism() {
+        return mechanism;
+    }
+
+    boolean has(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    String getClientAddress() {
+        return clientAddress;
+    }
+
+    String getUserId() {
+        return userId;
+    }
+
+    String getInstanceUrl() {
+        return instanceUrl;
+    }
+
+    int getAuthorizationLength() {
+        return authorizationLength;
+    }
+
+    int getCodeLength() {
+        return codeLength;
+    }
+
+    int getStateLength() {
+        return stateLength;
+    }
+
+    /**
+     * @return the length of the canvas payload as it was received
+     */
+    int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * @return the pseudonymized JSON of the canvas payload or <code>null</code> if it wasn't authentic
+     */
+    byte[] getPayload() {
+        return payload;
+    }
+
+    private void flag(int flag, boolean present) {
+        if (present) {
+            flags |= flag;
+        }
+    }
+
+    private void capturePayload(String input, SecretKey signingKey, int maxPayloadLength, TrafficPseudonymizer pseudonymizer) {
+        payloadLength = input.length();
+        try {
+            if (SignedParametersUtil.check(input, signingKey, maxPayloadLength) == null) {
+                payload = pseudonymizer.pseudonymizeJson(SignedParametersUtil.decodeEnvelope(input));
+            }
+        } catch (GeneralSecurityException e) {
+            payload = null; // Can't tell, so replay it as a forgery
+        } catch (IOException e) {
+            payload = null; // Authentic but not JSON, which the filters reject the same way as a forgery
+        }
+    }
+
+    private static void writeVarInt(DataOutput output, int value) throws IOException {
+        int remaining = value;
+        while ((remaining & ~0x7f) != 0) {
+            output.writeByte((remaining & 0x7f) | 0x80);
+            remaining >>>= 7;
+        }
+        output.writeByte(remaining);
+    }
+
+    private static int readVarInt(DataInput input) throws IOException {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            int b = input.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 28) {
+                throw new IOException("Malformed capture record");
+            }
+        }
+    }
+
+    private static void writeString(DataOutput output, String value) throws IOException {
+        writeBytes(output, (value != null) ? value.getBytes(UTF8) : null);
+    }
+
+    private static String readString(DataInput input) throws IOException {
+        byte[] bytes = readBytes(input);
+        return (bytes != null) ? new String(bytes, UTF8) : null;
+    }
+
+    /**
+     * Writes a byte array preceded by its length plus one, so that zero means <code>null</code>.
+     */
+    private static void writeBytes(DataOutput output, byte[] value) throws IOException {
+        if (value == null) {
+            writeVarInt(output, 0);
+        } else {
+            writeVarInt(output, value.length + 1);
+            output.write(value);
+        }
+    }
+
+    private static byte[] readBytes(DataInput input) throws IOException {
+        int length = readVarInt(input);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        input.readFully(bytes);
+        return bytes;
+    }
+}
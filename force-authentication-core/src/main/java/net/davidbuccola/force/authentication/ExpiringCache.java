@@ -0,0 +1,227 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of values loaded from Salesforce.
+ * <p/>
+ * Values are served until their time-to-live runs out. Once a value is older than the refresh age it is still served
+ * but reloaded in the background, at most once at a time per key. Concurrent misses for the same key share a single
+ * load. When the cache grows past its maximum size it sheds expired values and then progressively younger ones until it
+ * is back to 90% of the maximum, so that purging doesn't happen on every put.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+final class ExpiringCache<K, V> {
+    private static final Logger log = LoggerFactory.getLogger(ExpiringCache.class);
+
+    /**
+     * Loads a value. Failures are reported with runtime exceptions, normally {@link OAuthException}.
+     */
+    interface Loader<V> {
+        V load();
+    }
+
+    private final ConcurrentMap<K, Entry<V>> entries = new ConcurrentHashMap<K, Entry<V>>();
+    private final ConcurrentMap<K, FutureTask<Entry<V>>> inFlight = new ConcurrentHashMap<K, FutureTask<Entry<V>>>();
+    private final Set<K> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<K, Boolean>());
+    private final AtomicBoolean purging = new AtomicBoolean();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+    private final long timeToLiveMillis;
+    private final long refreshAfterMillis;
+    private final int maxSize;
+    private final Executor refresher;
+
+    /**
+     * @param timeToLiveMillis   how long a value is served
+     * @param refreshAfterMillis the age after which a value is reloaded in the background
+     * @param maxSize            the maximum number of values
+     * @param refresher          runs background reloads
+     */
+    ExpiringCache(long timeToLiveMillis, long refreshAfterMillis, int maxSize, Executor refresher) {
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.refreshAfterMillis = refreshAfterMillis;
+        this.maxSize = maxSize;
+        this.refresher = refresher;
+    }
+
+    /**
+     * Gets a value, loading it if it isn't cached or has expired.
+     */
+    V get(K key, Loader<V> loader) {
+        Entry<V> entry = entries.get(key);
+        long now = System.currentTimeMillis();
+        if (entry != null && now - entry.loadedAt < timeToLiveMillis) {
+            hitCount.incrementAndGet();
+            if (now - entry.loadedAt >= refreshAfterMillis) {
+                refreshInBackground(key, loader);
+            }
+            return entry.value;
+        }
+        missCount.incrementAndGet();
+        return load(key, loader).value;
+    }
+
+    /**
+     * Gets a value without loading it.
+     *
+     * @return the value or <code>null</code> if it isn't cached or has expired
+     */
+    V getIfPresent(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.loadedAt < timeToLiveMillis) {
+            hitCount.incrementAndGet();
+            return entry.value;
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    void put(K key, V value) {
+        putEntry(key, new Entry<V>(value, System.currentTimeMillis()));
+    }
+
+    private void putEntry(K key, Entry<V> entry) {
+        entries.put(key, entry);
+        if (entries.size() > maxSize && purging.compareAndSet(false, true)) {
+            try {
+                purge();
+            } finally {
+                purging.set(false);
+            }
+        }
+    }
+
+    void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    long getFailureCount() {
+        return failureCount.get();
+    }
+
+    private void refreshInBackground(final K key, final Loader<V> loader) {
+        if (refreshing.add(key)) {
+            refreshCount.incrementAndGet();
+            try {
+                refresher.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            load(key, loader);
+                        } catch (RuntimeException e) {
+                            log.warn(String.format("Background refresh of %s failed", key), e);
+                        } finally {
+                            refreshing.remove(key);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                refreshing.remove(key); // Shutting down, the cached value will do
+            }
+        }
+    }
+
+    /**
+     * Loads a value, sharing the load with any other thread already loading the same key.
+     */
+    private Entry<V> load(final K key, final Loader<V> loader) {
+        FutureTask<Entry<V>> task = new FutureTask<Entry<V>>(new Callable<Entry<V>>() {
+            @Override
+            public Entry<V> call() {
+                Entry<V> entry = new Entry<V>(loader.load(), System.currentTimeMillis());
+                putEntry(key, entry);
+                return entry;
+            }
+        });
+
+        FutureTask<Entry<V>> existingTask = inFlight.putIfAbsent(key, task);
+        if (existingTask == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+            existingTask = task;
+        }
+
+        try {
+            return existingTask.get();
+        } catch (ExecutionException e) {
+            failureCount.incrementAndGet();
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OAuthException("Interrupted while waiting for " + key, e);
+        }
+    }
+
+    private void purge() {
+        long now = System.currentTimeMillis();
+        long oldestAllowed = now - timeToLiveMillis;
+        int targetSize = maxSize - maxSize / 10;
+        while (entries.size() > targetSize && oldestAllowed <= now) {
+            Iterator<Entry<V>> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().loadedAt < oldestAllowed) {
+                    iterator.remove();
+                }
+            }
+            oldestAllowed += Math.max(1, (now - oldestAllowed) / 2); // Not enough; halve the allowed age
+        }
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long loadedAt;
+
+        private Entry(V value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link SecurityContextStore} that keeps each authentication in its own file in a local directory.
+ * <p/>
+ * Files are named after a hash of the session key and replaced atomically, so a reader never sees a partial write.
+ * Authentications older than the time-to-live are ignored and deleted, and a sweep of the directory removes abandoned
+ * ones. Files hold access tokens in the clear and are created readable by the owner only where the file system
+ * supports it; the directory must not be shared with other users. This is mainly a reference for implementations over
+ * a real session store.
+ */
+public class FileSecurityContextStore implements SecurityContextStore, InitializingBean {
+    private static final Logger log = LoggerFactory.getLogger(FileSecurityContextStore.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SUFFIX = ".token";
+
+    private File directory;
+    private long timeToLiveMillis = 12 * 60 * 60 * 1000;
+    private long sweepIntervalMillis = 10 * 60 * 1000;
+
+    private Path directoryPath;
+    private FileAttribute<?>[] fileAttributes;
+    private final AtomicLong lastSweep = new AtomicLong();
+
+    /**
+     * Sets the directory that holds the authentications. This is required. It is created if it doesn't exist.
+     *
+     * @param directory the directory
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Sets how long an authentication is kept after it was last written. The default is 12 hours.
+     *
+     * @param timeToLiveMillis the time in milliseconds
+     */
+    public void setTimeToLiveMillis(long timeToLiveMillis) {
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    /**
+     * Sets how often the directory is swept for expired authentications. The default is 10 minutes.
+     *
+     * @param sweepIntervalMillis the interval in milliseconds
+     */
+    public void setSweepIntervalMillis(long sweepIntervalMillis) {
+        this.sweepIntervalMillis = sweepIntervalMillis;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (directory == null) {
+            throw new BeanInitializationException("directory is not set");
+        }
+        try {
+            directoryPath = Files.createDirectories(directory.toPath());
+        } catch (IOException e) {
+            throw new BeanInitializationException("Failed to create directory " + directory, e);
+        }
+        fileAttributes = directoryPath.getFileSystem().supportedFileAttributeViews().contains("posix")
+            ? new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))}
+            : new FileAttribute<?>[0];
+        lastSweep.set(System.currentTimeMillis());
+    }
+
+    @Override
+    public ForceAuthenticationToken load(String sessionKey) {
+        Path path = getPath(sessionKey);
+        try {
+            if (isExpired(path, System.currentTimeMillis())) {
+                Files.deleteIfExists(path);
+                return null;
+            }
+            return TokenSerializer.deserialize(Files.readAllBytes(path));
+
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.warn("Failed to read security context file " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Every file is attempted even if some fail; the failures are then reported together so that the caller retries
+     * the batch.
+     *
+     * @throws IllegalStateException if any of the files could not be written
+     */
+    @Override
+    public void write(Map<String, ForceAuthenticationToken> tokens) {
+        List<Path> failedPaths = new ArrayList<Path>();
+        IOException firstFailure = null;
+        for (Map.Entry<String, ForceAuthenticationToken> entry : tokens.entrySet()) {
+            Path path = getPath(entry.getKey());
+            Path temporaryPath = null;
+            try {
+                temporaryPath = Files.createTempFile(directoryPath, null, ".tmp", fileAttributes);
+                Files.write(temporaryPath, TokenSerializer.serialize(entry.getValue()));
+                Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            } catch (IOException e) {
+                log.warn("Failed to write security context file " + path, e);
+                deleteQuietly(temporaryPath);
+                failedPaths.add(path);
+                firstFailure = (firstFailure != null) ? firstFailure : e;
+            }
+        }
+        sweepIfDue();
+        checkFailures("write", failedPaths, tokens.size(), firstFailure);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalStateException if any of the files could not be deleted
+     */
+    @Override
+    public void remove(Collection<String> sessionKeys) {
+        List<Path> failedPaths = new ArrayList<Path>();
+        IOException firstFailure = null;
+        for (String sessionKey : sessionKeys) {
+            Path path = getPath(sessionKey);
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.warn("Failed to delete security context file " + path, e);
+                failedPaths.add(path);
+                firstFailure = (firstFailure != null) ? firstFailure : e;
+            }
+        }
+        checkFailures("delete", failedPaths, sessionKeys.size(), firstFailure);
+    }
+
+    /**
+     * Reports the files of a batch that failed. Only the file names are given, which are hashes of the session keys.
+     */
+    private static void checkFailures(String operation, List<Path> failedPaths, int total, IOException firstFailure) {
+        if (!failedPaths.isEmpty()) {
+            List<Path> fileNames = new ArrayList<Path>(failedPaths.size());
+            for (Path path : failedPaths) {
+                fileNames.add(path.getFileName());
+            }
+            throw new IllegalStateException(String.format("Failed to %s %d of %d security context files: %s",
+                operation, failedPaths.size(), total, fileNames), firstFailure);
+        }
+    }
+
+    /**
+     * Deletes expired authentications if the sweep interval has passed. Sweeps piggyback on writes, which are done by a
+     * single background thread.
+     */
+    private void sweepIfDue() {
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+        if (now - last < sweepIntervalMillis || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        try {
+            DirectoryStream<Path> paths = Files.newDirectoryStream(directoryPath, "*" + SUFFIX);
+            try {
+                for (Path path : paths) {
+                    if (isExpired(path, now)) {
+                        deleteQuietly(path);
+                    }
+                }
+            } finally {
+                paths.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to sweep security context directory " + directoryPath, e);
+        }
+    }
+
+    private boolean isExpired(Path path, long now) throws IOException {
+        return now - Files.getLastModifiedTime(path).toMillis() > timeToLiveMillis;
+    }
+
+    private Path getPath(String sessionKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(sessionKey.getBytes(UTF8));
+            return directoryPath.resolve(Hex.encodeHexString(digest) + SUFFIX);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // Every JRE is required to have it
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path != null) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.warn("Failed to delete security context file " + path, e);
+            }
+        }
+    }
+}
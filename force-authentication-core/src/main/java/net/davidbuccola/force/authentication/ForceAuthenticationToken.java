@@ -27,14 +27,22 @@ public class ForceAuthenticationToken extends AbstractAuthenticationToken {
     private static final long serialVersionUID = -2803445171111658833L;
 
     private final String userId;
+    private final SalesforceId salesforceUserId;
     private final String accessToken;
     private final String instanceUrl;
+    private final String identityUrl;
 
     public ForceAuthenticationToken(String userId, String accessToken, String instanceUrl, Collection<? extends GrantedAuthority> authorities) {
+        this(userId, accessToken, instanceUrl, null, authorities);
+    }
+
+    public ForceAuthenticationToken(String userId, String accessToken, String instanceUrl, String identityUrl, Collection<? extends GrantedAuthority> authorities) {
         super(authorities);
         this.userId = userId;
+        this.salesforceUserId = SalesforceId.parse(userId);
         this.accessToken = accessToken;
         this.instanceUrl = instanceUrl;
+        this.identityUrl = identityUrl;
 
         setAuthenticated(true);
     }
@@ -58,6 +66,30 @@ public class ForceAuthenticationToken extends AbstractAuthenticationToken {
         return userId;
     }
 
+    /**
+     * Gets the Salesforce user ID in canonical form.
+     *
+     * @return user ID or <code>null</code> if the user ID is not a well-formed Salesforce ID
+     */
+    public final SalesforceId getSalesforceUserId() {
+        return salesforceUserId;
+    }
+
+    /**
+     * Checks whether a user ID identifies the same user as this token. The 15 and 18-character forms of an ID are
+     * considered the same.
+     *
+     * @param otherUserId a user ID in either form
+     * @return <code>true</code> if it is the same user
+     */
+    public final boolean isSameUser(String otherUserId) {
+        if (salesforceUserId != null) {
+            return salesforceUserId.equals(SalesforceId.parse(otherUserId));
+        } else {
+            return userId != null && userId.equals(otherUserId);
+        }
+    }
+
     /**
      * Gets the OAuth access token that can be used for outbound communications with Salesforce.
      *
@@ -76,6 +108,26 @@ public class ForceAuthenticationToken extends AbstractAuthenticationToken {
         return instanceUrl;
     }
 
+    /**
+     * Gets the URL of the Salesforce identity service for the user. This is only known when the token came from an
+     * OAuth exchange.
+     *
+     * @return identity URL or <code>null</code> if not known
+     */
+    public final String getIdentityUrl() {
+        return identityUrl;
+    }
+
+    /**
+     * Creates a copy of this token with different authorities.
+     *
+     * @param authorities the authorities of the copy
+     * @return the copy
+     */
+    public ForceAuthenticationToken withAuthorities(Collection<? extends GrantedAuthority> authorities) {
+        return new ForceAuthenticationToken(userId, accessToken, instanceUrl, identityUrl, authorities);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -86,7 +138,7 @@ public class ForceAuthenticationToken extends AbstractAuthenticationToken {
         }
         ForceAuthenticationToken that = (ForceAuthenticationToken) o;
         return new EqualsBuilder()
-            .append(this.userId, that.userId)
+            .append(this.getUserKey(), that.getUserKey())
             .append(this.accessToken, that.accessToken)
             .append(this.instanceUrl, that.instanceUrl)
             .isEquals();
@@ -95,12 +147,16 @@ public class ForceAuthenticationToken extends AbstractAuthenticationToken {
     @Override
     public int hashCode() {
         return new HashCodeBuilder(17, 37)
-            .append(userId)
+            .append(getUserKey())
             .append(accessToken)
             .append(instanceUrl)
             .toHashCode();
     }
 
+    private Object getUserKey() {
+        return (salesforceUserId != null) ? salesforceUserId : userId;
+    }
+
     @Override
     public String toString() {
         return ReflectionToStringBuilder.reflectionToString(this);
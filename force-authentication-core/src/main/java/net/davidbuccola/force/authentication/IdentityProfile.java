@@ -0,0 +1,106 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.lang.builder.ReflectionToStringBuilder;
+
+import java.io.Serializable;
+
+/**
+ * The identity of a Salesforce user, as returned by the Salesforce identity service or given in a canvas context.
+ * <p/>
+ * Values that the source didn't provide are <code>null</code>. In particular the profile ID is only known when the
+ * identity came from a canvas context.
+ */
+public final class IdentityProfile implements Serializable {
+    private static final long serialVersionUID = -6141556412979630411L;
+
+    private final String userId;
+    private final String organizationId;
+    private final String username;
+    private final String displayName;
+    private final String locale;
+    private final String timeZone;
+    private final String profileId;
+
+    public IdentityProfile(String userId, String organizationId, String username, String displayName, String locale, String timeZone, String profileId) {
+        this.userId = userId;
+        this.organizationId = organizationId;
+        this.username = username;
+        this.displayName = displayName;
+        this.locale = locale;
+        this.timeZone = timeZone;
+        this.profileId = profileId;
+    }
+
+    /**
+     * Gets the Salesforce user ID.
+     *
+     * @return user ID
+     */
+    public String getUserId() {
+        return userId;
+    }
+
+    /**
+     * Gets the Salesforce org ID of the user.
+     *
+     * @return org ID
+     */
+    public String getOrganizationId() {
+        return organizationId;
+    }
+
+    /**
+     * Gets the Salesforce username (which has the form of an email address).
+     *
+     * @return username
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Gets the full name of the user.
+     *
+     * @return display name
+     */
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * Gets the locale of the user, for example <code>en_US</code>.
+     *
+     * @return locale
+     */
+    public String getLocale() {
+        return locale;
+    }
+
+    /**
+     * Gets the time zone of the user, for example <code>America/Los_Angeles</code>.
+     *
+     * @return time zone ID
+     */
+    public String getTimeZone() {
+        return timeZone;
+    }
+
+    /**
+     * Gets the ID of the Salesforce profile assigned to the user.
+     *
+     * @return profile ID or <code>null</code> if not known
+     */
+    public String getProfileId() {
+        return profileId;
+    }
+
+    @Override
+    public String toString() {
+        return ReflectionToStringBuilder.reflectionToString(this);
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.UniformInterfaceException;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads and caches the {@link IdentityProfile} of authenticated users so that applications don't have to call the
+ * Salesforce identity service on every request.
+ * <p/>
+ * A profile is fetched the first time it is needed from the identity URL of the token, which only tokens from an OAuth
+ * exchange have. The response must be about the user of the token, so a token can never load or be served the profile
+ * of someone else. Tokens without an identity URL, such as those from request headers whose user ID can't be verified,
+ * are never loaded; they are only served a profile that was put for that very access token, as is done with the profile
+ * given in a canvas context. Cached profiles are served until they expire; once a profile is older than the refresh
+ * time it is still served but reloaded in the background. Concurrent misses for the same user share a single request.
+ * The number of cached profiles is bounded.
+ * <p/>
+ * When a bean of this type is present in the application context, {@link AuthenticationUtils#getIdentityProfile()}
+ * uses it to get the profile of the current user.
+ */
+@ManagedResource(description = "Salesforce identity profile cache")
+public class IdentityProfileLoader implements InitializingBean, DisposableBean {
+    private static final ObjectReader JSON_READER = new ObjectMapper().reader();
+
+    private final Client client = Client.create();
+
+    private long timeToLiveMillis = 60 * 60 * 1000;
+    private long refreshAfterMillis = 15 * 60 * 1000;
+    private int maxSize = 10000;
+
+    private ExecutorService refresher;
+    private ExpiringCache<Object, IdentityProfile> cache;
+
+    /**
+     * Sets how long a profile is served from the cache. The default is 1 hour.
+     *
+     * @param timeToLiveMillis the time in milliseconds
+     */
+    public void setTimeToLiveMillis(long timeToLiveMillis) {
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    /**
+     * Sets the age after which a cached profile is reloaded in the background. The default is 15 minutes.
+     *
+     * @param refreshAfterMillis the age in milliseconds
+     */
+    public void setRefreshAfterMillis(long refreshAfterMillis) {
+        this.refreshAfterMillis = refreshAfterMillis;
+    }
+
+    /**
+     * Sets the maximum number of cached profiles. The default is 10000.
+     *
+     * @param maxSize the maximum number of profiles
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "force-authentication-identity-refresher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        cache = new ExpiringCache<Object, IdentityProfile>(timeToLiveMillis, refreshAfterMillis, maxSize, refresher);
+        AuthenticationUtils.setIdentityProfileLoader(this);
+    }
+
+    @Override
+    public void destroy() {
+        AuthenticationUtils.clearIdentityProfileLoader(this);
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    /**
+     * Gets the profile of the user of a token, loading it if it isn't cached.
+     *
+     * @param token the authentication token of the user
+     * @return the identity profile
+     * @throws OAuthException if the profile could not be loaded, or if the token has no identity URL and no profile
+     *                        was put for it
+     */
+    public IdentityProfile getProfile(final ForceAuthenticationToken token) {
+        Validate.notNull(token, "token must not be null");
+
+        if (token.getIdentityUrl() == null) {
+            IdentityProfile profile = cache.getIfPresent(getKey(token));
+            if (profile == null) {
+                throw new OAuthException("Token has no identity URL, so its profile can't be loaded");
+            }
+            return profile;
+        }
+        return cache.get(getKey(token), new ExpiringCache.Loader<IdentityProfile>() {
+            @Override
+            public IdentityProfile load() {
+                return requestProfile(token);
+            }
+        });
+    }
+
+    /**
+     * Puts a profile that is already known, for example from a canvas context, in the cache. It is only served to
+     * the token it was put for, or to other tokens of the same user if that token came from an OAuth exchange.
+     *
+     * @param token   the verified authentication token of the user
+     * @param profile the identity profile
+     */
+    public void putProfile(ForceAuthenticationToken token, IdentityProfile profile) {
+        Validate.notNull(token, "token must not be null");
+        Validate.notNull(profile, "profile must not be null");
+        Validate.isTrue(SalesforceId.isSameId(token.getUserId(), profile.getUserId()),
+            "profile must be of the user of the token");
+        cache.put(getKey(token), profile);
+    }
+
+    /**
+     * Discards the cached profile of a user. Profiles put for tokens without an identity URL are left to expire.
+     *
+     * @param userId the Salesforce user ID
+     */
+    public void invalidate(String userId) {
+        cache.invalidate(getKey(userId));
+    }
+
+    @ManagedAttribute(description = "Number of profiles served from the cache")
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    @ManagedAttribute(description = "Number of profiles that had to be loaded before they could be served")
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    @ManagedAttribute(description = "Number of background refreshes")
+    public long getRefreshCount() {
+        return cache.getRefreshCount();
+    }
+
+    @ManagedAttribute(description = "Number of failed loads")
+    public long getFailureCount() {
+        return cache.getFailureCount();
+    }
+
+    @ManagedAttribute(description = "Number of cached profiles")
+    public int getSize() {
+        return cache.size();
+    }
+
+    private static Object getKey(String userId) {
+        SalesforceId salesforceId = SalesforceId.parse(userId);
+        return (salesforceId != null) ? salesforceId : userId;
+    }
+
+    /**
+     * Profiles of tokens with an identity URL are shared by user; the others are bound to the access token, because
+     * their user ID alone proves nothing.
+     */
+    private static Object getKey(ForceAuthenticationToken token) {
+        return (token.getIdentityUrl() != null) ? getKey(token.getUserId()) : new AccessTokenKey(token.getAccessToken());
+    }
+
+    private IdentityProfile requestProfile(ForceAuthenticationToken token) {
+        try {
+            InputStream jsonStream = client
+                .resource(token.getIdentityUrl())
+                .header("Authorization", "Bearer " + token.getAccessToken())
+                .accept(MediaType.APPLICATION_JSON_TYPE)
+                .get(InputStream.class);
+            JsonNode json = JSON_READER.readTree(jsonStream);
+
+            String userId = getText(json, "user_id");
+            if (userId == null || !SalesforceId.isSameId(userId, token.getUserId())) {
+                throw new OAuthException(String.format(
+                    "Identity response is for userId=%s, not for the token's userId=%s", userId, token.getUserId()));
+            }
+            return new IdentityProfile(
+                userId,
+                getText(json, "organization_id"),
+                getText(json, "username"),
+                getText(json, "display_name"),
+                getText(json, "locale"),
+                getText(json, "timezone"),
+                null);
+
+        } catch (UniformInterfaceException e) {
+            throw new OAuthException(String.format("Problem with identity request: %s", e.getMessage()), e);
+        } catch (IOException e) {
+            throw new OAuthException(String.format("Problem reading identity response: %s", e.getMessage()), e);
+        }
+    }
+
+    private static String getText(JsonNode json, String name) {
+        JsonNode node = json.get(name);
+        return (node != null && !node.isNull()) ? node.asText() : null;
+    }
+
+    /**
+     * The cache key of a profile that is bound to an access token.
+     */
+    private static final class AccessTokenKey {
+        private final String accessToken;
+
+        private AccessTokenKey(String accessToken) {
+            this.accessToken = accessToken;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof AccessTokenKey
+                && StringUtils.equals(accessToken, ((AccessTokenKey) other).accessToken);
+        }
+
+        @Override
+        public int hashCode() {
+            return (accessToken != null) ? accessToken.hashCode() : 0;
+        }
+    }
+}
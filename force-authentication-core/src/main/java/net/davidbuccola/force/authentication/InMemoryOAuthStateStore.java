@@ -0,0 +1,110 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang.Validate;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An {@link OAuthStateStore} that keeps state in a fixed-size ring of slots in memory.
+ * <p/>
+ * Each new exchange takes the next slot in the ring, overwriting whatever was there. That is the eviction policy: it is
+ * O(1), needs no cleanup thread, and bounds memory to the capacity no matter how many logins are started. The state
+ * ID encodes the slot position plus random bytes, so a lookup is a direct index followed by a constant-time comparison
+ * of the ID. Entries also expire after a time-to-live.
+ * <p/>
+ * The capacity should comfortably exceed the number of logins that can be started within the time-to-live; otherwise
+ * slow logins can have their state overwritten during a login storm.
+ */
+public class InMemoryOAuthStateStore implements OAuthStateStore {
+    private static final int RANDOM_BYTES = 12;
+
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final AtomicLong nextPosition = new AtomicLong();
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+    private final long timeToLiveMillis;
+
+    /**
+     * Creates a store that holds 4096 entries for 10 minutes.
+     */
+    public InMemoryOAuthStateStore() {
+        this(4096, 10 * 60 * 1000);
+    }
+
+    /**
+     * @param capacity         the number of entries, rounded up to a power of two
+     * @param timeToLiveMillis how long an entry remains valid
+     */
+    public InMemoryOAuthStateStore(int capacity, long timeToLiveMillis) {
+        Validate.isTrue(capacity > 0, "capacity must be positive");
+        Validate.isTrue(timeToLiveMillis > 0, "timeToLiveMillis must be positive");
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.entries = new AtomicReferenceArray<Entry>(size);
+        this.mask = size - 1;
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    @Override
+    public String save(OAuthState state) {
+        long position = nextPosition.getAndIncrement();
+
+        byte[] id = new byte[8 + RANDOM_BYTES];
+        for (int i = 0; i < 8; i++) {
+            id[i] = (byte) (position >>> (56 - 8 * i));
+        }
+        byte[] random = new byte[RANDOM_BYTES];
+        secureRandom.nextBytes(random);
+        System.arraycopy(random, 0, id, 8, RANDOM_BYTES);
+
+        entries.set((int) position & mask, new Entry(id, state));
+        return Base64.encodeBase64URLSafeString(id);
+    }
+
+    @Override
+    public OAuthState consume(String stateId) {
+        if (stateId == null || stateId.length() > 64) {
+            return null;
+        }
+        byte[] id = Base64.decodeBase64(stateId);
+        if (id.length != 8 + RANDOM_BYTES) {
+            return null;
+        }
+        long position = 0;
+        for (int i = 0; i < 8; i++) {
+            position = (position << 8) | (id[i] & 0xff);
+        }
+
+        int index = (int) position & mask;
+        Entry entry = entries.get(index);
+        if (entry == null || !MessageDigest.isEqual(entry.id, id) || !entries.compareAndSet(index, entry, null)) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.state.getCreatedAt() > timeToLiveMillis) {
+            return null;
+        }
+        return entry.state;
+    }
+
+    private static final class Entry {
+        private final byte[] id;
+        private final OAuthState state;
+
+        private Entry(byte[] id, OAuthState state) {
+            this.id = id;
+            this.state = state;
+        }
+    }
+}
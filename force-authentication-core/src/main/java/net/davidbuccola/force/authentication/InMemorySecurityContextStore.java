@@ -0,0 +1,44 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link SecurityContextStore} that keeps authentications in memory. Entries are never expired, so this is only meant
+ * for development, tests and as a reference for real implementations.
+ */
+public class InMemorySecurityContextStore implements SecurityContextStore {
+    private final ConcurrentMap<String, ForceAuthenticationToken> tokens =
+        new ConcurrentHashMap<String, ForceAuthenticationToken>();
+
+    @Override
+    public ForceAuthenticationToken load(String sessionKey) {
+        return tokens.get(sessionKey);
+    }
+
+    @Override
+    public void write(Map<String, ForceAuthenticationToken> tokens) {
+        this.tokens.putAll(tokens);
+    }
+
+    @Override
+    public void remove(Collection<String> sessionKeys) {
+        for (String sessionKey : sessionKeys) {
+            tokens.remove(sessionKey);
+        }
+    }
+
+    /**
+     * @return the number of stored authentications
+     */
+    public int size() {
+        return tokens.size();
+    }
+}
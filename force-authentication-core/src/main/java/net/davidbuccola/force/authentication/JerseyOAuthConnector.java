@@ -8,9 +8,13 @@ package net.davidbuccola.force.authentication;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.UniformInterfaceException;
 import com.sun.jersey.api.representation.Form;
+import net.davidbuccola.force.authentication.AuthenticationTrace.Phase;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.Validate;
 import org.slf4j.Logger;
@@ -20,68 +24,147 @@ import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.stereotype.Component;
 
+import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.UriBuilder;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
 import java.util.List;
 
 /**
- * The standard implementation of {@link OAuthConnector} that leverages Jersey for outbound communications.
+ * The standard implementation of {@link OAuthConnector} that leverages Jersey for outbound communications. It
+ * supports all of {@link AbstractOAuthConnector}.
+ * <p/>
+ * Instances are thread-safe. The Jersey client and the JSON reader are shared by all requests; neither is reconfigured
+ * after construction.
  */
 @Component("oauthConnector")
-public class JerseyOAuthConnector implements OAuthConnector {
+public class JerseyOAuthConnector extends AbstractOAuthConnector {
     private static final Logger log = LoggerFactory.getLogger(JerseyOAuthConnector.class);
-    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final ObjectReader JSON_READER = new ObjectMapper().reader(); // Immutable, safe to share
 
     private static final List<GrantedAuthority> AUTHORITIES = Arrays.asList(
         (GrantedAuthority) new SimpleGrantedAuthority("ROLE_USER"),
         (GrantedAuthority) new SimpleGrantedAuthority("ROLE_API_USER"));
 
+    private final Client client = Client.create();
+
     @Autowired
     private OAuthClientConfig clientConfig;
 
+    /**
+     * Sets the OAuth client configuration.
+     * <p/>
+     * This is only needed when the bean is wired explicitly instead of by autowiring.
+     *
+     * @param clientConfig the OAuth client configuration
+     */
+    public void setClientConfig(OAuthClientConfig clientConfig) {
+        this.clientConfig = clientConfig;
+    }
+
+    @Override
+    public String buildAuthorizeUri(String loginUrl, String callbackUri, String state, String codeChallenge) {
+        OAuthClientSnapshot config = getClientSnapshot();
+        String prefix = (loginUrl != null)
+            ? StringUtils.removeEnd(loginUrl, "/") + OAuthClientSnapshot.AUTHORIZE_PATH + config.getAuthorizeParameters()
+            : config.getAuthorizeUriPrefix();
+        StringBuilder builder = new StringBuilder(prefix.length() + 3 * callbackUri.length()
+            + (state != null ? 3 * state.length() : 0) + (codeChallenge != null ? 96 : 0) + 32);
+
+        builder.append(prefix).append("&redirect_uri=");
+        PercentEncoder.append(builder, callbackUri);
+        if (!StringUtils.isEmpty(state)) {
+            PercentEncoder.append(builder.append("&state="), state);
+        }
+        if (!StringUtils.isEmpty(codeChallenge)) {
+            PercentEncoder.append(builder.append("&code_challenge="), codeChallenge);
+            builder.append("&code_challenge_method=").append(Pkce.CHALLENGE_METHOD);
+        }
+        return builder.toString();
+    }
+
     @Override
-    public String buildAuthorizeUri(String callbackUri, String state) {
-        UriBuilder builder = UriBuilder.fromUri(clientConfig.getServerURL())
-            .path("services/oauth2/authorize")
-            .queryParam("response_type", "code")
-            .queryParam("client_id", clientConfig.getClientId())
-            .queryParam("redirect_uri", callbackUri);
-
-        if (!StringUtils.isEmpty(clientConfig.getDisplay()))
-            builder = builder.queryParam("display", clientConfig.getDisplay());
-        if (!StringUtils.isEmpty(clientConfig.getPrompt()))
-            builder = builder.queryParam("prompt", clientConfig.getPrompt());
-        if (!StringUtils.isEmpty(state))
-            builder = builder.queryParam("state", state);
-
-        return builder.build().toString();
+    public ForceAuthenticationToken getToken(String loginUrl, String code, String callbackUri, String codeVerifier) {
+        OAuthClientSnapshot config = getClientSnapshot();
+        Form form = new Form();
+        form.add("code", code);
+        form.add("grant_type", "authorization_code");
+        form.add("client_id", config.getClientId());
+        form.add("client_secret", config.getClientSecret());
+        form.add("redirect_uri", callbackUri);
+        if (codeVerifier != null) {
+            form.add("code_verifier", codeVerifier);
+        }
+        String tokenEndpoint = (loginUrl != null)
+            ? StringUtils.removeEnd(loginUrl, "/") + OAuthClientSnapshot.TOKEN_PATH
+            : config.getTokenEndpoint();
+        return requestToken(tokenEndpoint, form);
     }
 
     @Override
-    public ForceAuthenticationToken getToken(String code, String callbackUri) {
-        Client client = Client.create();
+    public void revokeToken(String loginUrl, String accessToken) {
+        String revokeEndpoint = (loginUrl != null)
+            ? StringUtils.removeEnd(loginUrl, "/") + OAuthClientSnapshot.REVOKE_PATH
+            : getClientSnapshot().getRevokeEndpoint();
+        Form form = new Form();
+        form.add("token", accessToken);
+
+        ClientResponse response;
+        try {
+            response = client
+                .resource(revokeEndpoint)
+                .type(MediaType.APPLICATION_FORM_URLENCODED_TYPE)
+                .post(ClientResponse.class, form);
+        } catch (ClientHandlerException e) {
+            throw new OAuthException(String.format("Problem with OAuth revoke request: %s", e.getMessage()), e);
+        }
         try {
-            Form form = new Form();
-            form.add("code", code);
-            form.add("grant_type", "authorization_code");
-            form.add("client_id", clientConfig.getClientId());
-            form.add("client_secret", clientConfig.getClientSecret());
-            form.add("redirect_uri", callbackUri);
+            int status = response.getStatus();
+            if (status == HttpServletResponse.SC_BAD_REQUEST) {
+                log.debug("OAuth token was already invalid when revoked"); // Expired or revoked by someone else
+            } else if (status != HttpServletResponse.SC_OK) {
+                throw new OAuthException(String.format("Problem with OAuth revoke request: HTTP status %d", status));
+            }
+        } finally {
+            response.close(); // Lets the connection be reused
+        }
+    }
+
+    /**
+     * Gets a consistent snapshot of the client configuration.
+     */
+    final OAuthClientSnapshot getClientSnapshot() {
+        return OAuthClientSnapshot.of(clientConfig);
+    }
 
+    /**
+     * Posts a token request to the OAuth token endpoint and builds an authentication token from the response.
+     *
+     * @param config the client configuration
+     * @param form   the grant-specific form parameters
+     * @return the authentication token
+     */
+    final ForceAuthenticationToken requestToken(OAuthClientSnapshot config, Form form) {
+        return requestToken(config.getTokenEndpoint(), form);
+    }
+
+    private ForceAuthenticationToken requestToken(String tokenEndpoint, Form form) {
+        try {
             InputStream jsonStream = client
-                .resource(clientConfig.getServerURL())
-                .path("services/oauth2/token")
+                .resource(tokenEndpoint)
                 .type(MediaType.APPLICATION_FORM_URLENCODED_TYPE)
                 .post(InputStream.class, form);
-            JsonNode jsonTree = objectMapper.readTree(jsonStream);
+            AuthenticationTrace.mark(Phase.TOKEN_REQUEST);
+            JsonNode jsonTree = JSON_READER.readTree(jsonStream);
+            AuthenticationTrace.mark(Phase.TOKEN_RESPONSE);
 
+            String identityUrl = jsonTree.get("id").asText();
             ForceAuthenticationToken authenticationToken = new ForceAuthenticationToken(
-                extractUserId(jsonTree.get("id").asText()),
+                extractUserId(identityUrl),
                 jsonTree.get("access_token").asText(),
                 jsonTree.get("instance_url").asText(),
+                identityUrl,
                 AUTHORITIES);
             authenticationToken.setAuthenticated(true);
             return authenticationToken;
@@ -100,6 +183,32 @@ public class JerseyOAuthConnector implements OAuthConnector {
         }
     }
 
+    /**
+     * Exercises the one-time initialization paths of the connector (URI building and JSON parsing) so that the first
+     * real request doesn't pay for them.
+     */
+    void warmUp() throws IOException {
+        buildAuthorizeUri("https://localhost/oauth", "https://localhost/");
+        JSON_READER.readTree("{\"id\":\"https://localhost/id/00D/005\",\"access_token\":\"x\",\"instance_url\":\"x\"}");
+    }
+
+    /**
+     * Sends a HEAD request to the token endpoint so that the HTTP client has resolved the login host, completed the TLS
+     * handshake and cached the session before the first real token request. Whatever the status, the connection is
+     * then kept alive for reuse.
+     *
+     * @throws OAuthException if the login host can't be reached
+     */
+    void primeConnection() {
+        ClientResponse response;
+        try {
+            response = client.resource(getClientSnapshot().getTokenEndpoint()).head();
+        } catch (ClientHandlerException e) {
+            throw new OAuthException(String.format("Problem connecting to the OAuth token endpoint: %s", e.getMessage()), e);
+        }
+        response.close();
+    }
+
     private static String extractUserId(String idUrlString) {
         Validate.notEmpty(idUrlString);
         return idUrlString.substring(idUrlString.lastIndexOf('/') + 1);
@@ -108,7 +217,7 @@ public class JerseyOAuthConnector implements OAuthConnector {
     private String extractErrorMessage(UniformInterfaceException e) {
         try {
             InputStream jsonStream = e.getResponse().getEntity(InputStream.class);
-            JsonNode jsonNode = objectMapper.readTree(jsonStream);
+            JsonNode jsonNode = JSON_READER.readTree(jsonStream);
 
             return String.format("%s: %s", jsonNode.get("error").asText(), jsonNode.get("error_description").asText());
         } catch (JsonProcessingException e2) {
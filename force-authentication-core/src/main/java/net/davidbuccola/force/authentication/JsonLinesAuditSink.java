@@ -0,0 +1,68 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * An {@link AuditSink} that appends events to a file as JSON lines, one JSON object per event.
+ */
+public class JsonLinesAuditSink implements AuditSink {
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final Writer writer;
+
+    /**
+     * Creates a sink that appends to a file. The file is created if it doesn't exist.
+     *
+     * @param file the file
+     * @throws IOException if the file can't be opened
+     */
+    public JsonLinesAuditSink(File file) throws IOException {
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), Charset.forName("UTF-8")));
+    }
+
+    @Override
+    public void write(List<AuthenticationAuditEvent> events) throws IOException {
+        for (AuthenticationAuditEvent event : events) {
+            JsonGenerator generator = jsonFactory.createGenerator(writer);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartObject();
+            generator.writeNumberField("timestamp", event.getTimestamp());
+            generator.writeStringField("mechanism", event.getMechanism().name());
+            generator.writeStringField("outcome", event.getOutcome().name());
+            writeOptionalField(generator, "userId", event.getUserId());
+            writeOptionalField(generator, "org", event.getOrg());
+            generator.writeNumberField("latencyMicros", event.getLatencyMicros());
+            writeOptionalField(generator, "detail", event.getDetail());
+            generator.writeEndObject();
+            generator.close();
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private static void writeOptionalField(JsonGenerator generator, String name, String value) throws IOException {
+        if (value != null) {
+            generator.writeStringField(name, value);
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link SharedTokenCache} in a memory-mapped file, for several processes of the same app on one host.
+ * <p/>
+ * The file holds a fixed number of fixed-size slots addressed by a hash of the session key, with a short run of linear
+ * probing. When the probed slots are all in use the one closest to expiry is overwritten, so the file never grows and
+ * needs no cleanup. Reads go straight to the mapping without locks or system calls.
+ * <p/>
+ * Each slot is guarded by a sequence number. A writer takes an exclusive lock on the slot's region of the file (plus an
+ * in-process lock, because file locks are held per process), makes the sequence number odd, writes the slot and makes
+ * the sequence number even again. A reader retries if it sees an odd sequence number or a different one after copying
+ * the slot. Every entry also carries an HMAC, so a torn read that slipped through would be rejected as a miss.
+ * <p/>
+ * Tokens are encrypted (AES-CBC with a random IV, then HMAC-SHA256 over the ciphertext, the key hash and the expiry).
+ * The keys are derived from the configured secret, or from the OAuth client secret if no secret is set, so every
+ * process that shares the file must use the same secret. The file should still only be readable by the app's user.
+ * Only a hash of the session key is stored.
+ */
+@ManagedResource(description = "Memory-mapped shared token cache")
+public class MappedFileTokenCache implements SharedTokenCache, InitializingBean, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(MappedFileTokenCache.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x46544331; // "FTC1"
+    private static final int HEADER_SIZE = 64;
+    private static final int SEQUENCE = 0;
+    private static final int KEY_HASH = 8;
+    private static final int EXPIRES_AT = 16;
+    private static final int LENGTH = 24;
+    private static final int MAC = 32;
+    private static final int MAC_LENGTH = 32;
+    private static final int IV_LENGTH = 16;
+    private static final int MAX_PROBES = 8;
+    private static final int MAX_READ_ATTEMPTS = 4;
+    private static final int LOCK_STRIPES = 64;
+
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+    private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong putCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    @Autowired(required = false)
+    private OAuthClientConfig clientConfig;
+
+    private File file;
+    private String secret;
+    private int slotCount = 8192;
+    private int slotSize = 2048;
+    private long timeToLiveMillis = 30 * 60 * 1000;
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int mask;
+    private SecretKey encryptionKey;
+    private SecretKey macKey;
+
+    /**
+     * Sets the file that holds the cache. This is required. The file is created if it doesn't exist.
+     *
+     * @param file the cache file
+     */
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Sets the secret from which the encryption keys are derived. The default is the OAuth client secret.
+     *
+     * @param secret the secret
+     */
+    public void setSecret(String secret) {
+        this.secret = secret;
+    }
+
+    /**
+     * Sets the OAuth client configuration, whose client secret is used when no secret is set.
+     * <p/>
+     * This is only needed when the bean is wired explicitly instead of by autowiring.
+     *
+     * @param clientConfig the OAuth client configuration
+     */
+    public void setClientConfig(OAuthClientConfig clientConfig) {
+        this.clientConfig = clientConfig;
+    }
+
+    /**
+     * Sets the number of slots, rounded up to a power of two. The default is 8192. All processes sharing the file must
+     * use the same value.
+     *
+     * @param slotCount the number of slots
+     */
+    public void setSlotCount(int slotCount) {
+        this.slotCount = slotCount;
+    }
+
+    /**
+     * Sets the size of a slot in bytes, which bounds the size of a token. The default is 2048. All processes sharing
+     * the file must use the same value.
+     *
+     * @param slotSize the slot size
+     */
+    public void setSlotSize(int slotSize) {
+        this.slotSize = slotSize;
+    }
+
+    /**
+     * Sets how long an entry is served. This should not exceed the session timeout of the org. The default is 30
+     * minutes.
+     *
+     * @param timeToLiveMillis the time in milliseconds
+     */
+    public void setTimeToLiveMillis(long timeToLiveMillis) {
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (file == null) {
+            throw new BeanInitializationException("file is not set");
+        }
+        if (slotSize < MAC + MAC_LENGTH + IV_LENGTH + 256) {
+            throw new BeanInitializationException("slotSize is too small: " + slotSize);
+        }
+        String keySecret = secret;
+        if (keySecret == null && clientConfig != null) {
+            keySecret = clientConfig.getClientSecret();
+        }
+        if (StringUtils.isEmpty(keySecret)) {
+            throw new BeanInitializationException("Neither secret nor clientConfig is set");
+        }
+
+        int size = Integer.highestOneBit(slotCount);
+        if (size < slotCount) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+
+        try {
+            encryptionKey = new SecretKeySpec(Arrays.copyOf(deriveKey(keySecret, "encryption"), 16), "AES");
+            macKey = new SecretKeySpec(deriveKey(keySecret, "mac"), "HmacSHA256");
+            open(size);
+        } catch (Exception e) {
+            throw new BeanInitializationException("Failed to open token cache " + file, e);
+        }
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        buffer = null;
+        if (randomAccessFile != null) {
+            randomAccessFile.close(); // The mapping itself goes away when the buffer is collected
+        }
+    }
+
+    @Override
+    public void put(String sessionKey, ForceAuthenticationToken token) {
+        long keyHash = hashKey(sessionKey);
+        long now = System.currentTimeMillis();
+        byte[] entry;
+        try {
+            entry = encrypt(TokenSerializer.serialize(token), keyHash, now + timeToLiveMillis);
+        } catch (Exception e) {
+            log.warn("Failed to encrypt token for shared cache", e);
+            rejectedCount.incrementAndGet();
+            return;
+        }
+        if (MAC + entry.length > slotSize) {
+            rejectedCount.incrementAndGet();
+            return;
+        }
+
+        int slot = chooseSlot(keyHash, now);
+        write(slot, keyHash, now + timeToLiveMillis, entry);
+        putCount.incrementAndGet();
+    }
+
+    @Override
+    public ForceAuthenticationToken get(String sessionKey) {
+        long keyHash = hashKey(sessionKey);
+        long now = System.currentTimeMillis();
+        int index = (int) keyHash & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = (index + probe) & mask;
+            byte[] entry = read(slot, keyHash, now);
+            if (entry != null) {
+                ForceAuthenticationToken token = decryptToken(entry, keyHash, slot);
+                if (token != null) {
+                    hitCount.incrementAndGet();
+                    return token;
+                }
+            }
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    @Override
+    public void remove(String sessionKey) {
+        long keyHash = hashKey(sessionKey);
+        int index = (int) keyHash & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = (index + probe) & mask;
+            if (buffer.getLong(slotOffset(slot) + KEY_HASH) == keyHash) {
+                write(slot, 0, 0, null);
+            }
+        }
+    }
+
+    @ManagedAttribute(description = "Number of lookups that found a token")
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of lookups that found nothing")
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of tokens stored")
+    public long getPutCount() {
+        return putCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of live tokens overwritten to make room")
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of tokens not stored because they were too large or could not be encrypted")
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    private void open(int size) throws IOException {
+        long length = HEADER_SIZE + (long) size * slotSize;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("slotCount * slotSize must be less than 2GB");
+        }
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        try {
+            FileLock lock = channel.lock(0, HEADER_SIZE, false);
+            try {
+                if (channel.size() == 0) {
+                    randomAccessFile.setLength(length);
+                    ByteBuffer header = ByteBuffer.allocate(16);
+                    header.putInt(MAGIC).putInt(1).putInt(size).putInt(slotSize).flip();
+                    channel.write(header, 0);
+                } else {
+                    ByteBuffer header = ByteBuffer.allocate(16);
+                    channel.read(header, 0);
+                    header.flip();
+                    if (header.getInt() != MAGIC || header.getInt() != 1 || header.getInt() != size
+                        || header.getInt() != slotSize || channel.size() != length) {
+                        throw new IOException(
+                            "Existing file has a different layout; remove it or use the same settings");
+                    }
+                }
+            } finally {
+                lock.release();
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+        } catch (IOException e) {
+            randomAccessFile.close(); // Don't leave a refused file open
+            randomAccessFile = null;
+            throw e;
+        }
+    }
+
+    private int slotOffset(int slot) {
+        return HEADER_SIZE + slot * slotSize;
+    }
+
+    /**
+     * Chooses the slot for a key: the slot already holding the key, else the first free or expired slot, else the slot
+     * closest to expiry. The choice is made without locks; if another writer takes the same slot at the same time one
+     * of the entries is lost, which is only a cache miss.
+     */
+    private int chooseSlot(long keyHash, long now) {
+        int index = (int) keyHash & mask;
+        int free = -1;
+        int victim = index;
+        long victimExpiresAt = Long.MAX_VALUE;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = (index + probe) & mask;
+            int offset = slotOffset(slot);
+            long expiresAt = buffer.getLong(offset + EXPIRES_AT);
+            if (buffer.getLong(offset + KEY_HASH) == keyHash) {
+                return slot;
+            }
+            if (free < 0 && expiresAt <= now) {
+                free = slot;
+            }
+            if (expiresAt < victimExpiresAt) {
+                victim = slot;
+                victimExpiresAt = expiresAt;
+            }
+        }
+        if (free >= 0) {
+            return free;
+        }
+        evictionCount.incrementAndGet();
+        return victim;
+    }
+
+    /**
+     * Writes a slot under the slot lock. A <code>null</code> entry clears the slot.
+     */
+    private void write(int slot, long keyHash, long expiresAt, byte[] entry) {
+        int offset = slotOffset(slot);
+        ReentrantLock lock = locks[slot & (LOCK_STRIPES - 1)];
+        lock.lock();
+        try {
+            FileLock fileLock = channel.lock(offset, slotSize, false);
+            try {
+                long sequence = buffer.getLong(offset + SEQUENCE);
+                buffer.putLong(offset + SEQUENCE, sequence | 1); // Odd while writing
+                buffer.putLong(offset + KEY_HASH, keyHash);
+                buffer.putLong(offset + EXPIRES_AT, expiresAt);
+                if (entry != null) {
+                    buffer.putInt(offset + LENGTH, entry.length);
+                    ByteBuffer view = buffer.duplicate();
+                    view.position(offset + MAC);
+                    view.put(entry);
+                } else {
+                    buffer.putInt(offset + LENGTH, 0);
+                }
+                buffer.putLong(offset + SEQUENCE, (sequence | 1) + 1);
+            } finally {
+                fileLock.release();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to lock shared token cache slot " + slot, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies an entry out of a slot if it holds the key and hasn't expired, retrying while a writer is active.
+     *
+     * @return the MAC followed by the IV and ciphertext, or <code>null</code>
+     */
+    private byte[] read(int slot, long keyHash, long now) {
+        int offset = slotOffset(slot);
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long sequence = buffer.getLong(offset + SEQUENCE);
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            if (buffer.getLong(offset + KEY_HASH) != keyHash || buffer.getLong(offset + EXPIRES_AT) <= now) {
+                return null;
+            }
+            int length = buffer.getInt(offset + LENGTH);
+            if (length <= MAC_LENGTH + IV_LENGTH || MAC + length > slotSize) {
+                return null;
+            }
+            byte[] entry = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + MAC);
+            view.get(entry);
+            if (buffer.getLong(offset + SEQUENCE) == sequence) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private byte[] encrypt(byte[] plaintext, long keyHash, long expiresAt) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        secureRandom.nextBytes(iv);
+        Cipher cipher = getCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+        byte[] ciphertext = cipher.doFinal(plaintext);
+
+        byte[] entry = new byte[MAC_LENGTH + IV_LENGTH + ciphertext.length];
+        System.arraycopy(iv, 0, entry, MAC_LENGTH, IV_LENGTH);
+        System.arraycopy(ciphertext, 0, entry, MAC_LENGTH + IV_LENGTH, ciphertext.length);
+        byte[] mac = computeMac(entry, keyHash, expiresAt);
+        System.arraycopy(mac, 0, entry, 0, MAC_LENGTH);
+        return entry;
+    }
+
+    private ForceAuthenticationToken decryptToken(byte[] entry, long keyHash, int slot) {
+        try {
+            long expiresAt = buffer.getLong(slotOffset(slot) + EXPIRES_AT);
+            byte[] mac = computeMac(entry, keyHash, expiresAt);
+            if (!MessageDigest.isEqual(mac, Arrays.copyOf(entry, MAC_LENGTH))) {
+                return null; // Torn read, concurrent overwrite or tampering
+            }
+            Cipher cipher = getCipher();
+            cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(entry, MAC_LENGTH, IV_LENGTH));
+            byte[] plaintext = cipher.doFinal(entry, MAC_LENGTH + IV_LENGTH, entry.length - MAC_LENGTH - IV_LENGTH);
+            return TokenSerializer.deserialize(plaintext);
+
+        } catch (GeneralSecurityException e) {
+            log.warn("Failed to decrypt shared token cache entry", e);
+            return null;
+        } catch (IOException e) {
+            log.warn("Failed to read shared token cache entry", e);
+            return null;
+        }
+    }
+
+    private byte[] computeMac(byte[] entry, long keyHash, long expiresAt) throws GeneralSecurityException {
+        Mac mac = macs.get();
+        if (mac == null) {
+            mac = Mac.getInstance("HmacSHA256");
+            macs.set(mac);
+        }
+        mac.init(macKey);
+        mac.update(ByteBuffer.allocate(16).putLong(keyHash).putLong(expiresAt).array());
+        mac.update(entry, MAC_LENGTH, entry.length - MAC_LENGTH);
+        return mac.doFinal();
+    }
+
+    private Cipher getCipher() throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            ciphers.set(cipher);
+        }
+        return cipher;
+    }
+
+    private static byte[] deriveKey(String secret, String purpose) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret.getBytes(UTF8), "HmacSHA256"));
+        return mac.doFinal(("force-authentication-token-cache-" + purpose).getBytes(UTF8));
+    }
+
+    private static long hashKey(String sessionKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(sessionKey.getBytes(UTF8));
+            long hash = ByteBuffer.wrap(digest).getLong();
+            return (hash != 0) ? hash : 1; // Zero marks an empty slot
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // Every JRE is required to have it
+        }
+    }
+}
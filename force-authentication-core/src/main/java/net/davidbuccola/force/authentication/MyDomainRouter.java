@@ -0,0 +1,253 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes OAuth logins of returning users straight to the My Domain (or instance) host of their org instead of the
+ * configured global login server, saving a redirect through it.
+ * <p/>
+ * The host of each org is learned from the <code>instance_url</code> of OAuth token responses and from canvas payloads,
+ * and cached per org. After an OAuth login the org is remembered in a long-lived cookie, so that the next time the
+ * browser has to log in the "authorize" redirect and the token exchange go to the org's own host. Only HTTPS hosts
+ * under the allowed domain suffixes are ever used, because the client secret is sent to them. If a routed token
+ * exchange fails the org is forgotten, so that the next attempt goes through the configured server again.
+ * <p/>
+ * Routing is only done if a bean of this type is present in the application context.
+ */
+@ManagedResource(description = "Salesforce My Domain routing")
+public class MyDomainRouter implements InitializingBean {
+    private static final Logger log = LoggerFactory.getLogger(MyDomainRouter.class);
+
+    /**
+     * The name of the cookie that remembers the org of the last login.
+     */
+    public static final String COOKIE_NAME = "force_org";
+
+    private List<String> allowedHostSuffixes = Arrays.asList(".salesforce.com", ".force.com");
+    private long timeToLiveMillis = 24 * 60 * 60 * 1000;
+    private int maxSize = 10000;
+    private int cookieMaxAgeSeconds = 90 * 24 * 60 * 60;
+
+    private ExpiringCache<SalesforceId, String> cache;
+    private final AtomicLong routedCount = new AtomicLong();
+    private final AtomicLong unroutedCount = new AtomicLong();
+    private final AtomicLong learnedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Sets the domain suffixes that a login host must end with. The default is <code>.salesforce.com</code> and
+     * <code>.force.com</code>.
+     *
+     * @param allowedHostSuffixes the suffixes, each starting with a dot
+     */
+    public void setAllowedHostSuffixes(List<String> allowedHostSuffixes) {
+        this.allowedHostSuffixes = allowedHostSuffixes;
+    }
+
+    /**
+     * Sets how long a learned host is used before it has to be learned again. The default is 24 hours.
+     *
+     * @param timeToLiveMillis the time in milliseconds
+     */
+    public void setTimeToLiveMillis(long timeToLiveMillis) {
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    /**
+     * Sets the maximum number of orgs whose host is cached. The default is 10000.
+     *
+     * @param maxSize the maximum number of orgs
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Sets how long the browser remembers the org of the last login. The default is 90 days.
+     *
+     * @param cookieMaxAgeSeconds the cookie lifetime in seconds
+     */
+    public void setCookieMaxAgeSeconds(int cookieMaxAgeSeconds) {
+        this.cookieMaxAgeSeconds = cookieMaxAgeSeconds;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (allowedHostSuffixes == null || allowedHostSuffixes.isEmpty()) {
+            throw new BeanInitializationException("allowedHostSuffixes is not set");
+        }
+        for (String suffix : allowedHostSuffixes) {
+            if (!suffix.startsWith(".")) {
+                throw new BeanInitializationException("allowedHostSuffixes must start with a dot: " + suffix);
+            }
+        }
+        cache = new ExpiringCache<SalesforceId, String>(timeToLiveMillis, timeToLiveMillis, maxSize, null);
+    }
+
+    /**
+     * Learns the host of an org.
+     *
+     * @param organizationId the org ID
+     * @param instanceUrl    the instance URL of the org as given by Salesforce
+     */
+    public void learn(String organizationId, String instanceUrl) {
+        SalesforceId orgId = SalesforceId.parse(organizationId);
+        if (orgId == null || instanceUrl == null) {
+            return;
+        }
+        String loginUrl = toLoginUrl(instanceUrl);
+        if (loginUrl == null) {
+            rejectedCount.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("Not routing logins of org %s to disallowed host: %s", orgId, instanceUrl));
+            }
+            return;
+        }
+        if (!loginUrl.equals(cache.getIfPresent(orgId))) {
+            cache.put(orgId, loginUrl);
+            learnedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Learns the host of the org of a token obtained by an OAuth exchange, and remembers the org in the browser so
+     * that the next login is routed to it. This must be called before the response is committed.
+     */
+    public void learn(ForceAuthenticationToken token, HttpServletRequest request, HttpServletResponse response) {
+        String organizationId = getOrganizationId(token.getIdentityUrl());
+        if (organizationId == null) {
+            return;
+        }
+        learn(organizationId, token.getInstanceUrl());
+
+        if (!organizationId.equals(getOrganizationId(request))) {
+            Cookie cookie = new Cookie(COOKIE_NAME, organizationId);
+            cookie.setPath(StringUtils.defaultIfEmpty(request.getContextPath(), "/"));
+            cookie.setMaxAge(cookieMaxAgeSeconds);
+            cookie.setHttpOnly(true);
+            cookie.setSecure(request.isSecure());
+            response.addCookie(cookie);
+        }
+    }
+
+    /**
+     * Gets the login host of the org the browser last logged in to.
+     *
+     * @return the base URL of the login host or <code>null</code> to use the configured server
+     */
+    public String getLoginUrl(HttpServletRequest request) {
+        SalesforceId orgId = SalesforceId.parse(getOrganizationId(request));
+        if (orgId == null) {
+            return null;
+        }
+        String loginUrl = cache.getIfPresent(orgId);
+        if (loginUrl != null) {
+            routedCount.incrementAndGet();
+        } else {
+            unroutedCount.incrementAndGet();
+        }
+        return loginUrl;
+    }
+
+    /**
+     * Forgets the login host of the org the browser last logged in to, because using it failed.
+     */
+    public void forget(HttpServletRequest request) {
+        SalesforceId orgId = SalesforceId.parse(getOrganizationId(request));
+        if (orgId != null) {
+            cache.invalidate(orgId);
+        }
+    }
+
+    @ManagedAttribute(description = "Number of logins routed to a learned host")
+    public long getRoutedCount() {
+        return routedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of logins from a remembered org whose host wasn't known")
+    public long getUnroutedCount() {
+        return unroutedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of times a new host was learned for an org")
+    public long getLearnedCount() {
+        return learnedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of instance URLs ignored because their host is not allowed")
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of orgs whose host is cached")
+    public int getSize() {
+        return cache.size();
+    }
+
+    /**
+     * Reduces an instance URL to the base URL of its host, if the host is allowed.
+     */
+    private String toLoginUrl(String instanceUrl) {
+        try {
+            URI uri = new URI(instanceUrl);
+            String host = uri.getHost();
+            if (!"https".equalsIgnoreCase(uri.getScheme()) || host == null || (uri.getPort() != -1 && uri.getPort() != 443)) {
+                return null;
+            }
+            host = host.toLowerCase(Locale.ENGLISH);
+            for (String suffix : allowedHostSuffixes) {
+                if (host.endsWith(suffix.toLowerCase(Locale.ENGLISH))) {
+                    return "https://" + host;
+                }
+            }
+            return null;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Extracts the org ID from an identity URL, which ends with <code>/id/{orgId}/{userId}</code>.
+     */
+    private static String getOrganizationId(String identityUrl) {
+        if (identityUrl == null) {
+            return null;
+        }
+        int userIdStart = identityUrl.lastIndexOf('/');
+        int orgIdStart = identityUrl.lastIndexOf('/', userIdStart - 1);
+        return (orgIdStart >= 0) ? identityUrl.substring(orgIdStart + 1, userIdStart) : null;
+    }
+
+    private static String getOrganizationId(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (COOKIE_NAME.equals(cookie.getName())) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -5,6 +5,8 @@
  */
 package net.davidbuccola.force.authentication;
 
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -19,14 +21,17 @@ import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.security.SecureRandom;
 import java.util.Collection;
 
 @Component("authenticationEntryPoint")
 public class OAuthAuthenticationEntryPoint implements AuthenticationEntryPoint {
     private static final FilterChain nullFilterChain = new NullFilterChain();
+    private static final SecureRandom secureRandom = new SecureRandom();
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
@@ -36,6 +41,44 @@ public class OAuthAuthenticationEntryPoint implements AuthenticationEntryPoint {
     @Autowired
     private FilterSecurityInterceptor filterSecurityInterceptor;
 
+    @Autowired(required = false)
+    private OAuthStateStore stateStore;
+
+    @Autowired(required = false)
+    private MyDomainRouter router;
+
+    /**
+     * Sets the connector used for the OAuth exchange.
+     * <p/>
+     * This is only needed when the bean is wired explicitly instead of by autowiring.
+     *
+     * @param connector the connector used for the OAuth exchange
+     */
+    public void setConnector(OAuthConnector connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * Sets the store for OAuth state. When a store is set the OAuth <code>state</code> parameter carries a short ID
+     * into the store, the browser is given a nonce cookie that the callback has to present, and PKCE is used. Otherwise
+     * the final redirect URL is sent as the state and there is no protection against login CSRF.
+     *
+     * @param stateStore the state store
+     */
+    public void setStateStore(OAuthStateStore stateStore) {
+        this.stateStore = stateStore;
+    }
+
+    /**
+     * Sets the router that sends returning users to the login host of their org. The default is to always use the
+     * configured server URL. This must be the same router that is used by the {@link OAuthFilter}.
+     *
+     * @param router the router
+     */
+    public void setRouter(MyDomainRouter router) {
+        this.router = router;
+    }
+
     @Override
     public void commence(HttpServletRequest request, HttpServletResponse response, AuthenticationException authException) throws IOException, ServletException {
         if (isApiUrl(request, response)) {
@@ -47,7 +90,18 @@ public class OAuthAuthenticationEntryPoint implements AuthenticationEntryPoint {
             if (log.isDebugEnabled()) {
                 log.debug("Initiating OAuth exchange to gain access to URI: " + request.getRequestURI());
             }
-            response.sendRedirect(connector.buildAuthorizeUri(buildCallbackUrl(request), buildFinalRedirectUrl(request)));
+            String loginUrl = (router != null && connector instanceof AbstractOAuthConnector)
+                ? router.getLoginUrl(request) : null;
+            if (stateStore != null) {
+                String codeVerifier = (connector instanceof AbstractOAuthConnector) ? Pkce.newCodeVerifier() : null;
+                String browserNonce = bindBrowser(request, response);
+                String stateId = stateStore.save(new OAuthState(
+                    buildFinalRedirectUrl(request), loginUrl, codeVerifier, browserNonce, System.currentTimeMillis()));
+                response.sendRedirect(buildAuthorizeUri(
+                    request, loginUrl, stateId, (codeVerifier != null) ? Pkce.codeChallenge(codeVerifier) : null));
+            } else {
+                response.sendRedirect(buildAuthorizeUri(request, loginUrl, buildFinalRedirectUrl(request), null));
+            }
         }
     }
 
@@ -66,23 +120,58 @@ public class OAuthAuthenticationEntryPoint implements AuthenticationEntryPoint {
         return false;
     }
 
+    /**
+     * Builds the "authorize" URL, on the login host of the user's org and with PKCE if the connector supports them.
+     */
+    private String buildAuthorizeUri(HttpServletRequest request, String loginUrl, String state, String codeChallenge) {
+        if (connector instanceof AbstractOAuthConnector) {
+            return ((AbstractOAuthConnector) connector).buildAuthorizeUri(
+                loginUrl, buildCallbackUrl(request), state, codeChallenge);
+        } else {
+            return connector.buildAuthorizeUri(buildCallbackUrl(request), state);
+        }
+    }
+
+    /**
+     * Gets the nonce that identifies this browser to the OAuth callback, setting the cookie that carries it if the
+     * browser doesn't have one yet. An existing nonce is reused so that logins started in several tabs all succeed.
+     */
+    private static String bindBrowser(HttpServletRequest request, HttpServletResponse response) {
+        String browserNonce = OAuthFilter.getBrowserNonce(request);
+        if (browserNonce == null) {
+            byte[] random = new byte[16];
+            secureRandom.nextBytes(random);
+            browserNonce = Base64.encodeBase64URLSafeString(random);
+
+            Cookie cookie = new Cookie(OAuthFilter.BROWSER_COOKIE_NAME, browserNonce);
+            cookie.setPath(StringUtils.defaultIfEmpty(request.getContextPath(), "/"));
+            cookie.setHttpOnly(true);
+            cookie.setSecure(request.isSecure());
+            response.addCookie(cookie);
+        }
+        return browserNonce;
+    }
+
     /**
      * Build the OAuth callback URL which will come back to us and get caught by the OAuthFilter.
      */
     private static String buildCallbackUrl(HttpServletRequest request) {
-        StringBuilder builder = new StringBuilder();
         final String scheme = request.getScheme();
+        final String serverName = request.getServerName();
+        final String contextPath = request.getContextPath();
         int port = request.getServerPort();
         if (port < 0)
             port = 80; // Work around java.net.URL bug
 
+        StringBuilder builder = new StringBuilder(
+            scheme.length() + serverName.length() + contextPath.length() + OAuthFilter.CALLBACK_PATH.length() + 16);
         builder.append(scheme).append("://");
-        builder.append(request.getServerName());
+        builder.append(serverName);
         if ((scheme.equals("http") && (port != 80)) || (scheme.equals("https") && (port != 443))) {
             builder.append(':').append(port);
         }
 
-        builder.append(request.getContextPath());
+        builder.append(contextPath);
         builder.append(OAuthFilter.CALLBACK_PATH);
 
         return builder.toString();
@@ -94,8 +183,10 @@ public class OAuthAuthenticationEntryPoint implements AuthenticationEntryPoint {
      */
     private static String buildFinalRedirectUrl(HttpServletRequest request) {
         StringBuffer buffer = request.getRequestURL();
-        if (request.getQueryString() != null) {
-            buffer.append("?").append(request.getQueryString());
+        String queryString = request.getQueryString();
+        if (queryString != null) {
+            buffer.ensureCapacity(buffer.length() + queryString.length() + 1);
+            buffer.append('?').append(queryString);
         }
         return buffer.toString();
     }
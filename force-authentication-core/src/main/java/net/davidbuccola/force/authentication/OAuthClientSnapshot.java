@@ -0,0 +1,205 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
+import org.apache.commons.lang.builder.ToStringBuilder;
+
+import javax.crypto.SecretKey;
+
+/**
+ * An immutable snapshot of {@link OAuthClientConfig} values together with the state derived from them.
+ * <p/>
+ * The derived state (the HMAC key for signed payloads and the OAuth endpoint URIs) is computed once when the snapshot
+ * is built instead of on every request. Code on the request path should get one snapshot with {@link #of} and read
+ * everything it needs from it so that it sees a consistent set of values even if the configuration is reloaded
+ * concurrently.
+ */
+public final class OAuthClientSnapshot implements OAuthClientConfig {
+    static final String AUTHORIZE_PATH = "/services/oauth2/authorize";
+    static final String TOKEN_PATH = "/services/oauth2/token";
+    static final String REVOKE_PATH = "/services/oauth2/revoke";
+
+    private final String clientId;
+    private final String clientSecret;
+    private final String serverURL;
+    private final String scope;
+    private final String display;
+    private final String prompt;
+
+    private final SecretKey signingKey;
+    private final String authorizeEndpoint;
+    private final String authorizeParameters;
+    private final String authorizeUriPrefix;
+    private final String tokenEndpoint;
+    private final String revokeEndpoint;
+
+    private OAuthClientSnapshot(OAuthClientConfig config) {
+        Validate.notNull(config.getClientId(), "clientId is not set");
+        Validate.notNull(config.getClientSecret(), "clientSecret is not set");
+        Validate.notNull(config.getServerURL(), "serverURL is not set");
+
+        this.clientId = config.getClientId();
+        this.clientSecret = config.getClientSecret();
+        this.serverURL = config.getServerURL();
+        this.scope = config.getScope();
+        this.display = config.getDisplay();
+        this.prompt = config.getPrompt();
+
+        String baseUrl = StringUtils.removeEnd(serverURL, "/");
+        this.signingKey = SignedParametersUtil.newSecretKey(clientSecret);
+        this.authorizeEndpoint = baseUrl + AUTHORIZE_PATH;
+        this.authorizeParameters = buildAuthorizeParameters(clientId, scope, display, prompt);
+        this.authorizeUriPrefix = authorizeEndpoint + authorizeParameters;
+        this.tokenEndpoint = baseUrl + TOKEN_PATH;
+        this.revokeEndpoint = baseUrl + REVOKE_PATH;
+    }
+
+    /**
+     * Gets a snapshot of a configuration. If the configuration can provide its own snapshot (because it is a {@link
+     * OAuthClientSnapshotSource}) that snapshot is returned, otherwise a new snapshot is built.
+     *
+     * @param config the configuration
+     * @return the snapshot
+     * @throws IllegalArgumentException if a required value is missing
+     */
+    public static OAuthClientSnapshot of(OAuthClientConfig config) {
+        if (config instanceof OAuthClientSnapshot) {
+            return (OAuthClientSnapshot) config;
+        } else if (config instanceof OAuthClientSnapshotSource) {
+            return ((OAuthClientSnapshotSource) config).getSnapshot();
+        } else {
+            return new OAuthClientSnapshot(config);
+        }
+    }
+
+    /**
+     * Builds a new snapshot of a configuration.
+     *
+     * @param config the configuration
+     * @return the snapshot
+     * @throws IllegalArgumentException if a required value is missing
+     */
+    static OAuthClientSnapshot build(OAuthClientConfig config) {
+        return new OAuthClientSnapshot(config);
+    }
+
+    @Override
+    public String getClientId() {
+        return clientId;
+    }
+
+    @Override
+    public String getClientSecret() {
+        return clientSecret;
+    }
+
+    @Override
+    public String getServerURL() {
+        return serverURL;
+    }
+
+    @Override
+    public String getScope() {
+        return scope;
+    }
+
+    @Override
+    public String getDisplay() {
+        return display;
+    }
+
+    @Override
+    public String getPrompt() {
+        return prompt;
+    }
+
+    /**
+     * Gets the HMAC-SHA256 key, derived from the client secret, that signs canvas payloads.
+     *
+     * @return the key
+     */
+    public SecretKey getSigningKey() {
+        return signingKey;
+    }
+
+    /**
+     * Gets the URI of the OAuth "authorize" endpoint.
+     *
+     * @return the URI
+     */
+    public String getAuthorizeEndpoint() {
+        return authorizeEndpoint;
+    }
+
+    /**
+     * Gets the start of an OAuth "authorize" URI: the endpoint followed by the encoded query parameters that are the
+     * same for every redirect (<code>response_type</code>, <code>client_id</code> and, when configured,
+     * <code>scope</code>, <code>display</code> and <code>prompt</code>). Further parameters are appended with
+     * <code>&amp;</code>.
+     *
+     * @return the URI prefix
+     */
+    public String getAuthorizeUriPrefix() {
+        return authorizeUriPrefix;
+    }
+
+    /**
+     * Gets the query part of {@link #getAuthorizeUriPrefix()}, starting with <code>?</code>, for building an authorize
+     * URI on another login host.
+     *
+     * @return the encoded query parameters
+     */
+    public String getAuthorizeParameters() {
+        return authorizeParameters;
+    }
+
+    /**
+     * Gets the URI of the OAuth "token" endpoint.
+     *
+     * @return the URI
+     */
+    public String getTokenEndpoint() {
+        return tokenEndpoint;
+    }
+
+    /**
+     * Gets the URI of the OAuth "revoke" endpoint.
+     *
+     * @return the URI
+     */
+    public String getRevokeEndpoint() {
+        return revokeEndpoint;
+    }
+
+    private static String buildAuthorizeParameters(String clientId, String scope, String display, String prompt) {
+        StringBuilder builder = new StringBuilder(128);
+        builder.append("?response_type=code&client_id=");
+        PercentEncoder.append(builder, clientId);
+        appendIfNotEmpty(builder, "scope", scope);
+        appendIfNotEmpty(builder, "display", display);
+        appendIfNotEmpty(builder, "prompt", prompt);
+        return builder.toString();
+    }
+
+    private static void appendIfNotEmpty(StringBuilder builder, String name, String value) {
+        if (StringUtils.isNotEmpty(value)) {
+            PercentEncoder.append(builder.append('&').append(name).append('='), value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+            .append("clientId", clientId)
+            .append("serverURL", serverURL)
+            .append("scope", scope)
+            .append("display", display)
+            .append("prompt", prompt)
+            .toString(); // Secrets left out on purpose
+    }
+}
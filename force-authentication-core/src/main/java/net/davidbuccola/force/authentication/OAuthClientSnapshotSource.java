@@ -0,0 +1,20 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+/**
+ * An {@link OAuthClientConfig} that can provide a prebuilt {@link OAuthClientSnapshot} of itself.
+ * <p/>
+ * Implementations should cache the snapshot so that getting it on the request path is just a field read.
+ */
+public interface OAuthClientSnapshotSource {
+    /**
+     * Gets the current snapshot.
+     *
+     * @return the snapshot
+     */
+    OAuthClientSnapshot getSnapshot();
+}
@@ -5,29 +5,43 @@
  */
 package net.davidbuccola.force.authentication;
 
+import net.davidbuccola.force.authentication.AuthenticationAuditEvent.Mechanism;
+import net.davidbuccola.force.authentication.AuthenticationAuditEvent.Outcome;
+import net.davidbuccola.force.authentication.AuthenticationTrace.Phase;
 import org.apache.commons.lang.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
-import org.springframework.web.filter.GenericFilterBean;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.List;
 
 @Component("oAuthFilter")
-public class OAuthFilter extends GenericFilterBean {
+public class OAuthFilter extends AbstractAuthenticationFilter {
 
     public static final String CALLBACK_PATH = "/oauth";
 
+    /**
+     * The name of the cookie that binds an OAuth exchange to the browser that started it.
+     */
+    static final String BROWSER_COOKIE_NAME = "force_oauth_browser";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     private static final List<GrantedAuthority> AUTHORITIES = Arrays.asList(
         (GrantedAuthority) new SimpleGrantedAuthority("ROLE_USER"),         // Indicate user is authenticated
         (GrantedAuthority) new SimpleGrantedAuthority("ROLE_API_USER"));    // Indicate user can access the API
@@ -35,22 +49,121 @@ public class OAuthFilter extends GenericFilterBean {
     @Autowired
     private OAuthConnector connector;
 
+    @Autowired(required = false)
+    private OAuthStateStore stateStore;
+
+    @Autowired(required = false)
+    private MyDomainRouter router;
+
+    /**
+     * Sets the connector used for the OAuth exchange.
+     * <p/>
+     * This is only needed when the bean is wired explicitly instead of by autowiring.
+     *
+     * @param connector the connector used for the OAuth exchange
+     */
+    public void setConnector(OAuthConnector connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * Sets the store for OAuth state. This must be the same store that is used by the {@link
+     * OAuthAuthenticationEntryPoint}.
+     *
+     * @param stateStore the state store
+     */
+    public void setStateStore(OAuthStateStore stateStore) {
+        this.stateStore = stateStore;
+    }
+
+    /**
+     * Sets the router that sends returning users to the login host of their org. This must be the same router that is
+     * used by the {@link OAuthAuthenticationEntryPoint}.
+     *
+     * @param router the router
+     */
+    public void setRouter(MyDomainRouter router) {
+        this.router = router;
+    }
+
     @Override
     @edu.umd.cs.findbugs.annotations.SuppressWarnings("HRS_REQUEST_PARAMETER_TO_HTTP_HEADER") //TODO Fix!
     public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
         final HttpServletRequest request = (HttpServletRequest) req;
         final HttpServletResponse response = (HttpServletResponse) res;
 
+        if (isExcluded(request)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final long startNanos = System.nanoTime();
+
         if (isOAuthCallback(request)) {
+            beginTrace(Mechanism.OAUTH, startNanos);
             if (isSuccessCallback(request)) {
+                AuthenticationTrace.mark(Phase.REQUEST_PARSING);
+
+                if (!acquireForClient(request, response)) {
+                    return;
+                }
+
+                String redirectUri;
+                String loginUrl;
+                String codeVerifier = null;
+                if (stateStore != null) {
+                    OAuthState state = stateStore.consume(request.getParameter("state"));
+                    if (state == null) {
+                        String message = "OAuth state is missing, unknown or expired";
+                        logger.debug(message);
+                        audit(Mechanism.OAUTH, Outcome.FAILURE, null, null, startNanos, message);
+                        response.sendError(HttpServletResponse.SC_BAD_REQUEST, message);
+                        return;
+                    }
+                    if (!isSameBrowser(state, request)) {
+                        String message = "OAuth callback is from a different browser than the one that started the login";
+                        logger.debug(message);
+                        audit(Mechanism.OAUTH, Outcome.FAILURE, null, null, startNanos, message);
+                        response.sendError(HttpServletResponse.SC_BAD_REQUEST, message);
+                        return;
+                    }
+                    redirectUri = state.getRedirectUrl();
+                    loginUrl = state.getLoginUrl();
+                    codeVerifier = state.getCodeVerifier();
+                } else {
+                    redirectUri = toLocalRedirectUri(request, request.getParameter("state"));
+                    // Without a stored state, the best guess is the login host the entry point would choose now
+                    loginUrl = (router != null && connector instanceof AbstractOAuthConnector)
+                        ? router.getLoginUrl(request) : null;
+                }
+                AuthenticationTrace.mark(Phase.STATE_LOOKUP);
 
                 logger.debug("OAuth success callback, requesting token");
-                ForceAuthenticationToken authenticationToken =
-                    connector.getToken(request.getParameter("code"), request.getRequestURL().toString());
+                ForceAuthenticationToken authenticationToken;
+                try {
+                    authenticationToken = getToken(loginUrl, request.getParameter("code"), request, codeVerifier);
+                } catch (OAuthException e) {
+                    if (loginUrl != null && router != null) {
+                        router.forget(request);
+                    }
+                    audit(Mechanism.OAUTH, Outcome.FAILURE, null, null, startNanos, e.getMessage());
+                    throw e;
+                }
+                if (router != null) {
+                    router.learn(authenticationToken, request, response);
+                }
 
+                if (!acquireForUser(authenticationToken.getUserId(), authenticationToken.getInstanceUrl(), response)) {
+                    return;
+                }
+
+                authenticationToken = resolveAuthorities(authenticationToken);
                 SecurityContextHolder.getContext().setAuthentication(authenticationToken);
+                AuthenticationTrace.mark(Phase.SECURITY_CONTEXT);
+                shareAuthentication(authenticationToken, request, response);
+                audit(Mechanism.OAUTH, Outcome.SUCCESS,
+                    authenticationToken.getUserId(), authenticationToken.getInstanceUrl(), startNanos, null);
 
-                String redirectUri = request.getParameter("state");
                 if (logger.isDebugEnabled()) {
                     logger.debug(String.format(
                         "OAuth authentication successful, redirecting to: %s", redirectUri));
@@ -64,6 +177,7 @@ public class OAuthFilter extends GenericFilterBean {
                 if (logger.isDebugEnabled()) {
                     logger.debug("OAuth error callback: " + message);
                 }
+                audit(Mechanism.OAUTH, Outcome.FAILURE, null, null, startNanos, message);
                 response.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
                 return;
 
@@ -73,26 +187,32 @@ public class OAuthFilter extends GenericFilterBean {
                 if (logger.isDebugEnabled()) {
                     logger.debug(String.format("Invalid OAuth callback: %s: %s", message, getRequestUriWithQueryString(request)));
                 }
+                audit(Mechanism.OAUTH, Outcome.FAILURE, null, null, startNanos, message);
                 response.sendError(HttpServletResponse.SC_BAD_REQUEST, message);
                 return;
             }
         } else if (isHeaderBasedAuthentication(request)) {
+            beginTrace(Mechanism.HEADER, startNanos);
 
             String accessToken = request.getHeader("Authorization").split("\\s+", 2)[1];
             String instanceUrl = request.getHeader("Force-Instance-Url");
             String userId = request.getHeader("Force-User-Id");
+            AuthenticationTrace.mark(Phase.REQUEST_PARSING);
 
             if (areAllAuthenticationHeadersSpecified(userId, accessToken, instanceUrl)) {
 
+                // No authority resolution here: the user ID header is taken on trust, so it must not unlock authorities
                 ForceAuthenticationToken authenticationToken =
                     new ForceAuthenticationToken(userId, accessToken, instanceUrl, AUTHORITIES);
                 authenticationToken.setAuthenticated(true);
                 SecurityContextHolder.getContext().setAuthentication(authenticationToken);
+                AuthenticationTrace.mark(Phase.SECURITY_CONTEXT);
+                audit(Mechanism.HEADER, Outcome.SUCCESS, userId, instanceUrl, startNanos, null);
 
                 if (logger.isDebugEnabled()) {
                     logger.debug(String.format(
                         "Header-based authentication established: userId=%s, accessToken=%s, instanceUrl=%s",
-                        userId, accessToken, instanceUrl));
+                        userId, AuthenticationUtils.maskToken(accessToken), instanceUrl));
                 }
 
             } else {
@@ -100,8 +220,9 @@ public class OAuthFilter extends GenericFilterBean {
                 if (logger.isDebugEnabled()) {
                     logger.debug(String.format(
                         "%s: userId=%s, accessToken=%s, instanceUrl=%s",
-                        message, userId, accessToken, instanceUrl));
+                        message, userId, AuthenticationUtils.maskToken(accessToken), instanceUrl));
                 }
+                audit(Mechanism.HEADER, Outcome.FAILURE, userId, instanceUrl, startNanos, message);
                 response.sendError(HttpServletResponse.SC_BAD_REQUEST, message);
                 return;
             }
@@ -110,6 +231,45 @@ public class OAuthFilter extends GenericFilterBean {
         chain.doFilter(request, response);
     }
 
+    /**
+     * Exchanges the code for a token, at the given login host and with PKCE if the connector supports them.
+     */
+    private ForceAuthenticationToken getToken(String loginUrl, String code, HttpServletRequest request, String codeVerifier) {
+        String callbackUri = request.getRequestURL().toString();
+        if (connector instanceof AbstractOAuthConnector) {
+            return ((AbstractOAuthConnector) connector).getToken(loginUrl, code, callbackUri, codeVerifier);
+        } else {
+            return connector.getToken(code, callbackUri);
+        }
+    }
+
+    /**
+     * Gets the nonce that identifies the browser to the OAuth callback.
+     *
+     * @return the nonce or <code>null</code> if the browser doesn't have one
+     */
+    static String getBrowserNonce(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (BROWSER_COOKIE_NAME.equals(cookie.getName())) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks that the callback comes from the browser that started the exchange. Without this an attacker could start
+     * a login, stop at the callback and get a victim to follow it, logging the victim in as the attacker.
+     */
+    private static boolean isSameBrowser(OAuthState state, HttpServletRequest request) {
+        String browserNonce = getBrowserNonce(request);
+        return state.getBrowserNonce() != null && browserNonce != null
+            && MessageDigest.isEqual(state.getBrowserNonce().getBytes(UTF8), browserNonce.getBytes(UTF8));
+    }
+
     private static boolean isOAuthCallback(HttpServletRequest request) {
         return CALLBACK_PATH.equals(request.getServletPath());
     }
@@ -127,6 +287,30 @@ public class OAuthFilter extends GenericFilterBean {
             + ":" + StringUtils.defaultIfEmpty(request.getParameter("error_description"), "");
     }
 
+    /**
+     * Without a state store the redirect URI comes straight from the callback so only allow it to point back at this
+     * server. Anything else would be an open redirect.
+     */
+    private static String toLocalRedirectUri(HttpServletRequest request, String redirectUri) {
+        return isLocalUri(request, redirectUri) ? redirectUri : request.getContextPath() + "/";
+    }
+
+    private static boolean isLocalUri(HttpServletRequest request, String uriString) {
+        if (uriString == null) {
+            return false;
+        }
+        if (uriString.startsWith("/")) {
+            return !uriString.startsWith("//") && !uriString.startsWith("/\\");
+        }
+        try {
+            URI uri = new URI(uriString);
+            return ("http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme()))
+                && request.getServerName().equalsIgnoreCase(uri.getHost());
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
     private static String getRequestUriWithQueryString(HttpServletRequest request) {
         if (request.getQueryString() != null) {
             StringBuilder builder = new StringBuilder(request.getRequestURI());
@@ -0,0 +1,98 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+
+import java.io.Serializable;
+
+/**
+ * The server-side state of an OAuth exchange that is in progress.
+ * <p/>
+ * This is what the short state ID sent through the browser refers to. It also holds the random nonce of the browser
+ * that started the exchange, which the callback must present in a cookie, so that a state ID can't be used to finish a
+ * login in somebody else's browser, and the login host the user was sent to, where the code has to be exchanged. It is
+ * serializable so that it can be kept in a shared store in a cluster.
+ */
+public final class OAuthState implements Serializable {
+    private static final long serialVersionUID = 4302783094732150315L;
+
+    private final String redirectUrl;
+    private final String loginUrl;
+    private final String codeVerifier;
+    private final String browserNonce;
+    private final long createdAt;
+
+    /**
+     * @param redirectUrl  the URL to return to once the exchange is complete
+     * @param loginUrl     the base URL of the login host the user was sent to, or <code>null</code> for the configured
+     *                     server URL
+     * @param codeVerifier the PKCE code verifier, or <code>null</code> if PKCE isn't being used
+     * @param browserNonce the nonce of the browser that started the exchange
+     * @param createdAt    the time the exchange started, in milliseconds since the epoch
+     */
+    public OAuthState(String redirectUrl, String loginUrl, String codeVerifier, String browserNonce, long createdAt) {
+        this.redirectUrl = redirectUrl;
+        this.loginUrl = loginUrl;
+        this.codeVerifier = codeVerifier;
+        this.browserNonce = browserNonce;
+        this.createdAt = createdAt;
+    }
+
+    /**
+     * Gets the URL to return to once the exchange is complete.
+     *
+     * @return the redirect URL
+     */
+    public String getRedirectUrl() {
+        return redirectUrl;
+    }
+
+    /**
+     * Gets the base URL of the login host the user was sent to.
+     *
+     * @return the login URL or <code>null</code> for the configured server URL
+     */
+    public String getLoginUrl() {
+        return loginUrl;
+    }
+
+    /**
+     * Gets the PKCE code verifier.
+     *
+     * @return the code verifier or <code>null</code> if PKCE isn't being used
+     */
+    public String getCodeVerifier() {
+        return codeVerifier;
+    }
+
+    /**
+     * Gets the nonce of the browser that started the exchange.
+     *
+     * @return the browser nonce
+     */
+    public String getBrowserNonce() {
+        return browserNonce;
+    }
+
+    /**
+     * Gets the time the exchange started.
+     *
+     * @return milliseconds since the epoch
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+            .append("redirectUrl", redirectUrl)
+            .append("loginUrl", loginUrl)
+            .append("createdAt", createdAt)
+            .toString(); // Code verifier and browser nonce left out on purpose
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+/**
+ * A server-side store for the state of OAuth exchanges that are in progress.
+ * <p/>
+ * When a store is configured, the OAuth <code>state</code> parameter carries a short random ID instead of the final
+ * redirect URL. Together with a nonce cookie that is checked against the stored state, the ID ties the callback to an
+ * exchange this server started in the same browser (login CSRF protection). The redirect URL can't be tampered with
+ * (no open redirect), and the PKCE code verifier never leaves the server.
+ * <p/>
+ * {@link InMemoryOAuthStateStore} is sufficient for a single node or a cluster with sticky sessions. Implement this
+ * interface over a shared cache for other clusters.
+ */
+public interface OAuthStateStore {
+    /**
+     * Saves the state of a new exchange.
+     *
+     * @param state the state
+     * @return the ID to send as the OAuth <code>state</code> parameter
+     */
+    String save(OAuthState state);
+
+    /**
+     * Removes and returns the state of an exchange. A state can only be consumed once.
+     *
+     * @param stateId the ID returned by {@link #save}
+     * @return the state or <code>null</code> if the ID is unknown, was already consumed or has expired
+     */
+    OAuthState consume(String stateId);
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.security.web.util.RequestMatcher;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Matches the requests that the library's filters should pass straight through, such as static assets and health
+ * checks, so that they cost nothing in authentication.
+ * <p/>
+ * Three kinds of pattern are supported:
+ * <ul>
+ * <li><code>/static/**</code> matches <code>/static</code> and everything under it</li>
+ * <li><code>/health</code> matches exactly that path</li>
+ * <li><code>*.js</code> matches any path whose last segment has that extension, ignoring case</li>
+ * </ul>
+ * Paths are matched within the application, that is without the context path. The patterns are compiled at startup
+ * into a prefix trie and a trie of reversed extensions, so a request is matched in a single pass over its path with
+ * no allocation, however many patterns there are.
+ * <p/>
+ * The filters only use it if a bean of this type is present in the application context.
+ */
+public class PathExclusionMatcher implements RequestMatcher, InitializingBean {
+    private static final String PREFIX_WILDCARD = "/**";
+    private static final String EXTENSION_WILDCARD = "*.";
+
+    private List<String> patterns = Collections.emptyList();
+
+    private Node prefixes;
+    private Node extensions;
+
+    /**
+     * Sets the patterns of the paths to exclude.
+     *
+     * @param patterns the patterns
+     */
+    public void setPatterns(List<String> patterns) {
+        this.patterns = patterns;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        NodeBuilder prefixBuilder = new NodeBuilder();
+        NodeBuilder extensionBuilder = new NodeBuilder();
+        for (String pattern : patterns) {
+            if (pattern.startsWith(EXTENSION_WILDCARD) && pattern.length() > EXTENSION_WILDCARD.length()
+                && pattern.indexOf('*', 1) < 0 && pattern.indexOf('/') < 0) {
+
+                String extension = pattern.substring(1).toLowerCase(Locale.ENGLISH);
+                extensionBuilder.add(new StringBuilder(extension).reverse().toString(), false);
+
+            } else if (pattern.startsWith("/") && pattern.endsWith(PREFIX_WILDCARD)
+                && pattern.indexOf('*') == pattern.length() - 2) {
+
+                prefixBuilder.add(pattern.substring(0, pattern.length() - PREFIX_WILDCARD.length()), true);
+
+            } else if (pattern.startsWith("/") && pattern.indexOf('*') < 0) {
+                prefixBuilder.add(pattern, false);
+
+            } else {
+                throw new BeanInitializationException("Unsupported exclusion pattern: " + pattern);
+            }
+        }
+        prefixes = prefixBuilder.build();
+        extensions = extensionBuilder.build();
+
+        if (matches(OAuthFilter.CALLBACK_PATH, null)) {
+            throw new BeanInitializationException("Exclusion patterns must not match the OAuth callback path");
+        }
+    }
+
+    @Override
+    public boolean matches(HttpServletRequest request) {
+        return matches(request.getServletPath(), request.getPathInfo());
+    }
+
+    /**
+     * Matches the path made of a servlet path and a path info, without concatenating them.
+     */
+    boolean matches(String servletPath, String pathInfo) {
+        String first = (servletPath != null) ? servletPath : "";
+        String second = (pathInfo != null) ? pathInfo : "";
+        int length = first.length() + second.length();
+
+        Node node = prefixes;
+        int i = 0;
+        while (node != null) {
+            if (i == length) {
+                if (node.isTerminal()) {
+                    return true; // Exact path, or the path a prefix pattern is named after
+                }
+                break;
+            }
+            char c = charAt(first, second, i);
+            if (c == '/' && node.isPrefix()) {
+                return true;
+            }
+            node = node.getChild(c);
+            i++;
+        }
+
+        node = extensions;
+        i = length - 1;
+        while (node != null && i >= 0) {
+            char c = charAt(first, second, i);
+            if (c == '/') {
+                break;
+            }
+            node = node.getChild(Character.toLowerCase(c));
+            if (node != null && node.isTerminal()) {
+                return true;
+            }
+            i--;
+        }
+        return false;
+    }
+
+    private static char charAt(String first, String second, int index) {
+        return (index < first.length()) ? first.charAt(index) : second.charAt(index - first.length());
+    }
+
+    /**
+     * A node of a compiled trie. The children are kept in parallel arrays sorted by character; the fan-out of path
+     * tries is small, so a linear scan beats hashing.
+     */
+    private static final class Node {
+        private final char[] keys;
+        private final Node[] children;
+        private final boolean terminal;
+        private final boolean prefix;
+
+        private Node(char[] keys, Node[] children, boolean terminal, boolean prefix) {
+            this.keys = keys;
+            this.children = children;
+            this.terminal = terminal;
+            this.prefix = prefix;
+        }
+
+        private Node getChild(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                } else if (keys[i] > c) {
+                    break;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return <code>true</code> if a pattern ends at this node
+         */
+        private boolean isTerminal() {
+            return terminal;
+        }
+
+        /**
+         * @return <code>true</code> if a prefix pattern ends at this node, so everything under it matches too
+         */
+        private boolean isPrefix() {
+            return prefix;
+        }
+    }
+
+    /**
+     * Collects the patterns of a trie before it is compiled into {@link Node}s.
+     */
+    private static final class NodeBuilder {
+        private final Map<Character, NodeBuilder> children = new TreeMap<Character, NodeBuilder>();
+        private boolean terminal;
+        private boolean prefix;
+
+        private void add(String key, boolean isPrefix) {
+            NodeBuilder builder = this;
+            for (int i = 0; i < key.length(); i++) {
+                NodeBuilder child = builder.children.get(key.charAt(i));
+                if (child == null) {
+                    child = new NodeBuilder();
+                    builder.children.put(key.charAt(i), child);
+                }
+                builder = child;
+            }
+            builder.terminal = true;
+            builder.prefix |= isPrefix;
+        }
+
+        private Node build() {
+            char[] keys = new char[children.size()];
+            Node[] nodes = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, NodeBuilder> entry : children.entrySet()) {
+                keys[i] = entry.getKey();
+                nodes[i] = entry.getValue().build();
+                i++;
+            }
+            return new Node(keys, nodes, terminal, prefix);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import java.nio.charset.Charset;
+
+/**
+ * Percent-encodes URI query parameter values.
+ * <p/>
+ * Everything except the RFC 3986 unreserved characters is encoded as UTF-8, including <code>%</code>, so a value that
+ * already contains escapes survives the round trip unchanged. Values made entirely of unreserved characters (client
+ * IDs, state IDs, code challenges) are appended without any conversion.
+ */
+final class PercentEncoder {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final boolean[] UNRESERVED = new boolean[128];
+
+    static {
+        for (char c = 'A'; c <= 'Z'; c++) {
+            UNRESERVED[c] = true;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            UNRESERVED[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            UNRESERVED[c] = true;
+        }
+        UNRESERVED['-'] = true;
+        UNRESERVED['.'] = true;
+        UNRESERVED['_'] = true;
+        UNRESERVED['~'] = true;
+    }
+
+    private PercentEncoder() {
+    }
+
+    /**
+     * Appends a percent-encoded value to a builder.
+     *
+     * @param builder the builder
+     * @param value   the value
+     * @return the builder
+     */
+    static StringBuilder append(StringBuilder builder, String value) {
+        int length = value.length();
+        int start = 0;
+        int i = 0;
+        while (i < length) {
+            char c = value.charAt(i);
+            if (c >= 128 || !UNRESERVED[c]) {
+                builder.append(value, start, i);
+                i = appendEncoded(builder, value, i);
+                start = i;
+            } else {
+                i++;
+            }
+        }
+        return builder.append(value, start, length);
+    }
+
+    /**
+     * Percent-encodes a value.
+     *
+     * @param value the value
+     * @return the encoded value
+     */
+    static String encode(String value) {
+        return append(new StringBuilder(value.length() + 16), value).toString();
+    }
+
+    /**
+     * Encodes the run of reserved characters that starts at an index.
+     *
+     * @return the index just past the run
+     */
+    private static int appendEncoded(StringBuilder builder, String value, int start) {
+        int end = start + 1;
+        while (end < value.length()) {
+            char c = value.charAt(end);
+            if (c < 128 && UNRESERVED[c]) {
+                break;
+            }
+            end++;
+        }
+
+        // Encoding the whole run at once keeps surrogate pairs together
+        byte[] bytes = value.substring(start, end).getBytes(UTF8);
+        for (byte b : bytes) {
+            builder.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+        return end;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.UniformInterfaceException;
+import com.sun.jersey.api.client.WebResource;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The standard {@link AuthorityResolver}, which grants an authority for the Salesforce profile of the user and one for
+ * each permission set assigned to the user.
+ * <p/>
+ * The profile and permission sets are fetched together with a single SOQL query on
+ * <code>PermissionSetAssignment</code>, made with the user's own access token. The resulting authority sets are cached
+ * per org and user with a time-to-live, refreshed in the background, and interned so that users with the same
+ * combination share one immutable set.
+ * <p/>
+ * With the default prefixes a user with the "Standard User" profile and the "Reports" permission set gets
+ * <code>PROFILE_Standard User</code> and <code>PERMISSION_SET_Reports</code>.
+ */
+@ManagedResource(description = "Salesforce profile and permission set authority cache")
+public class PermissionSetAuthorityResolver implements AuthorityResolver, InitializingBean, DisposableBean {
+    private static final ObjectReader JSON_READER = new ObjectMapper().reader();
+    private static final String QUERY =
+        "SELECT PermissionSet.Name, PermissionSet.IsOwnedByProfile, PermissionSet.Profile.Name"
+            + " FROM PermissionSetAssignment WHERE AssigneeId = '%s'";
+
+    private final Client client = Client.create();
+
+    private String apiVersion = "28.0";
+    private String profilePrefix = "PROFILE_";
+    private String permissionSetPrefix = "PERMISSION_SET_";
+    private long timeToLiveMillis = 10 * 60 * 1000;
+    private long refreshAfterMillis = 5 * 60 * 1000;
+    private int maxSize = 10000;
+
+    private ExecutorService refresher;
+    private ExpiringCache<String, Collection<GrantedAuthority>> cache;
+
+    /**
+     * Sets the version of the Salesforce REST API to query. The default is 28.0.
+     *
+     * @param apiVersion the API version
+     */
+    public void setApiVersion(String apiVersion) {
+        this.apiVersion = apiVersion;
+    }
+
+    /**
+     * Sets the prefix of the authority granted for the profile. The default is <code>PROFILE_</code>.
+     *
+     * @param profilePrefix the prefix
+     */
+    public void setProfilePrefix(String profilePrefix) {
+        this.profilePrefix = profilePrefix;
+    }
+
+    /**
+     * Sets the prefix of the authorities granted for permission sets. The default is <code>PERMISSION_SET_</code>.
+     *
+     * @param permissionSetPrefix the prefix
+     */
+    public void setPermissionSetPrefix(String permissionSetPrefix) {
+        this.permissionSetPrefix = permissionSetPrefix;
+    }
+
+    /**
+     * Sets how long resolved authorities are used. This bounds how long a change to a user's permission sets takes to
+     * be noticed. The default is 10 minutes.
+     *
+     * @param timeToLiveMillis the time in milliseconds
+     */
+    public void setTimeToLiveMillis(long timeToLiveMillis) {
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    /**
+     * Sets the age after which resolved authorities are refreshed in the background. The default is 5 minutes.
+     *
+     * @param refreshAfterMillis the age in milliseconds
+     */
+    public void setRefreshAfterMillis(long refreshAfterMillis) {
+        this.refreshAfterMillis = refreshAfterMillis;
+    }
+
+    /**
+     * Sets the maximum number of users whose authorities are cached. The default is 10000.
+     *
+     * @param maxSize the maximum number of users
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "force-authentication-authority-refresher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        cache = new ExpiringCache<String, Collection<GrantedAuthority>>(
+            timeToLiveMillis, refreshAfterMillis, maxSize, refresher);
+    }
+
+    @Override
+    public void destroy() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    @Override
+    public Collection<? extends GrantedAuthority> resolveAuthorities(final ForceAuthenticationToken token) {
+        final SalesforceId userId = token.getSalesforceUserId();
+        String org = AuthenticationUtils.getInstanceHost(token.getInstanceUrl());
+        if (userId == null || org == null) {
+            return Collections.emptySet();
+        }
+
+        return cache.get(org + " " + userId, new ExpiringCache.Loader<Collection<GrantedAuthority>>() {
+            @Override
+            public Collection<GrantedAuthority> load() {
+                return queryAuthorities(token, userId);
+            }
+        });
+    }
+
+    @ManagedAttribute(description = "Number of lookups served from the cache")
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    @ManagedAttribute(description = "Number of lookups that had to query Salesforce")
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    @ManagedAttribute(description = "Number of background refreshes")
+    public long getRefreshCount() {
+        return cache.getRefreshCount();
+    }
+
+    @ManagedAttribute(description = "Number of failed queries")
+    public long getFailureCount() {
+        return cache.getFailureCount();
+    }
+
+    @ManagedAttribute(description = "Number of users whose authorities are cached")
+    public int getSize() {
+        return cache.size();
+    }
+
+    private Collection<GrantedAuthority> queryAuthorities(ForceAuthenticationToken token, SalesforceId userId) {
+        String instanceUrl = StringUtils.removeEnd(token.getInstanceUrl(), "/");
+        List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
+        try {
+            // The user ID has been parsed so it is safe to put in the query
+            WebResource resource = client
+                .resource(instanceUrl)
+                .path("services/data/v" + apiVersion + "/query")
+                .queryParam("q", String.format(QUERY, userId));
+            while (resource != null) {
+                InputStream jsonStream = resource
+                    .header("Authorization", "Bearer " + token.getAccessToken())
+                    .accept(MediaType.APPLICATION_JSON_TYPE)
+                    .get(InputStream.class);
+                JsonNode json = JSON_READER.readTree(jsonStream);
+
+                for (JsonNode record : json.path("records")) {
+                    addAuthority(authorities, record.path("PermissionSet"));
+                }
+
+                JsonNode nextRecordsUrl = json.get("nextRecordsUrl");
+                resource = (nextRecordsUrl != null && !nextRecordsUrl.isNull())
+                    ? client.resource(instanceUrl + nextRecordsUrl.asText())
+                    : null;
+            }
+
+        } catch (UniformInterfaceException e) {
+            throw new OAuthException(String.format("Problem with permission set query: %s", e.getMessage()), e);
+        } catch (ClientHandlerException e) {
+            throw new OAuthException(String.format("Problem with permission set query: %s", e.getMessage()), e);
+        } catch (IOException e) {
+            throw new OAuthException(String.format("Problem reading permission set query response: %s", e.getMessage()), e);
+        }
+        return AuthoritySets.intern(authorities);
+    }
+
+    private void addAuthority(List<GrantedAuthority> authorities, JsonNode permissionSet) {
+        if (permissionSet.path("IsOwnedByProfile").asBoolean()) {
+            String profileName = permissionSet.path("Profile").path("Name").asText();
+            if (StringUtils.isNotEmpty(profileName)) {
+                authorities.add(new SimpleGrantedAuthority(profilePrefix + profileName));
+            }
+        } else {
+            String permissionSetName = permissionSet.path("Name").asText();
+            if (StringUtils.isNotEmpty(permissionSetName)) {
+                authorities.add(new SimpleGrantedAuthority(permissionSetPrefix + permissionSetName));
+            }
+        }
+    }
+}
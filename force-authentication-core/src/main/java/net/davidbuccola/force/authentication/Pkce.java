@@ -0,0 +1,47 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Helpers for PKCE (Proof Key for Code Exchange, RFC 7636) using the S256 challenge method.
+ */
+final class Pkce {
+    static final String CHALLENGE_METHOD = "S256";
+
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    private Pkce() {
+        throw new UnsupportedOperationException("Can not be instantiated");
+    }
+
+    /**
+     * Generates a new random code verifier.
+     */
+    static String newCodeVerifier() {
+        byte[] bytes = new byte[32];
+        secureRandom.nextBytes(bytes);
+        return Base64.encodeBase64URLSafeString(bytes);
+    }
+
+    /**
+     * Computes the S256 code challenge for a code verifier.
+     */
+    static String codeChallenge(String codeVerifier) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(codeVerifier.getBytes(Charset.forName("US-ASCII")));
+            return Base64.encodeBase64URLSafeString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link OAuthClientConfig} that can be changed at runtime without a restart.
+ * <p/>
+ * The configuration is held as an immutable {@link OAuthClientSnapshot} published through a single volatile reference.
+ * Readers never lock; a reload builds and validates a complete new snapshot (including derived state such as the HMAC
+ * key) and then swaps it in. An invalid reload is rejected and the previous snapshot stays in effect.
+ * <p/>
+ * Values can be reloaded programmatically with {@link #reload(OAuthClientConfig)} or from a properties file that is
+ * checked for changes periodically. The properties file uses the same names as the bean properties of {@link
+ * SpringOAuthClientConfig}: <code>clientId</code>, <code>clientSecret</code>, <code>serverURL</code>,
+ * <code>scope</code>, <code>display</code> and <code>prompt</code>.
+ */
+public class ReloadableOAuthClientConfig implements OAuthClientConfig, OAuthClientSnapshotSource, InitializingBean, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(ReloadableOAuthClientConfig.class);
+
+    private volatile OAuthClientSnapshot snapshot;
+
+    private OAuthClientConfig initialConfig;
+    private File configFile;
+    private long checkIntervalMillis = 10000;
+
+    private ScheduledExecutorService watcher;
+    private long configFileLastModified;
+
+    /**
+     * Sets the initial configuration. Either this or a configuration file must be set.
+     *
+     * @param initialConfig the initial configuration
+     */
+    public void setInitialConfig(OAuthClientConfig initialConfig) {
+        this.initialConfig = initialConfig;
+    }
+
+    /**
+     * Sets a properties file to load the configuration from. The file is checked for changes periodically and reloaded
+     * when it changes.
+     *
+     * @param configFile the properties file
+     */
+    public void setConfigFile(File configFile) {
+        this.configFile = configFile;
+    }
+
+    /**
+     * Sets how often the configuration file is checked for changes. The default is 10 seconds.
+     *
+     * @param checkIntervalMillis the interval in milliseconds
+     */
+    public void setCheckIntervalMillis(long checkIntervalMillis) {
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (configFile != null) {
+            try {
+                reloadConfigFile();
+            } catch (Exception e) {
+                throw new BeanInitializationException("Failed to load " + configFile, e);
+            }
+            watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "force-authentication-config-watcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            watcher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkConfigFile();
+                }
+            }, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+
+        } else if (initialConfig != null) {
+            try {
+                reload(initialConfig);
+            } catch (IllegalArgumentException e) {
+                throw new BeanInitializationException(e.getMessage(), e);
+            }
+        } else {
+            throw new BeanInitializationException("Neither initialConfig nor configFile is set");
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+        }
+    }
+
+    /**
+     * Replaces the configuration.
+     *
+     * @param config the new configuration values
+     * @throws IllegalArgumentException if a required value is missing, in which case the current configuration stays in
+     *                                  effect
+     */
+    public void reload(OAuthClientConfig config) {
+        snapshot = OAuthClientSnapshot.build(config);
+        log.info("OAuth client configuration loaded: " + snapshot);
+    }
+
+    @Override
+    public OAuthClientSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public String getClientId() {
+        return snapshot.getClientId();
+    }
+
+    @Override
+    public String getClientSecret() {
+        return snapshot.getClientSecret();
+    }
+
+    @Override
+    public String getServerURL() {
+        return snapshot.getServerURL();
+    }
+
+    @Override
+    public String getScope() {
+        return snapshot.getScope();
+    }
+
+    @Override
+    public String getDisplay() {
+        return snapshot.getDisplay();
+    }
+
+    @Override
+    public String getPrompt() {
+        return snapshot.getPrompt();
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(snapshot);
+    }
+
+    private void checkConfigFile() {
+        try {
+            if (configFile.lastModified() != configFileLastModified) {
+                reloadConfigFile();
+            }
+        } catch (Exception e) {
+            log.error(String.format("Failed to reload %s, keeping current configuration", configFile), e);
+        }
+    }
+
+    private void reloadConfigFile() throws IOException {
+        configFileLastModified = configFile.lastModified(); // Don't retry a bad file until it changes again
+        Properties properties = new Properties();
+        InputStream stream = new FileInputStream(configFile);
+        try {
+            properties.load(stream);
+        } finally {
+            stream.close();
+        }
+
+        SpringOAuthClientConfig config = new SpringOAuthClientConfig();
+        config.setClientId(properties.getProperty("clientId"));
+        config.setClientSecret(properties.getProperty("clientSecret"));
+        config.setServerURL(properties.getProperty("serverURL"));
+        config.setScope(properties.getProperty("scope"));
+        config.setDisplay(properties.getProperty("display"));
+        config.setPrompt(properties.getProperty("prompt"));
+        reload(config);
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.codec.binary.Base64;
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Protection against replay of captured canvas <code>signed_request</code> and <code>signed_parameters</code> payloads.
+ * <p/>
+ * A payload is rejected if it has no <code>issuedAt</code> time, if that time is too far in the past or the future, or
+ * if its signature has already been seen within the time a payload stays acceptable. Seen signatures are tracked in two generations that
+ * rotate once per window. Each generation is a fixed-size Bloom filter plus a bounded exact map. The exact map catches
+ * Bloom filter false positives and concurrent duplicates, and counts reuse. If more payloads arrive in one window than
+ * the exact map holds, the Bloom filter alone decides, and a payload it has probably seen is rejected. Memory is
+ * bounded by the configured sizes and each check costs the same no matter how many payloads have been seen.
+ * <p/>
+ * A browser reload of a canvas app can post the same <code>signed_request</code> again. The {@link ReusePolicy}
+ * decides whether that is accepted.
+ * <p/>
+ * The filters only use replay protection if a bean of this type is present in the application context.
+ */
+@ManagedResource(description = "Salesforce canvas payload replay protection")
+public class ReplayGuard implements InitializingBean {
+
+    /**
+     * Which repeat presentations of a payload are accepted.
+     */
+    public enum ReusePolicy {
+        /**
+         * A payload is accepted once.
+         */
+        NEVER,
+
+        /**
+         * A payload may be presented again by the client address that first presented it, up to the maximum number
+         * of reuses.
+         */
+        SAME_CLIENT,
+
+        /**
+         * A payload may be presented again from any client address, up to the maximum number of reuses.
+         */
+        ANY_CLIENT
+    }
+
+    /**
+     * The result of a replay check.
+     */
+    public enum Verdict {
+        ACCEPTED(null),
+        REUSED(null),
+        REPLAYED("Signed payload has already been used"),
+        EXPIRED("Signed payload has expired"),
+        NOT_YET_VALID("Signed payload was issued in the future"),
+        MISSING_ISSUED_AT("Signed payload has no issue time");
+
+        private final String message;
+
+        private Verdict(String message) {
+            this.message = message;
+        }
+
+        /**
+         * @return <code>true</code> if the payload may be used
+         */
+        public boolean isAccepted() {
+            return message == null;
+        }
+
+        /**
+         * @return the reason the payload was rejected or <code>null</code> if it was accepted
+         */
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    private long maxAgeSeconds = 300;
+    private long clockSkewSeconds = 30;
+    private boolean requireIssuedAt = true;
+    private int expectedPayloads = 100000;
+    private double falsePositiveRate = 0.001;
+    private int maxExactEntries = 100000;
+    private ReusePolicy reusePolicy = ReusePolicy.NEVER;
+    private int maxReuses = 3;
+
+    private long windowMillis;
+    private int numBits;
+    private int numHashes;
+    private volatile Generations generations;
+    private final ReentrantLock rotationLock = new ReentrantLock();
+
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong reusedCount = new AtomicLong();
+    private final AtomicLong replayedCount = new AtomicLong();
+    private final AtomicLong unverifiableCount = new AtomicLong();
+    private final AtomicLong outOfTimeCount = new AtomicLong();
+
+    /**
+     * Sets how long after its <code>issuedAt</code> time a payload is accepted. The default is 5 minutes.
+     *
+     * @param maxAgeSeconds the maximum age in seconds
+     */
+    public void setMaxAgeSeconds(long maxAgeSeconds) {
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    /**
+     * Sets how far the clocks of Salesforce and this server may disagree. The default is 30 seconds.
+     *
+     * @param clockSkewSeconds the tolerance in seconds
+     */
+    public void setClockSkewSeconds(long clockSkewSeconds) {
+        this.clockSkewSeconds = clockSkewSeconds;
+    }
+
+    /**
+     * Sets whether payloads without an <code>issuedAt</code> time are rejected. The default is to reject them.
+     * <p/>
+     * Seen signatures are only remembered for two windows, so a payload without an issue time that is accepted is
+     * protected against replay for no more than twice <code>maxAgeSeconds</code> plus the clock skew, after which it
+     * is accepted again. Only turn this off for canvas payloads that really have no issue time.
+     *
+     * @param requireIssuedAt <code>true</code> to reject payloads without an issue time
+     */
+    public void setRequireIssuedAt(boolean requireIssuedAt) {
+        this.requireIssuedAt = requireIssuedAt;
+    }
+
+    /**
+     * Sets the number of distinct payloads expected per window, which sizes the Bloom filters. The default is 100000.
+     *
+     * @param expectedPayloads the expected number of payloads
+     */
+    public void setExpectedPayloads(int expectedPayloads) {
+        this.expectedPayloads = expectedPayloads;
+    }
+
+    /**
+     * Sets the Bloom filter false positive rate at the expected number of payloads. The default is 0.001.
+     *
+     * @param falsePositiveRate the false positive rate
+     */
+    public void setFalsePositiveRate(double falsePositiveRate) {
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * Sets the maximum number of payloads tracked exactly per window. The default is 100000.
+     *
+     * @param maxExactEntries the maximum number of entries
+     */
+    public void setMaxExactEntries(int maxExactEntries) {
+        this.maxExactEntries = maxExactEntries;
+    }
+
+    /**
+     * Sets which repeat presentations of a payload are accepted. The default is {@link ReusePolicy#NEVER}.
+     *
+     * @param reusePolicy the reuse policy
+     */
+    public void setReusePolicy(ReusePolicy reusePolicy) {
+        this.reusePolicy = reusePolicy;
+    }
+
+    /**
+     * Sets how many times a payload may be presented again when the reuse policy allows it. The default is 3.
+     *
+     * @param maxReuses the maximum number of reuses
+     */
+    public void setMaxReuses(int maxReuses) {
+        this.maxReuses = maxReuses;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (maxAgeSeconds <= 0 || clockSkewSeconds < 0) {
+            throw new BeanInitializationException("maxAgeSeconds must be positive and clockSkewSeconds not negative");
+        }
+        if (expectedPayloads <= 0 || maxExactEntries < 0) {
+            throw new BeanInitializationException("expectedPayloads must be positive and maxExactEntries not negative");
+        }
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new BeanInitializationException("falsePositiveRate must be between 0 and 1");
+        }
+        if (reusePolicy == null) {
+            throw new BeanInitializationException("reusePolicy is not set");
+        }
+
+        // A payload is acceptable from clockSkew before its issue time until maxAge plus clockSkew after it
+        windowMillis = (maxAgeSeconds + 2 * clockSkewSeconds) * 1000;
+
+        double bits = -expectedPayloads * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        numBits = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, Math.ceil(bits / 64) * 64));
+        numHashes = Math.max(1, (int) Math.round((double) numBits / expectedPayloads * Math.log(2)));
+        generations = new Generations(new Generation(System.currentTimeMillis(), numBits), null);
+    }
+
+    /**
+     * Checks a payload whose signature has already been verified, and records it as seen if it is accepted.
+     *
+     * @param signedPayload   the payload
+     * @param issuedAtSeconds the issue time of the payload in seconds since the epoch or <code>null</code> if it has
+     *                        none
+     * @param clientAddress   the address of the client presenting the payload
+     * @return the verdict
+     */
+    public Verdict check(String signedPayload, Integer issuedAtSeconds, String clientAddress) {
+        long now = System.currentTimeMillis();
+        Verdict verdict = checkIssuedAt(issuedAtSeconds, now);
+        if (verdict != null) {
+            outOfTimeCount.incrementAndGet();
+            return verdict;
+        }
+
+        ByteBuffer signature = ByteBuffer.wrap(
+            Base64.decodeBase64(signedPayload.substring(0, Math.max(0, signedPayload.indexOf('.')))));
+        if (signature.capacity() < 16) {
+            throw new IllegalArgumentException("signedPayload is not a verified signed payload");
+        }
+        long hash1 = signature.getLong(0);
+        long hash2 = signature.getLong(8) | 1; // Odd so that successive probes never repeat
+        int clientHash = (clientAddress != null) ? clientAddress.hashCode() : 0;
+
+        Generations current = getGenerations(now);
+        boolean probablySeen = !current.latest.bloomPut(hash1, hash2, numBits, numHashes);
+        if (current.previous != null && current.previous.bloomContains(hash1, hash2, numBits, numHashes)) {
+            probablySeen = true;
+        }
+
+        Use use = null;
+        if (probablySeen) {
+            use = current.latest.exact.get(hash1);
+            if (use == null && current.previous != null) {
+                use = current.previous.exact.get(hash1);
+            }
+            if (use == null && (current.latest.overflowed || (current.previous != null && current.previous.overflowed))) {
+                unverifiableCount.incrementAndGet();
+                replayedCount.incrementAndGet();
+                return Verdict.REPLAYED;
+            }
+        }
+        if (use == null) {
+            use = current.latest.recordFirstUse(hash1, clientHash, maxExactEntries);
+            if (use == null) {
+                acceptedCount.incrementAndGet();
+                return Verdict.ACCEPTED;
+            }
+        }
+
+        if (isReuseAllowed(use, clientHash)) {
+            reusedCount.incrementAndGet();
+            return Verdict.REUSED;
+        } else {
+            replayedCount.incrementAndGet();
+            return Verdict.REPLAYED;
+        }
+    }
+
+    @ManagedAttribute(description = "Number of payloads accepted on first use")
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of payloads accepted again under the reuse policy")
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of payloads rejected as replays")
+    public long getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of replays decided by the Bloom filter alone because the exact map was full")
+    public long getUnverifiableCount() {
+        return unverifiableCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of payloads rejected for their issue time")
+    public long getOutOfTimeCount() {
+        return outOfTimeCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of payloads tracked exactly in the current window")
+    public int getExactEntryCount() {
+        return generations.latest.exact.size();
+    }
+
+    private Verdict checkIssuedAt(Integer issuedAtSeconds, long now) {
+        if (issuedAtSeconds == null) {
+            return requireIssuedAt ? Verdict.MISSING_ISSUED_AT : null;
+        }
+        long issuedAt = issuedAtSeconds * 1000L;
+        long skewMillis = clockSkewSeconds * 1000;
+        if (issuedAt - now > skewMillis) {
+            return Verdict.NOT_YET_VALID;
+        }
+        if (now - issuedAt > maxAgeSeconds * 1000 + skewMillis) {
+            return Verdict.EXPIRED;
+        }
+        return null;
+    }
+
+    private boolean isReuseAllowed(Use use, int clientHash) {
+        switch (reusePolicy) {
+            case SAME_CLIENT:
+                return use.clientHash == clientHash && use.reuses.incrementAndGet() <= maxReuses;
+            case ANY_CLIENT:
+                return use.reuses.incrementAndGet() <= maxReuses;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Gets the current generations, rotating them if the latest one is a window old. Only one thread rotates; the
+     * others carry on with the generations they have, which is harmless for the instant it takes.
+     */
+    private Generations getGenerations(long now) {
+        Generations current = generations;
+        if (now - current.latest.startMillis >= windowMillis && rotationLock.tryLock()) {
+            try {
+                current = generations;
+                if (now - current.latest.startMillis >= windowMillis) {
+                    Generation previous = (now - current.latest.startMillis < 2 * windowMillis) ? current.latest : null;
+                    current = new Generations(new Generation(now, numBits), previous);
+                    generations = current;
+                }
+            } finally {
+                rotationLock.unlock();
+            }
+        }
+        return current;
+    }
+
+    /**
+     * The latest generation and the one before it, published together.
+     */
+    private static final class Generations {
+        private final Generation latest;
+        private final Generation previous;
+
+        Generations(Generation latest, Generation previous) {
+            this.latest = latest;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * The payloads seen in one window.
+     */
+    private static final class Generation {
+        private final long startMillis;
+        private final AtomicLongArray bits;
+        private final ConcurrentMap<Long, Use> exact = new ConcurrentHashMap<Long, Use>();
+        private volatile boolean overflowed;
+
+        Generation(long startMillis, int numBits) {
+            this.startMillis = startMillis;
+            this.bits = new AtomicLongArray(numBits / 64);
+        }
+
+        /**
+         * Adds a signature to the Bloom filter.
+         *
+         * @return <code>true</code> if any bit changed, meaning the signature was definitely not there before
+         */
+        boolean bloomPut(long hash1, long hash2, int numBits, int numHashes) {
+            boolean changed = false;
+            long hash = hash1;
+            for (int i = 0; i < numHashes; i++) {
+                int bit = (int) ((hash & Long.MAX_VALUE) % numBits);
+                int word = bit >>> 6;
+                long mask = 1L << bit;
+                long value = bits.get(word);
+                while ((value & mask) == 0) {
+                    if (bits.compareAndSet(word, value, value | mask)) {
+                        changed = true;
+                        break;
+                    }
+                    value = bits.get(word);
+                }
+                hash += hash2;
+            }
+            return changed;
+        }
+
+        boolean bloomContains(long hash1, long hash2, int numBits, int numHashes) {
+            long hash = hash1;
+            for (int i = 0; i < numHashes; i++) {
+                int bit = (int) ((hash & Long.MAX_VALUE) % numBits);
+                if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+                hash += hash2;
+            }
+            return true;
+        }
+
+        /**
+         * Records the first use of a signature in the exact map, if there is room.
+         *
+         * @return the use recorded by another thread that got there first, or <code>null</code> if this is the first use
+         */
+        Use recordFirstUse(long hash1, int clientHash, int maxEntries) {
+            if (exact.size() >= maxEntries) {
+                overflowed = true;
+                return null;
+            }
+            return exact.putIfAbsent(hash1, new Use(clientHash));
+        }
+    }
+
+    /**
+     * The uses of one payload.
+     */
+    private static final class Use {
+        private final int clientHash;
+        private final AtomicInteger reuses = new AtomicInteger();
+
+        Use(int clientHash) {
+            this.clientHash = clientHash;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.authentication.logout.LogoutHandler;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A {@link LogoutHandler} that clears the security context and revokes the access token at Salesforce.
+ * <p/>
+ * The token is handed to a {@link TokenRevocationQueue} rather than revoked on the spot, so logging out doesn't wait
+ * for Salesforce even when the login host is slow. Only tokens that this app obtained through the OAuth exchange are
+ * revoked; tokens from canvas payloads and request headers belong to a Salesforce session or to the calling client and
+ * are left alone. When there is a {@link SharedTokenCache} the authentication is removed from it and its cookie is
+ * cleared as well.
+ */
+public class RevokingLogoutHandler implements LogoutHandler {
+    private static final Logger log = LoggerFactory.getLogger(RevokingLogoutHandler.class);
+
+    @Autowired
+    private TokenRevocationQueue revocationQueue;
+
+    @Autowired(required = false)
+    private SharedTokenCache sharedTokenCache;
+
+    @Autowired(required = false)
+    private MyDomainRouter router;
+
+    /**
+     * Sets the queue that revokes the tokens.
+     * <p/>
+     * This is only needed when the bean is wired explicitly instead of by autowiring.
+     *
+     * @param revocationQueue the revocation queue
+     */
+    public void setRevocationQueue(TokenRevocationQueue revocationQueue) {
+        this.revocationQueue = revocationQueue;
+    }
+
+    /**
+     * Sets the cache that shares authentications with other processes. The default is not to share them.
+     *
+     * @param sharedTokenCache the shared token cache
+     */
+    public void setSharedTokenCache(SharedTokenCache sharedTokenCache) {
+        this.sharedTokenCache = sharedTokenCache;
+    }
+
+    /**
+     * Sets the router whose login host for the org is used to revoke the token. The default is to use the configured
+     * server URL.
+     *
+     * @param router the router
+     */
+    public void setRouter(MyDomainRouter router) {
+        this.router = router;
+    }
+
+    @Override
+    public void logout(HttpServletRequest request, HttpServletResponse response, Authentication authentication) {
+        SecurityContextHolder.clearContext();
+
+        if (sharedTokenCache != null) {
+            SharedTokenCacheFilter.removeSession(sharedTokenCache, request, response);
+        }
+
+        if (authentication instanceof ForceAuthenticationToken) {
+            ForceAuthenticationToken token = (ForceAuthenticationToken) authentication;
+            if (token.getIdentityUrl() != null && token.getAccessToken() != null) {
+                String loginUrl = (router != null) ? router.getLoginUrl(request) : null;
+                if (!revocationQueue.revoke(loginUrl, token.getAccessToken())) {
+                    log.warn(String.format("Revocation queue is full, not revoking token of userId=%s", token.getUserId()));
+                } else if (log.isDebugEnabled()) {
+                    log.debug(String.format("Queued revocation of token %s for userId=%s",
+                        AuthenticationUtils.maskToken(token.getAccessToken()), token.getUserId()));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A Salesforce record ID (for example a user ID) in canonical form.
+ * <p/>
+ * Salesforce IDs come in two forms: a case-sensitive 15-character form and an 18-character form whose last three
+ * characters encode the case of the first fifteen so that the ID survives case-insensitive handling. Different sources
+ * hand out different forms (the identity URL, canvas contexts, headers and signed parameters) so comparing the strings
+ * can report the same user as two different users. Instances of this class compare equal regardless of the form they
+ * were parsed from.
+ * <p/>
+ * The fifteen significant characters are packed six bits each into two longs; parsing and formatting are table-driven
+ * and allocate nothing but the result.
+ */
+public final class SalesforceId implements Serializable {
+    private static final long serialVersionUID = 5377962051385751219L;
+
+    private static final char[] DIGITS =
+        "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+    private static final char[] SUFFIX_DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ012345".toCharArray();
+    private static final byte[] DIGIT_VALUES = buildValues(DIGITS);
+    private static final byte[] SUFFIX_VALUES = buildSuffixValues();
+    private static final int HIGH_CHARS = 10;
+    private static final int LOW_CHARS = 5;
+    private static final int UPPER_START = 10;
+    private static final int LOWER_START = 36;
+
+    private final long high; // characters 0-9
+    private final long low;  // characters 10-14
+
+    private SalesforceId(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Parses a 15 or 18-character ID. For an 18-character ID the case of the first fifteen characters is taken from
+     * the suffix, so IDs that have been upper or lower-cased along the way are restored.
+     *
+     * @param id the ID
+     * @return the canonical ID
+     * @throws IllegalArgumentException if the value is not a Salesforce ID
+     */
+    public static SalesforceId valueOf(String id) {
+        SalesforceId result = parse(id);
+        if (result == null) {
+            throw new IllegalArgumentException("Not a Salesforce ID: " + id);
+        }
+        return result;
+    }
+
+    /**
+     * Parses a 15 or 18-character ID, the same as {@link #valueOf} except that malformed input returns
+     * <code>null</code>.
+     *
+     * @param id the ID
+     * @return the canonical ID or <code>null</code> if the value is not a Salesforce ID
+     */
+    public static SalesforceId parse(String id) {
+        if (id == null) {
+            return null;
+        }
+
+        int caseBits;
+        if (id.length() == 15) {
+            caseBits = -1; // Use the case as given
+        } else if (id.length() == 18) {
+            caseBits = 0;
+            for (int i = 0; i < 3; i++) {
+                char c = id.charAt(15 + i);
+                int value = (c < SUFFIX_VALUES.length) ? SUFFIX_VALUES[c] : -1;
+                if (value < 0) {
+                    return null;
+                }
+                caseBits |= value << (5 * i);
+            }
+        } else {
+            return null;
+        }
+
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 15; i++) {
+            char c = id.charAt(i);
+            int value = (c < DIGIT_VALUES.length) ? DIGIT_VALUES[c] : -1;
+            if (value < 0) {
+                return null;
+            }
+            if (caseBits != -1 && value >= UPPER_START) {
+                boolean upper = (caseBits & (1 << i)) != 0;
+                int letter = (value >= LOWER_START) ? value - LOWER_START : value - UPPER_START;
+                value = upper ? UPPER_START + letter : LOWER_START + letter;
+            }
+            if (i < HIGH_CHARS) {
+                high = (high << 6) | value;
+            } else {
+                low = (low << 6) | value;
+            }
+        }
+        return new SalesforceId(high, low);
+    }
+
+    /**
+     * Compares two IDs in either form. Values that are not Salesforce IDs are compared as strings.
+     *
+     * @param id1 an ID, may be <code>null</code>
+     * @param id2 another ID, may be <code>null</code>
+     * @return <code>true</code> if the two identify the same record
+     */
+    public static boolean isSameId(String id1, String id2) {
+        if (id1 == null || id2 == null) {
+            return id1 == id2;
+        }
+        if (id1.equals(id2)) {
+            return true;
+        }
+        SalesforceId parsed1 = parse(id1);
+        return parsed1 != null && parsed1.equals(parse(id2));
+    }
+
+    /**
+     * Gets the case-sensitive 15-character form.
+     *
+     * @return the 15-character ID
+     */
+    public String toShortString() {
+        char[] chars = new char[15];
+        writeDigits(chars);
+        return new String(chars);
+    }
+
+    /**
+     * Gets the case-insensitive 18-character form.
+     *
+     * @return the 18-character ID
+     */
+    @Override
+    public String toString() {
+        char[] chars = new char[18];
+        int caseBits = writeDigits(chars);
+        for (int i = 0; i < 3; i++) {
+            chars[15 + i] = SUFFIX_DIGITS[(caseBits >>> (5 * i)) & 0x1f];
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SalesforceId)) {
+            return false;
+        }
+        SalesforceId that = (SalesforceId) o;
+        return this.high == that.high && this.low == that.low;
+    }
+
+    @Override
+    public int hashCode() {
+        long hash = high * 31 + low;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Writes the fifteen significant characters and returns a bit per character that is set for upper case letters.
+     */
+    private int writeDigits(char[] chars) {
+        int caseBits = 0;
+        for (int i = 0; i < 15; i++) {
+            int value = (i < HIGH_CHARS)
+                ? (int) (high >>> (6 * (HIGH_CHARS - 1 - i))) & 0x3f
+                : (int) (low >>> (6 * (HIGH_CHARS + LOW_CHARS - 1 - i))) & 0x3f;
+            chars[i] = DIGITS[value];
+            if (value >= UPPER_START && value < LOWER_START) {
+                caseBits |= 1 << i;
+            }
+        }
+        return caseBits;
+    }
+
+    private static byte[] buildValues(char[] digits) {
+        byte[] values = new byte[128];
+        Arrays.fill(values, (byte) -1);
+        for (int i = 0; i < digits.length; i++) {
+            values[digits[i]] = (byte) i;
+        }
+        return values;
+    }
+
+    private static byte[] buildSuffixValues() {
+        byte[] values = buildValues(SUFFIX_DIGITS);
+        for (char c = 'a'; c <= 'z'; c++) {
+            values[c] = values[Character.toUpperCase(c)]; // The suffix is meant to survive case changes
+        }
+        return values;
+    }
+}
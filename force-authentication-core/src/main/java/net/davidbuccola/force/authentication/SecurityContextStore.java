@@ -0,0 +1,42 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * An external store of authentications, keyed by session, behind a {@link WriteBehindSecurityContextRepository}.
+ * <p/>
+ * Loads are done on the request thread. Writes and removals are done in batches by a single background thread, so an
+ * implementation can use a bulk operation of its backing store.
+ */
+public interface SecurityContextStore {
+
+    /**
+     * Loads the authentication of a session.
+     *
+     * @param sessionKey the session key
+     * @return the authentication token or <code>null</code> if there is none
+     */
+    ForceAuthenticationToken load(String sessionKey);
+
+    /**
+     * Stores the authentications of several sessions, replacing any existing ones.
+     *
+     * @param tokens the authentication tokens by session key
+     * @throws RuntimeException if any of them could not be stored, in which case the whole batch is retried
+     */
+    void write(Map<String, ForceAuthenticationToken> tokens);
+
+    /**
+     * Removes the authentications of several sessions.
+     *
+     * @param sessionKeys the session keys
+     * @throws RuntimeException if any of them could not be removed, in which case the whole batch is retried
+     */
+    void remove(Collection<String> sessionKeys);
+}
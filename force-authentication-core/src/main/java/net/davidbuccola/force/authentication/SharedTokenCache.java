@@ -0,0 +1,40 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+/**
+ * A cache of established authentications shared by several processes serving the same app, so that a user who logged
+ * in through one process doesn't have to repeat the OAuth exchange when a request lands on another.
+ * <p/>
+ * Entries are keyed by a random session key that {@link SharedTokenCacheFilter} keeps in a cookie. When a bean of this
+ * type is present in the application context, the filters put every authentication they establish from an OAuth
+ * exchange or a signed payload in the cache.
+ */
+public interface SharedTokenCache {
+
+    /**
+     * Puts an authentication in the cache, replacing any entry with the same session key.
+     *
+     * @param sessionKey the session key
+     * @param token      the authentication token
+     */
+    void put(String sessionKey, ForceAuthenticationToken token);
+
+    /**
+     * Gets an authentication from the cache.
+     *
+     * @param sessionKey the session key
+     * @return the authentication token or <code>null</code> if there is no entry for the key or it has expired
+     */
+    ForceAuthenticationToken get(String sessionKey);
+
+    /**
+     * Removes an authentication from the cache.
+     *
+     * @param sessionKey the session key
+     */
+    void remove(String sessionKey);
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.authentication.logout.LogoutHandler;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * A security filter that restores an authentication established by another process from a {@link SharedTokenCache}.
+ * <p/>
+ * The filters put each authentication they establish in the cache under a random session key and send the key to the
+ * browser in a cookie. When a later request from the same browser lands on a process that has no authentication for
+ * it, this filter looks the key up and puts the cached token in the security context, so the user doesn't have to go
+ * through the OAuth exchange again. Place it after the security context persistence filter and before the
+ * authentication filters.
+ * <p/>
+ * It is also a {@link LogoutHandler} that removes the authentication from the cache and clears the cookie. Either it
+ * or a {@link RevokingLogoutHandler} must be added to the logout filter; otherwise the cached authentication outlives
+ * the logout and is restored on the next request until it expires.
+ */
+public class SharedTokenCacheFilter extends AbstractAuthenticationFilter implements LogoutHandler {
+    /**
+     * The name of the cookie that holds the session key.
+     */
+    public static final String COOKIE_NAME = "force_shared_session";
+
+    @Autowired
+    private SharedTokenCache cache;
+
+    /**
+     * Sets the shared token cache.
+     * <p/>
+     * This is only needed when the bean is wired explicitly instead of by autowiring.
+     *
+     * @param cache the shared token cache
+     */
+    public void setCache(SharedTokenCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
+        final HttpServletRequest request = (HttpServletRequest) req;
+
+        if (!isExcluded(request) && SecurityContextHolder.getContext().getAuthentication() == null) {
+            String sessionKey = getSessionKey(request);
+            if (sessionKey != null) {
+                ForceAuthenticationToken token = cache.get(sessionKey);
+                if (token != null) {
+                    SecurityContextHolder.getContext().setAuthentication(token);
+
+                    if (logger.isDebugEnabled()) {
+                        logger.debug(String.format(
+                            "Authentication restored from shared cache: userId=%s, accessToken=%s, instanceUrl=%s",
+                            token.getUserId(), AuthenticationUtils.maskToken(token.getAccessToken()),
+                            token.getInstanceUrl()));
+                    }
+                }
+            }
+        }
+
+        chain.doFilter(req, res);
+    }
+
+    @Override
+    public void logout(HttpServletRequest request, HttpServletResponse response, Authentication authentication) {
+        removeSession(cache, request, response);
+    }
+
+    /**
+     * Removes the authentication of the request's session key from the cache and clears the cookie.
+     */
+    static void removeSession(SharedTokenCache cache, HttpServletRequest request, HttpServletResponse response) {
+        String sessionKey = getSessionKey(request);
+        if (sessionKey != null) {
+            cache.remove(sessionKey);
+
+            Cookie cookie = new Cookie(COOKIE_NAME, "");
+            cookie.setPath(StringUtils.defaultIfEmpty(request.getContextPath(), "/"));
+            cookie.setMaxAge(0);
+            cookie.setHttpOnly(true);
+            cookie.setSecure(request.isSecure());
+            response.addCookie(cookie);
+        }
+    }
+
+    /**
+     * Gets the session key from the request cookie.
+     *
+     * @return the session key or <code>null</code> if there is none
+     */
+    static String getSessionKey(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (COOKIE_NAME.equals(cookie.getName())) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
+    }
+}
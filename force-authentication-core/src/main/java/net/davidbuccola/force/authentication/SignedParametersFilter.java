@@ -5,6 +5,9 @@
  */
 package net.davidbuccola.force.authentication;
 
+import net.davidbuccola.force.authentication.AuthenticationAuditEvent.Mechanism;
+import net.davidbuccola.force.authentication.AuthenticationAuditEvent.Outcome;
+import net.davidbuccola.force.authentication.AuthenticationTrace.Phase;
 import org.apache.commons.lang.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.Authentication;
@@ -12,7 +15,6 @@ import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
-import org.springframework.web.filter.GenericFilterBean;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
@@ -31,7 +33,7 @@ import java.util.Map;
  * request.
  */
 @Component("signedParametersFilter")
-public class SignedParametersFilter extends GenericFilterBean {
+public class SignedParametersFilter extends AbstractAuthenticationFilter {
 
     private static final List<GrantedAuthority> AUTHORITIES = Arrays.asList(
         (GrantedAuthority) new SimpleGrantedAuthority("ROLE_USER"),         // Indicate user is authenticated
@@ -41,26 +43,63 @@ public class SignedParametersFilter extends GenericFilterBean {
     @Autowired
     private OAuthClientConfig clientConfig;
 
+    private int maxPayloadLength = SignedParametersUtil.DEFAULT_MAX_LENGTH;
+
+    /**
+     * Sets the OAuth client configuration.
+     * <p/>
+     * This is only needed when the bean is wired explicitly instead of by autowiring.
+     *
+     * @param clientConfig the OAuth client configuration
+     */
+    public void setClientConfig(OAuthClientConfig clientConfig) {
+        this.clientConfig = clientConfig;
+    }
+
+    /**
+     * Sets the maximum accepted length of a <code>signed_parameters</code> value. Longer values are rejected before any
+     * decoding is done. The default is 65536.
+     *
+     * @param maxPayloadLength the maximum length
+     */
+    public void setMaxPayloadLength(int maxPayloadLength) {
+        this.maxPayloadLength = maxPayloadLength;
+    }
+
     @Override
     public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
         final HttpServletRequest request = (HttpServletRequest) req;
         final HttpServletResponse response = (HttpServletResponse) res;
 
+        if (isExcluded(request)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final long startNanos = System.nanoTime(); // Reading the parameter may parse a form body
         String signedParameters = request.getParameter(SignedRequestFilter.SIGNED_PARAMETERS);
         if (signedParameters != null) {
+            beginTrace(Mechanism.SIGNED_PARAMETERS, startNanos);
+            AuthenticationTrace.mark(Phase.REQUEST_PARSING);
 
             if (logger.isDebugEnabled()) {
                 logger.debug(String.format("Canvas '%s' detected", SignedRequestFilter.SIGNED_PARAMETERS));
             }
 
+            if (!acquireForClient(request, response)) {
+                return;
+            }
+
             Map<String, String> parameters;
             try {
-                parameters = SignedParametersUtil.verifyAndDecode(signedParameters, clientConfig.getClientSecret());
+                parameters = SignedParametersUtil.verifyAndDecode(
+                    signedParameters, OAuthClientSnapshot.of(clientConfig).getSigningKey(), maxPayloadLength);
             } catch (GeneralSecurityException e) {
                 String message = "Signed parameters decode and verify failed";
                 if (logger.isDebugEnabled()) {
-                    logger.debug(String.format("%s: signed_parameters=%s", message, signedParameters), e);
+                    logger.debug(String.format("%s: length=%d", message, signedParameters.length()), e);
                 }
+                audit(Mechanism.SIGNED_PARAMETERS, Outcome.FAILURE, null, null, startNanos, message);
                 response.sendError(HttpServletResponse.SC_BAD_REQUEST, message);
                 return;
             }
@@ -71,26 +110,38 @@ public class SignedParametersFilter extends GenericFilterBean {
             if (isAnyAuthenticationParameterSpecified(userId, accessToken, instanceUrl)) {
                 if (areAllAuthenticationParametersSpecified(userId, accessToken, instanceUrl)) {
 
+                    Integer issuedAt = parseIssuedAt(parameters.get("issuedAt"));
+                    if (!checkReplay(Mechanism.SIGNED_PARAMETERS, signedParameters, issuedAt, request, response, startNanos)) {
+                        return;
+                    }
+
+                    if (!acquireForUser(userId, instanceUrl, response)) {
+                        return;
+                    }
+
                     ForceAuthenticationToken authenticationToken =
-                        new ForceAuthenticationToken(userId, accessToken, instanceUrl, AUTHORITIES);
+                        resolveAuthorities(new ForceAuthenticationToken(userId, accessToken, instanceUrl, AUTHORITIES));
                     authenticationToken.setAuthenticated(true);
                     SecurityContextHolder.getContext().setAuthentication(authenticationToken);
+                    AuthenticationTrace.mark(Phase.SECURITY_CONTEXT);
+                    shareAuthentication(authenticationToken, request, response);
+                    audit(Mechanism.SIGNED_PARAMETERS, Outcome.SUCCESS, userId, instanceUrl, startNanos, null);
 
                     if (logger.isDebugEnabled()) {
                         logger.debug(String.format(
                             "Signed parameters authentication established: userId=%s, accessToken=%s, instanceUrl=%s",
-                            userId, accessToken, instanceUrl));
+                            userId, AuthenticationUtils.maskToken(accessToken), instanceUrl));
                     }
                 } else if (isJustUserIdSpecified(userId, accessToken, instanceUrl)) {
 
-                    String currentUserId = getCurrentSecurityContextUserId();
-                    if (currentUserId != null && !currentUserId.equals(userId)) {
+                    ForceAuthenticationToken currentToken = getCurrentSecurityContextToken();
+                    if (currentToken != null && !currentToken.isSameUser(userId)) {
                         SecurityContextHolder.clearContext();
 
                         if (logger.isDebugEnabled()) {
                             logger.debug(String.format(
                                 "Cleared security context because userId does not match. Old userId=%s, New userId=%s",
-                                currentUserId, userId));
+                                currentToken.getUserId(), userId));
                         }
                     }
                 } else {
@@ -99,13 +150,15 @@ public class SignedParametersFilter extends GenericFilterBean {
                     if (logger.isDebugEnabled()) {
                         logger.debug(String.format(
                             "%s: userId=%s, accessToken=%s, instanceUrl=%s",
-                            message, userId, accessToken, instanceUrl));
+                            message, userId, AuthenticationUtils.maskToken(accessToken), instanceUrl));
                     }
+                    audit(Mechanism.SIGNED_PARAMETERS, Outcome.FAILURE, userId, instanceUrl, startNanos, message);
                     response.sendError(HttpServletResponse.SC_BAD_REQUEST, message);
                     return;
                 }
             }
 
+            finishTrace(Outcome.SUCCESS, userId, null, null); // Verified but didn't establish an authentication
             request.setAttribute(SignedRequestFilter.SIGNED_PARAMETERS, signedParameters);
         }
 
@@ -124,10 +177,25 @@ public class SignedParametersFilter extends GenericFilterBean {
         return userId != null && accessToken == null && instanceUrl == null;
     }
 
-    private static String getCurrentSecurityContextUserId() {
+    /**
+     * Parses the optional issue time (seconds since the epoch) of signed parameters. A malformed value is treated as
+     * missing.
+     */
+    private static Integer parseIssuedAt(String issuedAt) {
+        if (issuedAt == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(issuedAt);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static ForceAuthenticationToken getCurrentSecurityContextToken() {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
         if (authentication != null && authentication instanceof ForceAuthenticationToken) {
-            return ((ForceAuthenticationToken) authentication).getUserId();
+            return (ForceAuthenticationToken) authentication;
         } else {
             return null;
         }
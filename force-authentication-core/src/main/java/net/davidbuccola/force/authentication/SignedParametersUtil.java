@@ -5,10 +5,13 @@
  */
 package net.davidbuccola.force.authentication;
 
+import canvas.CanvasRequest;
+import net.davidbuccola.force.authentication.AuthenticationTrace.Phase;
+import net.davidbuccola.force.authentication.SignedPayloadResult.Failure;
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.Validate;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
 import org.codehaus.jackson.type.TypeReference;
 
 import javax.crypto.Mac;
@@ -17,59 +20,230 @@ import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.SignatureException;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Verification and decoding of Salesforce signed payloads (canvas <code>signed_request</code> values and signed
+ * parameters). Both have the form <code>signature.envelope</code> where the signature is an HMAC-SHA256 of the
+ * base64-encoded envelope and the envelope is base64-encoded JSON.
+ * <p/>
+ * The checks are ordered from cheapest to most expensive so that garbage and forged payloads are rejected before
+ * anything is decoded:
+ * <ol>
+ * <li>maximum length</li>
+ * <li>base64 alphabet and a single '.' separator (one pass over the input)</li>
+ * <li>structure (the signature has the length of an HMAC-SHA256 digest)</li>
+ * <li>HMAC over the raw envelope bytes</li>
+ * <li>base64 and JSON decoding of the envelope, only once the signature has been verified</li>
+ * </ol>
+ * <p/>
+ * All methods are thread-safe. The shared state is immutable (the JSON readers and lookup tables) and the base64 codec
+ * is only used through its static methods, which keep no state. The {@link Mac} is the one stateful object needed and
+ * is kept per thread, which also avoids the synchronized provider lookup of {@link Mac#getInstance} on every call.
+ */
 final class SignedParametersUtil {
-    private static final Base64 base64 = new Base64(true);
+    static final int DEFAULT_MAX_LENGTH = 65536;
+
     private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String ALGORITHM = "HMACSHA256";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int ENCODED_SIGNATURE_LENGTH = 43; // 32 byte digest, unpadded
+    private static final boolean[] BASE64_ALPHABET = buildBase64Alphabet();
+    private static final int NO_SEPARATOR = -1;
+    private static final int ILLEGAL_CHARACTER = -2;
+
+    private static final ThreadLocal<Mac> MACS = new ThreadLocal<Mac>();
+
     private static final ObjectMapper objectMapper = new ObjectMapper();
-    private static final TypeReference<HashMap<String, String>> MAP_TYPE_REFERENCE =
-        new TypeReference<HashMap<String, String>>() {
-        };
+    private static final ObjectReader MAP_READER = objectMapper.reader(new TypeReference<HashMap<String, String>>() {
+    });
+    private static final ObjectReader CANVAS_REQUEST_READER = objectMapper.reader(CanvasRequest.class);
 
     private SignedParametersUtil() {
         throw new UnsupportedOperationException("Can not be instantiated");
     }
 
     public static Map<String, String> verifyAndDecode(String input, String secret) throws GeneralSecurityException {
+        return verifyAndDecode(input, secret, DEFAULT_MAX_LENGTH);
+    }
+
+    public static Map<String, String> verifyAndDecode(String input, String secret, int maxLength) throws GeneralSecurityException {
         Validate.notNull(secret, "secret must not be null");
+        return verifyAndDecode(input, newSecretKey(secret), maxLength);
+    }
 
+    public static Map<String, String> verifyAndDecode(String input, SecretKey key, int maxLength) throws GeneralSecurityException {
+        byte[] json = verify(input, key, maxLength);
+        Map<String, String> parameters;
         try {
-            if (input == null || !input.contains(".")) {
-                throw new IllegalArgumentException("Input does not look like signed parameters: " + input);
-            }
+            parameters = readParameters(json);
+            AuthenticationTrace.mark(Phase.JSON_MAPPING);
+        } catch (IOException e) {
+            throw new GeneralSecurityException(Failure.UNDECODABLE.getMessage(), e);
+        }
+        if (!isSupportedAlgorithm(parameters.remove("algorithm"))) {
+            throw new GeneralSecurityException(Failure.UNSUPPORTED_ALGORITHM.getMessage());
+        }
+        return parameters;
+    }
 
-            String[] parts = input.split("[.]", 2);
-            String encodedSignature = parts[0];
-            String encodedEnvelope = parts[1];
+    /**
+     * Verifies and decodes a canvas <code>signed_request</code>. This is equivalent to
+     * {@link canvas.SignedRequest#verifyAndDecode} but with the cheap checks done first.
+     */
+    public static CanvasRequest verifyAndDecodeCanvasRequest(String input, String secret, int maxLength) throws GeneralSecurityException {
+        Validate.notNull(secret, "secret must not be null");
+        return verifyAndDecodeCanvasRequest(input, newSecretKey(secret), maxLength);
+    }
 
-            String jsonEnvelope = new String(base64.decode(encodedEnvelope), UTF8);
-            HashMap<String, String> parameters = objectMapper.readValue(jsonEnvelope, MAP_TYPE_REFERENCE);
-            String algorithm = StringUtils.defaultIfEmpty(parameters.remove("algorithm"), "HMACSHA256");
+    public static CanvasRequest verifyAndDecodeCanvasRequest(String input, SecretKey key, int maxLength) throws GeneralSecurityException {
+        byte[] json = verify(input, key, maxLength);
+        CanvasRequest canvasRequest;
+        try {
+            canvasRequest = readCanvasRequest(json);
+            AuthenticationTrace.mark(Phase.JSON_MAPPING);
+        } catch (IOException e) {
+            throw new GeneralSecurityException(Failure.UNDECODABLE.getMessage(), e);
+        }
+        if (!isSupportedAlgorithm(canvasRequest.getAlgorithm())) {
+            throw new GeneralSecurityException(Failure.UNSUPPORTED_ALGORITHM.getMessage());
+        }
+        return canvasRequest;
+    }
 
-            verify(secret, algorithm, encodedEnvelope, encodedSignature);
+    /**
+     * Verifies the signature of a signed payload and returns the decoded (but not yet parsed) JSON envelope.
+     *
+     * @throws GeneralSecurityException if the payload is malformed or the signature doesn't match
+     */
+    static byte[] verify(String input, SecretKey key, int maxLength) throws GeneralSecurityException {
+        Failure failure = check(input, key, maxLength);
+        if (failure == Failure.BAD_SIGNATURE) {
+            throw new SignatureException(failure.getMessage());
+        } else if (failure != null) {
+            throw new GeneralSecurityException(failure.getMessage());
+        }
+        AuthenticationTrace.mark(Phase.SIGNATURE);
+        byte[] json = decodeEnvelope(input);
+        AuthenticationTrace.mark(Phase.DECODE);
+        return json;
+    }
 
-            return parameters;
+    /**
+     * Runs every check up to and including the signature without throwing. This is what batch verification uses so
+     * that rejecting a payload costs no more than accepting one.
+     *
+     * @return the reason the payload was rejected or <code>null</code> if the signature is authentic
+     */
+    static Failure check(String input, SecretKey key, int maxLength) throws GeneralSecurityException {
+        Validate.notNull(key, "key must not be null");
 
-        } catch (IllegalArgumentException e) {
-            throw new GeneralSecurityException(e);
-        } catch (IOException e) {
-            throw new GeneralSecurityException(e);
+        if (input == null) {
+            return Failure.MISSING;
+        }
+        if (input.length() > maxLength) {
+            return Failure.TOO_LONG;
+        }
+
+        int separator = findSeparator(input);
+        if (separator == ILLEGAL_CHARACTER) {
+            return Failure.ILLEGAL_CHARACTER;
+        }
+        if (separator < 0 || (separator != ENCODED_SIGNATURE_LENGTH && !isPaddedSignature(input, separator))) {
+            return Failure.MALFORMED;
+        }
+        if (separator == input.length() - 1 || (input.length() - separator - 1) % 4 == 1) {
+            return Failure.MALFORMED;
+        }
+
+        byte[] bytes = input.getBytes(ASCII);
+        Mac mac = getMac();
+        mac.init(key);
+        mac.update(bytes, separator + 1, bytes.length - separator - 1);
+        byte[] digest = mac.doFinal();
+        byte[] signature = Base64.decodeBase64(input.substring(0, separator));
+        return MessageDigest.isEqual(digest, signature) ? null : Failure.BAD_SIGNATURE;
+    }
+
+    /**
+     * Decodes the base64 envelope of a payload that has passed {@link #check}.
+     */
+    static byte[] decodeEnvelope(String input) {
+        return Base64.decodeBase64(input.substring(input.indexOf('.') + 1));
+    }
+
+    static Map<String, String> readParameters(byte[] json) throws IOException {
+        return MAP_READER.readValue(json);
+    }
+
+    static CanvasRequest readCanvasRequest(byte[] json) throws IOException {
+        return CANVAS_REQUEST_READER.readValue(json);
+    }
+
+    static boolean isSupportedAlgorithm(String algorithm) {
+        return algorithm == null || algorithm.isEmpty() || ALGORITHM.equalsIgnoreCase(algorithm);
+    }
+
+    private static Mac getMac() throws GeneralSecurityException {
+        Mac mac = MACS.get();
+        if (mac == null) {
+            mac = Mac.getInstance(MAC_ALGORITHM);
+            MACS.set(mac);
+        }
+        return mac;
+    }
+
+    static SecretKey newSecretKey(String secret) {
+        return new SecretKeySpec(secret.getBytes(UTF8), MAC_ALGORITHM);
+    }
+
+    /**
+     * Checks the alphabet and finds the single '.' separator in one pass. Both the standard and the URL-safe base64
+     * alphabets are accepted because Salesforce uses the former for <code>signed_request</code> and the decoder
+     * accepts either.
+     *
+     * @return the index of the separator, {@link #ILLEGAL_CHARACTER} or {@link #NO_SEPARATOR}
+     */
+    private static int findSeparator(String input) {
+        int separator = NO_SEPARATOR;
+        for (int i = 0, length = input.length(); i < length; i++) {
+            char c = input.charAt(i);
+            if (c == '.') {
+                if (separator >= 0) {
+                    return NO_SEPARATOR;
+                }
+                separator = i;
+            } else if (c >= BASE64_ALPHABET.length || !BASE64_ALPHABET[c]) {
+                return ILLEGAL_CHARACTER;
+            }
         }
+        return separator;
     }
 
-    private static void verify(String secret, String algorithm, String encodedEnvelope, String encodedSignature) throws GeneralSecurityException {
-        SecretKey secretKey = new SecretKeySpec(secret.getBytes(UTF8), algorithm);
-        Mac mac = Mac.getInstance(algorithm);
-        mac.init(secretKey);
+    private static boolean isPaddedSignature(String input, int separator) {
+        return separator == ENCODED_SIGNATURE_LENGTH + 1 && input.charAt(ENCODED_SIGNATURE_LENGTH) == '=';
+    }
 
-        byte[] digest = mac.doFinal(encodedEnvelope.getBytes(UTF8));
-        byte[] signature = base64.decode(encodedSignature);
-        if (!Arrays.equals(digest, signature)) {
-            throw new SignatureException("Signed parameters were tampered with");
+    private static boolean[] buildBase64Alphabet() {
+        boolean[] alphabet = new boolean[128];
+        for (char c = 'A'; c <= 'Z'; c++) {
+            alphabet[c] = true;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            alphabet[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            alphabet[c] = true;
         }
+        alphabet['+'] = true;
+        alphabet['/'] = true;
+        alphabet['-'] = true;
+        alphabet['_'] = true;
+        alphabet['='] = true;
+        return alphabet;
     }
 }
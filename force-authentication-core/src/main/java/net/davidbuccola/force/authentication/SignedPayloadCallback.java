@@ -0,0 +1,24 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+/**
+ * Receives the results of a streamed batch verification by {@link SignedPayloadVerifier}.
+ * <p/>
+ * Results are delivered one at a time, in the order of the payloads, on the thread that started the verification, so
+ * implementations don't need to be thread-safe.
+ *
+ * @param <T> the type of the decoded payloads
+ */
+public interface SignedPayloadCallback<T> {
+    /**
+     * Handles the result of one payload.
+     *
+     * @param index  the position of the payload in the batch, starting at zero
+     * @param result the decoded value or the reason the payload was rejected
+     */
+    void onResult(long index, SignedPayloadResult<T> result);
+}
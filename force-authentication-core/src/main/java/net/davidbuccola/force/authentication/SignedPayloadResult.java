@@ -0,0 +1,91 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+
+/**
+ * The outcome of verifying a signed payload with {@link SignedPayloadVerifier}: either the decoded value or the reason
+ * the payload was rejected.
+ *
+ * @param <T> the type of the decoded value
+ */
+public final class SignedPayloadResult<T> {
+
+    /**
+     * Why a payload was rejected. The reasons are listed in the order the checks are made.
+     */
+    public enum Failure {
+        MISSING("Signed payload is missing"),
+        TOO_LONG("Signed payload exceeds maximum length"),
+        ILLEGAL_CHARACTER("Signed payload contains an illegal character"),
+        MALFORMED("Signed payload is malformed"),
+        BAD_SIGNATURE("Signed payload was tampered with"),
+        UNDECODABLE("Signed payload envelope could not be decoded"),
+        UNSUPPORTED_ALGORITHM("Signed payload uses an unsupported signature algorithm");
+
+        private final String message;
+
+        private Failure(String message) {
+            this.message = message;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    private final T value;
+    private final Failure failure;
+
+    private SignedPayloadResult(T value, Failure failure) {
+        this.value = value;
+        this.failure = failure;
+    }
+
+    static <T> SignedPayloadResult<T> valid(T value) {
+        return new SignedPayloadResult<T>(value, null);
+    }
+
+    static <T> SignedPayloadResult<T> invalid(Failure failure) {
+        return new SignedPayloadResult<T>(null, failure);
+    }
+
+    /**
+     * Checks whether the payload was authentic and decoded successfully.
+     *
+     * @return <code>true</code> if the payload is valid
+     */
+    public boolean isValid() {
+        return failure == null;
+    }
+
+    /**
+     * Gets the decoded value.
+     *
+     * @return the decoded value or <code>null</code> if the payload is not valid
+     */
+    public T getValue() {
+        return value;
+    }
+
+    /**
+     * Gets the reason the payload was rejected.
+     *
+     * @return the reason or <code>null</code> if the payload is valid
+     */
+    public Failure getFailure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+            .append("valid", isValid())
+            .append("failure", failure)
+            .toString(); // The value is left out because it normally contains an access token
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import canvas.CanvasRequest;
+import net.davidbuccola.force.authentication.SignedPayloadResult.Failure;
+import org.apache.commons.lang.Validate;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Verifies Salesforce signed payloads (canvas <code>signed_request</code> values and <code>signed_parameters</code>)
+ * outside of the servlet filters, for example payloads taken from a queue or a replay log.
+ * <p/>
+ * Rejected payloads are reported as a {@link SignedPayloadResult} with a {@link Failure} reason rather than as an
+ * exception, so a batch with many bad payloads costs no more than one with good payloads. Batches are split across a
+ * fork-join pool. The signing key is taken from the OAuth client configuration once per call, so every payload in a
+ * batch is verified against the same key even if the configuration is reloaded part way through.
+ * <p/>
+ * Batches given as an {@link Iterable} are read and verified in chunks of <code>chunkSize</code> payloads. With a
+ * {@link SignedPayloadCallback} the results are handed over chunk by chunk as well, so a batch of any size, such as a
+ * whole replay log, is verified in bounded memory.
+ */
+public class SignedPayloadVerifier implements DisposableBean {
+    private static final PayloadDecoder<Map<String, String>> PARAMETERS_DECODER = new PayloadDecoder<Map<String, String>>() {
+        @Override
+        SignedPayloadResult<Map<String, String>> decode(byte[] json) throws IOException {
+            Map<String, String> parameters = SignedParametersUtil.readParameters(json);
+            if (!SignedParametersUtil.isSupportedAlgorithm(parameters.remove("algorithm"))) {
+                return SignedPayloadResult.invalid(Failure.UNSUPPORTED_ALGORITHM);
+            }
+            return SignedPayloadResult.valid(parameters);
+        }
+    };
+
+    private static final PayloadDecoder<CanvasRequest> CANVAS_REQUEST_DECODER = new PayloadDecoder<CanvasRequest>() {
+        @Override
+        SignedPayloadResult<CanvasRequest> decode(byte[] json) throws IOException {
+            CanvasRequest canvasRequest = SignedParametersUtil.readCanvasRequest(json);
+            if (!SignedParametersUtil.isSupportedAlgorithm(canvasRequest.getAlgorithm())) {
+                return SignedPayloadResult.invalid(Failure.UNSUPPORTED_ALGORITHM);
+            }
+            return SignedPayloadResult.valid(canvasRequest);
+        }
+    };
+
+    @Autowired
+    private OAuthClientConfig clientConfig;
+
+    private int maxPayloadLength = SignedParametersUtil.DEFAULT_MAX_LENGTH;
+    private int batchGranularity = 64;
+    private int chunkSize = 4096;
+
+    private ForkJoinPool pool;
+    private boolean ownPool;
+
+    /**
+     * Sets the OAuth client configuration.
+     * <p/>
+     * This is only needed when the bean is wired explicitly instead of by autowiring.
+     *
+     * @param clientConfig the OAuth client configuration
+     */
+    public void setClientConfig(OAuthClientConfig clientConfig) {
+        this.clientConfig = clientConfig;
+    }
+
+    /**
+     * Sets the maximum accepted length of a payload. The default is 65536.
+     *
+     * @param maxPayloadLength the maximum length
+     */
+    public void setMaxPayloadLength(int maxPayloadLength) {
+        this.maxPayloadLength = maxPayloadLength;
+    }
+
+    /**
+     * Sets the number of payloads below which a batch is verified on one thread rather than split further. The default
+     * is 64.
+     *
+     * @param batchGranularity the number of payloads
+     */
+    public void setBatchGranularity(int batchGranularity) {
+        Validate.isTrue(batchGranularity > 0, "batchGranularity must be positive");
+        this.batchGranularity = batchGranularity;
+    }
+
+    /**
+     * Sets the number of payloads of an {@link Iterable} batch that are read and verified together. The default is
+     * 4096.
+     *
+     * @param chunkSize the number of payloads
+     */
+    public void setChunkSize(int chunkSize) {
+        Validate.isTrue(chunkSize > 0, "chunkSize must be positive");
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Sets the pool that batches run on. By default a pool with one thread per processor is created when the first
+     * batch is verified and is shut down with the bean.
+     *
+     * @param pool the pool
+     */
+    public synchronized void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+        this.ownPool = false;
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (ownPool) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Verifies and decodes <code>signed_parameters</code>.
+     *
+     * @param payload the payload
+     * @return the decoded parameters or the reason the payload was rejected
+     */
+    public SignedPayloadResult<Map<String, String>> verifySignedParameters(String payload) {
+        return verify(payload, getSigningKey(), PARAMETERS_DECODER);
+    }
+
+    /**
+     * Verifies and decodes a batch of <code>signed_parameters</code> in parallel.
+     *
+     * @param payloads the payloads
+     * @return the results, in the same order as the payloads
+     */
+    public List<SignedPayloadResult<Map<String, String>>> verifySignedParameters(String[] payloads) {
+        return verifyAll(payloads, PARAMETERS_DECODER);
+    }
+
+    /**
+     * Verifies and decodes a batch of <code>signed_parameters</code> in parallel.
+     *
+     * @param payloads the payloads
+     * @return the results, in the same order as the payloads
+     */
+    public List<SignedPayloadResult<Map<String, String>>> verifySignedParameters(Iterable<String> payloads) {
+        return verifyAll(payloads, PARAMETERS_DECODER);
+    }
+
+    /**
+     * Verifies and decodes a batch of <code>signed_parameters</code> of any size, in parallel chunks, handing the
+     * results to a callback as each chunk is done.
+     *
+     * @param payloads the payloads
+     * @param callback the callback that receives the results, in the same order as the payloads
+     */
+    public void verifySignedParameters(Iterable<String> payloads, SignedPayloadCallback<Map<String, String>> callback) {
+        verifyAll(payloads, PARAMETERS_DECODER, callback);
+    }
+
+    /**
+     * Verifies and decodes a canvas <code>signed_request</code>.
+     *
+     * @param payload the payload
+     * @return the decoded canvas request or the reason the payload was rejected
+     */
+    public SignedPayloadResult<CanvasRequest> verifySignedRequest(String payload) {
+        return verify(payload, getSigningKey(), CANVAS_REQUEST_DECODER);
+    }
+
+    /**
+     * Verifies and decodes a batch of canvas <code>signed_request</code> values in parallel.
+     *
+     * @param payloads the payloads
+     * @return the results, in the same order as the payloads
+     */
+    public List<SignedPayloadResult<CanvasRequest>> verifySignedRequests(String[] payloads) {
+        return verifyAll(payloads, CANVAS_REQUEST_DECODER);
+    }
+
+    /**
+     * Verifies and decodes a batch of canvas <code>signed_request</code> values in parallel.
+     *
+     * @param payloads the payloads
+     * @return the results, in the same order as the payloads
+     */
+    public List<SignedPayloadResult<CanvasRequest>> verifySignedRequests(Iterable<String> payloads) {
+        return verifyAll(payloads, CANVAS_REQUEST_DECODER);
+    }
+
+    /**
+     * Verifies and decodes a batch of canvas <code>signed_request</code> values of any size, in parallel chunks,
+     * handing the results to a callback as each chunk is done.
+     *
+     * @param payloads the payloads
+     * @param callback the callback that receives the results, in the same order as the payloads
+     */
+    public void verifySignedRequests(Iterable<String> payloads, SignedPayloadCallback<CanvasRequest> callback) {
+        verifyAll(payloads, CANVAS_REQUEST_DECODER, callback);
+    }
+
+    private <T> List<SignedPayloadResult<T>> verifyAll(String[] payloads, PayloadDecoder<T> decoder) {
+        Validate.notNull(payloads, "payloads must not be null");
+        return verifyAll(payloads, getSigningKey(), decoder);
+    }
+
+    private <T> List<SignedPayloadResult<T>> verifyAll(Iterable<String> payloads, PayloadDecoder<T> decoder) {
+        final List<SignedPayloadResult<T>> results = new ArrayList<SignedPayloadResult<T>>();
+        verifyAll(payloads, decoder, new SignedPayloadCallback<T>() {
+            @Override
+            public void onResult(long index, SignedPayloadResult<T> result) {
+                results.add(result);
+            }
+        });
+        return results;
+    }
+
+    private <T> void verifyAll(Iterable<String> payloads, PayloadDecoder<T> decoder,
+                               SignedPayloadCallback<T> callback) {
+        Validate.notNull(payloads, "payloads must not be null");
+        Validate.notNull(callback, "callback must not be null");
+
+        SecretKey key = getSigningKey();
+        List<String> chunk = new ArrayList<String>(Math.min(chunkSize, 1024));
+        long index = 0;
+        Iterator<String> iterator = payloads.iterator();
+        while (iterator.hasNext()) {
+            chunk.add(iterator.next());
+            if (chunk.size() >= chunkSize || !iterator.hasNext()) {
+                for (SignedPayloadResult<T> result : verifyAll(chunk.toArray(new String[chunk.size()]), key, decoder)) {
+                    callback.onResult(index++, result);
+                }
+                chunk.clear();
+            }
+        }
+    }
+
+    private <T> List<SignedPayloadResult<T>> verifyAll(String[] payloads, SecretKey key, PayloadDecoder<T> decoder) {
+        List<SignedPayloadResult<T>> results =
+            new ArrayList<SignedPayloadResult<T>>(Collections.<SignedPayloadResult<T>>nCopies(payloads.length, null));
+        if (payloads.length <= batchGranularity) {
+            for (int i = 0; i < payloads.length; i++) {
+                results.set(i, verify(payloads[i], key, decoder));
+            }
+        } else {
+            // Joining the tasks makes their results visible here
+            getPool().invoke(new VerifyTask<T>(payloads, results, 0, payloads.length, key, decoder));
+        }
+        return results;
+    }
+
+    private <T> SignedPayloadResult<T> verify(String payload, SecretKey key, PayloadDecoder<T> decoder) {
+        try {
+            Failure failure = SignedParametersUtil.check(payload, key, maxPayloadLength);
+            if (failure != null) {
+                return SignedPayloadResult.invalid(failure);
+            }
+            return decoder.decode(SignedParametersUtil.decodeEnvelope(payload));
+
+        } catch (IOException e) {
+            return SignedPayloadResult.invalid(Failure.UNDECODABLE);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available", e); // Every JRE is required to have it
+        }
+    }
+
+    private SecretKey getSigningKey() {
+        Validate.notNull(clientConfig, "clientConfig is not set");
+        return OAuthClientSnapshot.of(clientConfig).getSigningKey();
+    }
+
+    private synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool();
+            ownPool = true;
+        }
+        return pool;
+    }
+
+    /**
+     * Decodes the JSON envelope of a payload whose signature has been verified.
+     */
+    private abstract static class PayloadDecoder<T> {
+        abstract SignedPayloadResult<T> decode(byte[] json) throws IOException;
+    }
+
+    /**
+     * Verifies a range of a batch, splitting it in half until it is no larger than the batch granularity. Each task
+     * only sets its own range of the results, which never changes the size of the list.
+     */
+    private final class VerifyTask<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] payloads;
+        private final List<SignedPayloadResult<T>> results;
+        private final int from;
+        private final int to;
+        private final SecretKey key;
+        private final PayloadDecoder<T> decoder;
+
+        private VerifyTask(String[] payloads, List<SignedPayloadResult<T>> results, int from, int to, SecretKey key,
+                           PayloadDecoder<T> decoder) {
+            this.payloads = payloads;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.key = key;
+            this.decoder = decoder;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= batchGranularity) {
+                for (int i = from; i < to; i++) {
+                    results.set(i, verify(payloads[i], key, decoder));
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(
+                    new VerifyTask<T>(payloads, results, from, middle, key, decoder),
+                    new VerifyTask<T>(payloads, results, middle, to, key, decoder));
+            }
+        }
+    }
+}
@@ -5,14 +5,17 @@
  */
 package net.davidbuccola.force.authentication;
 
+import canvas.CanvasOrganizationContext;
 import canvas.CanvasRequest;
-import canvas.SignedRequest;
+import canvas.CanvasUserContext;
+import net.davidbuccola.force.authentication.AuthenticationAuditEvent.Mechanism;
+import net.davidbuccola.force.authentication.AuthenticationAuditEvent.Outcome;
+import net.davidbuccola.force.authentication.AuthenticationTrace.Phase;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
-import org.springframework.web.filter.GenericFilterBean;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
@@ -21,6 +24,7 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -30,7 +34,7 @@ import java.util.Map;
  * as a query parameter.
  */
 @Component("signedRequestFilter")
-public class SignedRequestFilter extends GenericFilterBean {
+public class SignedRequestFilter extends AbstractAuthenticationFilter {
 
     public static final String SIGNED_PARAMETERS = "signed_parameters";
     public static final String SIGNED_REQUEST = "signed_request";
@@ -43,49 +47,146 @@ public class SignedRequestFilter extends GenericFilterBean {
     @Autowired
     private OAuthClientConfig clientConfig;
 
+    @Autowired(required = false)
+    private IdentityProfileLoader identityProfileLoader;
+
+    @Autowired(required = false)
+    private MyDomainRouter router;
+
+    private int maxPayloadLength = SignedParametersUtil.DEFAULT_MAX_LENGTH;
+
+    /**
+     * Sets the OAuth client configuration.
+     * <p/>
+     * This is only needed when the bean is wired explicitly instead of by autowiring.
+     *
+     * @param clientConfig the OAuth client configuration
+     */
+    public void setClientConfig(OAuthClientConfig clientConfig) {
+        this.clientConfig = clientConfig;
+    }
+
+    /**
+     * Sets the identity profile loader. When there is one, the identity given in the canvas context is put in its cache
+     * so that the profile doesn't have to be fetched from Salesforce.
+     * <p/>
+     * This is only needed when the bean is wired explicitly instead of by autowiring.
+     *
+     * @param identityProfileLoader the identity profile loader
+     */
+    public void setIdentityProfileLoader(IdentityProfileLoader identityProfileLoader) {
+        this.identityProfileLoader = identityProfileLoader;
+    }
+
+    /**
+     * Sets the router that learns the login host of each org from canvas payloads.
+     * <p/>
+     * This is only needed when the bean is wired explicitly instead of by autowiring.
+     *
+     * @param router the router
+     */
+    public void setRouter(MyDomainRouter router) {
+        this.router = router;
+    }
+
+    /**
+     * Sets the maximum accepted length of a <code>signed_request</code> value. Longer values are rejected before any
+     * decoding is done. The default is 65536.
+     *
+     * @param maxPayloadLength the maximum length
+     */
+    public void setMaxPayloadLength(int maxPayloadLength) {
+        this.maxPayloadLength = maxPayloadLength;
+    }
+
     @Override
     public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
         final HttpServletRequest request = (HttpServletRequest) req;
         final HttpServletResponse response = (HttpServletResponse) res;
 
+        if (isExcluded(request)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final long startNanos = System.nanoTime(); // Reading the parameter may parse a form body
         String signedRequest = request.getParameter(SIGNED_REQUEST);
         if (signedRequest != null) {
+            beginTrace(Mechanism.SIGNED_REQUEST, startNanos);
+            AuthenticationTrace.mark(Phase.REQUEST_PARSING);
 
             if (logger.isDebugEnabled()) {
                 logger.debug(String.format("Canvas '%s' detected", SIGNED_REQUEST));
             }
 
+            if (!acquireForClient(request, response)) {
+                return;
+            }
+
             CanvasRequest canvasRequest;
             try {
-                canvasRequest = SignedRequest.verifyAndDecode(signedRequest, clientConfig.getClientSecret());
-            } catch (SecurityException e) {
+                canvasRequest = SignedParametersUtil.verifyAndDecodeCanvasRequest(
+                    signedRequest, OAuthClientSnapshot.of(clientConfig).getSigningKey(), maxPayloadLength);
+            } catch (GeneralSecurityException e) {
                 String message = "Signed request verification failed";
                 if (logger.isDebugEnabled()) {
-                    logger.debug(String.format("%s: signed_request=%s", message, signedRequest), e);
+                    logger.debug(String.format("%s: length=%d", message, signedRequest.length()), e);
                 }
+                audit(Mechanism.SIGNED_REQUEST, Outcome.FAILURE, null, null, startNanos, message);
                 response.sendError(HttpServletResponse.SC_BAD_REQUEST, message);
                 return;
             }
 
+            if (!checkReplay(Mechanism.SIGNED_REQUEST, signedRequest, canvasRequest.getIssuedAt(), request, response, startNanos)) {
+                return;
+            }
+
+            String userId = canvasRequest.getContext().getUserContext().getUserId();
+            String instanceUrl = canvasRequest.getClient().getInstanceUrl();
+            if (!acquireForUser(userId, instanceUrl, response)) {
+                return;
+            }
+
+            String accessToken = canvasRequest.getClient().getOAuthToken();
             ForceAuthenticationToken authenticationToken =
-                new ForceAuthenticationToken(
-                    canvasRequest.getContext().getUserContext().getUserId(),
-                    canvasRequest.getClient().getOAuthToken(),
-                    canvasRequest.getClient().getInstanceUrl(),
-                    AUTHORITIES);
+                resolveAuthorities(new ForceAuthenticationToken(userId, accessToken, instanceUrl, AUTHORITIES));
             authenticationToken.setAuthenticated(true);
             SecurityContextHolder.getContext().setAuthentication(authenticationToken);
+            AuthenticationTrace.mark(Phase.SECURITY_CONTEXT);
+            shareAuthentication(authenticationToken, request, response);
+            audit(Mechanism.SIGNED_REQUEST, Outcome.SUCCESS, userId, instanceUrl, startNanos, null);
+
+            if (identityProfileLoader != null) {
+                identityProfileLoader.putProfile(authenticationToken, toIdentityProfile(canvasRequest));
+            }
+            CanvasOrganizationContext organization = canvasRequest.getContext().getOrganizationContext();
+            if (router != null && organization != null) {
+                router.learn(organization.getOrganizationId(), instanceUrl);
+            }
 
             Map<String, Object> signedParameters = canvasRequest.getContext().getEnvironmentContext().getParameters();
             request.setAttribute(SIGNED_PARAMETERS, signedParameters);
 
             if (logger.isDebugEnabled()) {
                 logger.debug(String.format(
-                    "Signed request authentication successful: %s",
-                    SignedRequest.verifyAndDecodeAsJson(signedRequest, clientConfig.getClientSecret())));
+                    "Signed request authentication established: userId=%s, accessToken=%s, instanceUrl=%s",
+                    userId, AuthenticationUtils.maskToken(accessToken), instanceUrl));
             }
         }
 
         chain.doFilter(request, response);
     }
+
+    private static IdentityProfile toIdentityProfile(CanvasRequest canvasRequest) {
+        CanvasUserContext user = canvasRequest.getContext().getUserContext();
+        CanvasOrganizationContext organization = canvasRequest.getContext().getOrganizationContext();
+        return new IdentityProfile(
+            user.getUserId(),
+            (organization != null) ? organization.getOrganizationId() : null,
+            user.getUserName(),
+            user.getFullName(),
+            user.getLocale(),
+            user.getTimeZone(),
+            user.getProfileId());
+    }
 }
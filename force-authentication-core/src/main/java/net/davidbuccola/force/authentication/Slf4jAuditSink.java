@@ -0,0 +1,88 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * An {@link AuditSink} that writes events to an SLF4J logger at INFO level.
+ * <p/>
+ * The default logger is <code>net.davidbuccola.force.authentication.audit</code> so that the audit trail can be routed
+ * to its own appender independently of the library's debug logging.
+ * <p/>
+ * The user, org and detail of an event can come from the request, so they are written as quoted strings with
+ * backslashes, quotes and control characters (notably CR and LF) escaped. A crafted value can therefore never start a
+ * new log line or add fields of its own.
+ */
+public class Slf4jAuditSink implements AuditSink {
+    private Logger log = LoggerFactory.getLogger("net.davidbuccola.force.authentication.audit");
+
+    /**
+     * Sets the name of the logger to write to.
+     *
+     * @param loggerName the logger name
+     */
+    public void setLoggerName(String loggerName) {
+        this.log = LoggerFactory.getLogger(loggerName);
+    }
+
+    @Override
+    public void write(List<AuthenticationAuditEvent> events) {
+        if (log.isInfoEnabled()) {
+            for (AuthenticationAuditEvent event : events) {
+                log.info(String.format(
+                    "timestamp=%d mechanism=%s outcome=%s userId=%s org=%s latencyMicros=%d detail=%s",
+                    event.getTimestamp(), event.getMechanism(), event.getOutcome(), quote(event.getUserId()),
+                    quote(event.getOrg()), event.getLatencyMicros(), quote(event.getDetail())));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Quotes a value so that it stays a single field on a single line.
+     *
+     * @param value the value or <code>null</code>
+     * @return the quoted and escaped value, or <code>null</code> unquoted if there is no value
+     */
+    static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    builder.append('\\').append(c);
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (Character.isISOControl(c) || c == '\u2028' || c == '\u2029') {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder.append('"').toString();
+    }
+}
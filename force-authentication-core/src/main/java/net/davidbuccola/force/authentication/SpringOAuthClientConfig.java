@@ -18,7 +18,7 @@ import java.io.Serializable;
  * <p/>
  * This bean is designed to work with Spring so that you can configure using Spring dependency injection.
  */
-public final class SpringOAuthClientConfig implements InitializingBean, Serializable, OAuthClientConfig {
+public final class SpringOAuthClientConfig implements InitializingBean, Serializable, OAuthClientConfig, OAuthClientSnapshotSource {
     private static final long serialVersionUID = -7937127472782784213L;
 
     private String clientId;
@@ -28,6 +28,9 @@ public final class SpringOAuthClientConfig implements InitializingBean, Serializ
     private String display;
     private String prompt;
 
+    private transient volatile OAuthClientSnapshot snapshot;
+    private transient int version; // Guarded by this
+
     @Override
     public String getClientId() {
         return clientId;
@@ -65,8 +68,9 @@ public final class SpringOAuthClientConfig implements InitializingBean, Serializ
      *
      * @param clientId the client identifier
      */
-    public void setClientId(String clientId) {
+    public synchronized void setClientId(String clientId) {
         this.clientId = clientId;
+        changed();
     }
 
     /**
@@ -76,8 +80,9 @@ public final class SpringOAuthClientConfig implements InitializingBean, Serializ
      *
      * @param clientSecret the client secret
      */
-    public void setClientSecret(String clientSecret) {
+    public synchronized void setClientSecret(String clientSecret) {
         this.clientSecret = clientSecret;
+        changed();
     }
 
     /**
@@ -85,8 +90,9 @@ public final class SpringOAuthClientConfig implements InitializingBean, Serializ
      *
      * @param serverURL the URL of the OAuth server
      */
-    public void setServerURL(String serverURL) {
+    public synchronized void setServerURL(String serverURL) {
         this.serverURL = serverURL;
+        changed();
     }
 
     /**
@@ -96,8 +102,9 @@ public final class SpringOAuthClientConfig implements InitializingBean, Serializ
      *
      * @param scope the client scope
      */
-    public void setScope(String scope) {
+    public synchronized void setScope(String scope) {
         this.scope = scope;
+        changed();
     }
 
     /**
@@ -105,8 +112,9 @@ public final class SpringOAuthClientConfig implements InitializingBean, Serializ
      *
      * @param display the login display type.
      */
-    public void setDisplay(String display) {
+    public synchronized void setDisplay(String display) {
         this.display = display;
+        changed();
     }
 
     /**
@@ -114,8 +122,46 @@ public final class SpringOAuthClientConfig implements InitializingBean, Serializ
      *
      * @param prompt the prompt settings.
      */
-    public void setPrompt(String prompt) {
+    public synchronized void setPrompt(String prompt) {
         this.prompt = prompt;
+        changed();
+    }
+
+    /**
+     * Gets a snapshot of the configuration. The snapshot is built once and rebuilt only if a property is changed.
+     * <p/>
+     * Every setter bumps a version number. A snapshot is only cached if the version didn't change while it was being
+     * built, so a snapshot of the old values can never be cached after a property has changed.
+     *
+     * @return the snapshot
+     */
+    @Override
+    public OAuthClientSnapshot getSnapshot() {
+        OAuthClientSnapshot currentSnapshot = snapshot;
+        if (currentSnapshot == null) {
+            int builtVersion = getVersion(); // Read first, so the values read by the build are at least this recent
+            currentSnapshot = OAuthClientSnapshot.build(this);
+            publish(currentSnapshot, builtVersion);
+        }
+        return currentSnapshot;
+    }
+
+    private synchronized int getVersion() {
+        return version;
+    }
+
+    private synchronized void publish(OAuthClientSnapshot builtSnapshot, int builtVersion) {
+        if (version == builtVersion) {
+            snapshot = builtSnapshot;
+        }
+    }
+
+    /**
+     * Called with the lock held after a property has been set.
+     */
+    private void changed() {
+        version++;
+        snapshot = null;
     }
 
     @Override
@@ -136,7 +182,7 @@ public final class SpringOAuthClientConfig implements InitializingBean, Serializ
         if (this == o) {
             return true;
         }
-        if (!(o instanceof OAuthClientConfig)) {
+        if (!(o instanceof SpringOAuthClientConfig)) {
             return false;
         }
         SpringOAuthClientConfig that = (SpringOAuthClientConfig) o;
@@ -164,6 +210,6 @@ public final class SpringOAuthClientConfig implements InitializingBean, Serializ
 
     @Override
     public String toString() {
-        return ReflectionToStringBuilder.reflectionToString(this);
+        return ReflectionToStringBuilder.toStringExclude(this, new String[]{"snapshot", "version"});
     }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.lang.Validate;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size array of token buckets addressed by key hash.
+ * <p/>
+ * Each bucket is a single <code>long</code> that packs the time of the last update with the number of milli-tokens
+ * consumed and not yet refilled. A zero value means a full bucket so an idle stripe decays back to its initial state
+ * on its own; there is nothing to evict and memory is fixed by the number of stripes. Keys that hash to the same
+ * stripe share a bucket, which errs on the side of limiting slightly early.
+ * <p/>
+ * Decisions are lock-free. A rejected acquire never writes, so a flood of rejected requests doesn't contend.
+ */
+final class TokenBucketStripes {
+    private static final int DEFICIT_BITS = 20;
+    private static final long DEFICIT_MASK = (1L << DEFICIT_BITS) - 1;
+    private static final long MILLI_TOKENS_PER_TOKEN = 1000;
+    private static final int MAX_CAPACITY = (int) (DEFICIT_MASK / MILLI_TOKENS_PER_TOKEN);
+
+    private final AtomicLongArray buckets;
+    private final int mask;
+    private final long capacity;
+    private final long permitsPerSecond;
+    private final long baseNanos = System.nanoTime();
+
+    /**
+     * @param stripes          the number of buckets, rounded up to a power of two
+     * @param permitsPerSecond the sustained refill rate of each bucket
+     * @param burst            the capacity of each bucket
+     */
+    TokenBucketStripes(int stripes, int permitsPerSecond, int burst) {
+        Validate.isTrue(stripes > 0, "stripes must be positive");
+        Validate.isTrue(permitsPerSecond > 0, "permitsPerSecond must be positive");
+        Validate.isTrue(burst > 0 && burst <= MAX_CAPACITY, "burst must be between 1 and " + MAX_CAPACITY);
+
+        int size = Integer.highestOneBit(stripes);
+        if (size < stripes) {
+            size <<= 1;
+        }
+        this.buckets = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.capacity = burst * MILLI_TOKENS_PER_TOKEN;
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    /**
+     * Tries to take one token from the bucket for a key.
+     *
+     * @param key the key
+     * @return zero if a token was taken, otherwise the number of milliseconds until one will be available
+     */
+    long tryAcquire(Object key) {
+        int index = spread(key.hashCode()) & mask;
+        long now = (System.nanoTime() - baseNanos) / 1000000;
+        while (true) {
+            long state = buckets.get(index);
+            long deficit = state & DEFICIT_MASK;
+            if (deficit > 0) {
+                long elapsed = Math.max(0, now - (state >>> DEFICIT_BITS));
+                deficit = Math.max(0, deficit - elapsed * permitsPerSecond); // 1 permit/s == 1 milli-token/ms
+            }
+
+            long needed = deficit + MILLI_TOKENS_PER_TOKEN - capacity;
+            if (needed > 0) {
+                return (needed + permitsPerSecond - 1) / permitsPerSecond;
+            }
+
+            long update = (now << DEFICIT_BITS) | (deficit + MILLI_TOKENS_PER_TOKEN);
+            if (buckets.compareAndSet(index, state, update)) {
+                return 0;
+            }
+        }
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous queue of access tokens to revoke at Salesforce.
+ * <p/>
+ * Request threads hand tokens to a lock-free bounded ring buffer and return immediately, so that logging out never
+ * waits for Salesforce. A single background thread takes them in batches and revokes them one after the other through
+ * the {@link AbstractOAuthConnector}, whose HTTP client keeps the connections to the login host alive between calls. A
+ * token that fails to be revoked is retried with exponential backoff up to <code>maxAttempts</code> times. If the
+ * buffer fills up, new tokens are dropped (and counted); they still expire on their own.
+ * <p/>
+ * At shutdown the tokens still waiting, including those waiting for a retry, are revoked until the shutdown deadline
+ * passes. Retries no longer wait out their full backoff then, but still wait <code>initialBackoffMillis</code> after
+ * their last attempt, so that a login host that is down is not hammered. Whatever is left at the deadline is abandoned
+ * and logged.
+ */
+@ManagedResource(description = "Salesforce access token revocation queue")
+public class TokenRevocationQueue implements InitializingBean, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(TokenRevocationQueue.class);
+
+    @Autowired
+    private AbstractOAuthConnector connector;
+
+    private int capacity = 4096;
+    private int batchSize = 64;
+    private long idleMillis = 100;
+    private int maxAttempts = 5;
+    private long initialBackoffMillis = 1000;
+    private long maxBackoffMillis = 60 * 1000;
+    private long shutdownTimeoutMillis = 5000;
+
+    private BoundedRingBuffer<Revocation> buffer;
+    private Thread worker;
+    private volatile boolean running;
+    private volatile long deadlineNanos;
+
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong revokedCount = new AtomicLong();
+    private final AtomicLong retriedCount = new AtomicLong();
+    private final AtomicLong abandonedCount = new AtomicLong();
+    private final AtomicInteger retryingCount = new AtomicInteger();
+
+    /**
+     * Sets the connector that revokes the tokens.
+     * <p/>
+     * This is only needed when the bean is wired explicitly instead of by autowiring.
+     *
+     * @param connector the connector
+     */
+    public void setConnector(AbstractOAuthConnector connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * Sets the maximum number of tokens that can be waiting to be revoked. The default is 4096.
+     *
+     * @param capacity the capacity, rounded up to a power of two
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Sets the maximum number of tokens taken from the queue at once. The default is 64.
+     *
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the number of times revoking a token is attempted before giving up. The default is 5.
+     *
+     * @param maxAttempts the maximum number of attempts
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Sets how long to wait before the first retry. Each further retry waits twice as long. The default is 1 second.
+     *
+     * @param initialBackoffMillis the time in milliseconds
+     */
+    public void setInitialBackoffMillis(long initialBackoffMillis) {
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    /**
+     * Sets the longest wait between retries. The default is 1 minute.
+     *
+     * @param maxBackoffMillis the time in milliseconds
+     */
+    public void setMaxBackoffMillis(long maxBackoffMillis) {
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Sets how long shutdown keeps revoking the tokens still waiting. The default is 5 seconds.
+     *
+     * @param shutdownTimeoutMillis the timeout in milliseconds
+     */
+    public void setShutdownTimeoutMillis(long shutdownTimeoutMillis) {
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (connector == null) {
+            throw new BeanInitializationException("connector is not set");
+        }
+        if (maxAttempts < 1) {
+            throw new BeanInitializationException("maxAttempts must be at least 1");
+        }
+
+        buffer = new BoundedRingBuffer<Revocation>(capacity);
+        running = true;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                revokeTokens();
+            }
+        }, "force-authentication-revocation");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMillis);
+        running = false;
+        LockSupport.unpark(worker);
+        worker.join(shutdownTimeoutMillis + idleMillis);
+        if (worker.isAlive()) {
+            log.warn(String.format("Token revocation did not finish within %d ms", shutdownTimeoutMillis));
+        }
+    }
+
+    /**
+     * Queues a token to be revoked. This never blocks.
+     *
+     * @param loginUrl    the base URL of the login host or <code>null</code> to use the configured server URL
+     * @param accessToken the access token
+     * @return <code>true</code> if the token was queued, <code>false</code> if it was dropped because the queue is full
+     */
+    public boolean revoke(String loginUrl, String accessToken) {
+        if (buffer.offer(new Revocation(loginUrl, accessToken))) {
+            queuedCount.incrementAndGet();
+            LockSupport.unpark(worker);
+            return true;
+        } else {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    @ManagedAttribute(description = "Number of tokens queued for revocation")
+    public long getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of tokens dropped because the queue was full")
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of tokens revoked")
+    public long getRevokedCount() {
+        return revokedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of failed revocations that were retried")
+    public long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of tokens given up on after the last attempt or at shutdown")
+    public long getAbandonedCount() {
+        return abandonedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of tokens waiting to be revoked, including retries")
+    public int getPendingCount() {
+        return buffer.size() + retryingCount.get();
+    }
+
+    private void revokeTokens() {
+        List<Revocation> batch = new ArrayList<Revocation>(batchSize);
+        List<Revocation> retries = new ArrayList<Revocation>();
+        Set<String> revokedInBatch = new HashSet<String>();
+        while (running || !buffer.isEmpty() || !retries.isEmpty()) {
+            takeDueRetries(retries, batch, System.nanoTime());
+            buffer.drainTo(batch, batchSize);
+            if (batch.isEmpty()) {
+                if (isPastDeadline()) {
+                    abandon(retries, batch);
+                    return;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(idleMillis));
+                continue;
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                if (isPastDeadline()) {
+                    abandon(retries, batch.subList(i, batch.size()));
+                    return;
+                }
+                Revocation revocation = batch.get(i);
+                if (revokedInBatch.add(revocation.accessToken)) { // The same session may have logged out twice
+                    attempt(revocation, retries);
+                }
+            }
+            revokedInBatch.clear();
+            batch.clear();
+            retryingCount.set(retries.size());
+        }
+        retryingCount.set(0);
+    }
+
+    /**
+     * Gives up on the tokens left at the shutdown deadline: those in the rest of the batch, those waiting for a retry
+     * and those still in the buffer.
+     */
+    private void abandon(List<Revocation> retries, List<Revocation> rest) {
+        int remaining = rest.size() + retries.size();
+        List<Revocation> batch = new ArrayList<Revocation>(batchSize);
+        while (buffer.drainTo(batch, batchSize) > 0) {
+            remaining += batch.size();
+            batch.clear();
+        }
+        abandonedCount.addAndGet(remaining);
+        log.warn(String.format("Shutdown deadline passed, %d tokens not revoked", remaining));
+        retryingCount.set(0);
+    }
+
+    private boolean isPastDeadline() {
+        return !running && System.nanoTime() - deadlineNanos >= 0;
+    }
+
+    /**
+     * Moves the retries that are due into the batch. Once shutting down, a retry is due as soon as the initial backoff
+     * has passed since its last attempt.
+     */
+    private void takeDueRetries(List<Revocation> retries, List<Revocation> batch, long now) {
+        long minimumWaitNanos = TimeUnit.MILLISECONDS.toNanos(initialBackoffMillis);
+        Iterator<Revocation> iterator = retries.iterator();
+        while (iterator.hasNext() && batch.size() < batchSize) {
+            Revocation revocation = iterator.next();
+            if (now - revocation.notBeforeNanos >= 0
+                || (!running && now - revocation.attemptedNanos - minimumWaitNanos >= 0)) {
+                batch.add(revocation);
+                iterator.remove();
+            }
+        }
+    }
+
+    private void attempt(Revocation revocation, List<Revocation> retries) {
+        try {
+            connector.revokeToken(revocation.loginUrl, revocation.accessToken);
+            revokedCount.incrementAndGet();
+
+        } catch (RuntimeException e) {
+            revocation.attempts++;
+            revocation.attemptedNanos = System.nanoTime();
+            if (revocation.attempts >= maxAttempts || retries.size() >= capacity) {
+                abandonedCount.incrementAndGet();
+                log.warn(String.format("Giving up revoking token %s after %d attempts",
+                    AuthenticationUtils.maskToken(revocation.accessToken), revocation.attempts), e);
+            } else {
+                long backoffMillis =
+                    Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(30, revocation.attempts - 1));
+                revocation.notBeforeNanos = revocation.attemptedNanos + TimeUnit.MILLISECONDS.toNanos(backoffMillis);
+                retries.add(revocation);
+                retriedCount.incrementAndGet();
+                if (log.isDebugEnabled()) {
+                    log.debug(String.format("Failed to revoke token %s, retrying in %d ms: %s",
+                        AuthenticationUtils.maskToken(revocation.accessToken), backoffMillis, e.getMessage()));
+                }
+            }
+        }
+    }
+
+    /**
+     * A token to revoke. Only the background thread changes it after it has been queued.
+     */
+    private static final class Revocation {
+        private final String loginUrl;
+        private final String accessToken;
+        private int attempts;
+        private long attemptedNanos;
+        private long notBeforeNanos;
+
+        private Revocation(String loginUrl, String accessToken) {
+            this.loginUrl = loginUrl;
+            this.accessToken = accessToken;
+        }
+    }
+}
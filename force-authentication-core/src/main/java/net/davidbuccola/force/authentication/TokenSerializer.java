@@ -0,0 +1,60 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.lang.StringUtils;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A compact binary form of {@link ForceAuthenticationToken} for the token stores. It is much smaller and cheaper than
+ * Java serialization and doesn't depend on the class layout. Authorities are interned when read back.
+ */
+final class TokenSerializer {
+
+    private TokenSerializer() {
+        throw new UnsupportedOperationException("Can not be instantiated");
+    }
+
+    static byte[] serialize(ForceAuthenticationToken token) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeUTF(token.getUserId());
+        output.writeUTF(token.getAccessToken());
+        output.writeUTF(token.getInstanceUrl());
+        output.writeUTF(StringUtils.defaultString(token.getIdentityUrl()));
+        output.writeShort(token.getAuthorities().size());
+        for (GrantedAuthority authority : token.getAuthorities()) {
+            output.writeUTF(authority.getAuthority());
+        }
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    static ForceAuthenticationToken deserialize(byte[] bytes) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        String userId = input.readUTF();
+        String accessToken = input.readUTF();
+        String instanceUrl = input.readUTF();
+        String identityUrl = StringUtils.defaultIfEmpty(input.readUTF(), null);
+        int authorityCount = input.readUnsignedShort();
+        List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>(authorityCount);
+        for (int i = 0; i < authorityCount; i++) {
+            authorities.add(new SimpleGrantedAuthority(input.readUTF()));
+        }
+        Collection<GrantedAuthority> interned = AuthoritySets.intern(authorities);
+        return new ForceAuthenticationToken(userId, accessToken, instanceUrl, identityUrl, interned);
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.web.filter.GenericFilterBean;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A filter that records the anonymized shape of authentication traffic to a compact binary file, for replay with
+ * <code>TrafficReplayer</code> from the test sources.
+ * <p/>
+ * It belongs in front of the authentication filters. For each sampled request it records the mechanism, which
+ * headers, parameters and cookies were present, their lengths, and canvas payloads with every string replaced by a
+ * pseudonym (see {@link CapturedRequest}). Requests matched by the {@link PathExclusionMatcher}, if there is one, are
+ * skipped like the authentication filters skip them. Tokens, codes and secrets are never written. Records are handed
+ * to a background writer through a lock-free bounded buffer and dropped if it falls behind, so capturing never slows
+ * requests down by more than the anonymization itself.
+ * <p/>
+ * Capturing is opt-in: it only happens if this filter is declared, and it can be switched off and on over JMX. It
+ * stops by itself after <code>maxRecords</code> records.
+ */
+@ManagedResource(description = "Salesforce authentication traffic capture")
+public class TrafficCaptureFilter extends GenericFilterBean {
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    @Autowired
+    private OAuthClientConfig clientConfig;
+
+    @Autowired(required = false)
+    private PathExclusionMatcher exclusionMatcher;
+
+    private File file;
+    private volatile boolean enabled = true;
+    private double sampleRate = 1.0;
+    private long maxRecords = 1000000;
+    private int capacity = 8192;
+    private int batchSize = 256;
+    private long idleMillis = 100;
+    private long shutdownTimeoutMillis = 5000;
+    private int maxPayloadLength = SignedParametersUtil.DEFAULT_MAX_LENGTH;
+
+    private TrafficPseudonymizer pseudonymizer;
+    private BoundedRingBuffer<CapturedRequest> buffer;
+    private DataOutputStream output;
+    private long startMillis;
+    private Thread writer;
+    private volatile boolean running;
+
+    private final AtomicLong capturedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * Sets the OAuth client configuration, whose secret is used to verify canvas payloads before they are captured.
+     * <p/>
+     * This is only needed when the bean is wired explicitly instead of by autowiring.
+     *
+     * @param clientConfig the OAuth client configuration
+     */
+    public void setClientConfig(OAuthClientConfig clientConfig) {
+        this.clientConfig = clientConfig;
+    }
+
+    /**
+     * Sets the matcher of requests that the authentication filters pass through, which are not captured either. The
+     * default is to consider every request.
+     *
+     * @param exclusionMatcher the exclusion matcher
+     */
+    public void setExclusionMatcher(PathExclusionMatcher exclusionMatcher) {
+        this.exclusionMatcher = exclusionMatcher;
+    }
+
+    /**
+     * Sets the file that the capture is written to. This is required. An existing file is replaced.
+     *
+     * @param file the file
+     */
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Sets the fraction of requests that are captured. The default is 1.0 (all of them).
+     *
+     * @param sampleRate the sample rate, between 0 and 1
+     */
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Sets the number of records after which capturing stops. The default is 1000000.
+     *
+     * @param maxRecords the maximum number of records
+     */
+    public void setMaxRecords(long maxRecords) {
+        this.maxRecords = maxRecords;
+    }
+
+    /**
+     * Sets the maximum number of records that can be waiting to be written. The default is 8192.
+     *
+     * @param capacity the capacity, rounded up to a power of two
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Sets the maximum length of canvas payloads that are decoded and captured. Longer ones are captured as their
+     * length only. The default is 65536, the same as the filters.
+     *
+     * @param maxPayloadLength the maximum length
+     */
+    public void setMaxPayloadLength(int maxPayloadLength) {
+        this.maxPayloadLength = maxPayloadLength;
+    }
+
+    /**
+     * Sets how long shutdown waits for pending records to be written. The default is 5 seconds.
+     *
+     * @param shutdownTimeoutMillis the timeout in milliseconds
+     */
+    public void setShutdownTimeoutMillis(long shutdownTimeoutMillis) {
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+    }
+
+    @ManagedAttribute(description = "Whether requests are being captured")
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Switches capturing on or off. The default is on.
+     *
+     * @param enabled whether to capture
+     */
+    @ManagedAttribute(description = "Whether requests are being captured")
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    protected void initFilterBean() {
+        if (file == null) {
+            throw new BeanInitializationException("file is not set");
+        }
+        if (clientConfig == null) {
+            throw new BeanInitializationException("clientConfig is not set");
+        }
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new BeanInitializationException("sampleRate must be between 0 and 1");
+        }
+
+        byte[] key = new byte[32];
+        secureRandom.nextBytes(key);
+        pseudonymizer = new TrafficPseudonymizer(key);
+        buffer = new BoundedRingBuffer<CapturedRequest>(capacity);
+        startMillis = System.currentTimeMillis();
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            output.writeInt(CapturedRequest.MAGIC);
+            output.writeInt(CapturedRequest.VERSION);
+            output.writeLong(startMillis);
+            output.flush();
+        } catch (IOException e) {
+            throw new BeanInitializationException("Failed to create capture file " + file, e);
+        }
+
+        running = true;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        }, "force-authentication-capture");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void destroy() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(shutdownTimeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            logger.warn(String.format("Capture writer did not finish within %d ms, %d records lost", shutdownTimeoutMillis, buffer.size()));
+            return; // Still writing, so leave the file to it
+        }
+        try {
+            output.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close capture file " + file, e);
+        }
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) req;
+        if (enabled && (exclusionMatcher == null || !exclusionMatcher.matches(request))
+            && (sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate)) {
+            capture(request);
+        }
+        chain.doFilter(req, res);
+    }
+
+    @ManagedAttribute(description = "Number of requests captured")
+    public long getCapturedCount() {
+        return capturedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of records dropped because the buffer was full")
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of records written to the file")
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of records lost because the file couldn't be written")
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    private void capture(HttpServletRequest request) {
+        if (capturedCount.incrementAndGet() > maxRecords) {
+            enabled = false;
+            capturedCount.decrementAndGet();
+            return;
+        }
+        try {
+            int offsetMillis = (int) Math.min(Integer.MAX_VALUE, System.currentTimeMillis() - startMillis);
+            CapturedRequest captured = CapturedRequest.capture(request, offsetMillis,
+                OAuthClientSnapshot.of(clientConfig).getSigningKey(), maxPayloadLength, pseudonymizer);
+            if (!buffer.offer(captured)) {
+                droppedCount.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            failedCount.incrementAndGet();
+            logger.warn("Failed to capture request", e); // Never let capturing break a request
+        }
+    }
+
+    private void writeRecords() {
+        List<CapturedRequest> batch = new ArrayList<CapturedRequest>(batchSize);
+        while (running || !buffer.isEmpty()) {
+            if (buffer.drainTo(batch, batchSize) == 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(idleMillis));
+                continue;
+            }
+            try {
+                for (CapturedRequest captured : batch) {
+                    captured.writeTo(output);
+                }
+                output.flush();
+                writtenCount.addAndGet(batch.size());
+            } catch (IOException e) {
+                failedCount.addAndGet(batch.size());
+                logger.error(String.format("Failed to write %d capture records", batch.size()), e);
+            }
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Replaces captured values with pseudonyms of the same shape.
+ * <p/>
+ * Every letter becomes a random lower case letter and every digit a random digit, while punctuation is kept, so
+ * lengths and the structure of URLs, e-mail addresses and the like survive but the content doesn't. Salesforce IDs
+ * become other valid IDs with the same key prefix. The random choices are seeded with a keyed hash of the value, so
+ * the same value always gets the same pseudonym within a capture (keeping the mix of distinct users, orgs and clients)
+ * while the key, which is never written, makes pseudonyms of different captures unrelated and irreversible.
+ */
+final class TrafficPseudonymizer {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final char[] LETTERS = "abcdefghijklmnopqrstuvwxyz".toCharArray();
+    private static final char[] ID_DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+    private static final String[] SCHEMES = {"https://", "http://"};
+
+    /**
+     * Fields whose values are structural rather than data and are needed to replay a payload.
+     */
+    private static final Set<String> PRESERVED_FIELDS = new HashSet<String>(Arrays.asList("algorithm", "issuedAt"));
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final SecretKeySpec key;
+
+    /**
+     * @param key the secret that seeds the pseudonyms
+     */
+    TrafficPseudonymizer(byte[] key) {
+        this.key = new SecretKeySpec(key, MAC_ALGORITHM);
+    }
+
+    /**
+     * Gets the pseudonym of a value.
+     *
+     * @return the pseudonym or <code>null</code> if the value is <code>null</code>
+     */
+    String pseudonymize(String value) {
+        if (value == null) {
+            return null;
+        }
+        Random random = new Random(seed(value));
+        if (SalesforceId.parse(value) != null) {
+            return pseudonymizeId(value, random);
+        }
+
+        StringBuilder builder = new StringBuilder(value.length());
+        int start = 0;
+        for (String scheme : SCHEMES) {
+            if (value.regionMatches(true, 0, scheme, 0, scheme.length())) {
+                builder.append(scheme);
+                start = scheme.length();
+                break;
+            }
+        }
+        for (int i = start; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isLetter(c)) {
+                builder.append(LETTERS[random.nextInt(LETTERS.length)]);
+            } else if (Character.isDigit(c)) {
+                builder.append((char) ('0' + random.nextInt(10)));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Gets the pseudonym of a client address, which is always an address in the private 10.0.0.0/8 range.
+     */
+    String pseudonymizeAddress(String address) {
+        if (address == null) {
+            return null;
+        }
+        Random random = new Random(seed(address));
+        return "10." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+    }
+
+    /**
+     * Pseudonymizes every string in a JSON document, except the values of the few fields needed to replay it. Numbers,
+     * booleans and the structure of the document are kept.
+     *
+     * @param json the JSON document
+     * @return the pseudonymized document
+     */
+    byte[] pseudonymizeJson(byte[] json) throws IOException {
+        return objectMapper.writeValueAsBytes(pseudonymizeNode(objectMapper.readTree(json)));
+    }
+
+    private JsonNode pseudonymizeNode(JsonNode node) {
+        if (node.isTextual()) {
+            return new TextNode(pseudonymize(node.textValue()));
+
+        } else if (node.isObject()) {
+            ObjectNode object = (ObjectNode) node;
+            Iterator<Map.Entry<String, JsonNode>> fields = object.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                if (!PRESERVED_FIELDS.contains(field.getKey())) {
+                    field.setValue(pseudonymizeNode(field.getValue()));
+                }
+            }
+
+        } else if (node.isArray()) {
+            ArrayNode array = (ArrayNode) node;
+            for (int i = 0; i < array.size(); i++) {
+                array.set(i, pseudonymizeNode(array.get(i)));
+            }
+        }
+        return node;
+    }
+
+    private static String pseudonymizeId(String id, Random random) {
+        char[] chars = new char[15];
+        id.getChars(0, 3, chars, 0); // Keep the key prefix, which tells the type of record
+        for (int i = 3; i < chars.length; i++) {
+            chars[i] = ID_DIGITS[random.nextInt(ID_DIGITS.length)];
+        }
+        String shortId = new String(chars);
+        return (id.length() == 18) ? SalesforceId.valueOf(shortId).toString() : shortId;
+    }
+
+    private long seed(String value) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            return ByteBuffer.wrap(mac.doFinal(value.getBytes(UTF8))).getLong();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e); // Every JRE is required to have it
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+import org.springframework.security.web.context.SaveContextOnUpdateOrErrorResponseWrapper;
+import org.springframework.security.web.context.SecurityContextRepository;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A <code>SecurityContextRepository</code> that keeps {@link ForceAuthenticationToken} authentications in an external
+ * {@link SecurityContextStore} and writes to it behind the request.
+ * <p/>
+ * The standard session-based repository writes the whole context back to the session at the end of every request that
+ * authenticated, which with an external session store means a store write even when the token is the same one the
+ * user already had. This repository instead:
+ * <ul>
+ * <li>skips the write when the token is unchanged (same user, access token, instance and authorities),</li>
+ * <li>coalesces writes per session, so only the latest token of a session is written, and</li>
+ * <li>writes asynchronously, in batches, from a single background thread.</li>
+ * </ul>
+ * Sessions are identified by a random key kept in a cookie. A new key is issued whenever a user logs in or the user of
+ * the session changes, and the old key is removed. Reads on this node see pending writes immediately; other nodes see
+ * them after the next flush, so the flush interval should be short unless sessions are sticky. Other kinds of
+ * authentication are not stored.
+ */
+@ManagedResource(description = "Write-behind Salesforce security context repository")
+public class WriteBehindSecurityContextRepository implements SecurityContextRepository, InitializingBean, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindSecurityContextRepository.class);
+    private static final SecureRandom secureRandom = new SecureRandom();
+    private static final String LOADED_ATTRIBUTE = WriteBehindSecurityContextRepository.class.getName() + ".LOADED";
+    private static final Object REMOVED = new Object();
+
+    /**
+     * The name of the cookie that holds the session key.
+     */
+    public static final String COOKIE_NAME = "force_context_session";
+
+    private SecurityContextStore store;
+    private long flushIntervalMillis = 200;
+    private int batchSize = 256;
+    private long shutdownTimeoutMillis = 5000;
+
+    private final ConcurrentMap<String, Object> pending = new ConcurrentHashMap<String, Object>();
+    private final ConcurrentMap<String, Object> writing = new ConcurrentHashMap<String, Object>();
+    private Thread writer;
+    private volatile boolean running;
+
+    private final AtomicLong savedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * Sets the store. This is required.
+     *
+     * @param store the store
+     */
+    public void setStore(SecurityContextStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Sets how long changes are collected before they are written. The default is 200 milliseconds.
+     *
+     * @param flushIntervalMillis the interval in milliseconds
+     */
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    /**
+     * Sets the maximum number of changes handed to the store at once. Reaching it also triggers an early flush. The
+     * default is 256.
+     *
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets how long shutdown waits for pending changes to be written. The default is 5 seconds.
+     *
+     * @param shutdownTimeoutMillis the timeout in milliseconds
+     */
+    public void setShutdownTimeoutMillis(long shutdownTimeoutMillis) {
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (store == null) {
+            throw new BeanInitializationException("store is not set");
+        }
+
+        running = true;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeChanges();
+            }
+        }, "force-authentication-context-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join(shutdownTimeoutMillis);
+        if (writer.isAlive()) {
+            log.warn(String.format("Security context writer did not finish within %d ms, %d changes lost",
+                shutdownTimeoutMillis, pending.size()));
+        }
+    }
+
+    @Override
+    public SecurityContext loadContext(HttpRequestResponseHolder requestResponseHolder) {
+        HttpServletRequest request = requestResponseHolder.getRequest();
+        Loaded loaded = new Loaded(getSessionKey(request));
+        if (loaded.sessionKey != null) {
+            loaded.token = load(loaded.sessionKey);
+        }
+        request.setAttribute(LOADED_ATTRIBUTE, loaded);
+
+        requestResponseHolder.setResponse(new SaveOnCommitResponseWrapper(requestResponseHolder.getResponse(), request));
+
+        SecurityContext context = SecurityContextHolder.createEmptyContext();
+        if (loaded.token != null) {
+            context.setAuthentication(loaded.token);
+        }
+        return context;
+    }
+
+    @Override
+    public void saveContext(SecurityContext context, HttpServletRequest request, HttpServletResponse response) {
+        if (response instanceof SaveOnCommitResponseWrapper && ((SaveOnCommitResponseWrapper) response).isContextSaved()) {
+            return; // Already saved when the response was committed
+        }
+        save(context, request, response);
+    }
+
+    @Override
+    public boolean containsContext(HttpServletRequest request) {
+        String sessionKey = getSessionKey(request);
+        return sessionKey != null && load(sessionKey) != null;
+    }
+
+    @ManagedAttribute(description = "Number of changed authentications queued for writing")
+    public long getSavedCount() {
+        return savedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of saves skipped because the authentication had not changed")
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of queued changes replaced by a later change to the same session")
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of changes written to the store")
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of failed store writes (the changes are retried)")
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of changes waiting to be written")
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private ForceAuthenticationToken load(String sessionKey) {
+        Object change = pending.get(sessionKey);
+        if (change == null) {
+            change = writing.get(sessionKey);
+        }
+        if (change != null) {
+            return (change != REMOVED) ? (ForceAuthenticationToken) change : null;
+        }
+        try {
+            return store.load(sessionKey);
+        } catch (RuntimeException e) {
+            log.warn("Failed to load security context", e);
+            return null;
+        }
+    }
+
+    private void save(SecurityContext context, HttpServletRequest request, HttpServletResponse response) {
+        Loaded loaded = (Loaded) request.getAttribute(LOADED_ATTRIBUTE);
+        if (loaded == null) {
+            return; // The context wasn't loaded by this repository
+        }
+
+        Authentication authentication = context.getAuthentication();
+        if (authentication instanceof ForceAuthenticationToken) {
+            ForceAuthenticationToken token = (ForceAuthenticationToken) authentication;
+            if (isUnchanged(loaded.token, token)) {
+                skippedCount.incrementAndGet();
+                return;
+            }
+            if (loaded.token == null || !SalesforceId.isSameId(loaded.token.getUserId(), token.getUserId())) {
+                // A login gets a new key, so that a key planted in the browser beforehand never holds the user's token
+                if (loaded.sessionKey != null) {
+                    enqueue(loaded.sessionKey, REMOVED);
+                }
+                loaded.sessionKey = newSessionKey(request, response);
+            }
+            enqueue(loaded.sessionKey, token);
+            loaded.token = token;
+
+        } else if (loaded.token != null) {
+            enqueue(loaded.sessionKey, REMOVED);
+            loaded.token = null;
+        }
+    }
+
+    private void enqueue(String sessionKey, Object change) {
+        savedCount.incrementAndGet();
+        if (pending.put(sessionKey, change) != null) {
+            coalescedCount.incrementAndGet();
+        }
+        if (pending.size() >= batchSize) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void writeChanges() {
+        Map<String, ForceAuthenticationToken> tokens = new HashMap<String, ForceAuthenticationToken>();
+        List<String> removals = new ArrayList<String>();
+        while (running || !pending.isEmpty()) {
+            if (running) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis));
+            }
+            while (!pending.isEmpty()) {
+                takeBatch(tokens, removals);
+                writeBatch(tokens, removals);
+                tokens.clear();
+                removals.clear();
+            }
+        }
+    }
+
+    /**
+     * Moves up to a batch of changes from pending to writing. A change is only taken if it hasn't been replaced in the
+     * meantime; a replacement stays pending for the next batch.
+     */
+    private void takeBatch(Map<String, ForceAuthenticationToken> tokens, List<String> removals) {
+        Iterator<Map.Entry<String, Object>> changes = pending.entrySet().iterator();
+        while (changes.hasNext() && tokens.size() + removals.size() < batchSize) {
+            Map.Entry<String, Object> change = changes.next();
+            String sessionKey = change.getKey();
+            Object value = change.getValue();
+            writing.put(sessionKey, value);
+            if (!pending.remove(sessionKey, value)) {
+                writing.remove(sessionKey, value);
+                continue;
+            }
+            if (value == REMOVED) {
+                removals.add(sessionKey);
+            } else {
+                tokens.put(sessionKey, (ForceAuthenticationToken) value);
+            }
+        }
+    }
+
+    private void writeBatch(Map<String, ForceAuthenticationToken> tokens, List<String> removals) {
+        try {
+            if (!tokens.isEmpty()) {
+                store.write(tokens);
+            }
+            if (!removals.isEmpty()) {
+                store.remove(removals);
+            }
+            writtenCount.addAndGet(tokens.size() + removals.size());
+
+        } catch (RuntimeException e) {
+            failedCount.addAndGet(tokens.size() + removals.size());
+            log.error(String.format("Failed to write %d security context changes", tokens.size() + removals.size()), e);
+            for (Map.Entry<String, ForceAuthenticationToken> token : tokens.entrySet()) {
+                pending.putIfAbsent(token.getKey(), token.getValue());
+            }
+            for (String sessionKey : removals) {
+                pending.putIfAbsent(sessionKey, REMOVED);
+            }
+            if (running) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis)); // Don't spin on a broken store
+            } else {
+                pending.clear(); // Give up, the store is unavailable at shutdown
+            }
+        } finally {
+            for (Map.Entry<String, ForceAuthenticationToken> token : tokens.entrySet()) {
+                writing.remove(token.getKey(), token.getValue());
+            }
+            for (String sessionKey : removals) {
+                writing.remove(sessionKey, REMOVED);
+            }
+        }
+    }
+
+    private static boolean isUnchanged(ForceAuthenticationToken previous, ForceAuthenticationToken current) {
+        if (previous == current) {
+            return true;
+        }
+        return previous != null
+            && ObjectUtils.equals(previous.getUserId(), current.getUserId())
+            && ObjectUtils.equals(previous.getAccessToken(), current.getAccessToken())
+            && ObjectUtils.equals(previous.getInstanceUrl(), current.getInstanceUrl())
+            && previous.getAuthorities().size() == current.getAuthorities().size()
+            && previous.getAuthorities().containsAll(current.getAuthorities());
+    }
+
+    private static String getSessionKey(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (COOKIE_NAME.equals(cookie.getName())) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String newSessionKey(HttpServletRequest request, HttpServletResponse response) {
+        byte[] random = new byte[32];
+        secureRandom.nextBytes(random);
+        String sessionKey = Base64.encodeBase64URLSafeString(random);
+
+        Cookie cookie = new Cookie(COOKIE_NAME, sessionKey);
+        cookie.setPath(StringUtils.defaultIfEmpty(request.getContextPath(), "/"));
+        cookie.setHttpOnly(true);
+        cookie.setSecure(request.isSecure());
+        response.addCookie(cookie);
+        return sessionKey;
+    }
+
+    /**
+     * What was loaded for the current request, so that saving can tell whether anything changed.
+     */
+    private static final class Loaded {
+        private String sessionKey;
+        private ForceAuthenticationToken token;
+
+        private Loaded(String sessionKey) {
+            this.sessionKey = sessionKey;
+        }
+    }
+
+    /**
+     * Saves the context before the response is committed by a redirect or error, which is the last chance to send the
+     * session cookie.
+     */
+    private final class SaveOnCommitResponseWrapper extends SaveContextOnUpdateOrErrorResponseWrapper {
+        private final HttpServletRequest request;
+
+        private SaveOnCommitResponseWrapper(HttpServletResponse response, HttpServletRequest request) {
+            super(response, false);
+            this.request = request;
+        }
+
+        @Override
+        protected void saveContext(SecurityContext context) {
+            save(context, request, (HttpServletResponse) getResponse());
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.config;
+
+import net.davidbuccola.force.authentication.JerseyOAuthConnector;
+import net.davidbuccola.force.authentication.OAuthAuthenticationEntryPoint;
+import net.davidbuccola.force.authentication.OAuthClientConfig;
+import net.davidbuccola.force.authentication.OAuthFilter;
+import net.davidbuccola.force.authentication.SignedParametersFilter;
+import net.davidbuccola.force.authentication.SignedRequestFilter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * An explicit Spring configuration for the library's beans.
+ * <p/>
+ * This is an alternative to a <code>component-scan</code> of the library package. Scanning has to introspect every
+ * class in the package at startup whereas this configuration wires the filters, the connector and the entry point
+ * directly. The bean names are the same as the ones produced by scanning so the two approaches are interchangeable.
+ * <p/>
+ * It lives outside the library package on purpose, since a <code>component-scan</code> of the library package (which
+ * includes its subpackages) would otherwise pick it up and register every bean a second time. Use one approach or
+ * the other, not both.
+ * <p/>
+ * An {@link OAuthClientConfig} bean must be supplied by the application.
+ */
+@Configuration
+public class ForceAuthenticationConfiguration {
+
+    @Autowired
+    private OAuthClientConfig clientConfig;
+
+    @Bean
+    public JerseyOAuthConnector oauthConnector() {
+        JerseyOAuthConnector connector = new JerseyOAuthConnector();
+        connector.setClientConfig(clientConfig);
+        return connector;
+    }
+
+    @Bean
+    public OAuthFilter oAuthFilter() {
+        OAuthFilter filter = new OAuthFilter();
+        filter.setConnector(oauthConnector());
+        return filter;
+    }
+
+    @Bean
+    public SignedRequestFilter signedRequestFilter() {
+        SignedRequestFilter filter = new SignedRequestFilter();
+        filter.setClientConfig(clientConfig);
+        return filter;
+    }
+
+    @Bean
+    public SignedParametersFilter signedParametersFilter() {
+        SignedParametersFilter filter = new SignedParametersFilter();
+        filter.setClientConfig(clientConfig);
+        return filter;
+    }
+
+    @Bean
+    public OAuthAuthenticationEntryPoint authenticationEntryPoint() {
+        OAuthAuthenticationEntryPoint entryPoint = new OAuthAuthenticationEntryPoint();
+        entryPoint.setConnector(oauthConnector());
+        return entryPoint;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Micro-benchmarks of the hot paths of the filters. These take too long and are too noisy to be unit tests, so they
+ * are run on demand, with <code>gradle benchmark</code>, and each writes a report to a file instead of asserting
+ * anything.
+ * <p/>
+ * It lives in the test sources and is not shipped. Run it from the command line, with the test classes on the class
+ * path, with:
+ * <pre>
+ *     java net.davidbuccola.force.authentication.AuthenticationBenchmarks [report-directory]
+ * </pre>
+ */
+public final class AuthenticationBenchmarks {
+    private static final Logger log = LoggerFactory.getLogger(AuthenticationBenchmarks.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SECRET = "benchmark-secret";
+    private static final int MAX_THREADS = 8;
+
+    private AuthenticationBenchmarks() {
+        throw new UnsupportedOperationException("Can not be instantiated");
+    }
+
+    /**
+     * Runs all the benchmarks and writes their reports to the given directory, <code>build/reports/benchmarks</code>
+     * by default.
+     */
+    public static void main(String[] args) throws Exception {
+        File directory = new File((args.length > 0) ? args[0] : "build/reports/benchmarks");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create report directory: " + directory);
+        }
+
+        writeReport(new File(directory, "signed-parameters-scaling.txt"), measureSignedParametersScaling());
+        writeReport(new File(directory, "authorize-uri.txt"), measureAuthorizeUriBuilding());
+    }
+
+    /**
+     * Measures how signed parameter verification throughput scales with the number of threads.
+     */
+    static String measureSignedParametersScaling() throws Exception {
+        final String signed = SignedPayloads.sign(
+            "{\"userId\":\"005000000000001AAA\",\"algorithm\":\"HMACSHA256\"}", SECRET);
+        final int iterations = 200000;
+
+        StringBuilder report = new StringBuilder("Signed parameter verification scaling:\n");
+        ExecutorService executor = Executors.newFixedThreadPool(MAX_THREADS);
+        try {
+            runThreads(executor, MAX_THREADS, iterations / 10, signed); // Warm up
+            double singleThreadRate = 0;
+            for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+                long elapsedNanos = runThreads(executor, threads, iterations, signed);
+                double rate = threads * iterations / (elapsedNanos / 1e9);
+                if (threads == 1) {
+                    singleThreadRate = rate;
+                }
+                report.append(String.format("  %d thread(s): %,.0f verifications/s (%.2fx)%n",
+                    threads, rate, rate / singleThreadRate));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return report.toString();
+    }
+
+    /**
+     * Measures building the authorize URI from the precompiled prefix against building it with a Jersey
+     * {@link javax.ws.rs.core.UriBuilder}, as was done before.
+     */
+    static String measureAuthorizeUriBuilding() {
+        SpringOAuthClientConfig config = new SpringOAuthClientConfig();
+        config.setClientId("3MVG9client.id");
+        config.setClientSecret(SECRET);
+        config.setServerURL("https://login.example.com");
+        config.setScope("api refresh_token");
+        config.setDisplay("touch");
+        config.afterPropertiesSet();
+        JerseyOAuthConnector connector = new JerseyOAuthConnector();
+        connector.setClientConfig(config);
+        OAuthClientSnapshot snapshot = OAuthClientSnapshot.of(config);
+
+        String callbackUri = "https://app.example.com/oauth";
+        String state = "Zm9vYmFyLXN0YXRlLWlk";
+        String challenge = "E9Melhoa2OwvFrEMTJguCHaoeK1t8URWbuGJSstw-cM";
+        int iterations = 500000;
+
+        long sink = 0;
+        for (int i = 0; i < iterations; i++) { // Warm up both
+            sink += JerseyOAuthConnectorTest.buildWithUriBuilder(snapshot, callbackUri, state, challenge).length();
+            sink += connector.buildAuthorizeUri(null, callbackUri, state, challenge).length();
+        }
+
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += JerseyOAuthConnectorTest.buildWithUriBuilder(snapshot, callbackUri, state, challenge).length();
+        }
+        long uriBuilderNanos = System.nanoTime() - startNanos;
+
+        startNanos = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += connector.buildAuthorizeUri(null, callbackUri, state, challenge).length();
+        }
+        long prefixNanos = System.nanoTime() - startNanos;
+
+        return String.format(
+            "Authorize URI building (%d characters built):%n  UriBuilder: %,d ns/uri%n"
+                + "  precompiled prefix: %,d ns/uri (%.1fx faster)%n",
+            sink, uriBuilderNanos / iterations, prefixNanos / iterations, (double) uriBuilderNanos / prefixNanos);
+    }
+
+    /**
+     * Verifies a payload a number of times on each of a number of threads.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    private static long runThreads(ExecutorService executor, int threads, final int iterations, final String signed)
+        throws Exception {
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int i = 0; i < iterations; i++) {
+                        SignedParametersUtil.verifyAndDecode(signed, SECRET);
+                    }
+                    return null;
+                }
+            }));
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        return System.nanoTime() - startNanos;
+    }
+
+    private static void writeReport(File file, String report) throws IOException {
+        OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(report.getBytes(UTF8));
+        } finally {
+            output.close();
+        }
+        log.info("Wrote " + file);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class AuthenticationRateLimiterTest {
+    private static final String USER_ID = "005000000000001AAA";
+    private static final String OTHER_USER_ID = "005000000000002AAA";
+    private static final String INSTANCE_URL = "https://na1.salesforce.com";
+
+    private AuthenticationRateLimiter rateLimiter;
+
+    @Before
+    public void setUp() {
+        rateLimiter = new AuthenticationRateLimiter();
+        rateLimiter.setUserPermitsPerSecond(1);
+        rateLimiter.setUserBurst(1);
+        rateLimiter.setOrgPermitsPerSecond(1);
+        rateLimiter.setOrgBurst(2);
+        rateLimiter.setTrustedProxies(Arrays.asList("10.0.0.1", "10.0.0.2"));
+        rateLimiter.afterPropertiesSet();
+    }
+
+    @Test
+    public void testRejectedUserDoesNotDrainOrg() {
+        assertThat(rateLimiter.tryAcquireForUser(USER_ID, INSTANCE_URL), is(0L));
+        for (int i = 0; i < 10; i++) {
+            assertThat(rateLimiter.tryAcquireForUser(USER_ID, INSTANCE_URL), is(greaterThan(0L)));
+        }
+        assertThat(rateLimiter.tryAcquireForUser(OTHER_USER_ID, INSTANCE_URL), is(0L));
+        assertThat(rateLimiter.getUserRejectedCount(), is(10L));
+        assertThat(rateLimiter.getOrgRejectedCount(), is(0L));
+    }
+
+    @Test
+    public void testAllowedRequestIsCountedOnce() {
+        assertThat(rateLimiter.tryAcquireForClient("192.0.2.1"), is(0L));
+        assertThat(rateLimiter.tryAcquireForUser(USER_ID, INSTANCE_URL), is(0L));
+        assertThat(rateLimiter.getAllowedCount(), is(1L));
+
+        assertThat(rateLimiter.tryAcquireForClient("192.0.2.1"), is(0L));
+        assertThat(rateLimiter.tryAcquireForUser(USER_ID, INSTANCE_URL), is(greaterThan(0L)));
+        assertThat(rateLimiter.getAllowedCount(), is(1L));
+        assertThat(rateLimiter.getUserRejectedCount(), is(1L));
+    }
+
+    @Test
+    public void testOrgLimit() {
+        assertThat(rateLimiter.tryAcquireForUser(USER_ID, INSTANCE_URL), is(0L));
+        assertThat(rateLimiter.tryAcquireForUser(OTHER_USER_ID, INSTANCE_URL), is(0L));
+        assertThat(rateLimiter.tryAcquireForUser("005000000000003AAA", INSTANCE_URL), is(greaterThan(0L)));
+        assertThat(rateLimiter.getOrgRejectedCount(), is(1L));
+    }
+
+    @Test
+    public void testFifteenAndEighteenCharacterIdsShareBucket() {
+        assertThat(rateLimiter.tryAcquireForUser(USER_ID, null), is(0L));
+        assertThat(rateLimiter.tryAcquireForUser(USER_ID.substring(0, 15), null), is(greaterThan(0L)));
+    }
+
+    @Test
+    public void testClientAddressWithoutProxy() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRemoteAddr("192.0.2.1");
+        request.addHeader("X-Forwarded-For", "198.51.100.1");
+
+        assertThat(rateLimiter.getClientAddress(request), is("192.0.2.1"));
+    }
+
+    @Test
+    public void testClientAddressThroughTrustedProxies() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRemoteAddr("10.0.0.1");
+        request.addHeader("X-Forwarded-For", "203.0.113.9, 198.51.100.1 , 10.0.0.2");
+
+        assertThat(rateLimiter.getClientAddress(request), is("198.51.100.1"));
+    }
+
+    @Test
+    public void testClientAddressFromTrustedProxyWithoutHeader() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRemoteAddr("10.0.0.1");
+
+        assertThat(rateLimiter.getClientAddress(request), is("10.0.0.1"));
+    }
+
+    @Test
+    public void testClientAddressWithEmptyHops() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setRemoteAddr("10.0.0.1");
+        request.addHeader("X-Forwarded-For", "198.51.100.1,,");
+
+        assertThat(rateLimiter.getClientAddress(request), is("198.51.100.1"));
+    }
+}
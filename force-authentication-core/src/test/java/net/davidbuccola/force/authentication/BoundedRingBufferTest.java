@@ -0,0 +1,125 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class BoundedRingBufferTest {
+
+    @Test
+    public void testOfferAndPollInOrder() {
+        BoundedRingBuffer<String> buffer = new BoundedRingBuffer<String>(4);
+        assertThat(buffer.offer("a"), is(true));
+        assertThat(buffer.offer("b"), is(true));
+
+        assertThat(buffer.size(), is(2));
+        assertThat(buffer.poll(), is("a"));
+        assertThat(buffer.poll(), is("b"));
+        assertThat(buffer.poll(), is(nullValue()));
+        assertThat(buffer.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testCapacityIsRoundedUpToPowerOfTwo() {
+        BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<Integer>(3);
+        for (int i = 0; i < 4; i++) {
+            assertThat(buffer.offer(i), is(true));
+        }
+        assertThat(buffer.offer(4), is(false));
+        assertThat(buffer.size(), is(4));
+    }
+
+    @Test
+    public void testWrapsAround() {
+        BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<Integer>(2);
+        for (int i = 0; i < 10; i++) {
+            assertThat(buffer.offer(i), is(true));
+            assertThat(buffer.poll(), is(i));
+        }
+        assertThat(buffer.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testDrainTo() {
+        BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<Integer>(8);
+        for (int i = 0; i < 5; i++) {
+            buffer.offer(i);
+        }
+        List<Integer> drained = new ArrayList<Integer>();
+
+        assertThat(buffer.drainTo(drained, 3), is(3));
+        assertThat(drained, is(Arrays.asList(0, 1, 2)));
+        assertThat(buffer.drainTo(drained, 10), is(2));
+        assertThat(drained, is(Arrays.asList(0, 1, 2, 3, 4)));
+        assertThat(buffer.drainTo(drained, 10), is(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNull() {
+        new BoundedRingBuffer<String>(4).offer(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsZeroCapacity() {
+        new BoundedRingBuffer<String>(0);
+    }
+
+    @Test
+    public void testConcurrentProducersLoseNothing() throws InterruptedException {
+        final BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<Integer>(64);
+        final int producers = 4;
+        final int perProducer = 20000;
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!buffer.offer(base + i)) {
+                            Thread.yield();
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        boolean outOfOrder = false;
+        Set<Integer> received = new HashSet<Integer>();
+        int[] lastPerProducer = new int[producers];
+        Arrays.fill(lastPerProducer, -1);
+        while (received.size() < producers * perProducer) {
+            Integer element = buffer.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            int producer = element / perProducer;
+            if (element <= lastPerProducer[producer]) {
+                outOfOrder = true;
+            }
+            lastPerProducer[producer] = element;
+            received.add(element);
+        }
+        done.await();
+
+        assertThat(received.size(), is(producers * perProducer));
+        assertThat(outOfOrder, is(false));
+        assertThat(buffer.isEmpty(), is(true));
+    }
+}
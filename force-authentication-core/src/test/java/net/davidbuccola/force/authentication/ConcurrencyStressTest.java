@@ -0,0 +1,354 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Hammers the state that request threads share (the per-thread {@link javax.crypto.Mac}s, the shared JSON readers and
+ * the connector's HTTP client) from many threads at once and checks that no thread ever sees another thread's data.
+ * How verification throughput scales with the number of threads is measured by {@link AuthenticationBenchmarks}.
+ */
+public class ConcurrencyStressTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int THREADS = 8;
+    private static final String[] SECRETS = {"secret-one", "secret-two", "secret-three"};
+    private static final String CLIENT_SECRET = SECRETS[0];
+    private static final String INSTANCE_URL = "https://na1.example.com";
+    private static final String BROWSER_NONCE = "browser-nonce";
+
+    private ExecutorService executor;
+    private HttpServer server;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testConcurrentVerificationWithDifferentKeys() throws Exception {
+        runConcurrently(new Task() {
+            @Override
+            public void run(int thread) throws Exception {
+                for (int i = 0; i < 2000; i++) {
+                    String secret = SECRETS[(thread + i) % SECRETS.length];
+                    String userId = String.format("005%03d%09d", thread, i);
+                    String signed = SignedPayloads.sign("{\"userId\":\"" + userId + "\",\"algorithm\":\"HMACSHA256\"}", secret);
+
+                    Map<String, String> parameters = SignedParametersUtil.verifyAndDecode(signed, secret);
+                    assertThat(parameters.get("userId"), is(userId));
+
+                    String wrongSecret = SECRETS[(thread + i + 1) % SECRETS.length];
+                    try {
+                        SignedParametersUtil.verifyAndDecode(signed, wrongSecret);
+                        fail("Payload verified with the wrong key");
+                    } catch (SignatureException e) {
+                        // Expected
+                    }
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testConcurrentJsonReading() throws Exception {
+        runConcurrently(new Task() {
+            @Override
+            public void run(int thread) throws Exception {
+                for (int i = 0; i < 5000; i++) {
+                    String value = thread + ":" + i;
+                    Map<String, String> parameters = SignedParametersUtil.readParameters(
+                        ("{\"a\":\"" + value + "\",\"b\":\"" + i + "\"}").getBytes(UTF8));
+                    assertThat(parameters.get("a"), is(value));
+                    assertThat(parameters.get("b"), is(Integer.toString(i)));
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testConcurrentTokenRequests() throws Exception {
+        final JerseyOAuthConnector connector = newConnector(startTokenServer());
+
+        runConcurrently(new Task() {
+            @Override
+            public void run(int thread) throws Exception {
+                for (int i = 0; i < 50; i++) {
+                    String code = String.format("005%03d%09d", thread, i);
+                    ForceAuthenticationToken token = connector.getToken(code, "https://app.example.com/oauth");
+                    assertThat(token.getUserId(), is(code));
+                    assertThat(token.getAccessToken(), is("token-" + code));
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs valid and invalid requests of every kind through the three filters from many threads at once. Before each
+     * request the thread's security context must be empty, and after it the context must hold the request's own user,
+     * or nothing if the request was rejected.
+     */
+    @Test
+    public void testConcurrentFilterChains() throws Exception {
+        final FilterChains filters = new FilterChains();
+
+        runConcurrently(new Task() {
+            @Override
+            public void run(int thread) throws Exception {
+                for (int i = 0; i < 400; i++) {
+                    String userId = String.format("005%03d%09d", thread, i);
+                    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+                    request.setServletPath("/");
+                    request.setRemoteAddr("10.0.0." + thread);
+                    boolean valid = (i % 2 == 0);
+                    switch ((thread + i / 2) % 4) {
+                        case 0:
+                            request.setParameter(SignedRequestFilter.SIGNED_REQUEST,
+                                SignedPayloads.sign(newCanvasRequest(userId), valid ? CLIENT_SECRET : SECRETS[1]));
+                            break;
+                        case 1:
+                            request.setParameter(SignedRequestFilter.SIGNED_PARAMETERS,
+                                SignedPayloads.sign(newSignedParameters(userId), valid ? CLIENT_SECRET : SECRETS[2]));
+                            break;
+                        case 2:
+                            request.setServletPath(OAuthFilter.CALLBACK_PATH);
+                            request.setParameter("code", userId);
+                            request.setParameter("state", filters.stateStore.save(new OAuthState(
+                                "https://app.example.com/home", null, null, BROWSER_NONCE, System.currentTimeMillis())));
+                            request.setCookies(new Cookie(OAuthFilter.BROWSER_COOKIE_NAME,
+                                valid ? BROWSER_NONCE : "other-browser"));
+                            break;
+                        default:
+                            request.addHeader("Authorization", "OAuth token-" + userId);
+                            request.addHeader("Force-Instance-Url", INSTANCE_URL);
+                            if (valid) {
+                                request.addHeader("Force-User-Id", userId);
+                            }
+                            break;
+                    }
+
+                    assertThat(SecurityContextHolder.getContext().getAuthentication(), is(nullValue()));
+                    MockHttpServletResponse response = new MockHttpServletResponse();
+                    try {
+                        filters.doFilter(request, response);
+                        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+                        if (valid) {
+                            assertThat(((ForceAuthenticationToken) authentication).getUserId(), is(userId));
+                        } else {
+                            assertThat(response.getStatus(), is(HttpServletResponse.SC_BAD_REQUEST));
+                            assertThat(authentication, is(nullValue()));
+                        }
+                    } finally {
+                        SecurityContextHolder.clearContext(); // As the security context persistence filter does
+                    }
+                }
+            }
+        });
+    }
+
+    private void runConcurrently(final Task task) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    task.run(thread);
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Void> future : futures) {
+            future.get(60, TimeUnit.SECONDS); // Rethrows the first failure of each thread
+        }
+    }
+
+    /**
+     * Starts a token endpoint that answers each code with a token for the user whose ID is the code.
+     */
+    private String startTokenServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(OAuthClientSnapshot.TOKEN_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String code = getFormParameter(readFully(exchange.getRequestBody()), "code");
+                byte[] body = String.format(
+                    "{\"id\":\"https://login.example.com/id/00D000000000001AAA/%s\",\"access_token\":\"token-%s\","
+                        + "\"instance_url\":\"https://na1.example.com\"}", code, code).getBytes(UTF8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream output = exchange.getResponseBody();
+                output.write(body);
+                output.close();
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(THREADS));
+        server.start();
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    private static JerseyOAuthConnector newConnector(String serverUrl) {
+        SpringOAuthClientConfig config = new SpringOAuthClientConfig();
+        config.setClientId("client");
+        config.setClientSecret("secret");
+        config.setServerURL(serverUrl);
+        config.afterPropertiesSet();
+
+        JerseyOAuthConnector connector = new JerseyOAuthConnector();
+        connector.setClientConfig(config);
+        return connector;
+    }
+
+    private static String readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count = input.read(buffer);
+        while (count >= 0) {
+            output.write(buffer, 0, count);
+            count = input.read(buffer);
+        }
+        return new String(output.toByteArray(), UTF8);
+    }
+
+    private static String getFormParameter(String form, String name) throws IOException {
+        for (String pair : form.split("&")) {
+            String[] parts = pair.split("=", 2);
+            if (parts[0].equals(name) && parts.length == 2) {
+                return URLDecoder.decode(parts[1], "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    private static String newCanvasRequest(String userId) {
+        return String.format("{\"algorithm\":\"HMACSHA256\",\"issuedAt\":%d,\"userId\":\"%s\","
+            + "\"client\":{\"oauthToken\":\"token-%s\",\"instanceUrl\":\"%s\"},"
+            + "\"context\":{\"user\":{\"userId\":\"%s\"},\"environment\":{\"parameters\":{}}}}",
+            System.currentTimeMillis() / 1000, userId, userId, INSTANCE_URL, userId);
+    }
+
+    private static String newSignedParameters(String userId) {
+        return String.format("{\"userId\":\"%s\",\"accessToken\":\"token-%s\",\"instanceUrl\":\"%s\","
+            + "\"issuedAt\":\"%d\",\"algorithm\":\"HMACSHA256\"}",
+            userId, userId, INSTANCE_URL, System.currentTimeMillis() / 1000);
+    }
+
+    private interface Task {
+        void run(int thread) throws Exception;
+    }
+
+    /**
+     * The three filters, chained in the order they are declared in a Spring Security filter chain and sharing a replay
+     * guard and an OAuth state store. The OAuth token exchange hands out a token for the user whose ID is the code.
+     */
+    private static final class FilterChains {
+        private final SignedRequestFilter signedRequestFilter = new SignedRequestFilter();
+        private final OAuthFilter oAuthFilter = new OAuthFilter();
+        private final SignedParametersFilter signedParametersFilter = new SignedParametersFilter();
+        private final InMemoryOAuthStateStore stateStore = new InMemoryOAuthStateStore();
+
+        private FilterChains() {
+            SpringOAuthClientConfig config = new SpringOAuthClientConfig();
+            config.setClientId("client");
+            config.setClientSecret(CLIENT_SECRET);
+            config.setServerURL("https://login.example.com");
+            config.afterPropertiesSet();
+
+            ReplayGuard replayGuard = new ReplayGuard();
+            replayGuard.afterPropertiesSet();
+
+            signedRequestFilter.setClientConfig(config);
+            signedRequestFilter.setReplayGuard(replayGuard);
+            signedParametersFilter.setClientConfig(config);
+            signedParametersFilter.setReplayGuard(replayGuard);
+            oAuthFilter.setStateStore(stateStore);
+            oAuthFilter.setConnector(new AbstractOAuthConnector() {
+                @Override
+                public String buildAuthorizeUri(String loginUrl, String callbackUri, String state, String codeChallenge) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public ForceAuthenticationToken getToken(String loginUrl, String code, String callbackUri, String codeVerifier) {
+                    return new ForceAuthenticationToken(
+                        code, "token-" + code, INSTANCE_URL, Collections.<GrantedAuthority>emptyList());
+                }
+
+                @Override
+                public void revokeToken(String loginUrl, String accessToken) {
+                }
+            });
+        }
+
+        private void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+            final FilterChain signedParameters = new FilterChain() {
+                @Override
+                public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                    signedParametersFilter.doFilter(request, response, new MockFilterChain());
+                }
+            };
+            final FilterChain oAuth = new FilterChain() {
+                @Override
+                public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                    oAuthFilter.doFilter(request, response, signedParameters);
+                }
+            };
+            signedRequestFilter.doFilter(request, response, oAuth);
+        }
+    }
+}
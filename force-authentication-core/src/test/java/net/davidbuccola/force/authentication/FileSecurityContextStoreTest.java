@@ -0,0 +1,174 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class FileSecurityContextStoreTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File directory;
+    private FileSecurityContextStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("security-contexts").toFile();
+        store = new FileSecurityContextStore();
+        store.setDirectory(directory);
+        store.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void testWriteLoadRemove() {
+        store.write(Collections.singletonMap("session", newToken("token")));
+        assertThat(store.load("session").getAccessToken(), is("token"));
+        assertThat(store.load("other-session"), is(nullValue()));
+
+        store.write(Collections.singletonMap("session", newToken("new-token")));
+        assertThat(store.load("session").getAccessToken(), is("new-token"));
+
+        store.remove(Arrays.asList("session", "other-session"));
+        assertThat(store.load("session"), is(nullValue()));
+    }
+
+    @Test
+    public void testFailedWriteIsReportedAfterTheOtherFiles() throws Exception {
+        block("blocked-session");
+        Map<String, ForceAuthenticationToken> tokens = new LinkedHashMap<String, ForceAuthenticationToken>();
+        tokens.put("blocked-session", newToken("token-1"));
+        tokens.put("session", newToken("token-2"));
+
+        try {
+            store.write(tokens);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), containsString("1 of 2"));
+            assertThat(e.getMessage(), not(containsString("blocked-session"))); // Only the hashed file name
+            assertThat(e.getCause(), is(notNullValue()));
+        }
+        assertThat(store.load("session").getAccessToken(), is("token-2"));
+    }
+
+    @Test
+    public void testFailedRemoveIsReported() throws Exception {
+        block("blocked-session");
+        store.write(Collections.singletonMap("session", newToken("token")));
+
+        try {
+            store.remove(Arrays.asList("blocked-session", "session"));
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), containsString("1 of 2"));
+        }
+        assertThat(store.load("session"), is(nullValue()));
+    }
+
+    @Test
+    public void testFailedWriteIsRetriedByRepository() throws Exception {
+        WriteBehindSecurityContextRepository repository = new WriteBehindSecurityContextRepository();
+        repository.setStore(store);
+        repository.setFlushIntervalMillis(10);
+        repository.afterPropertiesSet();
+        try {
+            deleteRecursively(directory);
+            assertThat(directory.createNewFile(), is(true)); // No file can be created in the directory now
+
+            String sessionKey = save(repository, newToken("token"));
+            waitUntil(repository, true);
+            assertThat(repository.getWrittenCount(), is(0L));
+
+            assertThat(directory.delete() && directory.mkdir(), is(true));
+            waitUntil(repository, false);
+            assertThat(store.load(sessionKey).getAccessToken(), is("token"));
+        } finally {
+            repository.destroy();
+        }
+    }
+
+    /**
+     * Puts a non-empty directory where the file of a session goes, so that it can be neither replaced nor deleted.
+     */
+    private void block(String sessionKey) throws Exception {
+        String fileName = Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(sessionKey.getBytes(UTF8)));
+        File blocker = new File(directory, fileName + ".token");
+        assertThat(new File(blocker, "content").mkdirs(), is(true));
+    }
+
+    private static String save(WriteBehindSecurityContextRepository repository, ForceAuthenticationToken token) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        HttpRequestResponseHolder holder = new HttpRequestResponseHolder(request, response);
+        repository.loadContext(holder);
+
+        SecurityContext context = SecurityContextHolder.createEmptyContext();
+        context.setAuthentication(token);
+        repository.saveContext(context, holder.getRequest(), holder.getResponse());
+        return response.getCookie(WriteBehindSecurityContextRepository.COOKIE_NAME).getValue();
+    }
+
+    /**
+     * Waits until the repository has failed a write, or until it has written everything.
+     */
+    private static void waitUntil(WriteBehindSecurityContextRepository repository, boolean failed) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline
+            && (failed ? repository.getFailedCount() == 0 : repository.getWrittenCount() == 0)) {
+            Thread.sleep(10);
+        }
+        if (failed) {
+            assertThat(repository.getFailedCount() > 0, is(true));
+        } else {
+            assertThat(repository.getWrittenCount(), is(1L));
+        }
+    }
+
+    private static ForceAuthenticationToken newToken(String accessToken) {
+        return new ForceAuthenticationToken(
+            "005000000000001AAA", accessToken, "https://na1.example.com", Collections.<GrantedAuthority>emptyList());
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
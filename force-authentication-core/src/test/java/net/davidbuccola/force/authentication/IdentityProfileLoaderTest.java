@@ -0,0 +1,140 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.core.GrantedAuthority;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class IdentityProfileLoaderTest {
+    private static final String USER_ID = "005000000000001AAA";
+    private static final String OTHER_USER_ID = "005000000000002AAA";
+
+    private IdentityProfileLoader loader;
+    private HttpServer server;
+    private volatile String responseUserId;
+    private volatile int requestCount;
+
+    @Before
+    public void setUp() throws IOException {
+        loader = new IdentityProfileLoader();
+        loader.afterPropertiesSet();
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/id", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requestCount++;
+                byte[] body = String.format("{\"user_id\":\"%s\",\"username\":\"user@example.com\"}", responseUserId)
+                    .getBytes(Charset.forName("UTF-8"));
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream output = exchange.getResponseBody();
+                output.write(body);
+                output.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        loader.destroy();
+        server.stop(0);
+    }
+
+    @Test
+    public void testProfileIsLoadedFromIdentityUrl() {
+        responseUserId = USER_ID;
+
+        IdentityProfile profile = loader.getProfile(newOAuthToken(USER_ID));
+        assertThat(profile.getUserId(), is(USER_ID));
+        assertThat(profile.getUsername(), is("user@example.com"));
+
+        loader.getProfile(newOAuthToken(USER_ID.substring(0, 15)));
+        assertThat(requestCount, is(1));
+    }
+
+    @Test
+    public void testProfileOfAnotherUserIsRejected() {
+        responseUserId = OTHER_USER_ID;
+        try {
+            loader.getProfile(newOAuthToken(USER_ID));
+            fail("Expected OAuthException");
+        } catch (OAuthException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testTokenWithoutIdentityUrlIsNotLoaded() {
+        try {
+            loader.getProfile(newHeaderToken(USER_ID, "header-token"));
+            fail("Expected OAuthException");
+        } catch (OAuthException e) {
+            // Expected
+        }
+        assertThat(requestCount, is(0));
+    }
+
+    @Test
+    public void testTokenWithoutIdentityUrlIsNotServedProfileOfSameUser() {
+        responseUserId = USER_ID;
+        loader.getProfile(newOAuthToken(USER_ID));
+
+        try {
+            loader.getProfile(newHeaderToken(USER_ID, "forged-token"));
+            fail("Expected OAuthException");
+        } catch (OAuthException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testPutProfileIsServedToSameAccessTokenOnly() {
+        ForceAuthenticationToken canvasToken = newHeaderToken(USER_ID, "canvas-token");
+        loader.putProfile(canvasToken, new IdentityProfile(USER_ID, null, "canvas@example.com", null, null, null, null));
+
+        assertThat(loader.getProfile(newHeaderToken(USER_ID, "canvas-token")).getUsername(), is("canvas@example.com"));
+        try {
+            loader.getProfile(newHeaderToken(USER_ID, "forged-token"));
+            fail("Expected OAuthException");
+        } catch (OAuthException e) {
+            // Expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPutProfileOfAnotherUserIsRejected() {
+        loader.putProfile(newHeaderToken(USER_ID, "canvas-token"),
+            new IdentityProfile(OTHER_USER_ID, null, null, null, null, null, null));
+    }
+
+    private ForceAuthenticationToken newOAuthToken(String userId) {
+        String identityUrl = "http://localhost:" + server.getAddress().getPort() + "/id/00D000000000001AAA/" + userId;
+        return new ForceAuthenticationToken(
+            userId, "oauth-token", "https://na1.example.com", identityUrl, Collections.<GrantedAuthority>emptyList());
+    }
+
+    private static ForceAuthenticationToken newHeaderToken(String userId, String accessToken) {
+        return new ForceAuthenticationToken(
+            userId, accessToken, "https://na1.example.com", Collections.<GrantedAuthority>emptyList());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.core.UriBuilder;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+
+public class JerseyOAuthConnectorTest {
+    private static final String CALLBACK_URI = "https://app.example.com/oauth";
+    private static final String STATE = "Zm9vYmFyLXN0YXRlLWlk";
+    private static final String CHALLENGE = "E9Melhoa2OwvFrEMTJguCHaoeK1t8URWbuGJSstw-cM";
+
+    private SpringOAuthClientConfig config;
+    private JerseyOAuthConnector connector;
+
+    @Before
+    public void setUp() {
+        config = new SpringOAuthClientConfig();
+        config.setClientId("3MVG9client.id");
+        config.setClientSecret("secret");
+        config.setServerURL("https://login.example.com");
+        config.setScope("api refresh_token");
+        config.setDisplay("touch");
+        config.afterPropertiesSet();
+
+        connector = new JerseyOAuthConnector();
+        connector.setClientConfig(config);
+    }
+
+    @Test
+    public void testBuildAuthorizeUri() throws Exception {
+        String uri = connector.buildAuthorizeUri(null, CALLBACK_URI, STATE, CHALLENGE);
+
+        assertThat(uri, startsWith("https://login.example.com" + OAuthClientSnapshot.AUTHORIZE_PATH + "?"));
+        Map<String, String> parameters = getQueryParameters(uri);
+        assertThat(parameters.get("response_type"), is("code"));
+        assertThat(parameters.get("client_id"), is("3MVG9client.id"));
+        assertThat(parameters.get("scope"), is("api refresh_token"));
+        assertThat(parameters.get("display"), is("touch"));
+        assertThat(parameters.get("redirect_uri"), is(CALLBACK_URI));
+        assertThat(parameters.get("state"), is(STATE));
+        assertThat(parameters.get("code_challenge"), is(CHALLENGE));
+        assertThat(parameters.get("code_challenge_method"), is(Pkce.CHALLENGE_METHOD));
+    }
+
+    @Test
+    public void testBuildAuthorizeUriWithLoginUrl() {
+        String uri = connector.buildAuthorizeUri("https://acme.my.example.com/", CALLBACK_URI, STATE, null);
+
+        assertThat(uri, startsWith("https://acme.my.example.com" + OAuthClientSnapshot.AUTHORIZE_PATH + "?"));
+    }
+
+    @Test
+    public void testBuildAuthorizeUriKeepsEscapesInCallback() throws Exception {
+        String callbackUri = CALLBACK_URI + "?return=%2Fhome%3Fa%3D1";
+
+        String uri = connector.buildAuthorizeUri(null, callbackUri, STATE, null);
+        assertThat(getQueryParameters(uri).get("redirect_uri"), is(callbackUri));
+    }
+
+    /**
+     * Building the authorize URI from the precompiled prefix must give the same parameters as building it with a Jersey
+     * {@link UriBuilder}, as was done before. {@link AuthenticationBenchmarks} compares how long the two take.
+     */
+    @Test
+    public void testBuildAuthorizeUriMatchesUriBuilder() throws Exception {
+        OAuthClientSnapshot snapshot = OAuthClientSnapshot.of(config);
+        assertThat(getQueryParameters(connector.buildAuthorizeUri(null, CALLBACK_URI, STATE, CHALLENGE)),
+            is(getQueryParameters(buildWithUriBuilder(snapshot, CALLBACK_URI, STATE, CHALLENGE))));
+    }
+
+    /**
+     * Builds the authorize URI with a Jersey {@link UriBuilder}, as was done before the prefix was precompiled.
+     */
+    static String buildWithUriBuilder(OAuthClientSnapshot snapshot, String callbackUri, String state, String codeChallenge) {
+        return UriBuilder.fromUri(snapshot.getAuthorizeEndpoint())
+            .queryParam("response_type", "code")
+            .queryParam("client_id", snapshot.getClientId())
+            .queryParam("scope", snapshot.getScope())
+            .queryParam("display", snapshot.getDisplay())
+            .queryParam("redirect_uri", callbackUri)
+            .queryParam("state", state)
+            .queryParam("code_challenge", codeChallenge)
+            .queryParam("code_challenge_method", Pkce.CHALLENGE_METHOD)
+            .build().toString();
+    }
+
+    private static Map<String, String> getQueryParameters(String uri) throws Exception {
+        Map<String, String> parameters = new HashMap<String, String>();
+        for (String pair : URI.create(uri).getRawQuery().split("&")) {
+            int equals = pair.indexOf('=');
+            parameters.put(pair.substring(0, equals), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+        }
+        return parameters;
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class JwtBearerOAuthConnectorTest {
+    private static final String SUBJECT = "user@example.com";
+    private static final String CLIENT_ID = "3MVG9client";
+
+    private static KeyPair keyPair;
+
+    private StubHttpServer server;
+    private SpringOAuthClientConfig config;
+    private JwtBearerOAuthConnector connector;
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final List<Map<String, String>> forms = new ArrayList<Map<String, String>>();
+    private volatile int status = 200;
+    private volatile long delayMillis;
+
+    @Before
+    public void setUp() throws Exception {
+        if (keyPair == null) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            keyPair = generator.generateKeyPair();
+        }
+
+        server = new StubHttpServer();
+        server.handle(OAuthClientSnapshot.TOKEN_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Map<String, String> form = StubHttpServer.parseForm(StubHttpServer.readBody(exchange));
+                synchronized (forms) {
+                    forms.add(form);
+                }
+                int count = requestCount.incrementAndGet();
+                sleep(delayMillis);
+                if (status == 200) {
+                    StubHttpServer.respond(exchange, 200, String.format(
+                        "{\"id\":\"https://login.example.com/id/00D000000000001AAA/005000000000001AAA\","
+                            + "\"access_token\":\"token-%d\",\"instance_url\":\"https://na1.example.com\"}", count));
+                } else {
+                    StubHttpServer.respond(exchange, status,
+                        "{\"error\":\"invalid_grant\",\"error_description\":\"user hasn't approved this consumer\"}");
+                }
+            }
+        });
+
+        config = new SpringOAuthClientConfig();
+        config.setClientId(CLIENT_ID);
+        config.setClientSecret("secret");
+        config.setServerURL(server.getUrl());
+        config.afterPropertiesSet();
+
+        connector = new JwtBearerOAuthConnector();
+        connector.setClientConfig(config);
+        connector.setPrivateKey(keyPair.getPrivate());
+    }
+
+    @After
+    public void tearDown() {
+        connector.destroy();
+        server.stop();
+    }
+
+    @Test
+    public void testAssertionIsSignedWithRs256AndHasTheClaims() throws Exception {
+        connector.afterPropertiesSet();
+        long before = System.currentTimeMillis() / 1000;
+
+        ForceAuthenticationToken token = connector.getToken(SUBJECT);
+        assertThat(token.getAccessToken(), is("token-1"));
+        assertThat(token.getUserId(), is("005000000000001AAA"));
+
+        Map<String, String> form = forms.get(0);
+        assertThat(form.get("grant_type"), is("urn:ietf:params:oauth:grant-type:jwt-bearer"));
+        String[] parts = form.get("assertion").split("\\.");
+        assertThat(parts.length, is(3));
+
+        ObjectMapper mapper = new ObjectMapper();
+        assertThat(mapper.readTree(Base64.decodeBase64(parts[0])).get("alg").asText(), is("RS256"));
+        JsonNode claims = mapper.readTree(Base64.decodeBase64(parts[1]));
+        assertThat(claims.get("iss").asText(), is(CLIENT_ID));
+        assertThat(claims.get("sub").asText(), is(SUBJECT));
+        assertThat(claims.get("aud").asText(), is(server.getUrl()));
+        assertThat(claims.get("exp").asLong(), is(greaterThan(before)));
+        assertThat(claims.get("exp").asLong(), is(lessThanOrEqualTo(before + 5 * 60)));
+
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initVerify(keyPair.getPublic());
+        signature.update((parts[0] + "." + parts[1]).getBytes(StubHttpServer.UTF8));
+        assertThat(signature.verify(Base64.decodeBase64(parts[2])), is(true));
+    }
+
+    @Test
+    public void testAudienceCanBeSet() throws Exception {
+        connector.setAudience("https://test.example.com");
+        connector.afterPropertiesSet();
+
+        connector.getToken(SUBJECT);
+        String claims = forms.get(0).get("assertion").split("\\.")[1];
+        assertThat(new String(Base64.decodeBase64(claims), StubHttpServer.UTF8),
+            containsString("\"aud\":\"https://test.example.com\""));
+    }
+
+    @Test
+    public void testCachedTokenIsReused() {
+        connector.afterPropertiesSet();
+
+        ForceAuthenticationToken token = connector.getToken(SUBJECT);
+        assertThat(connector.getToken(SUBJECT), is(sameInstance(token)));
+        assertThat(requestCount.get(), is(1));
+
+        assertThat(connector.getToken("other@example.com").getAccessToken(), is("token-2"));
+        connector.invalidate(SUBJECT);
+        assertThat(connector.getToken(SUBJECT).getAccessToken(), is("token-3"));
+    }
+
+    @Test
+    public void testExpiredTokenIsRenewed() {
+        connector.setTokenLifetimeMillis(1);
+        connector.setRenewBeforeExpiryMillis(0);
+        connector.afterPropertiesSet();
+
+        assertThat(connector.getToken(SUBJECT).getAccessToken(), is("token-1"));
+        sleep(10);
+        assertThat(connector.getToken(SUBJECT).getAccessToken(), is("token-2"));
+    }
+
+    @Test
+    public void testTokenIsRenewedInBackgroundBeforeExpiry() {
+        connector.setTokenLifetimeMillis(60 * 1000);
+        connector.setRenewBeforeExpiryMillis(60 * 1000); // Always within the renewal window
+        connector.afterPropertiesSet();
+
+        ForceAuthenticationToken token = connector.getToken(SUBJECT);
+        assertThat(connector.getToken(SUBJECT), is(sameInstance(token))); // Served while the renewal runs
+        waitFor(2);
+        waitForCached("token-2");
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneRequest() throws Exception {
+        connector.afterPropertiesSet();
+        delayMillis = 200;
+
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<ForceAuthenticationToken>> futures = new ArrayList<Future<ForceAuthenticationToken>>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<ForceAuthenticationToken>() {
+                    @Override
+                    public ForceAuthenticationToken call() throws Exception {
+                        start.await();
+                        return connector.getToken(SUBJECT);
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<ForceAuthenticationToken> future : futures) {
+                assertThat(future.get(10, TimeUnit.SECONDS).getAccessToken(), is("token-1"));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(requestCount.get(), is(1));
+    }
+
+    @Test
+    public void testErrorIsPropagated() {
+        connector.afterPropertiesSet();
+        status = 400;
+
+        try {
+            connector.getToken(SUBJECT);
+            fail("Expected OAuthException");
+        } catch (OAuthException e) {
+            assertThat(e.getMessage(), containsString("invalid_grant"));
+        }
+
+        status = 200; // A failure is not cached
+        assertThat(connector.getToken(SUBJECT).getAccessToken(), is("token-2"));
+    }
+
+    @Test
+    public void testUnreachableEndpointIsReportedAsOAuthException() {
+        connector.afterPropertiesSet();
+        server.stop();
+
+        try {
+            connector.getToken(SUBJECT);
+            fail("Expected OAuthException");
+        } catch (OAuthException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testRenewalAfterShutdownServesCachedToken() {
+        connector.setRenewBeforeExpiryMillis(60 * 60 * 1000); // Always within the renewal window
+        connector.afterPropertiesSet();
+        ForceAuthenticationToken token = connector.getToken(SUBJECT);
+        connector.destroy();
+
+        assertThat(connector.getToken(SUBJECT), is(sameInstance(token)));
+        assertThat(connector.getToken(SUBJECT), is(sameInstance(token)));
+        assertThat(requestCount.get(), is(1));
+    }
+
+    @Test
+    public void testRenewalWithoutInitializationServesCachedToken() {
+        connector.setRenewBeforeExpiryMillis(60 * 60 * 1000); // Always within the renewal window
+
+        ForceAuthenticationToken token = connector.getToken(SUBJECT);
+        assertThat(connector.getToken(SUBJECT), is(sameInstance(token)));
+    }
+
+    private void waitFor(int count) {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (requestCount.get() < count && System.currentTimeMillis() < deadline) {
+            sleep(10);
+        }
+        assertThat(requestCount.get(), is(count));
+    }
+
+    private void waitForCached(String accessToken) {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!connector.getToken(SUBJECT).getAccessToken().equals(accessToken)
+            && System.currentTimeMillis() < deadline) {
+            sleep(10);
+        }
+        assertThat(connector.getToken(SUBJECT).getAccessToken(), is(accessToken));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
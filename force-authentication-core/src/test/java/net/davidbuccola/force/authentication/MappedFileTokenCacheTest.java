@@ -0,0 +1,242 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class MappedFileTokenCacheTest {
+    private static final String SECRET = "cache-secret";
+
+    // The layout of the file: a header, then slots that start with a sequence number, key hash, expiry and length
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 2048;
+    private static final int SEQUENCE = 0;
+    private static final int EXPIRES_AT = 16;
+    private static final int ENTRY = 32;
+
+    private File file;
+    private final List<MappedFileTokenCache> caches = new ArrayList<MappedFileTokenCache>();
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("token-cache", ".bin");
+        file.delete(); // Created by the cache
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (MappedFileTokenCache cache : caches) {
+            cache.destroy();
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        MappedFileTokenCache cache = newCache(8192, SECRET);
+        cache.put("session-1", newToken("005000000000001AAA", "token-1"));
+        cache.put("session-2", newToken("005000000000002AAA", "token-2"));
+
+        ForceAuthenticationToken token = cache.get("session-1");
+        assertThat(token.getUserId(), is("005000000000001AAA"));
+        assertThat(token.getAccessToken(), is("token-1"));
+        assertThat(token.getInstanceUrl(), is("https://na1.example.com"));
+        assertThat(new ArrayList<GrantedAuthority>(token.getAuthorities()),
+            is(Arrays.<GrantedAuthority>asList(new SimpleGrantedAuthority("ROLE_USER"))));
+        assertThat(cache.get("session-2").getAccessToken(), is("token-2"));
+        assertThat(cache.get("session-3"), is(nullValue()));
+
+        cache.put("session-1", newToken("005000000000001AAA", "token-1b"));
+        assertThat(cache.get("session-1").getAccessToken(), is("token-1b"));
+
+        cache.remove("session-1");
+        assertThat(cache.get("session-1"), is(nullValue()));
+        assertThat(cache.get("session-2"), is(notNullValue()));
+        assertThat(cache.getHitCount(), is(4L));
+        assertThat(cache.getMissCount(), is(2L));
+        assertThat(cache.getPutCount(), is(3L));
+    }
+
+    @Test
+    public void testEntryExpires() throws Exception {
+        MappedFileTokenCache cache = new MappedFileTokenCache();
+        cache.setFile(file);
+        cache.setSecret(SECRET);
+        cache.setTimeToLiveMillis(50);
+        cache.afterPropertiesSet();
+        caches.add(cache);
+
+        cache.put("session", newToken("005000000000001AAA", "token"));
+        assertThat(cache.get("session"), is(notNullValue()));
+        Thread.sleep(100);
+        assertThat(cache.get("session"), is(nullValue()));
+    }
+
+    @Test
+    public void testEntryClosestToExpiryIsEvictedWhenAllProbedSlotsAreLive() throws Exception {
+        MappedFileTokenCache cache = newCache(8, SECRET); // Every key probes all eight slots
+        for (int i = 0; i < 8; i++) {
+            cache.put("session-" + i, newToken("005000000000001AAA", "token-" + i));
+            Thread.sleep(2); // Distinct expiry times
+        }
+        assertThat(cache.getEvictionCount(), is(0L));
+
+        cache.put("session-8", newToken("005000000000001AAA", "token-8"));
+        assertThat(cache.getEvictionCount(), is(1L));
+        assertThat(cache.get("session-0"), is(nullValue()));
+        for (int i = 1; i <= 8; i++) {
+            assertThat(cache.get("session-" + i).getAccessToken(), is("token-" + i));
+        }
+    }
+
+    @Test
+    public void testTamperedEntryIsAMiss() throws Exception {
+        MappedFileTokenCache cache = newCache(1, SECRET);
+        cache.put("session", newToken("005000000000001AAA", "token"));
+
+        int offset = HEADER_SIZE + ENTRY + 48 + 5; // Inside the ciphertext, after the MAC and IV
+        byte original = readByte(offset);
+        writeByte(offset, (byte) (original ^ 1));
+        assertThat(cache.get("session"), is(nullValue()));
+
+        writeByte(offset, original);
+        assertThat(cache.get("session"), is(notNullValue()));
+    }
+
+    @Test
+    public void testChangedExpiryIsAMiss() throws Exception {
+        MappedFileTokenCache cache = newCache(1, SECRET);
+        cache.put("session", newToken("005000000000001AAA", "token"));
+
+        writeLong(HEADER_SIZE + EXPIRES_AT, readLong(HEADER_SIZE + EXPIRES_AT) + 60 * 60 * 1000);
+        assertThat(cache.get("session"), is(nullValue()));
+    }
+
+    @Test
+    public void testSlotBeingWrittenIsAMiss() throws Exception {
+        MappedFileTokenCache cache = newCache(1, SECRET);
+        cache.put("session", newToken("005000000000001AAA", "token"));
+
+        long sequence = readLong(HEADER_SIZE + SEQUENCE);
+        writeLong(HEADER_SIZE + SEQUENCE, sequence | 1); // As a writer in another process leaves it mid-write
+        assertThat(cache.get("session"), is(nullValue()));
+
+        writeLong(HEADER_SIZE + SEQUENCE, sequence);
+        assertThat(cache.get("session"), is(notNullValue()));
+    }
+
+    @Test
+    public void testSecondInstanceSharesEntries() {
+        MappedFileTokenCache first = newCache(64, SECRET);
+        MappedFileTokenCache second = newCache(64, SECRET);
+
+        first.put("session", newToken("005000000000001AAA", "token"));
+        assertThat(second.get("session").getAccessToken(), is("token"));
+
+        second.remove("session");
+        assertThat(first.get("session"), is(nullValue()));
+    }
+
+    @Test
+    public void testInstanceWithOtherSecretCanNotReadEntries() {
+        MappedFileTokenCache first = newCache(64, SECRET);
+        MappedFileTokenCache second = newCache(64, "other-secret");
+
+        first.put("session", newToken("005000000000001AAA", "token"));
+        assertThat(second.get("session"), is(nullValue()));
+    }
+
+    @Test(expected = BeanInitializationException.class)
+    public void testMismatchedSlotCountIsRefused() {
+        newCache(64, SECRET);
+        newCache(128, SECRET);
+    }
+
+    @Test(expected = BeanInitializationException.class)
+    public void testMismatchedSlotSizeIsRefused() {
+        newCache(64, SECRET);
+
+        MappedFileTokenCache cache = new MappedFileTokenCache();
+        cache.setFile(file);
+        cache.setSecret(SECRET);
+        cache.setSlotCount(64);
+        cache.setSlotSize(SLOT_SIZE * 2);
+        cache.afterPropertiesSet();
+    }
+
+    private MappedFileTokenCache newCache(int slotCount, String secret) {
+        MappedFileTokenCache cache = new MappedFileTokenCache();
+        cache.setFile(file);
+        cache.setSecret(secret);
+        cache.setSlotCount(slotCount);
+        cache.setSlotSize(SLOT_SIZE);
+        cache.afterPropertiesSet();
+        caches.add(cache);
+        return cache;
+    }
+
+    private static ForceAuthenticationToken newToken(String userId, String accessToken) {
+        return new ForceAuthenticationToken(userId, accessToken, "https://na1.example.com",
+            Arrays.<GrantedAuthority>asList(new SimpleGrantedAuthority("ROLE_USER")));
+    }
+
+    private byte readByte(long offset) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            input.seek(offset);
+            return input.readByte();
+        } finally {
+            input.close();
+        }
+    }
+
+    private void writeByte(long offset, byte value) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.seek(offset);
+            output.writeByte(value);
+        } finally {
+            output.close();
+        }
+    }
+
+    private long readLong(long offset) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            input.seek(offset);
+            return input.readLong();
+        } finally {
+            input.close();
+        }
+    }
+
+    private void writeLong(long offset, long value) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.seek(offset);
+            output.writeLong(value);
+        } finally {
+            output.close();
+        }
+    }
+}
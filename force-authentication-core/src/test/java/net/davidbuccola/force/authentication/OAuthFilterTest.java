@@ -0,0 +1,186 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class OAuthFilterTest {
+    private static final String REDIRECT_URL = "https://app.example.com/home";
+    private static final String BROWSER_NONCE = "browser-nonce";
+    private static final String LOGIN_URL = "https://acme.my.salesforce.com";
+
+    private RecordingConnector connector;
+    private InMemoryOAuthStateStore stateStore;
+    private OAuthFilter filter;
+
+    @Before
+    public void setUp() {
+        connector = new RecordingConnector();
+        stateStore = new InMemoryOAuthStateStore();
+        filter = new OAuthFilter();
+        filter.setConnector(connector);
+        filter.setStateStore(stateStore);
+    }
+
+    @After
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void testCallbackFromSameBrowser() throws Exception {
+        String stateId = stateStore.save(newState(null, "verifier"));
+        MockHttpServletRequest request = newCallback(stateId);
+        request.setCookies(new Cookie(OAuthFilter.BROWSER_COOKIE_NAME, BROWSER_NONCE));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        filter.doFilter(request, response, new MockFilterChain());
+
+        assertThat(response.getRedirectedUrl(), is(REDIRECT_URL));
+        assertThat(connector.codeVerifier, is("verifier"));
+        assertThat(SecurityContextHolder.getContext().getAuthentication(), is(instanceOf(ForceAuthenticationToken.class)));
+    }
+
+    @Test
+    public void testCallbackUsesStoredLoginUrl() throws Exception {
+        String stateId = stateStore.save(newState(LOGIN_URL, "verifier"));
+        MockHttpServletRequest request = newCallback(stateId);
+        request.setCookies(new Cookie(OAuthFilter.BROWSER_COOKIE_NAME, BROWSER_NONCE));
+
+        filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+
+        assertThat(connector.loginUrl, is(LOGIN_URL));
+    }
+
+    @Test
+    public void testCallbackWithoutBrowserCookie() throws Exception {
+        String stateId = stateStore.save(newState(null, "verifier"));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        filter.doFilter(newCallback(stateId), response, new MockFilterChain());
+
+        assertThat(response.getStatus(), is(HttpServletResponse.SC_BAD_REQUEST));
+        assertThat(connector.code, is(nullValue()));
+        assertThat(SecurityContextHolder.getContext().getAuthentication(), is(nullValue()));
+    }
+
+    @Test
+    public void testCallbackFromOtherBrowser() throws Exception {
+        String stateId = stateStore.save(newState(null, "verifier"));
+        MockHttpServletRequest request = newCallback(stateId);
+        request.setCookies(new Cookie(OAuthFilter.BROWSER_COOKIE_NAME, "attacker-nonce"));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        filter.doFilter(request, response, new MockFilterChain());
+
+        assertThat(response.getStatus(), is(HttpServletResponse.SC_BAD_REQUEST));
+        assertThat(connector.code, is(nullValue()));
+    }
+
+    @Test
+    public void testCallbackWithUnknownState() throws Exception {
+        MockHttpServletRequest request = newCallback("unknown");
+        request.setCookies(new Cookie(OAuthFilter.BROWSER_COOKIE_NAME, BROWSER_NONCE));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        filter.doFilter(request, response, new MockFilterChain());
+
+        assertThat(response.getStatus(), is(HttpServletResponse.SC_BAD_REQUEST));
+        assertThat(connector.code, is(nullValue()));
+    }
+
+    @Test
+    public void testPlainConnectorGetsNoVerifier() throws Exception {
+        final String[] received = new String[2];
+        filter.setConnector(new OAuthConnector() {
+            @Override
+            public String buildAuthorizeUri(String callbackUri, String state) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public ForceAuthenticationToken getToken(String code, String callbackUri) {
+                received[0] = code;
+                received[1] = callbackUri;
+                return newToken();
+            }
+        });
+        String stateId = stateStore.save(newState(null, null));
+        MockHttpServletRequest request = newCallback(stateId);
+        request.setCookies(new Cookie(OAuthFilter.BROWSER_COOKIE_NAME, BROWSER_NONCE));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        filter.doFilter(request, response, new MockFilterChain());
+
+        assertThat(response.getRedirectedUrl(), is(REDIRECT_URL));
+        assertThat(received[0], is("the-code"));
+        assertThat(received[1], endsWith(OAuthFilter.CALLBACK_PATH));
+    }
+
+    private static OAuthState newState(String loginUrl, String codeVerifier) {
+        return new OAuthState(REDIRECT_URL, loginUrl, codeVerifier, BROWSER_NONCE, System.currentTimeMillis());
+    }
+
+    private static MockHttpServletRequest newCallback(String stateId) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/oauth");
+        request.setScheme("https");
+        request.setServerName("app.example.com");
+        request.setServerPort(443);
+        request.setServletPath(OAuthFilter.CALLBACK_PATH);
+        request.setParameter("code", "the-code");
+        request.setParameter("state", stateId);
+        return request;
+    }
+
+    private static ForceAuthenticationToken newToken() {
+        ForceAuthenticationToken token = new ForceAuthenticationToken("005000000000001AAA", "access-token",
+            "https://na1.salesforce.com", "https://login.salesforce.com/id/00D000000000001AAA/005000000000001AAA",
+            Collections.<GrantedAuthority>singletonList(new SimpleGrantedAuthority("ROLE_USER")));
+        token.setAuthenticated(true);
+        return token;
+    }
+
+    private static final class RecordingConnector extends AbstractOAuthConnector {
+        private volatile String loginUrl;
+        private volatile String code;
+        private volatile String codeVerifier;
+
+        @Override
+        public String buildAuthorizeUri(String loginUrl, String callbackUri, String state, String codeChallenge) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ForceAuthenticationToken getToken(String loginUrl, String code, String callbackUri, String codeVerifier) {
+            this.loginUrl = loginUrl;
+            this.code = code;
+            this.codeVerifier = codeVerifier;
+            return newToken();
+        }
+
+        @Override
+        public void revokeToken(String loginUrl, String accessToken) {
+        }
+    }
+}
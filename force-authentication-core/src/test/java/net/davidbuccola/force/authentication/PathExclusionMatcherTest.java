@@ -0,0 +1,102 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.junit.Test;
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PathExclusionMatcherTest {
+
+    @Test
+    public void testPrefixPattern() {
+        PathExclusionMatcher matcher = newMatcher("/static/**");
+        assertThat(matcher.matches("/static", null), is(true));
+        assertThat(matcher.matches("/static/", null), is(true));
+        assertThat(matcher.matches("/static/a/b.png", null), is(true));
+        assertThat(matcher.matches("/staticx", null), is(false));
+        assertThat(matcher.matches("/stat", null), is(false));
+        assertThat(matcher.matches("/other/static/a", null), is(false));
+    }
+
+    @Test
+    public void testExactPattern() {
+        PathExclusionMatcher matcher = newMatcher("/health");
+        assertThat(matcher.matches("/health", null), is(true));
+        assertThat(matcher.matches("/health/", null), is(false));
+        assertThat(matcher.matches("/health/deep", null), is(false));
+        assertThat(matcher.matches("/healthz", null), is(false));
+    }
+
+    @Test
+    public void testExtensionPattern() {
+        PathExclusionMatcher matcher = newMatcher("*.js", "*.CSS");
+        assertThat(matcher.matches("/app.js", null), is(true));
+        assertThat(matcher.matches("/a/b/APP.JS", null), is(true));
+        assertThat(matcher.matches("/site.css", null), is(true));
+        assertThat(matcher.matches("/a.js/b", null), is(false));
+        assertThat(matcher.matches("/app.json", null), is(false));
+        assertThat(matcher.matches("/js", null), is(false));
+    }
+
+    @Test
+    public void testServletPathAndPathInfoAreJoined() {
+        PathExclusionMatcher matcher = newMatcher("/static/**", "/api/health");
+        assertThat(matcher.matches("/static", "/a.png"), is(true));
+        assertThat(matcher.matches("/api", "/health"), is(true));
+        assertThat(matcher.matches("/api", "/other"), is(false));
+        assertThat(matcher.matches("", "/static/a.png"), is(true));
+    }
+
+    @Test
+    public void testMatchesRequest() {
+        PathExclusionMatcher matcher = newMatcher("/static/**");
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/ctx/static/a.png");
+        request.setContextPath("/ctx");
+        request.setServletPath("/static");
+        request.setPathInfo("/a.png");
+        assertThat(matcher.matches(request), is(true));
+    }
+
+    @Test
+    public void testNoPatterns() {
+        PathExclusionMatcher matcher = newMatcher();
+        assertThat(matcher.matches("/anything", null), is(false));
+        assertThat(matcher.matches(null, null), is(false));
+    }
+
+    @Test(expected = BeanInitializationException.class)
+    public void testEverythingIsRejected() {
+        newMatcher("/**");
+    }
+
+    @Test(expected = BeanInitializationException.class)
+    public void testCallbackPathIsRejected() {
+        newMatcher(OAuthFilter.CALLBACK_PATH);
+    }
+
+    @Test(expected = BeanInitializationException.class)
+    public void testInnerWildcardIsUnsupported() {
+        newMatcher("/a/*/b");
+    }
+
+    @Test(expected = BeanInitializationException.class)
+    public void testRelativePathIsUnsupported() {
+        newMatcher("static/**");
+    }
+
+    private static PathExclusionMatcher newMatcher(String... patterns) {
+        PathExclusionMatcher matcher = new PathExclusionMatcher();
+        matcher.setPatterns(Arrays.asList(patterns));
+        matcher.afterPropertiesSet();
+        return matcher;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.junit.Test;
+
+import java.net.URLDecoder;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class PercentEncoderTest {
+
+    @Test
+    public void testUnreservedCharactersAreNotEncoded() {
+        String unreserved = "ABCXYZabcxyz0189-._~";
+        assertThat(PercentEncoder.encode(unreserved), is(unreserved));
+    }
+
+    @Test
+    public void testReservedCharactersAreEncoded() {
+        assertThat(PercentEncoder.encode("a b"), is("a%20b"));
+        assertThat(PercentEncoder.encode("https://host/p?q=1&r=2#f"), is("https%3A%2F%2Fhost%2Fp%3Fq%3D1%26r%3D2%23f"));
+        assertThat(PercentEncoder.encode("a+b*c"), is("a%2Bb%2Ac"));
+    }
+
+    @Test
+    public void testPercentIsEncoded() throws Exception {
+        String value = "/return?name=a%20b";
+        String encoded = PercentEncoder.encode(value);
+        assertThat(encoded, is("%2Freturn%3Fname%3Da%2520b"));
+        assertThat(URLDecoder.decode(encoded, "UTF-8"), is(value));
+    }
+
+    @Test
+    public void testNonAsciiIsEncodedAsUtf8() {
+        assertThat(PercentEncoder.encode("caf\u00e9"), is("caf%C3%A9"));
+        assertThat(PercentEncoder.encode("\u20ac"), is("%E2%82%AC"));
+        assertThat(PercentEncoder.encode("x\ud83d\ude00y"), is("x%F0%9F%98%80y"));
+    }
+
+    @Test
+    public void testEmptyValue() {
+        assertThat(PercentEncoder.encode(""), is(""));
+    }
+
+    @Test
+    public void testAppendAddsToBuilder() {
+        StringBuilder builder = new StringBuilder("state=");
+        assertThat(PercentEncoder.append(builder, "a/b"), is(sameInstance(builder)));
+        assertThat(builder.toString(), is("state=a%2Fb"));
+    }
+}
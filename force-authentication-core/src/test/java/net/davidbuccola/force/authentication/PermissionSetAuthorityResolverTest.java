@@ -0,0 +1,215 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class PermissionSetAuthorityResolverTest {
+    private static final String QUERY_PATH = "/services/data/v28.0/query";
+    private static final String NEXT_PATH = QUERY_PATH + "/01gD0000002HU6KIAW-2000";
+    private static final String USER_ID = "005x0000000wWmG";
+    private static final String OTHER_USER_ID = "005x0000000wWmH";
+
+    private static final String PROFILE_RECORD =
+        "{\"PermissionSet\":{\"Name\":\"X00ex0000001pBNAAY\",\"IsOwnedByProfile\":true,"
+            + "\"Profile\":{\"Name\":\"Standard User\"}}}";
+    private static final String REPORTS_RECORD =
+        "{\"PermissionSet\":{\"Name\":\"Reports\",\"IsOwnedByProfile\":false,\"Profile\":null}}";
+    private static final String EXPORT_RECORD =
+        "{\"PermissionSet\":{\"Name\":\"Export\",\"IsOwnedByProfile\":false,\"Profile\":null}}";
+
+    private StubHttpServer server;
+    private PermissionSetAuthorityResolver resolver;
+
+    private final Map<String, String> responses = new ConcurrentHashMap<String, String>();
+    private final List<String> queries = new CopyOnWriteArrayList<String>();
+    private final List<String> authorizations = new CopyOnWriteArrayList<String>();
+    private final List<String> paths = new CopyOnWriteArrayList<String>();
+    private volatile int status = 200;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubHttpServer();
+        server.handle(QUERY_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                paths.add(path);
+                authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+                if (status != 200) {
+                    StubHttpServer.respond(exchange, status,
+                        "[{\"message\":\"Session expired or invalid\",\"errorCode\":\"INVALID_SESSION_ID\"}]");
+                } else if (path.equals(NEXT_PATH)) {
+                    StubHttpServer.respond(exchange, 200, responses.get(NEXT_PATH));
+                } else {
+                    String query = StubHttpServer.parseForm(exchange.getRequestURI().getRawQuery()).get("q");
+                    queries.add(query);
+                    String userId = query.substring(query.indexOf('\'') + 1, query.lastIndexOf('\''));
+                    StubHttpServer.respond(exchange, 200, responses.get(userId));
+                }
+            }
+        });
+
+        resolver = new PermissionSetAuthorityResolver();
+        resolver.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() {
+        resolver.destroy();
+        server.stop();
+    }
+
+    @Test
+    public void testQueryIsMadeWithUsersToken() {
+        respond(USER_ID, null, PROFILE_RECORD);
+
+        resolver.resolveAuthorities(newToken(USER_ID, "user-token"));
+
+        assertThat(paths.get(0), is(QUERY_PATH));
+        assertThat(authorizations.get(0), is("Bearer user-token"));
+        assertThat(queries.get(0), is("SELECT PermissionSet.Name, PermissionSet.IsOwnedByProfile, PermissionSet.Profile.Name"
+            + " FROM PermissionSetAssignment WHERE AssigneeId = '" + SalesforceId.valueOf(USER_ID) + "'"));
+    }
+
+    @Test
+    public void testProfileAndPermissionSetsAreMapped() {
+        respond(USER_ID, null, PROFILE_RECORD, REPORTS_RECORD);
+
+        assertThat(resolver.resolveAuthorities(newToken(USER_ID, "token")), containsInAnyOrder(
+            authority("PROFILE_Standard User"), authority("PERMISSION_SET_Reports")));
+    }
+
+    @Test
+    public void testPrefixesCanBeSet() {
+        resolver.setProfilePrefix("ROLE_PROFILE_");
+        resolver.setPermissionSetPrefix("ROLE_");
+        resolver.afterPropertiesSet();
+        respond(USER_ID, null, PROFILE_RECORD, REPORTS_RECORD);
+
+        assertThat(resolver.resolveAuthorities(newToken(USER_ID, "token")), containsInAnyOrder(
+            authority("ROLE_PROFILE_Standard User"), authority("ROLE_Reports")));
+    }
+
+    @Test
+    public void testNextRecordsAreFollowed() {
+        respond(USER_ID, NEXT_PATH, PROFILE_RECORD, REPORTS_RECORD);
+        responses.put(NEXT_PATH, newResponse(null, EXPORT_RECORD));
+
+        assertThat(resolver.resolveAuthorities(newToken(USER_ID, "token")), containsInAnyOrder(
+            authority("PROFILE_Standard User"), authority("PERMISSION_SET_Reports"), authority("PERMISSION_SET_Export")));
+        assertThat(paths.size(), is(2));
+        assertThat(paths.get(1), is(NEXT_PATH));
+        assertThat(authorizations.get(1), is("Bearer token"));
+    }
+
+    @Test
+    public void testAuthoritiesAreCached() {
+        respond(USER_ID, null, PROFILE_RECORD);
+
+        Collection<? extends GrantedAuthority> authorities = resolver.resolveAuthorities(newToken(USER_ID, "token"));
+        assertThat(resolver.resolveAuthorities(newToken(USER_ID, "token")), is(sameInstance((Object) authorities)));
+        assertThat(paths.size(), is(1));
+        assertThat(resolver.getHitCount(), is(1L));
+        assertThat(resolver.getMissCount(), is(1L));
+    }
+
+    @Test
+    public void testSameCombinationIsShared() {
+        respond(USER_ID, null, PROFILE_RECORD, REPORTS_RECORD);
+        respond(OTHER_USER_ID, null, REPORTS_RECORD, PROFILE_RECORD);
+
+        Collection<? extends GrantedAuthority> authorities = resolver.resolveAuthorities(newToken(USER_ID, "token"));
+        Collection<? extends GrantedAuthority> otherAuthorities =
+            resolver.resolveAuthorities(newToken(OTHER_USER_ID, "other-token"));
+        assertThat(paths.size(), is(2));
+        assertThat(otherAuthorities, is(sameInstance((Object) authorities)));
+    }
+
+    @Test
+    public void testTokenWithoutUsableUserIdIsNotQueried() {
+        assertThat(resolver.resolveAuthorities(newToken("not-an-id", "token")), is(empty()));
+        assertThat(paths.size(), is(0));
+    }
+
+    @Test
+    public void testFailureIsReportedAndNotCached() {
+        respond(USER_ID, null, PROFILE_RECORD);
+        status = 401;
+
+        try {
+            resolver.resolveAuthorities(newToken(USER_ID, "expired-token"));
+            fail("Expected OAuthException");
+        } catch (OAuthException e) {
+            assertThat(e.getMessage(), containsString("401"));
+        }
+        assertThat(resolver.getFailureCount(), is(1L));
+
+        status = 200;
+        assertThat(resolver.resolveAuthorities(newToken(USER_ID, "token")),
+            containsInAnyOrder(authority("PROFILE_Standard User")));
+    }
+
+    @Test
+    public void testUnreachableInstanceIsReportedAsOAuthException() {
+        server.stop();
+
+        try {
+            resolver.resolveAuthorities(newToken(USER_ID, "token"));
+            fail("Expected OAuthException");
+        } catch (OAuthException e) {
+            // Expected
+        }
+    }
+
+    private void respond(String userId, String nextRecordsUrl, String... records) {
+        responses.put(SalesforceId.valueOf(userId).toString(), newResponse(nextRecordsUrl, records));
+    }
+
+    private static String newResponse(String nextRecordsUrl, String... records) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"totalSize\":").append(records.length).append(",\"done\":").append(nextRecordsUrl == null);
+        if (nextRecordsUrl != null) {
+            json.append(",\"nextRecordsUrl\":\"").append(nextRecordsUrl).append("\"");
+        }
+        json.append(",\"records\":[");
+        for (int i = 0; i < records.length; i++) {
+            json.append((i > 0) ? "," : "").append(records[i]);
+        }
+        return json.append("]}").toString();
+    }
+
+    private ForceAuthenticationToken newToken(String userId, String accessToken) {
+        return new ForceAuthenticationToken(
+            userId, accessToken, server.getUrl() + "/", Collections.<GrantedAuthority>emptyList());
+    }
+
+    private static GrantedAuthority authority(String name) {
+        return new SimpleGrantedAuthority(name);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+import org.springframework.beans.factory.BeanInitializationException;
+
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ReplayGuardTest {
+    private static final String CLIENT = "10.0.0.1";
+    private static final String OTHER_CLIENT = "10.0.0.2";
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testFirstUseIsAccepted() {
+        ReplayGuard guard = newGuard();
+        assertThat(guard.check(newPayload(), now(), CLIENT), is(ReplayGuard.Verdict.ACCEPTED));
+        assertThat(guard.getAcceptedCount(), is(1L));
+    }
+
+    @Test
+    public void testReplayIsRejected() {
+        ReplayGuard guard = newGuard();
+        String payload = newPayload();
+        guard.check(payload, now(), CLIENT);
+
+        assertThat(guard.check(payload, now(), CLIENT), is(ReplayGuard.Verdict.REPLAYED));
+        assertThat(guard.getReplayedCount(), is(1L));
+    }
+
+    @Test
+    public void testMissingIssuedAtIsRejectedByDefault() {
+        ReplayGuard guard = newGuard();
+        assertThat(guard.check(newPayload(), null, CLIENT), is(ReplayGuard.Verdict.MISSING_ISSUED_AT));
+    }
+
+    @Test
+    public void testMissingIssuedAtCanBeAllowed() {
+        ReplayGuard guard = new ReplayGuard();
+        guard.setRequireIssuedAt(false);
+        guard.afterPropertiesSet();
+        String payload = newPayload();
+
+        assertThat(guard.check(payload, null, CLIENT), is(ReplayGuard.Verdict.ACCEPTED));
+        assertThat(guard.check(payload, null, CLIENT), is(ReplayGuard.Verdict.REPLAYED));
+    }
+
+    @Test
+    public void testExpiredAndFutureAreRejected() {
+        ReplayGuard guard = newGuard();
+        assertThat(guard.check(newPayload(), now() - 300 - 31, CLIENT), is(ReplayGuard.Verdict.EXPIRED));
+        assertThat(guard.check(newPayload(), now() + 31, CLIENT), is(ReplayGuard.Verdict.NOT_YET_VALID));
+        assertThat(guard.check(newPayload(), now() - 300 + 5, CLIENT), is(ReplayGuard.Verdict.ACCEPTED));
+        assertThat(guard.check(newPayload(), now() + 25, CLIENT), is(ReplayGuard.Verdict.ACCEPTED));
+        assertThat(guard.getOutOfTimeCount(), is(2L));
+    }
+
+    @Test
+    public void testSameClientReusePolicy() {
+        ReplayGuard guard = new ReplayGuard();
+        guard.setReusePolicy(ReplayGuard.ReusePolicy.SAME_CLIENT);
+        guard.setMaxReuses(2);
+        guard.afterPropertiesSet();
+        String payload = newPayload();
+
+        assertThat(guard.check(payload, now(), CLIENT), is(ReplayGuard.Verdict.ACCEPTED));
+        assertThat(guard.check(payload, now(), OTHER_CLIENT), is(ReplayGuard.Verdict.REPLAYED));
+        assertThat(guard.check(payload, now(), CLIENT), is(ReplayGuard.Verdict.REUSED));
+        assertThat(guard.check(payload, now(), CLIENT), is(ReplayGuard.Verdict.REUSED));
+        assertThat(guard.check(payload, now(), CLIENT), is(ReplayGuard.Verdict.REPLAYED));
+    }
+
+    @Test
+    public void testAnyClientReusePolicy() {
+        ReplayGuard guard = new ReplayGuard();
+        guard.setReusePolicy(ReplayGuard.ReusePolicy.ANY_CLIENT);
+        guard.setMaxReuses(1);
+        guard.afterPropertiesSet();
+        String payload = newPayload();
+
+        assertThat(guard.check(payload, now(), CLIENT), is(ReplayGuard.Verdict.ACCEPTED));
+        assertThat(guard.check(payload, now(), OTHER_CLIENT), is(ReplayGuard.Verdict.REUSED));
+        assertThat(guard.check(payload, now(), CLIENT), is(ReplayGuard.Verdict.REPLAYED));
+    }
+
+    @Test
+    public void testReplayIsRejectedWhenExactMapIsFull() {
+        ReplayGuard guard = new ReplayGuard();
+        guard.setMaxExactEntries(10);
+        guard.afterPropertiesSet();
+        String[] payloads = new String[20];
+        for (int i = 0; i < payloads.length; i++) {
+            payloads[i] = newPayload();
+            assertThat(guard.check(payloads[i], now(), CLIENT), is(ReplayGuard.Verdict.ACCEPTED));
+        }
+        assertThat(guard.getExactEntryCount(), is(10));
+
+        for (String payload : payloads) {
+            assertThat(guard.check(payload, now(), CLIENT), is(ReplayGuard.Verdict.REPLAYED));
+        }
+        assertThat(guard.getUnverifiableCount(), is(10L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsignedPayloadIsRefused() {
+        newGuard().check("not-a-signed-payload", now(), CLIENT);
+    }
+
+    @Test(expected = BeanInitializationException.class)
+    public void testInvalidFalsePositiveRate() {
+        ReplayGuard guard = new ReplayGuard();
+        guard.setFalsePositiveRate(1.0);
+        guard.afterPropertiesSet();
+    }
+
+    private static ReplayGuard newGuard() {
+        ReplayGuard guard = new ReplayGuard();
+        guard.afterPropertiesSet();
+        return guard;
+    }
+
+    private String newPayload() {
+        byte[] signature = new byte[32];
+        random.nextBytes(signature);
+        return Base64.encodeBase64String(signature) + ".e30=";
+    }
+
+    private static Integer now() {
+        return (int) (System.currentTimeMillis() / 1000);
+    }
+}
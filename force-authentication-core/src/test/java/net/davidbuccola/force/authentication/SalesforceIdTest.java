@@ -0,0 +1,85 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class SalesforceIdTest {
+
+    @Test
+    public void testFifteenToEighteen() {
+        assertThat(SalesforceId.valueOf("00D000000000062").toString(), is("00D000000000062EAA"));
+        assertThat(SalesforceId.valueOf("005x0000000wWmG").toString(), is("005x0000000wWmGAAU"));
+        assertThat(SalesforceId.valueOf("001A0000006Vm9r").toString(), is("001A0000006Vm9rIAC"));
+    }
+
+    @Test
+    public void testEighteenToFifteen() {
+        assertThat(SalesforceId.valueOf("005x0000000wWmGAAU").toShortString(), is("005x0000000wWmG"));
+    }
+
+    @Test
+    public void testEighteenRestoresCase() {
+        assertThat(SalesforceId.valueOf("005X0000000WWMGAAU").toShortString(), is("005x0000000wWmG"));
+        assertThat(SalesforceId.valueOf("005x0000000wwmgaau").toShortString(), is("005x0000000wWmG"));
+    }
+
+    @Test
+    public void testBothFormsAreEqual() {
+        SalesforceId shortId = SalesforceId.valueOf("005x0000000wWmG");
+        SalesforceId longId = SalesforceId.valueOf("005x0000000wWmGAAU");
+
+        assertThat(shortId, is(longId));
+        assertThat(shortId.hashCode(), is(longId.hashCode()));
+    }
+
+    @Test
+    public void testFifteenIsCaseSensitive() {
+        assertThat(SalesforceId.valueOf("005x0000000wWmG"), is(not(SalesforceId.valueOf("005X0000000wWmG"))));
+    }
+
+    @Test
+    public void testParseRejectsMalformedIds() {
+        assertThat(SalesforceId.parse(null), is(nullValue()));
+        assertThat(SalesforceId.parse(""), is(nullValue()));
+        assertThat(SalesforceId.parse("005x0000000wWm"), is(nullValue()));
+        assertThat(SalesforceId.parse("005x0000000wWmGAA"), is(nullValue()));
+        assertThat(SalesforceId.parse("005x0000000wW-G"), is(nullValue()));
+        assertThat(SalesforceId.parse("005x0000000wWmGAA9"), is(nullValue()));
+        assertThat(SalesforceId.parse("005x0000000wWm\u00e9"), is(nullValue()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValueOfRejectsMalformedIds() {
+        SalesforceId.valueOf("not an id");
+    }
+
+    @Test
+    public void testIsSameId() {
+        assertThat(SalesforceId.isSameId("005x0000000wWmG", "005x0000000wWmGAAU"), is(true));
+        assertThat(SalesforceId.isSameId("005X0000000WWMGAAU", "005x0000000wWmG"), is(true));
+        assertThat(SalesforceId.isSameId("005x0000000wWmG", "005x0000000wWmH"), is(false));
+        assertThat(SalesforceId.isSameId("005x0000000wWmG", "005X0000000wWmG"), is(false));
+        assertThat(SalesforceId.isSameId("other", "other"), is(true));
+        assertThat(SalesforceId.isSameId("other", "OTHER"), is(false));
+        assertThat(SalesforceId.isSameId(null, null), is(true));
+        assertThat(SalesforceId.isSameId("005x0000000wWmG", null), is(false));
+    }
+
+    @Test
+    public void testRoundTripsAllCharacters() {
+        for (String sample : new String[]{"0123456789ABCDE", "FGHIJKLMNOPQRST", "UVWXYZabcdefghi", "jklmnopqrstuvwx", "yz00000000000yz"}) {
+            SalesforceId parsed = SalesforceId.valueOf(sample);
+            assertThat(parsed.toShortString(), is(sample));
+            assertThat(SalesforceId.valueOf(parsed.toString()), is(parsed));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.GrantedAuthority;
+
+import javax.servlet.http.Cookie;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class SharedTokenCacheFilterTest {
+    private InMemoryTokenCache cache;
+    private SharedTokenCacheFilter filter;
+
+    @Before
+    public void setUp() {
+        cache = new InMemoryTokenCache();
+        filter = new SharedTokenCacheFilter();
+        filter.setCache(cache);
+        filter.setSharedTokenCache(cache);
+    }
+
+    @Test
+    public void testLoginGetsNewSessionKey() {
+        cache.put("planted", newToken("005000000000001AAA"));
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setCookies(new Cookie(SharedTokenCacheFilter.COOKIE_NAME, "planted"));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        ForceAuthenticationToken token = newToken("005000000000002AAA");
+        filter.shareAuthentication(token, request, response);
+
+        Cookie cookie = response.getCookie(SharedTokenCacheFilter.COOKIE_NAME);
+        assertThat(cookie, is(notNullValue()));
+        assertThat(cookie.getValue(), is(not("planted")));
+        assertThat(cache.get(cookie.getValue()), is(token));
+        assertThat(cache.get("planted"), is(nullValue()));
+    }
+
+    @Test
+    public void testLogoutRemovesSession() {
+        cache.put("session", newToken("005000000000001AAA"));
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setCookies(new Cookie(SharedTokenCacheFilter.COOKIE_NAME, "session"));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        filter.logout(request, response, null);
+
+        assertThat(cache.get("session"), is(nullValue()));
+        assertThat(response.getCookie(SharedTokenCacheFilter.COOKIE_NAME).getMaxAge(), is(0));
+    }
+
+    private static ForceAuthenticationToken newToken(String userId) {
+        return new ForceAuthenticationToken(
+            userId, "token", "https://na1.example.com", Collections.<GrantedAuthority>emptyList());
+    }
+
+    private static final class InMemoryTokenCache implements SharedTokenCache {
+        private final Map<String, ForceAuthenticationToken> tokens =
+            new ConcurrentHashMap<String, ForceAuthenticationToken>();
+
+        @Override
+        public void put(String sessionKey, ForceAuthenticationToken token) {
+            tokens.put(sessionKey, token);
+        }
+
+        @Override
+        public ForceAuthenticationToken get(String sessionKey) {
+            return tokens.get(sessionKey);
+        }
+
+        @Override
+        public void remove(String sessionKey) {
+            tokens.remove(sessionKey);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import net.davidbuccola.force.authentication.SignedPayloadResult.Failure;
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+import java.security.SignatureException;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class SignedParametersUtilTest {
+    private static final String SECRET = "the-secret";
+    private static final SecretKey KEY = SignedParametersUtil.newSecretKey(SECRET);
+    private static final String JSON = "{\"algorithm\":\"HMACSHA256\",\"userId\":\"005000000000001AAA\"}";
+
+    @Test
+    public void testVerifyAndDecode() throws GeneralSecurityException {
+        Map<String, String> parameters = SignedParametersUtil.verifyAndDecode(SignedPayloads.sign(JSON, SECRET), SECRET);
+
+        assertThat(parameters, hasEntry("userId", "005000000000001AAA"));
+        assertThat(parameters, not(hasKey("algorithm")));
+    }
+
+    @Test
+    public void testWithoutAlgorithm() throws GeneralSecurityException {
+        Map<String, String> parameters = SignedParametersUtil.verifyAndDecode(
+            SignedPayloads.sign("{\"userId\":\"005000000000001AAA\"}", SECRET), SECRET);
+
+        assertThat(parameters, hasEntry("userId", "005000000000001AAA"));
+    }
+
+    @Test
+    public void testUrlSafeAlphabetIsAccepted() throws GeneralSecurityException {
+        String signed = SignedPayloads.sign(JSON, SECRET).replace('+', '-').replace('/', '_');
+
+        assertThat(SignedParametersUtil.check(signed, KEY, SignedParametersUtil.DEFAULT_MAX_LENGTH), is(nullValue()));
+    }
+
+    @Test(expected = SignatureException.class)
+    public void testWrongSecret() throws GeneralSecurityException {
+        SignedParametersUtil.verifyAndDecode(SignedPayloads.sign(JSON, SECRET), "other-secret");
+    }
+
+    @Test
+    public void testTamperedEnvelope() throws GeneralSecurityException {
+        String signed = SignedPayloads.sign(JSON, SECRET);
+        String forged = SignedPayloads.sign("{\"userId\":\"005000000000002AAA\"}", "attacker");
+        String tampered = signed.substring(0, signed.indexOf('.')) + forged.substring(forged.indexOf('.'));
+
+        assertThat(check(tampered), is(Failure.BAD_SIGNATURE));
+    }
+
+    @Test
+    public void testUnsupportedAlgorithm() throws GeneralSecurityException {
+        try {
+            SignedParametersUtil.verifyAndDecode(SignedPayloads.sign("{\"algorithm\":\"HMACSHA1\"}", SECRET), SECRET);
+            fail("Unsupported algorithm accepted");
+        } catch (GeneralSecurityException e) {
+            assertThat(e.getMessage(), is(Failure.UNSUPPORTED_ALGORITHM.getMessage()));
+        }
+    }
+
+    @Test
+    public void testUndecodableEnvelope() throws GeneralSecurityException {
+        try {
+            SignedParametersUtil.verifyAndDecode(SignedPayloads.sign("not json", SECRET), SECRET);
+            fail("Undecodable envelope accepted");
+        } catch (GeneralSecurityException e) {
+            assertThat(e.getMessage(), is(Failure.UNDECODABLE.getMessage()));
+        }
+    }
+
+    @Test
+    public void testCheapChecks() throws GeneralSecurityException {
+        String signed = SignedPayloads.sign(JSON, SECRET);
+        String signature = signed.substring(0, signed.indexOf('.'));
+
+        assertThat(check(null), is(Failure.MISSING));
+        assertThat(SignedParametersUtil.check(signed, KEY, signed.length() - 1), is(Failure.TOO_LONG));
+        assertThat(check(signed + "!"), is(Failure.ILLEGAL_CHARACTER));
+        assertThat(check(signed.replace(".", "")), is(Failure.MALFORMED));
+        assertThat(check(signed + ".e30"), is(Failure.MALFORMED));
+        assertThat(check(signature.substring(2) + signed.substring(signature.length())), is(Failure.MALFORMED));
+        assertThat(check(signature + "."), is(Failure.MALFORMED));
+        assertThat(check(signed + "A"), is(Failure.MALFORMED)); // An envelope of length 4n+1 can't be base64
+    }
+
+    @Test
+    public void testPaddedSignatureIsAccepted() throws GeneralSecurityException {
+        String signed = SignedPayloads.sign(JSON, SECRET);
+        assertThat(signed.indexOf('.'), is(44)); // The encoder pads the 32 byte digest
+
+        assertThat(check(signed), is(nullValue()));
+    }
+
+    private static Failure check(String input) throws GeneralSecurityException {
+        return SignedParametersUtil.check(input, KEY, SignedParametersUtil.DEFAULT_MAX_LENGTH);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import net.davidbuccola.force.authentication.SignedPayloadResult.Failure;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class SignedPayloadVerifierTest {
+    private static final String SECRET = "the-secret";
+
+    private SignedPayloadVerifier verifier;
+
+    @Before
+    public void setUp() {
+        SpringOAuthClientConfig config = new SpringOAuthClientConfig();
+        config.setClientId("client");
+        config.setClientSecret(SECRET);
+        config.setServerURL("https://login.salesforce.com");
+        config.afterPropertiesSet();
+
+        verifier = new SignedPayloadVerifier();
+        verifier.setClientConfig(config);
+        verifier.setBatchGranularity(4);
+        verifier.setChunkSize(10);
+    }
+
+    @After
+    public void tearDown() {
+        verifier.destroy();
+    }
+
+    @Test
+    public void testSinglePayload() {
+        SignedPayloadResult<Map<String, String>> result = verifier.verifySignedParameters(sign(1));
+
+        assertThat(result.isValid(), is(true));
+        assertThat(result.getValue().get("n"), is("1"));
+    }
+
+    @Test
+    public void testRejectedPayload() {
+        SignedPayloadResult<Map<String, String>> result = verifier.verifySignedParameters(sign(1) + "A");
+
+        assertThat(result.isValid(), is(false));
+        assertThat(result.getFailure(), is(Failure.MALFORMED));
+        assertThat(result.getValue(), is(nullValue()));
+    }
+
+    @Test
+    public void testArrayBatchKeepsOrder() {
+        String[] payloads = new String[50];
+        for (int i = 0; i < payloads.length; i++) {
+            payloads[i] = (i % 3 == 0) ? SignedPayloads.sign("{\"n\":\"" + i + "\"}", "other") : sign(i);
+        }
+
+        List<SignedPayloadResult<Map<String, String>>> results = verifier.verifySignedParameters(payloads);
+
+        assertThat(results.size(), is(payloads.length));
+        for (int i = 0; i < payloads.length; i++) {
+            if (i % 3 == 0) {
+                assertThat(results.get(i).getFailure(), is(Failure.BAD_SIGNATURE));
+            } else {
+                assertThat(results.get(i).getValue().get("n"), is(Integer.toString(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testIterableBatchIsVerifiedInChunks() {
+        List<String> payloads = new ArrayList<String>();
+        for (int i = 0; i < 95; i++) {
+            payloads.add(sign(i));
+        }
+        final List<Long> indexes = new ArrayList<Long>();
+        final List<String> values = new ArrayList<String>();
+
+        verifier.verifySignedParameters(payloads, new SignedPayloadCallback<Map<String, String>>() {
+            @Override
+            public void onResult(long index, SignedPayloadResult<Map<String, String>> result) {
+                indexes.add(index);
+                values.add(result.getValue().get("n"));
+            }
+        });
+
+        assertThat(indexes.size(), is(95));
+        for (int i = 0; i < 95; i++) {
+            assertThat(indexes.get(i), is((long) i));
+            assertThat(values.get(i), is(Integer.toString(i)));
+        }
+    }
+
+    @Test
+    public void testIterableBatchAsList() {
+        List<String> payloads = new ArrayList<String>();
+        for (int i = 0; i < 25; i++) {
+            payloads.add(sign(i));
+        }
+
+        List<SignedPayloadResult<Map<String, String>>> results = verifier.verifySignedParameters(payloads);
+
+        assertThat(results.size(), is(25));
+        assertThat(results.get(24).getValue().get("n"), is("24"));
+    }
+
+    private static String sign(int n) {
+        return SignedPayloads.sign("{\"n\":\"" + n + "\"}", SECRET);
+    }
+}
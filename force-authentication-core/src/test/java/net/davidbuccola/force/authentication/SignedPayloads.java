@@ -0,0 +1,39 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.apache.commons.codec.binary.Base64;
+
+import javax.crypto.Mac;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+
+/**
+ * Builds signed payloads the way Salesforce does, for tests.
+ */
+final class SignedPayloads {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private SignedPayloads() {
+        throw new UnsupportedOperationException("Can not be instantiated");
+    }
+
+    /**
+     * Signs a JSON envelope with a secret.
+     *
+     * @return the signature and the envelope, both base64 encoded and separated by a '.'
+     */
+    static String sign(String json, String secret) {
+        String encodedEnvelope = Base64.encodeBase64String(json.getBytes(UTF8));
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(SignedParametersUtil.newSecretKey(secret));
+            return Base64.encodeBase64String(mac.doFinal(encodedEnvelope.getBytes(UTF8))) + "." + encodedEnvelope;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class Slf4jAuditSinkTest {
+
+    @Test
+    public void testQuotePlainValue() {
+        assertThat(Slf4jAuditSink.quote("Invalid signature"), is("\"Invalid signature\""));
+    }
+
+    @Test
+    public void testQuoteNull() {
+        assertThat(Slf4jAuditSink.quote(null), is("null"));
+    }
+
+    @Test
+    public void testQuoteEscapesLineBreaks() {
+        assertThat(Slf4jAuditSink.quote("a\r\ntimestamp=0 outcome=SUCCESS"), is("\"a\\r\\ntimestamp=0 outcome=SUCCESS\""));
+    }
+
+    @Test
+    public void testQuoteEscapesQuotesAndBackslashes() {
+        assertThat(Slf4jAuditSink.quote("x\" org=\\evil"), is("\"x\\\" org=\\\\evil\""));
+    }
+
+    @Test
+    public void testQuoteEscapesOtherControlCharacters() {
+        assertThat(Slf4jAuditSink.quote("a\u0000b\u001bc\u2028"), is("\"a\\u0000b\\u001bc\\u2028\""));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class SpringOAuthClientConfigTest {
+
+    @Test
+    public void testSnapshotIsCached() {
+        SpringOAuthClientConfig config = newConfig();
+
+        assertThat(config.getSnapshot(), is(sameInstance(config.getSnapshot())));
+    }
+
+    @Test
+    public void testSnapshotIsRebuiltAfterChange() {
+        SpringOAuthClientConfig config = newConfig();
+        config.getSnapshot();
+
+        config.setServerURL("https://test.salesforce.com");
+
+        assertThat(config.getSnapshot().getServerURL(), is("https://test.salesforce.com"));
+    }
+
+    @Test
+    public void testNoStaleSnapshotAfterConcurrentChanges() throws InterruptedException {
+        final SpringOAuthClientConfig config = newConfig();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final CountDownLatch started = new CountDownLatch(4);
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    while (running.get()) {
+                        config.getSnapshot();
+                    }
+                }
+            });
+            readers[i].start();
+        }
+        started.await();
+
+        for (int i = 0; i < 20000; i++) {
+            config.setScope("scope" + i);
+            config.getSnapshot();
+        }
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertThat(config.getSnapshot().getScope(), is("scope19999"));
+    }
+
+    private static SpringOAuthClientConfig newConfig() {
+        SpringOAuthClientConfig config = new SpringOAuthClientConfig();
+        config.setClientId("client");
+        config.setClientSecret("secret");
+        config.setServerURL("https://login.salesforce.com");
+        config.afterPropertiesSet();
+        return config;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+public class TokenBucketStripesTest {
+
+    @Test
+    public void testBurstIsAllowedThenLimited() {
+        TokenBucketStripes buckets = new TokenBucketStripes(16, 1, 3);
+        for (int i = 0; i < 3; i++) {
+            assertThat(buckets.tryAcquire("key"), is(0L));
+        }
+        assertThat(buckets.tryAcquire("key"), is(allOf(greaterThan(0L), lessThanOrEqualTo(1000L))));
+    }
+
+    @Test
+    public void testRejectedAcquireDoesNotConsume() {
+        TokenBucketStripes buckets = new TokenBucketStripes(1, 1, 1);
+        assertThat(buckets.tryAcquire("key"), is(0L));
+        long firstWait = buckets.tryAcquire("key");
+        for (int i = 0; i < 100; i++) {
+            buckets.tryAcquire("key");
+        }
+        assertThat(buckets.tryAcquire("key"), is(lessThanOrEqualTo(firstWait)));
+    }
+
+    @Test
+    public void testBucketRefills() throws InterruptedException {
+        TokenBucketStripes buckets = new TokenBucketStripes(1, 100, 1);
+        assertThat(buckets.tryAcquire("key"), is(0L));
+        assertThat(buckets.tryAcquire("key"), is(greaterThan(0L)));
+
+        Thread.sleep(50); // 100 permits per second refill one token in 10 ms
+        assertThat(buckets.tryAcquire("key"), is(0L));
+    }
+
+    @Test
+    public void testKeysInSameStripeShareBucket() {
+        TokenBucketStripes buckets = new TokenBucketStripes(1, 1, 1);
+        assertThat(buckets.tryAcquire("a"), is(0L));
+        assertThat(buckets.tryAcquire("b"), is(greaterThan(0L)));
+    }
+
+    @Test
+    public void testStripesAreIndependent() {
+        TokenBucketStripes buckets = new TokenBucketStripes(1 << 16, 1, 1);
+        int allowed = 0;
+        for (int i = 0; i < 100; i++) {
+            if (buckets.tryAcquire("key" + i) == 0) {
+                allowed++;
+            }
+        }
+        assertThat(allowed, is(greaterThan(90))); // A few keys may collide
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBurstTooLarge() {
+        new TokenBucketStripes(1, 1, Integer.MAX_VALUE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoStripes() {
+        new TokenBucketStripes(0, 1, 1);
+    }
+}
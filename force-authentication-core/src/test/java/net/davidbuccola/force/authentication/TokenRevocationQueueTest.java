@@ -0,0 +1,244 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+public class TokenRevocationQueueTest {
+    private static final String LOGIN_URL = "https://login.example.com";
+
+    private StubConnector connector;
+    private TokenRevocationQueue queue;
+
+    @Before
+    public void setUp() {
+        connector = new StubConnector();
+        queue = new TokenRevocationQueue();
+        queue.setConnector(connector);
+        queue.setInitialBackoffMillis(100);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connector.release();
+        queue.destroy();
+    }
+
+    @Test
+    public void testTokenIsRevoked() throws Exception {
+        queue.afterPropertiesSet();
+
+        assertThat(queue.revoke(LOGIN_URL, "token"), is(true));
+        waitUntilDone(1);
+        assertThat(connector.getAttempts("token").size(), is(1));
+        assertThat(connector.loginUrls.get("token"), is(LOGIN_URL));
+        assertThat(queue.getQueuedCount(), is(1L));
+        assertThat(queue.getRevokedCount(), is(1L));
+        assertThat(queue.getPendingCount(), is(0));
+    }
+
+    @Test
+    public void testFailedRevocationIsRetriedWithBackoff() throws Exception {
+        queue.afterPropertiesSet();
+        connector.fail("token", 2);
+
+        queue.revoke(LOGIN_URL, "token");
+        waitUntilDone(1);
+        List<Long> attempts = connector.getAttempts("token");
+        assertThat(attempts.size(), is(3));
+        assertThat(millisBetween(attempts, 0), is(greaterThanOrEqualTo(100L)));
+        assertThat(millisBetween(attempts, 1), is(greaterThanOrEqualTo(200L))); // Doubled
+        assertThat(queue.getRetriedCount(), is(2L));
+        assertThat(queue.getRevokedCount(), is(1L));
+    }
+
+    @Test
+    public void testBackoffIsLimited() throws Exception {
+        queue.setInitialBackoffMillis(50);
+        queue.setMaxBackoffMillis(50);
+        queue.afterPropertiesSet();
+        connector.fail("token", 3);
+
+        queue.revoke(LOGIN_URL, "token");
+        waitUntilDone(1);
+        List<Long> attempts = connector.getAttempts("token");
+        assertThat(attempts.size(), is(4));
+        assertThat(millisBetween(attempts, 2), is(lessThan(100L + 50L))); // Would be 200 ms without the limit
+    }
+
+    @Test
+    public void testTokenIsAbandonedAfterMaxAttempts() throws Exception {
+        queue.setInitialBackoffMillis(10);
+        queue.setMaxAttempts(3);
+        queue.afterPropertiesSet();
+        connector.fail("token", Integer.MAX_VALUE);
+
+        queue.revoke(LOGIN_URL, "token");
+        waitUntilDone(1);
+        Thread.sleep(100); // Long enough for another attempt, if there were one
+        assertThat(connector.getAttempts("token").size(), is(3));
+        assertThat(queue.getRetriedCount(), is(2L));
+        assertThat(queue.getAbandonedCount(), is(1L));
+        assertThat(queue.getRevokedCount(), is(0L));
+        assertThat(queue.getPendingCount(), is(0));
+    }
+
+    @Test
+    public void testTokenIsDroppedWhenFull() throws Exception {
+        queue.setCapacity(2);
+        queue.afterPropertiesSet();
+        connector.block();
+
+        queue.revoke(LOGIN_URL, "token-1");
+        assertThat(connector.entered.await(10, TimeUnit.SECONDS), is(true)); // Taken out of the buffer and blocked
+        assertThat(queue.revoke(LOGIN_URL, "token-2"), is(true));
+        assertThat(queue.revoke(LOGIN_URL, "token-3"), is(true));
+        assertThat(queue.revoke(LOGIN_URL, "token-4"), is(false));
+        assertThat(queue.getDroppedCount(), is(1L));
+        assertThat(queue.getPendingCount(), is(2));
+
+        connector.release();
+        waitUntilDone(3);
+        assertThat(connector.getAttempts("token-4").size(), is(0));
+    }
+
+    @Test
+    public void testShutdownRevokesWaitingTokensWithinDeadline() throws Exception {
+        queue.setShutdownTimeoutMillis(5000);
+        queue.afterPropertiesSet();
+        connector.fail("flaky", 3);
+        connector.block();
+
+        queue.revoke(LOGIN_URL, "token-1");
+        assertThat(connector.entered.await(10, TimeUnit.SECONDS), is(true));
+        queue.revoke(LOGIN_URL, "token-2");
+        queue.revoke(LOGIN_URL, "flaky");
+        connector.release();
+        while (connector.getAttempts("flaky").size() < 2) { // Now waiting out a 200 ms backoff
+            Thread.sleep(10);
+        }
+
+        long startNanos = System.nanoTime();
+        queue.destroy();
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), is(lessThan(5000L)));
+        assertThat(queue.getRevokedCount(), is(3L));
+        assertThat(queue.getAbandonedCount(), is(0L));
+
+        List<Long> attempts = connector.getAttempts("flaky");
+        assertThat(attempts.size(), is(4));
+        assertThat(millisBetween(attempts, 2), is(greaterThanOrEqualTo(100L))); // Still waits between attempts
+    }
+
+    @Test
+    public void testShutdownAbandonsFailingTokenAtDeadline() throws Exception {
+        queue.setMaxAttempts(Integer.MAX_VALUE);
+        queue.setShutdownTimeoutMillis(500);
+        queue.afterPropertiesSet();
+        connector.fail("token", Integer.MAX_VALUE);
+
+        queue.revoke(LOGIN_URL, "token");
+        while (connector.getAttempts("token").isEmpty()) {
+            Thread.sleep(10);
+        }
+
+        long startNanos = System.nanoTime();
+        queue.destroy();
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), is(lessThan(500L + 500L)));
+        assertThat(queue.getAbandonedCount(), is(1L));
+        assertThat(queue.getPendingCount(), is(0));
+        assertThat(connector.getAttempts("token").size(), is(lessThanOrEqualTo(1 + 500 / 100))); // Not a tight loop
+    }
+
+    private void waitUntilDone(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (queue.getRevokedCount() + queue.getAbandonedCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(queue.getRevokedCount() + queue.getAbandonedCount(), is((long) count));
+    }
+
+    private static long millisBetween(List<Long> attempts, int index) {
+        return TimeUnit.NANOSECONDS.toMillis(attempts.get(index + 1) - attempts.get(index));
+    }
+
+    /**
+     * A connector that records when each token was revoked and fails as many times as it is told to.
+     */
+    private static final class StubConnector extends AbstractOAuthConnector {
+        private final Map<String, List<Long>> attempts = new ConcurrentHashMap<String, List<Long>>();
+        private final Map<String, Integer> failures = new ConcurrentHashMap<String, Integer>();
+        private final Map<String, String> loginUrls = new ConcurrentHashMap<String, String>();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private volatile CountDownLatch gate = new CountDownLatch(0);
+
+        private void fail(String accessToken, int count) {
+            failures.put(accessToken, count);
+        }
+
+        private void block() {
+            gate = new CountDownLatch(1);
+        }
+
+        private void release() {
+            gate.countDown();
+        }
+
+        private synchronized List<Long> getAttempts(String accessToken) {
+            List<Long> list = attempts.get(accessToken);
+            return (list != null) ? new ArrayList<Long>(list) : new ArrayList<Long>();
+        }
+
+        @Override
+        public void revokeToken(String loginUrl, String accessToken) {
+            synchronized (this) {
+                List<Long> list = attempts.get(accessToken);
+                if (list == null) {
+                    list = new ArrayList<Long>();
+                    attempts.put(accessToken, list);
+                }
+                list.add(System.nanoTime());
+            }
+            loginUrls.put(accessToken, loginUrl);
+            entered.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            Integer remaining = failures.get(accessToken);
+            if (remaining != null && remaining > 0) {
+                failures.put(accessToken, remaining - 1);
+                throw new OAuthException("Service unavailable");
+            }
+        }
+
+        @Override
+        public String buildAuthorizeUri(String loginUrl, String callbackUri, String state, String codeChallenge) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ForceAuthenticationToken getToken(String loginUrl, String code, String callbackUri, String codeVerifier) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
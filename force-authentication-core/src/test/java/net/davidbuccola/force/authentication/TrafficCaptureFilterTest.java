@@ -0,0 +1,225 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.crypto.SecretKey;
+import javax.servlet.http.Cookie;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+public class TrafficCaptureFilterTest {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final String CLIENT_SECRET = "8412905310846287219";
+    private static final String ACCESS_TOKEN = "00Dx0000000BV7z!AR8AQP0jITN80ESEsj5EbaZTFG0RNBaT1cyWk7TrqoDjoNIWQ2ME";
+    private static final String PARAMETERS_TOKEN = "00Dx0000000BV7z!AR8AQBM8J_xr9kLqmZIRyQxZgLcM4HVi41aGtW0qW3JCzf5xdT";
+    private static final String FORGED_TOKEN = "00Dx0000000BV7z!AR8AQJXg5rNmS3WkBf6dGzq4vL1oE9hYuCcT2pA7xKjM0sDiFn";
+    private static final String HEADER_TOKEN = "00Dx0000000BV7z!AR8AQKfW1zTq8vN3mJc5LdR7yXsP0gBh2uE6oAiVk9GwYnCtZe";
+    private static final String CODE = "aPrxsmIEeqM9PiQroGEWx1UiMQd95_5JUZVEhsOFhS8EVvbfYBBJli2W5fn3zbo.x8hkqnzqvl";
+    private static final String STATE = "c2lnbmVkLXN0YXRlLWlkZW50aWZpZXI";
+    private static final String SESSION_KEY = "sPJHbF4C1jwXUuLPUKxRBr1NXc9uMB2PHMcDuwYVGz0";
+    private static final String USER_ID = "005x0000000wWmGAAU";
+    private static final String USER_NAME = "jane.doe@acme-widgets.com";
+    private static final String INSTANCE_URL = "https://acme-widgets.my.salesforce.com";
+
+    private File file;
+    private TrafficCaptureFilter filter;
+
+    @Before
+    public void setUp() throws Exception {
+        SpringOAuthClientConfig config = new SpringOAuthClientConfig();
+        config.setClientId("client");
+        config.setClientSecret(CLIENT_SECRET);
+        config.setServerURL("https://login.example.com");
+        config.afterPropertiesSet();
+
+        PathExclusionMatcher exclusionMatcher = new PathExclusionMatcher();
+        exclusionMatcher.setPatterns(Arrays.asList("/static/**"));
+        exclusionMatcher.afterPropertiesSet();
+
+        file = File.createTempFile("traffic", ".bin");
+        filter = new TrafficCaptureFilter();
+        filter.setClientConfig(config);
+        filter.setExclusionMatcher(exclusionMatcher);
+        filter.setFile(file);
+        filter.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() {
+        filter.destroy();
+        file.delete();
+    }
+
+    @Test
+    public void testExcludedRequestIsNotCaptured() throws Exception {
+        MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(newRequest("/static/app.js"), new MockHttpServletResponse(), chain);
+
+        assertThat(filter.getCapturedCount(), is(0L));
+        assertThat(chain.getRequest(), is(notNullValue()));
+    }
+
+    @Test
+    public void testOtherRequestIsCaptured() throws Exception {
+        MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(newRequest("/home"), new MockHttpServletResponse(), chain);
+
+        assertThat(filter.getCapturedCount(), is(1L));
+        assertThat(chain.getRequest(), is(notNullValue()));
+    }
+
+    @Test
+    public void testSecretsAreNotWritten() throws Exception {
+        String signedRequest = SignedPayloads.sign(newCanvasRequest(ACCESS_TOKEN), CLIENT_SECRET);
+        String signedParameters = SignedPayloads.sign(newSignedParameters(PARAMETERS_TOKEN), CLIENT_SECRET);
+        String forgedRequest = SignedPayloads.sign(newCanvasRequest(FORGED_TOKEN), "forger-secret");
+        captureTraffic(signedRequest, signedParameters, forgedRequest);
+        filter.destroy();
+
+        String contents = new String(Files.readAllBytes(file.toPath()), ISO_8859_1);
+        for (String secret : Arrays.asList(CLIENT_SECRET, ACCESS_TOKEN, PARAMETERS_TOKEN, FORGED_TOKEN, HEADER_TOKEN,
+            CODE, STATE, SESSION_KEY, USER_ID, USER_NAME, INSTANCE_URL, signedRequest, signedParameters, forgedRequest,
+            signedRequest.split("\\.")[0], signedParameters.split("\\.")[0], forgedRequest.split("\\.")[1])) {
+            assertThat(contents, not(containsString(secret)));
+        }
+        assertThat(filter.getWrittenCount(), is(6L));
+    }
+
+    @Test
+    public void testRecordRoundTrips() throws Exception {
+        MockHttpServletRequest request = newRequest("/home");
+        request.setParameter(SignedRequestFilter.SIGNED_REQUEST,
+            SignedPayloads.sign(newCanvasRequest(ACCESS_TOKEN), CLIENT_SECRET));
+        request.addHeader("Force-Instance-Url", INSTANCE_URL);
+        request.setCookies(new Cookie(SharedTokenCacheFilter.COOKIE_NAME, SESSION_KEY));
+        request.setSecure(true);
+        SecretKey signingKey = SignedParametersUtil.newSecretKey(CLIENT_SECRET);
+        CapturedRequest captured = CapturedRequest.capture(
+            request, 1234, signingKey, SignedParametersUtil.DEFAULT_MAX_LENGTH, new TrafficPseudonymizer(new byte[32]));
+
+        byte[] bytes = toBytes(captured);
+        CapturedRequest read = CapturedRequest.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+        assertThat(toBytes(read), is(bytes));
+        assertThat(read.getOffsetMillis(), is(1234));
+        assertThat(read.getMechanism(), is(captured.getMechanism()));
+        assertThat(read.has(CapturedRequest.INSTANCE_URL_HEADER), is(true));
+        assertThat(read.has(CapturedRequest.SHARED_SESSION_COOKIE), is(true));
+        assertThat(read.has(CapturedRequest.SECURE), is(true));
+        assertThat(read.has(CapturedRequest.AUTHORIZATION_HEADER), is(false));
+        assertThat(read.getInstanceUrl(), is(captured.getInstanceUrl()));
+        assertThat(read.getPayloadLength(), is(captured.getPayloadLength()));
+        assertThat(read.getPayload(), is(captured.getPayload()));
+    }
+
+    @Test
+    public void testCaptureReplaysWithSameMechanismMix() throws Exception {
+        captureTraffic(SignedPayloads.sign(newCanvasRequest(ACCESS_TOKEN), CLIENT_SECRET),
+            SignedPayloads.sign(newSignedParameters(PARAMETERS_TOKEN), CLIENT_SECRET),
+            SignedPayloads.sign(newCanvasRequest(FORGED_TOKEN), "forger-secret"));
+        filter.destroy();
+
+        TrafficReplayer replayer = new TrafficReplayer(file);
+        assertThat(replayer.size(), is(6));
+        Map<String, String> rows = new HashMap<String, String>();
+        for (String line : replayer.replay().split("\\r?\\n")) {
+            String[] columns = line.trim().split("\\s+");
+            rows.put(columns[0], line);
+        }
+
+        // Counts of requests, passed, redirected, rejected and failed
+        assertThat(counts(rows.get("SIGNED_REQUEST")), is("2 1 0 1 0"));
+        assertThat(counts(rows.get("SIGNED_PARAMETERS")), is("1 1 0 0 0"));
+        assertThat(counts(rows.get("OAUTH")), is("1 0 1 0 0"));
+        assertThat(counts(rows.get("HEADER")), is("1 1 0 0 0"));
+        assertThat(counts(rows.get("NONE")), is("1 1 0 0 0"));
+    }
+
+    /**
+     * Sends one request of each kind through the filter: a canvas signed request, signed parameters, a forged signed
+     * request, an OAuth callback, header-based authentication and a request with just a session cookie.
+     */
+    private void captureTraffic(String signedRequest, String signedParameters, String forgedRequest) throws Exception {
+        MockHttpServletRequest canvas = newRequest("/canvas");
+        canvas.setParameter(SignedRequestFilter.SIGNED_REQUEST, signedRequest);
+        MockHttpServletRequest parameters = newRequest("/home");
+        parameters.setParameter(SignedRequestFilter.SIGNED_PARAMETERS, signedParameters);
+        MockHttpServletRequest forged = newRequest("/canvas");
+        forged.setParameter(SignedRequestFilter.SIGNED_REQUEST, forgedRequest);
+
+        MockHttpServletRequest callback = newRequest(OAuthFilter.CALLBACK_PATH);
+        callback.setParameter("code", CODE);
+        callback.setParameter("state", STATE);
+
+        MockHttpServletRequest header = newRequest("/api/data");
+        header.addHeader("Authorization", "OAuth " + HEADER_TOKEN);
+        header.addHeader("Force-Instance-Url", INSTANCE_URL);
+        header.addHeader("Force-User-Id", USER_ID);
+
+        MockHttpServletRequest session = newRequest("/home");
+        session.setCookies(new Cookie(SharedTokenCacheFilter.COOKIE_NAME, SESSION_KEY));
+
+        for (MockHttpServletRequest request : Arrays.asList(canvas, parameters, forged, callback, header, session)) {
+            filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+        }
+    }
+
+    private static String newCanvasRequest(String accessToken) {
+        return String.format("{\"algorithm\":\"HMACSHA256\",\"issuedAt\":%d,\"userId\":\"%s\","
+            + "\"client\":{\"oauthToken\":\"%s\",\"instanceUrl\":\"%s\"},"
+            + "\"context\":{\"user\":{\"userId\":\"%s\",\"userName\":\"%s\"},"
+            + "\"organization\":{\"organizationId\":\"00Dx0000000BV7zEAG\"},\"environment\":{\"parameters\":{}}}}",
+            System.currentTimeMillis() / 1000, USER_ID, accessToken, INSTANCE_URL, USER_ID, USER_NAME);
+    }
+
+    private static String newSignedParameters(String accessToken) {
+        return String.format("{\"userId\":\"%s\",\"accessToken\":\"%s\",\"instanceUrl\":\"%s\","
+            + "\"algorithm\":\"HMACSHA256\"}", USER_ID, accessToken, INSTANCE_URL);
+    }
+
+    private static byte[] toBytes(CapturedRequest captured) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        captured.writeTo(output);
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Gets the count columns of a row of the replay report.
+     */
+    private static String counts(String row) {
+        assertThat(row, is(notNullValue()));
+        String[] columns = row.trim().split("\\s+");
+        return columns[1] + " " + columns[2] + " " + columns[3] + " " + columns[4] + " " + columns[5];
+    }
+
+    private static MockHttpServletRequest newRequest(String servletPath) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", servletPath);
+        request.setServletPath(servletPath);
+        return request;
+    }
+}
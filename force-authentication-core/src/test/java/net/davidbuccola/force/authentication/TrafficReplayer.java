@@ -0,0 +1,565 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import net.davidbuccola.force.authentication.AuthenticationAuditEvent.Mechanism;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a capture written by {@link TrafficCaptureFilter} through {@link SignedRequestFilter}, {@link OAuthFilter}
+ * and {@link SignedParametersFilter} in-process, to benchmark the filters against the real mix of production traffic.
+ * <p/>
+ * Requests are rebuilt from their recorded shapes in the recorded order. Canvas payloads are re-signed with a fixed
+ * replay secret, so every run sends byte-for-byte the same requests, and payloads that weren't authentic when captured
+ * are replayed as forgeries of the same length. The OAuth token exchange is answered by a stub connector with a
+ * configurable latency instead of Salesforce. Requests are dispatched at a fixed rate (or as fast as possible) from a
+ * number of threads, and the time spent in the filters is reported per mechanism.
+ * <p/>
+ * The filters are replayed without optional collaborators. Use {@link #getSignedRequestFilter()} and friends to add
+ * the ones being benchmarked before calling {@link #replay()}. It lives in the test sources and is not shipped. Run it
+ * from the command line, with the test classes and an SLF4J binding on the class path, with:
+ * <pre>
+ *     java net.davidbuccola.force.authentication.TrafficReplayer capture-file [requests-per-second [threads [iterations]]]
+ * </pre>
+ */
+public final class TrafficReplayer {
+    private static final Logger log = LoggerFactory.getLogger(TrafficReplayer.class);
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String REPLAY_SECRET = "traffic-replay-secret";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String NONE = "NONE";
+
+    private static final List<GrantedAuthority> AUTHORITIES = Arrays.asList(
+        (GrantedAuthority) new SimpleGrantedAuthority("ROLE_USER"),
+        (GrantedAuthority) new SimpleGrantedAuthority("ROLE_API_USER"));
+
+    private final List<ReplayRequest> requests;
+    private final SignedRequestFilter signedRequestFilter = new SignedRequestFilter();
+    private final OAuthFilter oAuthFilter = new OAuthFilter();
+    private final SignedParametersFilter signedParametersFilter = new SignedParametersFilter();
+    private final StubOAuthConnector connector = new StubOAuthConnector();
+
+    private double ratePerSecond;
+    private int threads = 1;
+    private int iterations = 1;
+
+    /**
+     * Loads a capture.
+     *
+     * @param file the capture file
+     * @throws IOException if the file can't be read or isn't a capture
+     */
+    public TrafficReplayer(File file) throws IOException {
+        SpringOAuthClientConfig clientConfig = new SpringOAuthClientConfig();
+        clientConfig.setClientId("traffic-replay");
+        clientConfig.setClientSecret(REPLAY_SECRET);
+        clientConfig.setServerURL("https://login.example.com");
+        clientConfig.afterPropertiesSet();
+
+        signedRequestFilter.setClientConfig(clientConfig);
+        signedParametersFilter.setClientConfig(clientConfig);
+        oAuthFilter.setConnector(connector);
+
+        requests = load(file, OAuthClientSnapshot.of(clientConfig).getSigningKey());
+    }
+
+    /**
+     * Sets the rate at which requests are dispatched. The default is 0, which means as fast as possible.
+     *
+     * @param ratePerSecond the rate in requests per second
+     */
+    public void setRatePerSecond(double ratePerSecond) {
+        this.ratePerSecond = ratePerSecond;
+    }
+
+    /**
+     * Sets the number of threads that dispatch requests. The default is 1.
+     *
+     * @param threads the number of threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Sets how many times the capture is replayed. The default is 1.
+     *
+     * @param iterations the number of iterations
+     */
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    /**
+     * Sets how long the stub connector takes to answer a token request. The default is 0.
+     *
+     * @param connectorLatencyMillis the latency in milliseconds
+     */
+    public void setConnectorLatencyMillis(long connectorLatencyMillis) {
+        connector.latencyNanos = TimeUnit.MILLISECONDS.toNanos(connectorLatencyMillis);
+    }
+
+    public SignedRequestFilter getSignedRequestFilter() {
+        return signedRequestFilter;
+    }
+
+    public OAuthFilter getOAuthFilter() {
+        return oAuthFilter;
+    }
+
+    public SignedParametersFilter getSignedParametersFilter() {
+        return signedParametersFilter;
+    }
+
+    /**
+     * @return the number of requests in the capture
+     */
+    public int size() {
+        return requests.size();
+    }
+
+    /**
+     * Replays the capture.
+     *
+     * @return a report of the time spent in the filters per mechanism
+     * @throws InterruptedException if interrupted while waiting for the dispatching threads
+     */
+    public String replay() throws InterruptedException {
+        final int total = requests.size() * iterations;
+        final long[] latencies = new long[total];
+        final byte[] results = new byte[total];
+        final AtomicInteger next = new AtomicInteger();
+        final long intervalNanos = (ratePerSecond > 0) ? (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond) : 0;
+        final long startNanos = System.nanoTime();
+
+        List<Thread> workers = new ArrayList<Thread>(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int index = next.getAndIncrement();
+                    while (index < total) {
+                        long dueNanos = startNanos + index * intervalNanos;
+                        long waitNanos = dueNanos - System.nanoTime();
+                        while (waitNanos > 0) {
+                            LockSupport.parkNanos(waitNanos);
+                            waitNanos = dueNanos - System.nanoTime();
+                        }
+                        ReplayResponse response = new ReplayResponse();
+                        latencies[index] = dispatch(requests.get(index % requests.size()), response);
+                        results[index] = (byte) response.getResult().ordinal();
+                        index = next.getAndIncrement();
+                    }
+                }
+            }, "force-authentication-replay-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        return buildReport(latencies, results, elapsedNanos);
+    }
+
+    /**
+     * Replays a capture from the command line and logs the report.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            log.error("Usage: TrafficReplayer capture-file [requests-per-second [threads [iterations]]]");
+            System.exit(2);
+        }
+        TrafficReplayer replayer = new TrafficReplayer(new File(args[0]));
+        if (args.length > 1) {
+            replayer.setRatePerSecond(Double.parseDouble(args[1]));
+        }
+        if (args.length > 2) {
+            replayer.setThreads(Integer.parseInt(args[2]));
+        }
+        if (args.length > 3) {
+            replayer.setIterations(Integer.parseInt(args[3]));
+        }
+        log.info(replayer.replay());
+    }
+
+    /**
+     * Sends one request through the filters.
+     *
+     * @return the time spent in the filters in nanoseconds
+     */
+    private long dispatch(ReplayRequest replayRequest, final ReplayResponse replayResponse) {
+        HttpServletRequest request = replayRequest.newRequest();
+        HttpServletResponse response = replayResponse.newResponse();
+        final FilterChain application = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                replayResponse.reached = true;
+            }
+        };
+        final FilterChain signedParameters = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                signedParametersFilter.doFilter(request, response, application);
+            }
+        };
+        final FilterChain oAuth = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                oAuthFilter.doFilter(request, response, signedParameters);
+            }
+        };
+
+        long startNanos = System.nanoTime();
+        try {
+            signedRequestFilter.doFilter(request, response, oAuth);
+        } catch (Exception e) {
+            replayResponse.failed = true; // Replayed as captured, so a failing request is part of the mix
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+        return System.nanoTime() - startNanos;
+    }
+
+    private String buildReport(long[] latencies, byte[] results, long elapsedNanos) {
+        Map<String, List<Integer>> indexesByMechanism = new HashMap<String, List<Integer>>();
+        for (int i = 0; i < latencies.length; i++) {
+            Mechanism mechanism = requests.get(i % requests.size()).captured.getMechanism();
+            String name = (mechanism != null) ? mechanism.name() : NONE;
+            List<Integer> indexes = indexesByMechanism.get(name);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                indexesByMechanism.put(name, indexes);
+            }
+            indexes.add(i);
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Replayed %d requests in %d ms (%.0f/s) with %d threads%n", latencies.length,
+            TimeUnit.NANOSECONDS.toMillis(elapsedNanos), latencies.length * 1e9 / Math.max(1, elapsedNanos), threads));
+        report.append(String.format("%-18s %8s %8s %8s %8s %8s %10s %10s %10s %10s%n", "mechanism", "count",
+            "passed", "redirect", "rejected", "failed", "p50 us", "p90 us", "p99 us", "max us"));
+
+        List<String> names = new ArrayList<String>(indexesByMechanism.keySet());
+        Collections.sort(names);
+        for (String name : names) {
+            List<Integer> indexes = indexesByMechanism.get(name);
+            long[] sorted = new long[indexes.size()];
+            Map<Result, Integer> counts = new EnumMap<Result, Integer>(Result.class);
+            for (Result result : Result.values()) {
+                counts.put(result, 0);
+            }
+            for (int i = 0; i < sorted.length; i++) {
+                int index = indexes.get(i);
+                sorted[i] = latencies[index];
+                Result result = Result.values()[results[index]];
+                counts.put(result, counts.get(result) + 1);
+            }
+            Arrays.sort(sorted);
+            report.append(String.format("%-18s %8d %8d %8d %8d %8d %10d %10d %10d %10d%n", name, sorted.length,
+                counts.get(Result.PASSED), counts.get(Result.REDIRECTED), counts.get(Result.REJECTED),
+                counts.get(Result.FAILED), percentileMicros(sorted, 0.5), percentileMicros(sorted, 0.9),
+                percentileMicros(sorted, 0.99), percentileMicros(sorted, 1.0)));
+        }
+        return report.toString();
+    }
+
+    private static long percentileMicros(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(0, index)]);
+    }
+
+    private static List<ReplayRequest> load(File file, SecretKey signingKey) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != CapturedRequest.MAGIC) {
+                throw new IOException("Not a capture file: " + file);
+            }
+            int version = input.readInt();
+            if (version != CapturedRequest.VERSION) {
+                throw new IOException(String.format("Unsupported capture version %d: %s", version, file));
+            }
+            input.readLong(); // Start time of the capture
+
+            List<ReplayRequest> requests = new ArrayList<ReplayRequest>();
+            while (true) {
+                CapturedRequest captured;
+                try {
+                    captured = CapturedRequest.readFrom(input);
+                } catch (EOFException e) {
+                    break; // Also where a capture that was cut short ends
+                }
+                requests.add(new ReplayRequest(captured, requests.size(), signingKey));
+            }
+            return requests;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Signs a JSON envelope the way Salesforce signs canvas payloads.
+     */
+    private static String sign(byte[] json, SecretKey signingKey) {
+        try {
+            byte[] envelope = Base64.encodeBase64(json);
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(signingKey);
+            return new String(Base64.encodeBase64(mac.doFinal(envelope)), ASCII) + "." + new String(envelope, ASCII);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e); // Every JRE is required to have it
+        }
+    }
+
+    /**
+     * Builds a payload of the given length that fails verification.
+     */
+    private static String forge(int length) {
+        String forgery = StringUtils.repeat("A", length);
+        return (length > 44) ? forgery.substring(0, 43) + "." + forgery.substring(44) : forgery;
+    }
+
+    /**
+     * What happened to a replayed request.
+     */
+    private enum Result {
+        PASSED,
+        REDIRECTED,
+        REJECTED,
+        FAILED
+    }
+
+    /**
+     * A request rebuilt from its captured shape. Everything is prepared up front so that dispatching only has to wrap
+     * it in a fresh {@link HttpServletRequest}.
+     */
+    private static final class ReplayRequest {
+        private final CapturedRequest captured;
+        private final Map<String, String> parameters = new HashMap<String, String>();
+        private final Map<String, String> headers = new HashMap<String, String>();
+        private final Cookie[] cookies;
+        private final String servletPath;
+
+        private ReplayRequest(CapturedRequest captured, int index, SecretKey signingKey) {
+            this.captured = captured;
+
+            Mechanism mechanism = captured.getMechanism();
+            if (mechanism == Mechanism.SIGNED_REQUEST || mechanism == Mechanism.SIGNED_PARAMETERS) {
+                String name = (mechanism == Mechanism.SIGNED_REQUEST)
+                    ? SignedRequestFilter.SIGNED_REQUEST : SignedRequestFilter.SIGNED_PARAMETERS;
+                parameters.put(name, (captured.getPayload() != null)
+                    ? sign(captured.getPayload(), signingKey) : forge(captured.getPayloadLength()));
+            }
+            if (captured.has(CapturedRequest.OAUTH_CODE)) {
+                // Distinct codes so that the stub connector hands out distinct users
+                parameters.put("code", StringUtils.leftPad(Integer.toString(index), captured.getCodeLength(), 'x'));
+            }
+            if (captured.has(CapturedRequest.OAUTH_STATE)) {
+                parameters.put("state", "/" + StringUtils.repeat("x", Math.max(0, captured.getStateLength() - 1)));
+            }
+            if (captured.has(CapturedRequest.OAUTH_ERROR)) {
+                parameters.put("error", "access_denied");
+            }
+            servletPath = (mechanism == Mechanism.OAUTH) ? OAuthFilter.CALLBACK_PATH : "/";
+
+            if (captured.has(CapturedRequest.AUTHORIZATION_HEADER)) {
+                String scheme = (mechanism == Mechanism.HEADER) ? "OAuth " : "Bearer ";
+                headers.put("Authorization", StringUtils.rightPad(scheme, captured.getAuthorizationLength(), 'x')
+                    .substring(0, captured.getAuthorizationLength()));
+            }
+            if (captured.has(CapturedRequest.INSTANCE_URL_HEADER)) {
+                headers.put("Force-Instance-Url", captured.getInstanceUrl());
+            }
+            if (captured.has(CapturedRequest.USER_ID_HEADER)) {
+                headers.put("Force-User-Id", captured.getUserId());
+            }
+
+            List<Cookie> cookieList = new ArrayList<Cookie>();
+            if (captured.has(CapturedRequest.SHARED_SESSION_COOKIE)) {
+                cookieList.add(new Cookie(SharedTokenCacheFilter.COOKIE_NAME, "replay"));
+            }
+            if (captured.has(CapturedRequest.CONTEXT_SESSION_COOKIE)) {
+                cookieList.add(new Cookie(WriteBehindSecurityContextRepository.COOKIE_NAME, "replay"));
+            }
+            if (captured.has(CapturedRequest.ORG_COOKIE)) {
+                cookieList.add(new Cookie(MyDomainRouter.COOKIE_NAME, "replay"));
+            }
+            cookies = cookieList.isEmpty() ? null : cookieList.toArray(new Cookie[cookieList.size()]);
+        }
+
+        private HttpServletRequest newRequest() {
+            final Map<String, Object> attributes = new HashMap<String, Object>();
+            return (HttpServletRequest) Proxy.newProxyInstance(TrafficReplayer.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if ("getParameter".equals(name)) {
+                            return parameters.get((String) args[0]);
+                        } else if ("getHeader".equals(name)) {
+                            return headers.get((String) args[0]);
+                        } else if ("getCookies".equals(name)) {
+                            return (cookies != null) ? cookies.clone() : null;
+                        } else if ("getServletPath".equals(name)) {
+                            return servletPath;
+                        } else if ("getRequestURI".equals(name)) {
+                            return servletPath;
+                        } else if ("getRequestURL".equals(name)) {
+                            return new StringBuffer("https://localhost").append(servletPath);
+                        } else if ("getContextPath".equals(name)) {
+                            return "";
+                        } else if ("getServerName".equals(name)) {
+                            return "localhost";
+                        } else if ("getRemoteAddr".equals(name)) {
+                            return captured.getClientAddress();
+                        } else if ("isSecure".equals(name)) {
+                            return captured.has(CapturedRequest.SECURE);
+                        } else if ("getAttribute".equals(name)) {
+                            return attributes.get((String) args[0]);
+                        } else if ("setAttribute".equals(name)) {
+                            attributes.put((String) args[0], args[1]);
+                            return null;
+                        }
+                        return defaultValue(method, proxy, args);
+                    }
+                });
+        }
+    }
+
+    /**
+     * Keeps track of what the filters did with the response.
+     */
+    private static final class ReplayResponse {
+        private int status = HttpServletResponse.SC_OK;
+        private boolean reached;
+        private boolean failed;
+
+        private Result getResult() {
+            if (failed) {
+                return Result.FAILED;
+            } else if (status >= HttpServletResponse.SC_BAD_REQUEST) {
+                return Result.REJECTED;
+            } else if (status == HttpServletResponse.SC_MOVED_TEMPORARILY) {
+                return Result.REDIRECTED;
+            } else {
+                return reached ? Result.PASSED : Result.REJECTED;
+            }
+        }
+
+        private HttpServletResponse newResponse() {
+            return (HttpServletResponse) Proxy.newProxyInstance(TrafficReplayer.class.getClassLoader(),
+                new Class<?>[]{HttpServletResponse.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if ("sendError".equals(name) || "setStatus".equals(name)) {
+                            status = (Integer) args[0];
+                            return null;
+                        } else if ("sendRedirect".equals(name)) {
+                            status = HttpServletResponse.SC_MOVED_TEMPORARILY;
+                            return null;
+                        }
+                        return defaultValue(method, proxy, args);
+                    }
+                });
+        }
+    }
+
+    /**
+     * Answers for the parts of the servlet API that the filters don't depend on: nothing, zero or false.
+     */
+    private static Object defaultValue(Method method, Object proxy, Object[] args) {
+        String name = method.getName();
+        if ("equals".equals(name)) {
+            return proxy == args[0];
+        } else if ("hashCode".equals(name)) {
+            return System.identityHashCode(proxy);
+        } else if ("toString".equals(name)) {
+            return "replayed " + method.getDeclaringClass().getSimpleName();
+        }
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    /**
+     * Answers token requests without going to Salesforce. Each code gets its own user in one of a few orgs.
+     */
+    private static final class StubOAuthConnector extends AbstractOAuthConnector {
+        private volatile long latencyNanos;
+
+        @Override
+        public String buildAuthorizeUri(String loginUrl, String callbackUri, String state, String codeChallenge) {
+            return "https://login.example.com/services/oauth2/authorize";
+        }
+
+        @Override
+        public ForceAuthenticationToken getToken(String loginUrl, String code, String callbackUri, String codeVerifier) {
+            if (latencyNanos > 0) {
+                LockSupport.parkNanos(latencyNanos);
+            }
+            int hash = code.hashCode() & Integer.MAX_VALUE;
+            String organizationId = "00D" + StringUtils.leftPad(Integer.toString(hash % 16), 12, '0');
+            String userId = "005" + StringUtils.leftPad(Integer.toString(hash), 12, '0');
+            String instanceUrl = "https://org" + (hash % 16) + ".example.com";
+            ForceAuthenticationToken token = new ForceAuthenticationToken(userId, "stub-access-token", instanceUrl,
+                "https://login.example.com/id/" + organizationId + "/" + userId, AUTHORITIES);
+            token.setAuthenticated(true);
+            return token;
+        }
+
+        @Override
+        public void revokeToken(String loginUrl, String accessToken) {
+            if (latencyNanos > 0) {
+                LockSupport.parkNanos(latencyNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright, 2013, SALESFORCE.com
+ * All Rights Reserved
+ * Company Confidential
+ */
+package net.davidbuccola.force.authentication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+
+import javax.servlet.http.Cookie;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class WriteBehindSecurityContextRepositoryTest {
+    private static final String USER_ID = "005000000000001AAA";
+    private static final String OTHER_USER_ID = "005000000000002AAA";
+
+    private InMemorySecurityContextStore store;
+    private WriteBehindSecurityContextRepository repository;
+
+    @Before
+    public void setUp() {
+        store = new InMemorySecurityContextStore();
+        repository = new WriteBehindSecurityContextRepository();
+        repository.setStore(store);
+        repository.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        repository.destroy();
+    }
+
+    @Test
+    public void testLoginGetsNewKeyAndPlantedKeyIsRemoved() {
+        String planted = save(null, newToken(OTHER_USER_ID, "attacker-token"));
+
+        String sessionKey = save(planted, newToken(USER_ID, "victim-token"));
+        assertThat(sessionKey, is(notNullValue()));
+        assertThat(sessionKey, is(not(planted)));
+        assertThat(load(sessionKey).getAccessToken(), is("victim-token"));
+        assertThat(load(planted), is(nullValue()));
+    }
+
+    @Test
+    public void testLoginWithUnknownKeyGetsNewKey() {
+        String sessionKey = save("planted-but-empty", newToken(USER_ID, "token"));
+
+        assertThat(sessionKey, is(not("planted-but-empty")));
+        assertThat(load("planted-but-empty"), is(nullValue()));
+    }
+
+    @Test
+    public void testSameUserKeepsKey() {
+        String sessionKey = save(null, newToken(USER_ID, "token-1"));
+
+        assertThat(save(sessionKey, newToken(USER_ID, "token-2")), is(nullValue()));
+        assertThat(load(sessionKey).getAccessToken(), is("token-2"));
+    }
+
+    @Test
+    public void testUnchangedTokenIsNotSaved() {
+        String sessionKey = save(null, newToken(USER_ID, "token"));
+        long savedCount = repository.getSavedCount();
+
+        assertThat(save(sessionKey, newToken(USER_ID, "token")), is(nullValue()));
+        assertThat(repository.getSavedCount(), is(savedCount));
+        assertThat(repository.getSkippedCount(), is(1L));
+    }
+
+    /**
+     * Runs a request with a session cookie, authenticates it with a token and saves the context.
+     *
+     * @return the session key of the cookie the response set, or <code>null</code> if it set none
+     */
+    private String save(String sessionKey, ForceAuthenticationToken token) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        if (sessionKey != null) {
+            request.setCookies(new Cookie(WriteBehindSecurityContextRepository.COOKIE_NAME, sessionKey));
+        }
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        HttpRequestResponseHolder holder = new HttpRequestResponseHolder(request, response);
+        repository.loadContext(holder);
+
+        SecurityContext context = SecurityContextHolder.createEmptyContext();
+        context.setAuthentication(token);
+        repository.saveContext(context, holder.getRequest(), holder.getResponse());
+
+        Cookie cookie = response.getCookie(WriteBehindSecurityContextRepository.COOKIE_NAME);
+        return (cookie != null) ? cookie.getValue() : null;
+    }
+
+    private ForceAuthenticationToken load(String sessionKey) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setCookies(new Cookie(WriteBehindSecurityContextRepository.COOKIE_NAME, sessionKey));
+        HttpRequestResponseHolder holder = new HttpRequestResponseHolder(request, new MockHttpServletResponse());
+        return (ForceAuthenticationToken) repository.loadContext(holder).getAuthentication();
+    }
+
+    private static ForceAuthenticationToken newToken(String userId, String accessToken) {
+        return new ForceAuthenticationToken(
+            userId, accessToken, "https://na1.example.com", Collections.<GrantedAuthority>emptyList());
+    }
+}